@@ -0,0 +1,18 @@
+alter table groups
+    add message_seq bigint default 0 not null;
+
+comment on column groups.message_seq is '群组时间线最新的消息序号';
+
+alter table messages
+    add group_seq bigint;
+
+comment on column messages.group_seq is '群组时间线消息序号
+为空时消息通过 user_messages 与用户关联';
+
+create unique index messages_group_id_group_seq_uindex
+    on messages (group_id, group_seq);
+
+alter table groups_member
+    add read_seq bigint default 0 not null;
+
+comment on column groups_member.read_seq is '成员已读的群组时间线消息序号';
@@ -0,0 +1,20 @@
+create function notify_groups_member() returns trigger as
+$$
+begin
+    if tg_op = 'DELETE' then
+        perform pg_notify('groups_member', old.gid::text);
+    else
+        perform pg_notify('groups_member', new.gid::text);
+    end if;
+    return null;
+end;
+$$ language plpgsql;
+
+comment on function notify_groups_member() is '群成员变更时通过 groups_member 频道发送群 ID
+逻辑服务收到通知后删除群组成员缓存';
+
+create trigger groups_member_notify_trigger
+    after insert or delete
+    on groups_member
+    for each row
+execute procedure notify_groups_member();
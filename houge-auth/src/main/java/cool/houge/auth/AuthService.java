@@ -31,4 +31,14 @@ public interface AuthService {
    * @return 认证上下文
    */
   Mono<AuthContext> authenticate(String token);
+
+  /**
+   * 在不校验令牌的情况下读取令牌中的用户ID.
+   *
+   * <p>仅用于与 {@link #authenticate(String)} 并行预加载用户数据, 认证成功之前返回的用户ID不可信.
+   *
+   * @param token 认证令牌
+   * @return 用户ID
+   */
+  long peekUid(String token);
 }
@@ -122,6 +122,18 @@ public class JwsAuthService implements AuthService, TokenService {
             });
   }
 
+  @Override
+  public long peekUid(String token) {
+    if (token == null || token.isEmpty()) {
+      throw new BizCodeException(BizCode.C401, "缺少访问令牌");
+    }
+    try {
+      return parseUid(JWT.decode(token).getId());
+    } catch (JWTDecodeException e) {
+      throw new BizCodeException(BizCodes.C3300, e);
+    }
+  }
+
   @Override
   public Mono<String> generateToken(long uid) {
     return userQueryDao
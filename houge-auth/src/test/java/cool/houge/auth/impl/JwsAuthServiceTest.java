@@ -15,6 +15,7 @@
  */
 package cool.houge.auth.impl;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -103,6 +104,22 @@ class JwsAuthServiceTest {
         .matches(e -> C3300 == e.getBizCode());
   }
 
+  @Test
+  void peekUid() {
+    var token = JWT.create().withKeyId(kid).withJWTId("99").sign(illegalAlgorithm);
+
+    JwsAuthService authService = newJwsAuthService();
+    assertThat(authService.peekUid(token)).isEqualTo(99L);
+  }
+
+  @Test
+  void peekUidIllegalToken() {
+    JwsAuthService authService = newJwsAuthService();
+    assertThatExceptionOfType(BizCodeException.class)
+        .isThrownBy(() -> authService.peekUid("illegal token"))
+        .matches(e -> C3300 == e.getBizCode());
+  }
+
   @Test
   void expiredToken() {
     var exp = Instant.now(Clock.systemDefaultZone()).minus(1, ChronoUnit.DAYS);
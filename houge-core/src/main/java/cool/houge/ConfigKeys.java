@@ -90,6 +90,21 @@ public final class ConfigKeys {
    */
   public static final String MESSAGE_STORAGE_R2DBC_URL = "message-storage.r2dbc.url";
 
+  /**
+   * 消息异步写入(write-behind)的配置.
+   *
+   * <p>开启后消息先追加到本地 WAL 再批量写入数据库, 未配置时同步写入数据库.
+   */
+  public static final String MESSAGE_STORAGE_WRITE_BEHIND = "message-storage.write-behind";
+
+  /**
+   * 群组消息保存到群组时间线的最小成员数量.
+   *
+   * <p>成员数量达到该值的群组消息仅保存一次, 成员拉取消息时读取群组的时间线; 成员数量小于该值的群组消息与成员逐一关联. 小于等于 0 时不使用群组时间线.
+   */
+  public static final String MESSAGE_STORAGE_GROUP_TIMELINE_MIN_MEMBERS =
+      "message-storage.group-timeline-min-members";
+
   /** 自动填充消息 ID 的配置开关. */
   public static final String MESSAGE_AUTOFILL_ID = "message.autofill.id";
 
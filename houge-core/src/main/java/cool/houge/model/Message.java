@@ -48,6 +48,8 @@ public class Message {
   private Long receiverId;
   /** 群主 ID. */
   private Long groupId;
+  /** 群组时间线消息序号, 为空时消息与用户逐一关联. */
+  private Long groupSeq;
   /**
    * 消息类型.
    *
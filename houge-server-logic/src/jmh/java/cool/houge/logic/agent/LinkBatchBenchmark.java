@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import com.google.protobuf.ByteString;
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.grpc.AgentGrpc;
+import cool.houge.grpc.AgentPb;
+import cool.houge.logic.grpc.AgentGrpcImpl;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Link 流批量响应的基准测试.
+ *
+ * <p>逻辑服务与 WS 终端通过本机 Netty 传输建立 Link 流, 每次调用向终端分发 {@value #MESSAGES} 条 Packet 并等待终端全部接收,
+ * 结果为每秒送达的 Packet 数量:
+ *
+ * <ul>
+ *   <li>{@code batchMaxPackets = 1} 不合并, 每条 Packet 为一个独立的 {@link AgentPb.LinkResponse}
+ *   <li>{@code batchMaxPackets > 1} 连续的 Packet 合并为 {@link AgentPb.PacketMixinBatch}
+ * </ul>
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LinkBatchBenchmark {
+
+  static final int MESSAGES = 50_000;
+
+  @Param({"1", "16", "64"})
+  int batchMaxPackets;
+
+  @Param({"256"})
+  int payloadSize;
+
+  final AtomicLong received = new AtomicLong();
+  Server server;
+  ManagedChannel channel;
+  StreamObserver<AgentPb.LinkResponse> agent;
+  AgentPb.LinkResponse response;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, InterruptedException {
+    var config = new AgentOutboundConfig();
+    config.setMaxBytes(ConfigMemorySize.ofBytes(1L << 30));
+    config.setBatchMaxPackets(batchMaxPackets);
+    var manager = new TediousServerAgentManager(config);
+    server = NettyServerBuilder.forPort(0).addService(new AgentGrpcImpl(manager)).build().start();
+    channel =
+        NettyChannelBuilder.forAddress("127.0.0.1", server.getPort()).usePlaintext().build();
+
+    var requestObserver =
+        AgentGrpc.newStub(channel)
+            .link(
+                new StreamObserver<>() {
+                  @Override
+                  public void onNext(AgentPb.LinkResponse value) {
+                    received.addAndGet(
+                        value.hasPacketMixinBatch()
+                            ? value.getPacketMixinBatch().getPacketMixinsCount()
+                            : 1);
+                  }
+
+                  @Override
+                  public void onError(Throwable t) {}
+
+                  @Override
+                  public void onCompleted() {}
+                });
+    requestObserver.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setName("benchmark")
+            .setHostName("localhost")
+            .setPacketMixinBatch(true)
+            .build());
+    while (manager.agentStatuses().isEmpty()) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    agent = manager.fetchAgentObservers().blockFirst();
+
+    var data = new byte[payloadSize];
+    ThreadLocalRandom.current().nextBytes(data);
+    response =
+        AgentPb.LinkResponse.newBuilder()
+            .setPacketMixin(
+                AgentPb.PacketMixin.newBuilder()
+                    .setType(AgentPb.PacketMixinType.USER)
+                    .addTo(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE))
+                    .setDataBytes(ByteString.copyFrom(data)))
+            .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void deliver() {
+    var target = received.get() + MESSAGES;
+    for (int i = 0; i < MESSAGES; i++) {
+      agent.onNext(response);
+    }
+    while (received.get() < target) {
+      Thread.onSpinWait();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    var opts = new OptionsBuilder().include(LinkBatchBenchmark.class.getSimpleName()).build();
+    new Runner(opts).run();
+  }
+}
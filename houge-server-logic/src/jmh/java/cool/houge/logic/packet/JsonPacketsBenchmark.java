@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.protobuf.ByteString;
+import cool.houge.util.JsonUtils;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JSON Packet 编解码的基准测试.
+ *
+ * <ul>
+ *   <li>{@code jackson*} 原有实现, 通过 {@code ObjectMapper} 多态类型解析与反射绑定
+ *   <li>{@code codec*} 使用 {@link JsonPackets} 流式读写
+ * </ul>
+ *
+ * <p>{@code contentSize} 为消息内容的字符数, {@code 4096} 对应 4 KB 的消息.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonPacketsBenchmark {
+
+  @Param({"32", "4096"})
+  int contentSize;
+
+  ObjectReader packetReader;
+  ObjectWriter packetWriter;
+  MessagePacketBase packet;
+  ByteString json;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    packetReader = JsonUtils.objectMapper().readerFor(Packet.class);
+    packetWriter = JsonUtils.objectMapper().writerFor(Packet.class);
+
+    var random = ThreadLocalRandom.current();
+    var content = new StringBuilder(contentSize);
+    for (int i = 0; i < contentSize; i++) {
+      content.append((char) random.nextInt('a', 'z' + 1));
+    }
+    packet = new GroupMessagePacket();
+    packet.setMessageId("5f8b6c1d2e3a4b7");
+    packet.setFrom(random.nextLong(1, Long.MAX_VALUE));
+    packet.setTo(random.nextLong(1, Long.MAX_VALUE));
+    packet.setKind(1);
+    packet.setContent(content.toString());
+    packet.setContentType(1);
+    json = JsonPackets.encode(packet);
+  }
+
+  @Benchmark
+  public Packet jacksonDecode() throws IOException {
+    return packetReader.readValue(json.newInput());
+  }
+
+  @Benchmark
+  public Packet codecDecode() throws IOException {
+    return JsonPackets.decode(json);
+  }
+
+  @Benchmark
+  public ByteString jacksonEncode() throws IOException {
+    var output = ByteString.newOutput();
+    packetWriter.writeValue(output, packet);
+    return output.toByteString();
+  }
+
+  @Benchmark
+  public ByteString codecEncode() throws IOException {
+    return JsonPackets.encode(packet);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    var opts =
+        new OptionsBuilder()
+            .include(JsonPacketsBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(opts).run();
+  }
+}
@@ -18,7 +18,12 @@ package cool.houge.logic.agent;
 import cool.houge.grpc.AgentPb;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import reactor.core.publisher.Flux;
@@ -31,21 +36,88 @@ import reactor.core.publisher.Flux;
 public abstract class AbstractServerAgentManager implements ServerAgentManager {
 
   private static final Logger log = LogManager.getLogger();
+  private static final Counter PRESENCE_PRUNED = Metrics.counter("tethys.logic.presence.pruned");
+  private static final Counter GROUP_INTEREST_PRUNED =
+      Metrics.counter("tethys.logic.group.interest.pruned");
+
   private final ConcurrentLinkedQueue<LinkResponseHolder> observerQueue =
       new ConcurrentLinkedQueue<>();
+  private final PresenceDirectory presenceDirectory = new PresenceDirectory();
+  private final GroupInterestDirectory groupInterestDirectory = new GroupInterestDirectory();
+  private final AgentOutboundConfig outboundConfig;
 
-  @Override
-  public void register(
-      AgentPb.LinkRequest request, ServerCallStreamObserver<AgentPb.LinkResponse> observer) {
-    var bean = new LinkResponseHolder(request.getName(), request.getHostName(), observer);
-    observerQueue.add(bean);
-    log.info("注册Agent name={} hostName={}", bean.name, bean.hostName);
+  /**
+   * 使用终端发送队列配置构造对象.
+   *
+   * @param outboundConfig 终端发送队列配置
+   */
+  protected AbstractServerAgentManager(AgentOutboundConfig outboundConfig) {
+    this.outboundConfig = outboundConfig;
+  }
 
+  @Override
+  public StreamObserver<AgentPb.LinkRequest> register(
+      ServerCallStreamObserver<AgentPb.LinkResponse> observer) {
+    var holderRef = new AtomicReference<LinkResponseHolder>();
+    var outbound = new AgentOutboundQueue(observer, outboundConfig);
+    // 取消处理器只能在调用初始化期间设置
     observer.setOnCancelHandler(
         () -> {
-          removeObserver(bean);
-          log.info("Agent由发起方手动取消 name={} hostName={}", bean.name, bean.hostName);
+          outbound.close();
+          var bean = holderRef.get();
+          if (bean != null) {
+            removeObserver(bean);
+            log.info("Agent由发起方手动取消 name={} hostName={}", bean.name, bean.hostName);
+          }
         });
+
+    return new StreamObserver<>() {
+
+      @Override
+      public void onNext(AgentPb.LinkRequest request) {
+        var bean = holderRef.get();
+        if (bean == null) {
+          bean =
+              new LinkResponseHolder(request.getName(), request.getHostName(), observer, outbound);
+          holderRef.set(bean);
+          outbound.bindMeters(bean.name);
+          if (request.getPacketMixinBatch()) {
+            outbound.enableBatch();
+          }
+          observerQueue.add(bean);
+          log.info("注册Agent name={} hostName={}", bean.name, bean.hostName);
+        }
+        if (request.hasPresence()) {
+          var presence = request.getPresence();
+          presenceDirectory.apply(bean, presence);
+          // 终端收到确认后新上线用户的会话才开始接收消息, 此后的用户消息不会跳过该终端
+          if (presence.getGeneration() != 0) {
+            outbound.onNext(
+                AgentPb.LinkResponse.newBuilder()
+                    .setPresenceAck(
+                        AgentPb.PresenceAck.newBuilder().setGeneration(presence.getGeneration()))
+                    .build());
+          }
+        }
+        if (request.hasGroupInterest()) {
+          groupInterestDirectory.apply(bean, request.getGroupInterest());
+        }
+        if (request.hasClientProtocols()) {
+          bean.protobuf = request.getClientProtocols().getProtobuf();
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        // 连接中断由取消处理器移除观察者
+        log.debug("Agent请求流中断", t);
+      }
+
+      @Override
+      public void onCompleted() {
+        // 旧版本终端发送首个请求后即关闭请求流, 保持响应流
+      }
+    };
   }
 
   /**
@@ -55,18 +127,98 @@ public abstract class AbstractServerAgentManager implements ServerAgentManager {
    */
   void removeObserver(LinkResponseHolder holder) {
     observerQueue.remove(holder);
+    holder.outbound.close();
+    presenceDirectory.remove(holder);
+    groupInterestDirectory.remove(holder);
   }
 
   @Override
   public Flux<StreamObserver<AgentPb.LinkResponse>> fetchAgentObservers() {
+    return fetchAgentHolders().map(bean -> bean.outbound);
+  }
+
+  @Override
+  public Flux<StreamObserver<AgentPb.LinkResponse>> fetchAgentObservers(List<Long> uids) {
+    return fetchAgentHolders(uids).map(bean -> bean.outbound);
+  }
+
+  @Override
+  public Flux<StreamObserver<AgentPb.LinkResponse>> fetchGroupAgentObservers(List<Long> gids) {
+    return fetchGroupAgentHolders(gids).map(bean -> bean.outbound);
+  }
+
+  /**
+   * 返回托管了指定用户中任意一个的终端.
+   *
+   * @param uids 用户 IDs
+   * @return 终端
+   */
+  Flux<LinkResponseHolder> fetchAgentHolders(List<Long> uids) {
+    return fetchAgentHolders()
+        .filter(
+            bean -> {
+              if (presenceDirectory.mayContainAny(bean, uids)) {
+                return true;
+              }
+              PRESENCE_PRUNED.increment();
+              return false;
+            });
+  }
+
+  /**
+   * 返回订阅了指定群组中任意一个的终端.
+   *
+   * @param gids 群组 IDs
+   * @return 终端
+   */
+  Flux<LinkResponseHolder> fetchGroupAgentHolders(List<Long> gids) {
+    return fetchAgentHolders()
+        .filter(
+            bean -> {
+              if (groupInterestDirectory.mayContainAny(bean, gids)) {
+                return true;
+              }
+              GROUP_INTEREST_PRUNED.increment();
+              return false;
+            });
+  }
+
+  @Override
+  public List<AgentStatus> agentStatuses() {
+    var statuses = new ArrayList<AgentStatus>(observerQueue.size());
+    for (LinkResponseHolder bean : observerQueue) {
+      statuses.add(bean.outbound.status(bean.name, bean.hostName));
+    }
+    return statuses;
+  }
+
+  /**
+   * 在终端上报之前将群组加入终端的订阅群组.
+   *
+   * <p>向终端发送订阅群组的命令之前调用, 终端订阅后的上报到达之前群组消息不会跳过该终端.
+   *
+   * @param holder 终端
+   * @param gids 群组 IDs
+   */
+  void addGroupInterestAhead(LinkResponseHolder holder, List<Long> gids) {
+    groupInterestDirectory.addAhead(holder, gids);
+  }
+
+  /**
+   * 返回所有可用的终端.
+   *
+   * @return 终端
+   */
+  Flux<LinkResponseHolder> fetchAgentHolders() {
     return Flux.fromIterable(observerQueue)
         .filter(
             bean -> {
-              if (bean.observer.isCancelled()) {
+              // 发送队列溢出断开的流不会触发取消处理器
+              if (bean.observer.isCancelled() || bean.outbound.isClosed()) {
                 removeObserver(bean);
+                return false;
               }
-              return !bean.observer.isCancelled();
-            })
-        .map(bean -> bean.observer);
+              return true;
+            });
   }
 }
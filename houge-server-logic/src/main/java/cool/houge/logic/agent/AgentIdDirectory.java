@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+/**
+ * 记录每个 WS 终端上报的 ID 集合的目录.
+ *
+ * <p>每个终端的 ID 集合使用一个 {@link Roaring64Bitmap} 存储, 终端建立连接后首先上报全量快照, 之后只上报增量变更. 同一终端的上报在 Link
+ * 请求流上按顺序处理.
+ *
+ * <p>未上报过 ID 集合的终端(旧版本的 WS 服务)视为包含所有的 ID, 仍然接收所有的消息.
+ *
+ * <p>{@link #addAhead(LinkResponseHolder, List)} 预先添加的 ID 在终端上报该 ID 的增量变更之前一直保留, 终端重新上报全量快照时合并到新的集合中,
+ * 避免快照覆盖正在执行的订阅命令.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+abstract class AgentIdDirectory {
+
+  // 终端->ID 集合, 集合由自身的锁保护
+  private final Map<LinkResponseHolder, IdSet> agents = new ConcurrentHashMap<>();
+
+  /**
+   * 修改终端的 ID 集合.
+   *
+   * @param agent 终端
+   * @param reset 是否使用新的集合替换终端已上报的集合
+   * @param action 修改函数
+   */
+  void update(LinkResponseHolder agent, boolean reset, Consumer<IdSet> action) {
+    if (reset) {
+      var fresh = new IdSet();
+      action.accept(fresh);
+      // 与 addAhead 互斥, 替换期间预先添加的 ID 不会写入旧的集合
+      agents.compute(
+          agent,
+          (unused, old) -> {
+            if (old != null) {
+              synchronized (old) {
+                fresh.mergeAhead(old.ahead);
+              }
+            }
+            return fresh;
+          });
+    } else {
+      var set = agents.computeIfAbsent(agent, unused -> new IdSet());
+      synchronized (set) {
+        action.accept(set);
+      }
+    }
+    // 终端在上报期间断开连接
+    if (agent.observer.isCancelled()) {
+      remove(agent);
+    }
+  }
+
+  /**
+   * 在终端上报之前向终端的 ID 集合添加 IDs, 终端未上报过 ID 集合时忽略.
+   *
+   * <p>终端之后上报的变更仍然按顺序应用, 终端未能添加的 ID 在终端上报该 ID 的变更之前一直保留, 只会造成多余的转发.
+   *
+   * @param agent 终端
+   * @param ids IDs
+   */
+  void addAhead(LinkResponseHolder agent, List<Long> ids) {
+    agents.computeIfPresent(
+        agent,
+        (unused, set) -> {
+          synchronized (set) {
+            for (int i = 0; i < ids.size(); i++) {
+              set.addAhead(ids.get(i));
+            }
+          }
+          return set;
+        });
+  }
+
+  /**
+   * 删除终端的 ID 集合.
+   *
+   * @param agent 终端
+   */
+  void remove(LinkResponseHolder agent) {
+    agents.remove(agent);
+  }
+
+  /**
+   * 判断终端是否可能包含指定 ID 中的任意一个.
+   *
+   * @param agent 终端
+   * @param ids IDs
+   * @return 终端未上报 ID 集合或者包含任意一个 ID 时返回 {@code true}
+   */
+  boolean mayContainAny(LinkResponseHolder agent, List<Long> ids) {
+    var set = agents.get(agent);
+    if (set == null) {
+      return true;
+    }
+    synchronized (set) {
+      for (int i = 0; i < ids.size(); i++) {
+        if (set.ids.contains(ids.get(i))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 返回所有终端 ID 集合的大小之和.
+   *
+   * @return ID 数量
+   */
+  long size() {
+    var n = 0L;
+    for (IdSet set : agents.values()) {
+      synchronized (set) {
+        n += set.ids.getLongCardinality();
+      }
+    }
+    return n;
+  }
+
+  /** 终端的 ID 集合. */
+  static final class IdSet {
+
+    /** 终端的 ID 集合, 包含预先添加的 ID. */
+    final Roaring64Bitmap ids = new Roaring64Bitmap();
+    // 预先添加且终端尚未上报变更的 ID
+    private final Roaring64Bitmap ahead = new Roaring64Bitmap();
+
+    /**
+     * 应用终端上报的新增 ID.
+     *
+     * @param id ID
+     */
+    void add(long id) {
+      ids.addLong(id);
+      ahead.removeLong(id);
+    }
+
+    /**
+     * 应用终端上报的删除 ID.
+     *
+     * @param id ID
+     */
+    void remove(long id) {
+      ids.removeLong(id);
+      ahead.removeLong(id);
+    }
+
+    private void addAhead(long id) {
+      ids.addLong(id);
+      ahead.addLong(id);
+    }
+
+    // 全量快照已包含的 ID 不再需要保留
+    private void mergeAhead(Roaring64Bitmap pending) {
+      ahead.or(pending);
+      ahead.andNot(ids);
+      ids.or(ahead);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+/**
+ * 终端 Link 流的发送状态.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public enum AgentLinkState {
+  /** 流可写, 响应直接写入流. */
+  READY,
+  /** 流不可写, 响应进入发送队列等待流恢复可写. */
+  STALLED,
+  /** 流已关闭. */
+  CLOSED,
+}
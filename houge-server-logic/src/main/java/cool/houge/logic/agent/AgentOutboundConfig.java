@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import com.typesafe.config.ConfigMemorySize;
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 终端发送队列配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class AgentOutboundConfig {
+
+  /** 单个终端发送队列可缓存的最大字节数. */
+  private ConfigMemorySize maxBytes = ConfigMemorySize.ofBytes(64L * 1024 * 1024);
+  /** 发送队列超出上限时的处理策略. */
+  private SlowAgentPolicy policy = SlowAgentPolicy.DISCONNECT;
+  /** 单个批量响应包含的最大 Packet 数量, 小于等于 1 时不合并. */
+  private int batchMaxPackets = 64;
+  /** 单个批量响应的最大字节数, 达到该值时立即发送. */
+  private ConfigMemorySize batchMaxBytes = ConfigMemorySize.ofBytes(64L * 1024);
+  /** 首个 Packet 进入批量响应后等待合并的最长时长, 为 0 时不合并. */
+  private Duration batchMaxDelay = Duration.ofNanos(200_000);
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import cool.houge.grpc.AgentPb;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * 终端 Link 流的有界发送队列.
+ *
+ * <p>gRPC 在流不可写时仍会缓存 {@code onNext} 写入的所有响应, 慢终端会导致逻辑服务的内存无限增长. 流可写({@link
+ * ServerCallStreamObserver#isReady()})时响应直接写入流, 不可写时响应进入队列, 待流重新可写后由 {@code onReadyHandler}
+ * 按顺序写出. 队列字节数超出上限时按 {@link SlowAgentPolicy} 处理, 丢弃策略只丢弃 Packet, 无法容纳其它响应时断开 Link 流.
+ *
+ * <p>终端支持批量响应时, 连续的 {@link AgentPb.PacketMixin} 先合并为 {@link AgentPb.PacketMixinBatch}, 在数量、字节数或等待时长达到上限时写出,
+ * 减少每条消息的 protobuf 与 HTTP/2 帧开销. 其它响应写出前会先写出已合并的 Packet, 保证响应的顺序.
+ *
+ * <p>{@link ServerCallStreamObserver} 不是线程安全的, 所有写入流的操作都在对象锁内执行.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class AgentOutboundQueue implements StreamObserver<AgentPb.LinkResponse> {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final DistributionSummary BATCH_SIZE =
+      Metrics.summary("tethys.logic.agent.outbound.batch.size");
+  // Link 流的序号, 同一终端重连后新旧 Link 流的监控指标互不影响
+  private static final AtomicLong LINK_IDS = new AtomicLong();
+
+  private final ServerCallStreamObserver<AgentPb.LinkResponse> observer;
+  private final long linkId = LINK_IDS.incrementAndGet();
+  private final long maxBytes;
+  private final SlowAgentPolicy policy;
+  private final ArrayDeque<AgentPb.LinkResponse> queue = new ArrayDeque<>();
+  private final List<Meter> meters = new ArrayList<>(3);
+  private final int batchMaxPackets;
+  private final long batchMaxBytes;
+  private final long batchMaxDelayNanos;
+
+  // 等待合并的 Packet, 仅在终端支持批量响应时使用
+  private AgentPb.PacketMixinBatch.Builder batch;
+  private long batchBytes;
+  // 当前批量响应必须写出的时间, System.nanoTime()
+  private long batchDeadline;
+  private boolean batchFlushScheduled;
+
+  private long queuedBytes;
+  private long droppedResponses;
+  private long stallNanos;
+  // 流变为不可写的时间, System.nanoTime()
+  private long stallStartTime;
+  private AgentLinkState state = AgentLinkState.READY;
+  private Counter droppedCounter;
+  private Timer stallTimer;
+
+  /**
+   * 构造对象, 必须在 gRPC 调用初始化期间调用.
+   *
+   * @param observer Link 响应流
+   * @param config 发送队列配置
+   */
+  AgentOutboundQueue(
+      ServerCallStreamObserver<AgentPb.LinkResponse> observer, AgentOutboundConfig config) {
+    this.observer = observer;
+    this.maxBytes = config.getMaxBytes().toBytes();
+    this.policy = config.getPolicy();
+    this.batchMaxPackets = config.getBatchMaxPackets();
+    this.batchMaxBytes = config.getBatchMaxBytes().toBytes();
+    this.batchMaxDelayNanos = config.getBatchMaxDelay().toNanos();
+    // 就绪处理器只能在调用初始化期间设置
+    observer.setOnReadyHandler(this::drain);
+  }
+
+  /**
+   * 注册以终端名称与 Link 流序号为标签的监控指标, 终端发送注册请求后调用.
+   *
+   * <p>终端重连时旧的 Link 流可能晚于新的 Link 流关闭, 每个 Link 流只注册与删除自身的监控指标.
+   *
+   * @param name 终端名称
+   */
+  synchronized void bindMeters(String name) {
+    if (state == AgentLinkState.CLOSED || !meters.isEmpty()) {
+      return;
+    }
+    var tags = Tags.of("agent", name, "link", String.valueOf(linkId));
+    meters.add(
+        Gauge.builder(
+                "tethys.logic.agent.outbound.queued.bytes", this, AgentOutboundQueue::queuedBytes)
+            .tags(tags)
+            .register(Metrics.globalRegistry));
+    this.droppedCounter =
+        Metrics.counter("tethys.logic.agent.outbound.dropped", tags.and("policy", policy.name()));
+    this.stallTimer = Metrics.timer("tethys.logic.agent.outbound.stall", tags);
+    meters.add(droppedCounter);
+    meters.add(stallTimer);
+  }
+
+  /** 开启批量响应, 终端在注册请求中声明支持批量响应后调用. */
+  synchronized void enableBatch() {
+    if (batchMaxPackets > 1 && batchMaxDelayNanos > 0 && batch == null) {
+      batch = AgentPb.PacketMixinBatch.newBuilder();
+    }
+  }
+
+  /**
+   * 发送响应, 可以在任意线程中调用.
+   *
+   * @param response 响应
+   */
+  @Override
+  public synchronized void onNext(AgentPb.LinkResponse response) {
+    if (state == AgentLinkState.CLOSED) {
+      return;
+    }
+    if (batch != null && response.hasPacketMixin()) {
+      appendBatch(response.getPacketMixin());
+      return;
+    }
+    flushBatch();
+    write(response);
+  }
+
+  private void appendBatch(AgentPb.PacketMixin packetMixin) {
+    if (batch.getPacketMixinsCount() == 0) {
+      batchDeadline = System.nanoTime() + batchMaxDelayNanos;
+      if (!batchFlushScheduled) {
+        scheduleBatchFlush(batchMaxDelayNanos);
+      }
+    }
+    batch.addPacketMixins(packetMixin);
+    batchBytes += packetMixin.getSerializedSize();
+    if (batch.getPacketMixinsCount() >= batchMaxPackets || batchBytes >= batchMaxBytes) {
+      flushBatch();
+    }
+  }
+
+  private void scheduleBatchFlush(long delayNanos) {
+    batchFlushScheduled = true;
+    Schedulers.parallel().schedule(this::flushScheduledBatch, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private synchronized void flushScheduledBatch() {
+    batchFlushScheduled = false;
+    if (state == AgentLinkState.CLOSED || batch.getPacketMixinsCount() == 0) {
+      return;
+    }
+    // 定时任务可能属于已提前写出的批量响应, 未到当前批量响应的写出时间时重新调度
+    var remaining = batchDeadline - System.nanoTime();
+    if (remaining > 0) {
+      scheduleBatchFlush(remaining);
+    } else {
+      flushBatch();
+    }
+  }
+
+  private void flushBatch() {
+    if (batch == null || batch.getPacketMixinsCount() == 0) {
+      return;
+    }
+    var count = batch.getPacketMixinsCount();
+    BATCH_SIZE.record(count);
+    var builder = AgentPb.LinkResponse.newBuilder();
+    if (count == 1) {
+      builder.setPacketMixin(batch.getPacketMixins(0));
+    } else {
+      builder.setPacketMixinBatch(batch);
+    }
+    batch.clear();
+    batchBytes = 0;
+    write(builder.build());
+  }
+
+  private void write(AgentPb.LinkResponse response) {
+    if (observer.isCancelled()) {
+      close();
+      return;
+    }
+    if (queue.isEmpty() && observer.isReady()) {
+      observer.onNext(response);
+      return;
+    }
+
+    var size = response.getSerializedSize();
+    if (queuedBytes + size > maxBytes) {
+      if (policy == SlowAgentPolicy.DROP_OLDEST && size <= maxBytes) {
+        dropOldestPackets(size);
+      }
+      if (queuedBytes + size > maxBytes) {
+        // 订阅命令与上线确认丢失后终端状态无法恢复, 只有 Packet 可以丢弃
+        if (policy == SlowAgentPolicy.DISCONNECT || !isPacket(response)) {
+          disconnect();
+        } else {
+          drop();
+        }
+        return;
+      }
+    }
+
+    queue.addLast(response);
+    queuedBytes += size;
+    if (state == AgentLinkState.READY) {
+      state = AgentLinkState.STALLED;
+      stallStartTime = System.nanoTime();
+    }
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    if (state == AgentLinkState.CLOSED) {
+      return;
+    }
+    close();
+    observer.onError(t);
+  }
+
+  @Override
+  public synchronized void onCompleted() {
+    if (state == AgentLinkState.CLOSED) {
+      return;
+    }
+    flushBatch();
+    close();
+    observer.onCompleted();
+  }
+
+  /** 丢弃队列中的响应并删除监控指标, 不会关闭流. */
+  synchronized void close() {
+    if (state == AgentLinkState.STALLED) {
+      endStall();
+    }
+    state = AgentLinkState.CLOSED;
+    queue.clear();
+    queuedBytes = 0;
+    if (batch != null) {
+      batch.clear();
+      batchBytes = 0;
+    }
+    meters.forEach(Metrics.globalRegistry::remove);
+    meters.clear();
+  }
+
+  /**
+   * 流是否已关闭.
+   *
+   * @return true 已关闭
+   */
+  synchronized boolean isClosed() {
+    return state == AgentLinkState.CLOSED;
+  }
+
+  /**
+   * 返回队列中缓存的字节数.
+   *
+   * @return 字节数
+   */
+  synchronized long queuedBytes() {
+    return queuedBytes;
+  }
+
+  /**
+   * 返回终端状态快照.
+   *
+   * @param name 终端名称
+   * @param hostName 终端主机名称
+   * @return 终端状态
+   */
+  synchronized AgentStatus status(String name, String hostName) {
+    var stall = stallNanos;
+    if (state == AgentLinkState.STALLED) {
+      stall += System.nanoTime() - stallStartTime;
+    }
+    return AgentStatus.builder()
+        .name(name)
+        .hostName(hostName)
+        .state(state)
+        .queuedResponses(queue.size())
+        .queuedBytes(queuedBytes)
+        .droppedResponses(droppedResponses)
+        .stallTime(Duration.ofNanos(stall))
+        .build();
+  }
+
+  private synchronized void drain() {
+    if (state == AgentLinkState.CLOSED) {
+      return;
+    }
+    while (!queue.isEmpty() && observer.isReady()) {
+      observer.onNext(dequeue());
+    }
+    if (queue.isEmpty() && state == AgentLinkState.STALLED) {
+      endStall();
+      state = AgentLinkState.READY;
+    }
+  }
+
+  private AgentPb.LinkResponse dequeue() {
+    var response = queue.pollFirst();
+    queuedBytes -= response.getSerializedSize();
+    return response;
+  }
+
+  // 从最早的 Packet 开始丢弃, 直至可以容纳 size 字节的新响应, 跳过其它响应
+  private void dropOldestPackets(long size) {
+    var it = queue.iterator();
+    while (it.hasNext() && queuedBytes + size > maxBytes) {
+      var response = it.next();
+      if (isPacket(response)) {
+        it.remove();
+        queuedBytes -= response.getSerializedSize();
+        drop();
+      }
+    }
+  }
+
+  private static boolean isPacket(AgentPb.LinkResponse response) {
+    return response.hasPacketMixin() || response.hasPacketMixinBatch();
+  }
+
+  private void drop() {
+    droppedResponses++;
+    if (droppedCounter != null) {
+      droppedCounter.increment();
+    }
+  }
+
+  private void endStall() {
+    var nanos = System.nanoTime() - stallStartTime;
+    stallNanos += nanos;
+    if (stallTimer != null) {
+      stallTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void disconnect() {
+    log.warn("Agent消费过慢, 断开Link流 queuedBytes={} maxBytes={}", queuedBytes, maxBytes);
+    close();
+    observer.onError(
+        Status.RESOURCE_EXHAUSTED.withDescription("agent outbound queue overflow").asException());
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import java.time.Duration;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * 终端状态快照.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Value
+@Builder
+public class AgentStatus {
+
+  /** 终端名称. */
+  String name;
+  /** 终端主机名称. */
+  String hostName;
+  /** Link 流的发送状态. */
+  AgentLinkState state;
+  /** 发送队列中的响应数量. */
+  int queuedResponses;
+  /** 发送队列中的响应字节数. */
+  long queuedBytes;
+  /** 因发送队列超出上限丢弃的响应数量. */
+  long droppedResponses;
+  /** 流不可写的累计时长, 包含当前未结束的不可写时长. */
+  Duration stallTime;
+}
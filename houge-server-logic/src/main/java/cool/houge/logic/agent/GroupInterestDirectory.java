@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import cool.houge.grpc.AgentPb;
+import io.micrometer.core.instrument.Metrics;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * 群组订阅目录, 记录每个 WS 终端上有会话订阅的群组.
+ *
+ * <p>由终端通过 Link 流上报的 {@link AgentPb.GroupInterest} 维护, 全量快照为 {@link
+ * org.roaringbitmap.longlong.Roaring64Bitmap} 序列化的格式. 未上报过订阅群组的终端视为订阅了所有群组.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class GroupInterestDirectory extends AgentIdDirectory {
+
+  GroupInterestDirectory() {
+    Metrics.gauge("tethys.logic.group.interest.groups", this, GroupInterestDirectory::size);
+  }
+
+  /**
+   * 应用终端上报的订阅群组变更.
+   *
+   * @param agent 终端
+   * @param interest 订阅群组变更
+   */
+  void apply(LinkResponseHolder agent, AgentPb.GroupInterest interest) {
+    update(
+        agent,
+        interest.getReset(),
+        gids -> {
+          if (interest.getReset() && !interest.getSnapshot().isEmpty()) {
+            try (var in = new DataInputStream(interest.getSnapshot().newInput())) {
+              gids.ids.deserialize(in);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          for (int i = 0; i < interest.getRemovedGidsCount(); i++) {
+            gids.remove(interest.getRemovedGids(i));
+          }
+          for (int i = 0; i < interest.getAddedGidsCount(); i++) {
+            gids.add(interest.getAddedGids(i));
+          }
+        });
+  }
+}
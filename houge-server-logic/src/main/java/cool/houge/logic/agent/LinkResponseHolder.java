@@ -24,11 +24,18 @@ class LinkResponseHolder {
   String name;
   String hostName;
   ServerCallStreamObserver<AgentPb.LinkResponse> observer;
+  AgentOutboundQueue outbound;
+  /** 终端是否托管了 protobuf 二进制协议的会话, 未上报会话协议的旧版本终端始终编码 protobuf 格式. */
+  volatile boolean protobuf = true;
 
   public LinkResponseHolder(
-      String name, String hostName, ServerCallStreamObserver<AgentPb.LinkResponse> observer) {
+      String name,
+      String hostName,
+      ServerCallStreamObserver<AgentPb.LinkResponse> observer,
+      AgentOutboundQueue outbound) {
     this.name = name;
     this.hostName = hostName;
     this.observer = observer;
+    this.outbound = outbound;
   }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import cool.houge.grpc.AgentPb;
+import io.micrometer.core.instrument.Metrics;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * 在线用户目录, 记录每个 WS 终端上在线的用户.
+ *
+ * <p>由终端通过 Link 流上报的 {@link AgentPb.Presence} 维护, 全量快照为 {@link
+ * org.roaringbitmap.longlong.Roaring64Bitmap} 序列化的格式. 未上报过在线用户的终端视为托管了所有用户.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class PresenceDirectory extends AgentIdDirectory {
+
+  PresenceDirectory() {
+    Metrics.gauge("tethys.logic.presence.users", this, PresenceDirectory::size);
+  }
+
+  /**
+   * 应用终端上报的在线用户变更.
+   *
+   * @param agent 终端
+   * @param presence 在线用户变更
+   */
+  void apply(LinkResponseHolder agent, AgentPb.Presence presence) {
+    update(
+        agent,
+        presence.getReset(),
+        uids -> {
+          if (presence.getReset() && !presence.getSnapshot().isEmpty()) {
+            try (var in = new DataInputStream(presence.getSnapshot().newInput())) {
+              uids.ids.deserialize(in);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          for (int i = 0; i < presence.getOfflineUidsCount(); i++) {
+            uids.remove(presence.getOfflineUids(i));
+          }
+          for (int i = 0; i < presence.getOnlineUidsCount(); i++) {
+            uids.add(presence.getOnlineUids(i));
+          }
+        });
+  }
+}
@@ -17,6 +17,7 @@ package cool.houge.logic.agent;
 
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.util.List;
 import reactor.core.publisher.Flux;
 import cool.houge.grpc.AgentPb;
 
@@ -30,16 +31,43 @@ public interface ServerAgentManager {
   /**
    * 注册消息观察者.
    *
-   * @param request
-   * @param observer
+   * <p>终端的首个请求携带终端标识, 后续请求上报终端的在线用户变更.
+   *
+   * @param observer 响应流观察者
+   * @return 请求流观察者
    */
-  void register(
-      AgentPb.LinkRequest request, ServerCallStreamObserver<AgentPb.LinkResponse> observer);
+  StreamObserver<AgentPb.LinkRequest> register(
+      ServerCallStreamObserver<AgentPb.LinkResponse> observer);
 
   /**
    * 返回可用的流观察者.
    *
+   * <p>流观察者带有有界发送队列, 可以在任意线程中调用.
+   *
    * @return
    */
   Flux<StreamObserver<AgentPb.LinkResponse>> fetchAgentObservers();
+
+  /**
+   * 返回托管了指定用户中任意一个的流观察者.
+   *
+   * @param uids 用户 IDs
+   * @return 流观察者
+   */
+  Flux<StreamObserver<AgentPb.LinkResponse>> fetchAgentObservers(List<Long> uids);
+
+  /**
+   * 返回订阅了指定群组中任意一个的流观察者.
+   *
+   * @param gids 群组 IDs
+   * @return 流观察者
+   */
+  Flux<StreamObserver<AgentPb.LinkResponse>> fetchGroupAgentObservers(List<Long> gids);
+
+  /**
+   * 返回所有终端的状态快照.
+   *
+   * @return 终端状态
+   */
+  List<AgentStatus> agentStatuses();
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+/**
+ * 慢终端策略.
+ *
+ * <p>WS 终端读取速度跟不上逻辑服务分发速度, 终端发送队列超出上限时采用的处理方式.
+ *
+ * <p>丢弃策略只丢弃 Packet 响应. 订阅命令与上线确认等控制响应不能丢弃, 队列无法容纳时与 {@link #DISCONNECT} 相同断开 Link 流.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public enum SlowAgentPolicy {
+  /** 丢弃队列中最早的 Packet, 为新响应腾出空间. */
+  DROP_OLDEST,
+  /** 丢弃新的 Packet. */
+  DROP_NEWEST,
+  /** 断开 Link 流, 终端重连后重新上报在线用户与订阅群组. */
+  DISCONNECT,
+}
@@ -15,22 +15,27 @@
  */
 package cool.houge.logic.agent;
 
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.protobuf.ByteString;
+import cool.houge.logic.packet.JsonPackets;
 import cool.houge.logic.packet.Packet;
+import cool.houge.logic.packet.ProtobufPackets;
+import cool.houge.logic.packet.RawJsonPackets;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import cool.houge.grpc.AgentPb;
 import cool.houge.grpc.AgentPb.PacketMixin;
 import cool.houge.grpc.AgentPb.PacketMixinType;
-import cool.houge.util.JsonUtils;
 
 /**
- * 向所有观察者分发消息.
+ * 向观察者分发消息, 用户消息与群组订阅命令只分发给托管了该用户的终端, 群组消息只分发给订阅了该群组的终端.
  *
  * @author KK (kzou227@qq.com)
  */
@@ -38,68 +43,117 @@ public class TediousServerAgentManager extends AbstractServerAgentManager
     implements CommandSender, PacketSender {
 
   private static final Logger log = LogManager.getLogger();
-  private final ObjectWriter objectWriter;
+  private static final Counter RAW_JSON_PACKETS =
+      Metrics.counter("tethys.logic.packet.json", "mode", "raw");
+  private static final Counter SERIALIZED_JSON_PACKETS =
+      Metrics.counter("tethys.logic.packet.json", "mode", "serialized");
 
-  /** 默认构造函数. */
+  /** 使用默认的终端发送队列配置构造对象. */
   public TediousServerAgentManager() {
-    this.objectWriter = JsonUtils.objectMapper().writerFor(Packet.class);
+    this(new AgentOutboundConfig());
+  }
+
+  /**
+   * 使用终端发送队列配置构造对象.
+   *
+   * @param outboundConfig 终端发送队列配置
+   */
+  @Inject
+  public TediousServerAgentManager(AgentOutboundConfig outboundConfig) {
+    super(outboundConfig);
   }
 
   @Override
   public void send(AgentPb.Command command) {
-    // 分发命令
-    fetchAgentObservers()
-        .subscribe(
-            observer -> {
-              log.debug("发送Command {} {}", command);
-              observer.onNext(AgentPb.LinkResponse.newBuilder().setCommand(command).build());
-            });
+    // 订阅/取消订阅群组的命令只分发给托管了该用户的终端
+    Flux<LinkResponseHolder> holders;
+    if (command.hasSubGroup()) {
+      var subGroup = command.getSubGroup();
+      // 发送命令之前加入终端的订阅群组, 终端订阅后的上报到达之前不跳过该终端
+      holders =
+          fetchAgentHolders(List.of(subGroup.getUid()))
+              .doOnNext(bean -> addGroupInterestAhead(bean, subGroup.getGidsList()));
+    } else if (command.hasUnsubGroup()) {
+      holders = fetchAgentHolders(List.of(command.getUnsubGroup().getUid()));
+    } else {
+      holders = fetchAgentHolders();
+    }
+    holders.subscribe(
+        bean -> {
+          log.debug("发送Command {} {}", command);
+          bean.outbound.onNext(AgentPb.LinkResponse.newBuilder().setCommand(command).build());
+        });
   }
 
   @Override
   public void sendToUser(List<Long> uids, Packet packet) {
-    send(uids, packet, PacketMixinType.USER);
+    // 只发送给托管了接收用户的终端
+    send(fetchAgentHolders(uids), uids, packet, PacketMixinType.USER);
   }
 
   @Override
   public void sendToGroup(List<Long> gids, Packet packet) {
-    send(gids, packet, PacketMixinType.GROUP);
+    // 只发送给订阅了群组的终端
+    send(fetchGroupAgentHolders(gids), gids, packet, PacketMixinType.GROUP);
   }
 
   @Override
   public void sendToAll(Packet packet) {
-    send(List.of(), packet, AgentPb.PacketMixinType.ALL);
+    send(fetchAgentHolders(), List.of(), packet, AgentPb.PacketMixinType.ALL);
   }
 
-  private void send(List<Long> list, Packet packet, AgentPb.PacketMixinType type) {
+  private void send(
+      Flux<LinkResponseHolder> holders,
+      List<Long> list,
+      Packet packet,
+      AgentPb.PacketMixinType type) {
     AtomicReference<ByteString> dataRef = new AtomicReference<>();
-    fetchAgentObservers()
+    AtomicReference<ByteString> protoRef = new AtomicReference<>();
+    holders
         .onErrorResume(
             ex -> {
               log.error("分发Packet错误 uids={} packet={}", list, packet, ex);
               return Mono.empty();
             })
-        .doFirst(() -> dataRef.set(serializePacket(packet)))
+        .doFirst(
+            () -> {
+              // WS 服务按会话协商的协议选择 JSON 或 protobuf 格式
+              dataRef.set(serializePacket(packet));
+            })
         .subscribe(
-            observer -> {
+            bean -> {
               var forwardBuilder =
                   PacketMixin.newBuilder().setType(type).setDataBytes(dataRef.get());
+              // 只为托管了 protobuf 会话的终端编码, 多个终端共享编码结果
+              if (bean.protobuf) {
+                var proto = protoRef.get();
+                if (proto == null) {
+                  proto = ProtobufPackets.encode(packet);
+                  protoRef.set(proto);
+                }
+                forwardBuilder.setProtoBytes(proto);
+              }
               if (!list.isEmpty()) {
                 forwardBuilder.addAllTo(list);
               }
               var response =
                   AgentPb.LinkResponse.newBuilder().setPacketMixin(forwardBuilder).build();
-              observer.onNext(response);
+              bean.outbound.onNext(response);
             },
             t -> log.error("分发Packet未处理异常 to={} packet={}", list, packet, t));
   }
 
   private ByteString serializePacket(Packet packet) {
+    // 未被修改的消息包直接转发客户端发送的原始 JSON
+    var raw = RawJsonPackets.encode(packet);
+    if (raw != null) {
+      RAW_JSON_PACKETS.increment();
+      return raw;
+    }
+    SERIALIZED_JSON_PACKETS.increment();
     try {
       // 将Packet序列化JSON数据
-      var output = ByteString.newOutput();
-      objectWriter.writeValue(output, packet);
-      return output.toByteString();
+      return JsonPackets.encode(packet);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
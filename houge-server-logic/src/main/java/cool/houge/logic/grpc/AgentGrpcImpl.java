@@ -39,7 +39,7 @@ public class AgentGrpcImpl extends AgentGrpc.AgentImplBase {
   }
 
   @Override
-  public void link(LinkRequest request, StreamObserver<LinkResponse> responseObserver) {
-    serverAgentManager.register(request, (ServerCallStreamObserver<LinkResponse>) responseObserver);
+  public StreamObserver<LinkRequest> link(StreamObserver<LinkResponse> responseObserver) {
+    return serverAgentManager.register((ServerCallStreamObserver<LinkResponse>) responseObserver);
   }
 }
@@ -15,14 +15,28 @@
  */
 package cool.houge.logic.grpc;
 
+import com.google.protobuf.ByteString;
 import cool.houge.auth.AuthService;
 import cool.houge.grpc.AuthGrpc;
 import cool.houge.grpc.AuthPb.AuthRequest;
 import cool.houge.grpc.AuthPb.AuthResponse;
+import cool.houge.grpc.AuthPb.ConnectRequest;
+import cool.houge.grpc.AuthPb.ConnectResponse;
+import cool.houge.grpc.AuthPb.JwtSecret;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsRequest;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsResponse;
+import cool.houge.storage.JwtSecretDao;
+import cool.houge.storage.query.GroupQueryDao;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
 import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
@@ -34,16 +48,49 @@ import reactor.core.scheduler.Schedulers;
 public class AuthGrpcImpl extends AuthGrpc.AuthImplBase {
 
   private static final Logger log = LogManager.getLogger();
+
   private final AuthService authService;
+  private final GroupQueryDao groupQueryDao;
+  private final JwtSecretWatchConfig jwtSecretWatchConfig;
+  private final Flux<WatchJwtSecretsResponse> jwtSecretsFlux;
 
   /**
    * 使用认证服务构造对象.
    *
    * @param authService 认证服务
+   * @param groupQueryDao 群组查询数据访问对象
+   * @param jwtSecretDao JWT 密钥存储对象
+   * @param jwtSecretWatchConfig JWT 密钥订阅配置
    */
   @Inject
-  public AuthGrpcImpl(AuthService authService) {
+  public AuthGrpcImpl(
+      AuthService authService,
+      GroupQueryDao groupQueryDao,
+      JwtSecretDao jwtSecretDao,
+      JwtSecretWatchConfig jwtSecretWatchConfig) {
     this.authService = authService;
+    this.groupQueryDao = groupQueryDao;
+    this.jwtSecretWatchConfig = jwtSecretWatchConfig;
+    // 有订阅者时周期加载密钥, 密钥变更后推送给所有订阅者, 新的订阅者立即收到最近一次的密钥
+    this.jwtSecretsFlux =
+        Flux.interval(Duration.ZERO, jwtSecretWatchConfig.getRefreshInterval())
+            .onBackpressureDrop()
+            .concatMap(
+                unused ->
+                    jwtSecretDao
+                        .findAll()
+                        .filter(e -> e.getDeleted() == 0)
+                        .collectSortedList(
+                            Comparator.comparing(cool.houge.model.JwtSecret::getId))
+                        .map(this::toWatchJwtSecretsResponse)
+                        .onErrorResume(
+                            ex -> {
+                              log.error("加载 JWT 密钥错误", ex);
+                              return Mono.empty();
+                            }))
+            .distinctUntilChanged()
+            .replay(1)
+            .refCount();
   }
 
   @Override
@@ -53,4 +100,65 @@ public class AuthGrpcImpl extends AuthGrpc.AuthImplBase {
         .subscribeOn(Schedulers.parallel())
         .subscribe(new SingleGrpcSubscriber<>(responseObserver));
   }
+
+  @Override
+  public void connect(ConnectRequest request, StreamObserver<ConnectResponse> responseObserver) {
+    Mono.defer(
+            () -> {
+              // 令牌校验与群组查询并行执行, 查询使用的用户ID在认证成功后才会被采信
+              var uid = authService.peekUid(request.getToken());
+              var gids =
+                  Flux.defer(() -> groupQueryDao.queryGidByUid(uid))
+                      .subscribeOn(Schedulers.parallel())
+                      .collectList();
+              return Mono.zip(authService.authenticate(request.getToken()), gids)
+                  .map(
+                      t ->
+                          ConnectResponse.newBuilder()
+                              .setUid(t.getT1().uid())
+                              .addAllGid(t.getT2())
+                              .build());
+            })
+        .doOnError(ex -> log.debug("用户连接握手失败", ex))
+        .subscribeOn(Schedulers.parallel())
+        .subscribe(new SingleGrpcSubscriber<>(responseObserver));
+  }
+
+  /**
+   * 推送 JWT 密钥.
+   *
+   * <p>推送的是 HMAC 原始密钥, 接口不校验调用方身份, 信任边界是逻辑服务的 gRPC 端口: 只有开启 {@link
+   * JwtSecretWatchConfig#isEnabled()} 并且端口仅对 WS 服务开放时才应使用. 未开启时返回 {@code PERMISSION_DENIED}, WS
+   * 服务回退至远程认证.
+   */
+  @Override
+  public void watchJwtSecrets(
+      WatchJwtSecretsRequest request, StreamObserver<WatchJwtSecretsResponse> responseObserver) {
+    if (!jwtSecretWatchConfig.isEnabled()) {
+      responseObserver.onError(
+          Status.PERMISSION_DENIED.withDescription("未开启 JWT 密钥订阅").asRuntimeException());
+      return;
+    }
+    var disposable =
+        jwtSecretsFlux.subscribe(
+            responseObserver::onNext,
+            ex -> {
+              log.error("推送 JWT 密钥错误", ex);
+              responseObserver.onError(ex);
+            });
+    ((ServerCallStreamObserver<WatchJwtSecretsResponse>) responseObserver)
+        .setOnCancelHandler(disposable::dispose);
+  }
+
+  private WatchJwtSecretsResponse toWatchJwtSecretsResponse(List<cool.houge.model.JwtSecret> list) {
+    var builder = WatchJwtSecretsResponse.newBuilder();
+    for (cool.houge.model.JwtSecret e : list) {
+      builder.addSecret(
+          JwtSecret.newBuilder()
+              .setId(e.getId())
+              .setAlgorithm(e.getAlgorithm())
+              .setSecretKey(ByteString.copyFrom(e.getSecretKey().duplicate())));
+    }
+    return builder.build();
+  }
 }
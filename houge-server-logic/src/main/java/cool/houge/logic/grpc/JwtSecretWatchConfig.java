@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.grpc;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * JWT 密钥订阅配置.
+ *
+ * <p>{@code Auth.WatchJwtSecrets} 向调用方推送 HMAC 原始密钥, 持有密钥即可签发任意用户的访问令牌. gRPC 服务本身不校验调用方身份,
+ * 开启后任何能够访问逻辑服务 gRPC 端口的进程都可以获取密钥, 因此仅应在 gRPC 端口只对 WS 服务开放的内网环境中开启.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class JwtSecretWatchConfig {
+
+  /** 是否允许订阅 JWT 密钥, 默认关闭. */
+  private boolean enabled = false;
+  /**
+   * 有订阅者时从数据库重新加载密钥的周期.
+   *
+   * <p>密钥变更(新增、轮换、删除)最长在该周期之后才推送给 WS 服务, 期间已删除的 kid 在 WS 服务本地仍然有效.
+   */
+  private Duration refreshInterval = Duration.ofSeconds(30);
+}
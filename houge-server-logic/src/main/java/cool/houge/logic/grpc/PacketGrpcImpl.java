@@ -16,8 +16,6 @@
 package cool.houge.logic.grpc;
 
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.exc.InvalidTypeIdException;
 import com.google.common.base.Strings;
 import com.google.inject.Binding;
@@ -25,19 +23,28 @@ import com.google.inject.Injector;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import cool.houge.grpc.PacketGrpc;
+import cool.houge.grpc.PacketPb.PacketFormat;
 import cool.houge.grpc.PacketPb.PacketRequest;
 import cool.houge.grpc.PacketPb.PacketResponse;
+import cool.houge.grpc.PacketPb.PacketStreamRequest;
+import cool.houge.grpc.PacketPb.PacketStreamResponse;
 import cool.houge.logic.handler.PacketHandler;
 import cool.houge.logic.packet.ErrorPacket;
+import cool.houge.logic.packet.JsonPackets;
 import cool.houge.logic.packet.MessagePacketBase;
 import cool.houge.logic.packet.Packet;
-import cool.houge.util.JsonUtils;
+import cool.houge.logic.packet.ProtobufPackets;
+import cool.houge.logic.packet.RawJsonPackets;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
@@ -50,54 +57,119 @@ import top.yein.chaos.biz.BizCodeException;
 /**
  * 消息包 gRPC 实现类.
  *
+ * <p>同时支持一元调用 {@code Process} 与双向流 {@code ProcessStream}. 双向流模式中每个请求都会收到相同请求ID的响应, 服务端通过 {@link
+ * ServerCallStreamObserver#request(int)} 限制单个流中并行处理的请求数. 同一个流中的请求是并行处理的, 响应的顺序与请求的顺序无关.
+ *
  * @author KK (kzou227@qq.com)
  */
 public class PacketGrpcImpl extends PacketGrpc.PacketImplBase {
 
   private static final Logger log = LogManager.getLogger();
-  private final ObjectReader packetReader;
-  private final ObjectWriter packetWriter;
+
   private final Map<String, PacketHandler<Packet>> packetHandlers;
+  /** 双向流中并行处理的最大请求数. */
+  private final int streamMaxInFlight;
 
   /**
    * 使用 Guice Injector 构建对象.
    *
    * @param injector Guice Injector
+   * @param streamConfig 双向流配置
    */
   @Inject
-  public PacketGrpcImpl(@Nonnull Injector injector) {
-    this.packetReader = JsonUtils.objectMapper().readerFor(Packet.class);
-    this.packetWriter = JsonUtils.objectMapper().writerFor(Packet.class);
+  public PacketGrpcImpl(@Nonnull Injector injector, @Nonnull PacketStreamConfig streamConfig) {
     this.packetHandlers = findPacketHandlers(injector);
+    this.streamMaxInFlight = Math.max(streamConfig.getMaxInFlight(), 1);
   }
 
   @Override
   public void process(PacketRequest request, StreamObserver<PacketResponse> responseObserver) {
+    process0(
+        request,
+        new ResultSink() {
+          @Override
+          public void onSuccess(ByteString dataBytes) {
+            var response =
+                dataBytes.isEmpty()
+                    ? PacketResponse.getDefaultInstance()
+                    : PacketResponse.newBuilder().setDataBytes(dataBytes).build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            responseObserver.onError(t);
+          }
+        });
+  }
+
+  @Override
+  public StreamObserver<PacketStreamRequest> processStream(
+      StreamObserver<PacketStreamResponse> responseObserver) {
+    var serverObserver = (ServerCallStreamObserver<PacketStreamResponse>) responseObserver;
+    serverObserver.disableAutoRequest();
+    var stream = new PacketStream(serverObserver);
+    serverObserver.setOnCancelHandler(stream::cancel);
+    serverObserver.setOnReadyHandler(stream::onReady);
+    serverObserver.request(streamMaxInFlight);
+    return stream;
+  }
+
+  private void process0(PacketRequest request, ResultSink sink) {
+    if (request.getFormat() == PacketFormat.PROTOBUF) {
+      processProtobuf(request, sink);
+      return;
+    }
     // 解析-消息包
     Packet packet;
     try {
-      packet = packetReader.readValue(request.getDataBytes().newInput());
+      packet = JsonPackets.decode(request.getDataBytes());
+      // 保留原始 JSON, 消息包未被修改时分发给接收者不需要再次序列化
+      RawJsonPackets.retain(packet, request.getDataBytes());
     } catch (InvalidTypeIdException e) {
       var ep =
           ErrorPacket.builder()
               .code(BizCode.C0.getCode())
               .message(Strings.lenientFormat("未定义的消息类型[@ns=%s]", e.getTypeId()))
               .build();
-      handleErrorPacket(responseObserver, ep);
+      handleErrorPacket(sink, ep);
       return;
     } catch (JsonParseException e) {
       // JSON格式错误
       log.info("JSON解析格式错误 requestUid={}", request.getRequestUid(), e);
       var ep = ErrorPacket.builder().code(BizCode.C0.getCode()).message(e.getMessage()).build();
-      handleErrorPacket(responseObserver, ep);
+      handleErrorPacket(sink, ep);
       return;
     } catch (IOException e) {
       log.error("解析Packet请求出现IO错误 requestUid={}", request.getRequestUid(), e);
       var ep = ErrorPacket.builder().code(BizCode.C0.getCode()).message(e.getMessage()).build();
-      handleErrorPacket(responseObserver, ep);
+      handleErrorPacket(sink, ep);
+      return;
+    }
+    handlePacket(request, packet, sink);
+  }
+
+  private void processProtobuf(PacketRequest request, ResultSink sink) {
+    Packet packet;
+    try {
+      packet = ProtobufPackets.decode(request.getDataBytes());
+    } catch (InvalidProtocolBufferException e) {
+      log.info("protobuf解析格式错误 requestUid={}", request.getRequestUid(), e);
+      var ep = ErrorPacket.builder().code(BizCode.C0.getCode()).message(e.getMessage()).build();
+      handleErrorPacket(sink, ep, PacketFormat.PROTOBUF);
+      return;
+    }
+    if (packet == null) {
+      var ep =
+          ErrorPacket.builder().code(BizCode.C0.getCode()).message("未定义的消息类型").build();
+      handleErrorPacket(sink, ep, PacketFormat.PROTOBUF);
       return;
     }
+    handlePacket(request, packet, sink);
+  }
 
+  private void handlePacket(PacketRequest request, Packet packet, ResultSink sink) {
     log.debug("收到Packet请求 requestUid={} packet={}", request.getRequestUid(), packet);
     var handler = packetHandlers.get(packet.getNs());
     if (handler == null) {
@@ -107,7 +179,7 @@ public class PacketGrpcImpl extends PacketGrpc.PacketImplBase {
               .code(BizCode.C0.getCode())
               .message(Strings.lenientFormat("未找到消息类型[@ns=%s]的实现", packet.getNs()))
               .build();
-      handleErrorPacket(responseObserver, ep);
+      handleErrorPacket(sink, ep, request.getFormat());
       return;
     }
 
@@ -124,43 +196,186 @@ public class PacketGrpcImpl extends PacketGrpc.PacketImplBase {
         .subscribeOn(Schedulers.parallel())
         .subscribe(
             unused -> {
-              responseObserver.onNext(PacketResponse.getDefaultInstance());
-              responseObserver.onCompleted();
+              // Mono<Void> 不会发出元素, 在完成信号中响应
             },
-            t -> handleThrowable(responseObserver, t));
+            t -> handleThrowable(sink, t, request.getFormat()),
+            () -> sink.onSuccess(ByteString.EMPTY));
   }
 
-  private void handleThrowable(StreamObserver<PacketResponse> responseObserver, Throwable t) {
+  private void handleThrowable(ResultSink sink, Throwable t, PacketFormat format) {
     if (t instanceof BizCodeException) {
       var ex = (BizCodeException) t;
       var bizCode = ex.getBizCode();
       if (bizCode.getGrpcStatus() >= 0) {
         log.error("{}", t);
         var status = Status.fromCodeValue(bizCode.getGrpcStatus());
-        responseObserver.onError(status.asRuntimeException());
+        sink.onError(status.asRuntimeException());
       } else {
         var ep = ErrorPacket.builder().code(bizCode.getCode()).message(ex.getRawMessage()).build();
-        handleErrorPacket(responseObserver, ep);
+        handleErrorPacket(sink, ep, format);
       }
     } else {
       log.error("{}", t);
-      responseObserver.onError(t);
+      sink.onError(t);
     }
   }
 
-  private void handleErrorPacket(
-      StreamObserver<PacketResponse> responseObserver, ErrorPacket packet) {
-    var output = ByteString.newOutput();
+  private void handleErrorPacket(ResultSink sink, ErrorPacket packet) {
+    handleErrorPacket(sink, packet, PacketFormat.JSON);
+  }
+
+  private void handleErrorPacket(ResultSink sink, ErrorPacket packet, PacketFormat format) {
+    if (format == PacketFormat.PROTOBUF) {
+      sink.onSuccess(ProtobufPackets.encode(packet));
+      return;
+    }
+    ByteString dataBytes;
     try {
-      packetWriter.writeValue(output, packet);
+      dataBytes = JsonPackets.encode(packet);
     } catch (IOException e) {
       log.error("序列化 ErrorPacket JSON 错误", e);
-      responseObserver.onError(e);
+      sink.onError(e);
       return;
     }
-    var response = PacketResponse.newBuilder().setDataBytes(output.toByteString()).build();
-    responseObserver.onNext(response);
-    responseObserver.onCompleted();
+    sink.onSuccess(dataBytes);
+  }
+
+  /** Packet 处理结果的接收者. */
+  private interface ResultSink {
+
+    /**
+     * 处理成功.
+     *
+     * @param dataBytes 响应数据, 没有响应数据时为 {@link ByteString#EMPTY}
+     */
+    void onSuccess(ByteString dataBytes);
+
+    /**
+     * 处理失败.
+     *
+     * @param t 异常
+     */
+    void onError(Throwable t);
+  }
+
+  /**
+   * 双向流中的 Packet 请求处理.
+   *
+   * <p>单个请求处理失败时仅以错误状态响应该请求, 不会中止整个流. 响应先进入待发送队列, 仅在流可写时写出, 写出一个响应后再接收下一个请求,
+   * 因此处理中与待发送的请求总数不超过 {@link PacketStreamConfig#getMaxInFlight()}.
+   */
+  private class PacketStream implements StreamObserver<PacketStreamRequest> {
+
+    private final ServerCallStreamObserver<PacketStreamResponse> responseObserver;
+    // 以下字段由 this 锁保护
+    private final Queue<PacketStreamResponse> pending = new ArrayDeque<>();
+    private int inFlight;
+    private boolean halfClosed;
+    // 流已取消或已完成, 不再写出响应
+    private boolean closed;
+
+    PacketStream(ServerCallStreamObserver<PacketStreamResponse> responseObserver) {
+      this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public void onNext(PacketStreamRequest value) {
+      synchronized (this) {
+        inFlight++;
+      }
+      var requestId = value.getRequestId();
+      var sink =
+          new ResultSink() {
+            // 保证每个请求只响应一次
+            private boolean replied;
+
+            @Override
+            public void onSuccess(ByteString dataBytes) {
+              reply(
+                  PacketStreamResponse.newBuilder()
+                      .setRequestId(requestId)
+                      .setDataBytes(dataBytes)
+                      .build());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+              var status = Status.fromThrowable(t);
+              reply(
+                  PacketStreamResponse.newBuilder()
+                      .setRequestId(requestId)
+                      .setStatusCode(status.getCode().value())
+                      .setStatusMessage(Strings.nullToEmpty(status.getDescription()))
+                      .build());
+            }
+
+            private void reply(PacketStreamResponse response) {
+              synchronized (PacketStream.this) {
+                if (replied) {
+                  return;
+                }
+                replied = true;
+              }
+              PacketStream.this.reply(response);
+            }
+          };
+      try {
+        process0(value.getRequest(), sink);
+      } catch (RuntimeException e) {
+        // 异常不能抛出至 gRPC, 否则会关闭整个流并丢失流中其它会话的请求
+        log.error("处理 Packet 请求异常 requestUid={}", value.getRequest().getRequestUid(), e);
+        sink.onError(Status.INTERNAL.withDescription(e.getMessage()).withCause(e).asException());
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      log.debug("Packet 流异常中止", t);
+      cancel();
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+      halfClosed = true;
+      drain();
+    }
+
+    synchronized void cancel() {
+      closed = true;
+      pending.clear();
+    }
+
+    // 流由不可写变为可写时回调
+    synchronized void onReady() {
+      drain();
+    }
+
+    private synchronized void reply(PacketStreamResponse response) {
+      if (closed) {
+        return;
+      }
+      pending.add(response);
+      drain();
+    }
+
+    // StreamObserver 不是线程安全的, 响应需要在锁内串行写出
+    private void drain() {
+      if (closed) {
+        return;
+      }
+      while (!pending.isEmpty() && responseObserver.isReady()) {
+        responseObserver.onNext(pending.poll());
+        inFlight--;
+        if (!halfClosed) {
+          // 写出一个响应后再接收下一个请求
+          responseObserver.request(1);
+        }
+      }
+      if (halfClosed && inFlight == 0) {
+        closed = true;
+        responseObserver.onCompleted();
+      }
+    }
   }
 
   // 在 Guice Inject 查询符合要求的消息处理器
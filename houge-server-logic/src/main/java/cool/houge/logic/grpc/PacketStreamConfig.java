@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.grpc;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Packet 双向流配置.
+ *
+ * <p>最大并行请求数必须与 WS 服务的 {@code logic-service.packet-stream-max-in-flight} 一致, WS 服务将该值向上取整为 2 的幂,
+ * 因此应配置为 2 的幂. 小于 WS 服务的配置时超出的请求在逻辑服务的接收缓冲中排队, 占用 WS 服务的槽位却不被处理; 大于 WS 服务的配置时多出的并行度不会被使用.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class PacketStreamConfig {
+
+  /** 单个双向流中并行处理的最大请求数. */
+  private int maxInFlight = 1024;
+}
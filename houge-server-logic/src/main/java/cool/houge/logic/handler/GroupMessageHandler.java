@@ -17,13 +17,14 @@ package cool.houge.logic.handler;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Strings;
+import com.google.common.primitives.Longs;
 import cool.houge.BizCodes;
 import cool.houge.id.MessageIdGenerator;
 import cool.houge.logic.agent.PacketSender;
 import cool.houge.logic.handler.internal.MessagePacketHelper;
 import cool.houge.logic.packet.MessagePacketBase;
 import cool.houge.service.message.MessageStorageService;
-import cool.houge.storage.query.GroupQueryDao;
+import cool.houge.storage.cache.GroupMemberCache;
 import cool.houge.util.YeinGid;
 import java.util.List;
 import javax.inject.Inject;
@@ -44,24 +45,24 @@ public class GroupMessageHandler implements PacketHandler<MessagePacketBase> {
   private final MessageIdGenerator messageIdGenerator;
   private final MessageStorageService messageStorageService;
   private final PacketSender packetSender;
-  private final GroupQueryDao groupQueryDao;
+  private final GroupMemberCache groupMemberCache;
 
   /**
    * @param messageIdGenerator
    * @param messageStorageService
    * @param packetSender
-   * @param groupQueryDao
+   * @param groupMemberCache
    */
   @Inject
   public GroupMessageHandler(
       MessageIdGenerator messageIdGenerator,
       MessageStorageService messageStorageService,
       PacketSender packetSender,
-      GroupQueryDao groupQueryDao) {
+      GroupMemberCache groupMemberCache) {
     this.messageIdGenerator = messageIdGenerator;
     this.messageStorageService = messageStorageService;
     this.packetSender = packetSender;
-    this.groupQueryDao = groupQueryDao;
+    this.groupMemberCache = groupMemberCache;
   }
 
   @Override
@@ -80,22 +81,20 @@ public class GroupMessageHandler implements PacketHandler<MessagePacketBase> {
     }
     var gid = packet.getTo();
 
-    return groupQueryDao
-        .existsById(gid)
+    return groupMemberCache
+        .get(gid)
         .switchIfEmpty(
             Mono.error(
                 () ->
                     new StacklessBizCodeException(
                         BizCodes.C3630, Strings.lenientFormat("群组不存在[gid=%s]", gid))))
         .doOnNext(uids -> packetSender.sendToGroup(List.of(gid), packet))
-        .flatMapMany(unused -> groupQueryDao.queryUidByGid(gid))
-        .collectList()
-        .filter(uids -> !uids.isEmpty())
+        .filter(uids -> uids.length > 0)
         .flatMap(
             uids -> {
-              // 存储消息
+              // 存储消息, 成员数组由缓存共享, 以列表视图传递避免复制
               var entity = MessagePacketHelper.toMessageEntity(packet);
-              return messageStorageService.store(entity, uids);
+              return messageStorageService.store(entity, Longs.asList(uids));
             })
         .then();
   }
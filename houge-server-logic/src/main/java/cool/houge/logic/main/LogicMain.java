@@ -31,7 +31,10 @@ import java.util.List;
 import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import cool.houge.service.message.MessageStorageService;
+import cool.houge.service.message.wal.WriteBehindMessageStorageService;
 import cool.houge.service.module.ServiceModule;
+import cool.houge.storage.cache.GroupMemberChangeListener;
 import cool.houge.storage.module.StorageModule;
 import cool.houge.system.identifier.ApplicationIdentifier;
 import cool.houge.util.AppShutdownHelper;
@@ -56,8 +59,13 @@ public class LogicMain implements Runnable {
     var config = loadConfig();
     var injector =
         Guice.createInjector(
-            new LogicModule(), new ServiceModule(config), new StorageModule(config));
+            new LogicModule(config), new ServiceModule(config), new StorageModule(config));
     var applicationIdentifier = injector.getInstance(ApplicationIdentifier.class);
+    // 开启异步写入时在启动服务前打开预写日志, 继续写入上次停止前未写入数据库的消息
+    var messageStorageService = injector.getInstance(MessageStorageService.class);
+    // 监听其它服务中的群组成员变更, 监听建立前群组成员缓存停用
+    var groupMemberChangeListener = injector.getInstance(GroupMemberChangeListener.class);
+    groupMemberChangeListener.start();
 
     // 启动服务
     var logicServer =
@@ -67,8 +75,12 @@ public class LogicMain implements Runnable {
     logicServer.start();
 
     // 清理应用的钩子
+    shutdownHelper.addCallback(logicServer::stop);
+    shutdownHelper.addCallback(groupMemberChangeListener::stop);
+    if (messageStorageService instanceof WriteBehindMessageStorageService) {
+      shutdownHelper.addCallback(((WriteBehindMessageStorageService) messageStorageService)::stop);
+    }
     shutdownHelper
-        .addCallback(logicServer::stop)
         // 清理应用程序标识
         .addCallback(applicationIdentifier::clean)
         .run();
@@ -16,8 +16,11 @@
 package cool.houge.logic.module;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.google.inject.name.Names;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigBeanFactory;
 import cool.houge.auth.AuthService;
 import cool.houge.auth.impl.JwsAuthService;
 import cool.houge.grpc.AgentGrpc;
@@ -29,14 +32,17 @@ import cool.houge.grpc.UserGroupGrpc;
 import cool.houge.grpc.UserGrpc;
 import cool.houge.id.MessageIdGenerator;
 import cool.houge.id.YeinGidMessageIdGenerator;
+import cool.houge.logic.agent.AgentOutboundConfig;
 import cool.houge.logic.agent.PacketSender;
 import cool.houge.logic.agent.ServerAgentManager;
 import cool.houge.logic.agent.TediousServerAgentManager;
 import cool.houge.logic.grpc.AgentGrpcImpl;
 import cool.houge.logic.grpc.AuthGrpcImpl;
 import cool.houge.logic.grpc.GroupGrpcImpl;
+import cool.houge.logic.grpc.JwtSecretWatchConfig;
 import cool.houge.logic.grpc.MessageGrpcImpl;
 import cool.houge.logic.grpc.PacketGrpcImpl;
+import cool.houge.logic.grpc.PacketStreamConfig;
 import cool.houge.logic.grpc.UserGroupGrpcImpl;
 import cool.houge.logic.grpc.UserGrpcImpl;
 import cool.houge.logic.handler.GroupMessageHandler;
@@ -46,6 +52,7 @@ import cool.houge.logic.packet.Packet;
 import cool.houge.logic.support.LogicApplicationIdentifier;
 import cool.houge.system.identifier.ApplicationIdentifier;
 import io.grpc.BindableService;
+import javax.inject.Singleton;
 
 /**
  * LogicGuice模块.
@@ -54,6 +61,17 @@ import io.grpc.BindableService;
  */
 public class LogicModule extends AbstractModule {
 
+  private final Config config;
+
+  /**
+   * 使用应用配置构建对象.
+   *
+   * @param config 应用配置
+   */
+  public LogicModule(Config config) {
+    this.config = config;
+  }
+
   @Override
   protected void configure() {
     bindGrpcServices();
@@ -72,6 +90,33 @@ public class LogicModule extends AbstractModule {
     bind(AuthService.class).to(JwsAuthService.class);
   }
 
+  @Provides
+  @Singleton
+  public AgentOutboundConfig agentOutboundConfig() {
+    return ConfigBeanFactory.create(
+        config.getConfig("agent-outbound"), AgentOutboundConfig.class);
+  }
+
+  @Provides
+  @Singleton
+  public JwtSecretWatchConfig jwtSecretWatchConfig() {
+    // 未配置时不允许订阅 JWT 密钥
+    if (!config.hasPath("jwt-secret-watch")) {
+      return new JwtSecretWatchConfig();
+    }
+    return ConfigBeanFactory.create(
+        config.getConfig("jwt-secret-watch"), JwtSecretWatchConfig.class);
+  }
+
+  @Provides
+  @Singleton
+  public PacketStreamConfig packetStreamConfig() {
+    if (!config.hasPath("packet-stream")) {
+      return new PacketStreamConfig();
+    }
+    return ConfigBeanFactory.create(config.getConfig("packet-stream"), PacketStreamConfig.class);
+  }
+
   private void bindGrpcServices() {
     bindGrpcImpl(AgentGrpcImpl.class, AgentGrpc.SERVICE_NAME);
     bindGrpcImpl(AuthGrpcImpl.class, AuthGrpc.SERVICE_NAME);
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.NumberInput;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.exc.InvalidTypeIdException;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import cool.houge.util.JsonUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 客户端 JSON 协议的 Packet 编解码.
+ *
+ * <p>使用 Jackson 流式 API 直接读写 {@code cool.houge.logic.packet} 中的类型, 省去 {@code ObjectMapper} 多态类型解析与反射绑定的开销.
+ * 编解码结果与 {@link JsonUtils#objectMapper()} 相同:
+ *
+ * <ul>
+ *   <li>根据 {@code @ns} 属性选择消息包类型, {@code @ns} 可以出现在任意位置
+ *   <li>属性名使用 {@code SNAKE_CASE}, 编码时 {@code @ns} 在最前, 其余属性按字段声明的顺序
+ *   <li>编码时忽略 {@code null} 与空字符串, 基本类型的属性始终输出
+ *   <li>解码时兼容 Jackson 默认的类型转换, 例如字符串形式的数字与数字形式的字符串
+ * </ul>
+ *
+ * <p>携带 {@code details} 的 {@link ErrorPacket} 与未知的 Packet 类型仍使用 {@code ObjectMapper} 编码.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class JsonPackets {
+
+  private static final JsonFactory JSON_FACTORY = JsonUtils.objectMapper().getFactory();
+  private static final ObjectWriter PACKET_WRITER =
+      JsonUtils.objectMapper().writerFor(Packet.class);
+
+  private static final byte[] EMPTY_BYTES = new byte[0];
+  private static final SerializableString NS = new SerializedString(Packet.NS_JSON_PROPERTY_NAME);
+  private static final SerializableString MESSAGE_ID = new SerializedString("message_id");
+  private static final SerializableString FROM = new SerializedString("from");
+  private static final SerializableString TO = new SerializedString("to");
+  private static final SerializableString KIND = new SerializedString("kind");
+  private static final SerializableString CONTENT = new SerializedString("content");
+  private static final SerializableString CONTENT_TYPE = new SerializedString("content_type");
+  private static final SerializableString EXTRA_ARGS = new SerializedString("extra_args");
+  private static final SerializableString CODE = new SerializedString("code");
+  private static final SerializableString MESSAGE = new SerializedString("message");
+
+  // 解码时记录已出现的属性
+  private static final int SEEN_NS = 1;
+  private static final int SEEN_MESSAGE_ID = 1 << 1;
+  private static final int SEEN_FROM = 1 << 2;
+  private static final int SEEN_TO = 1 << 3;
+  private static final int SEEN_KIND = 1 << 4;
+  private static final int SEEN_CONTENT = 1 << 5;
+  private static final int SEEN_CONTENT_TYPE = 1 << 6;
+  private static final int SEEN_EXTRA_ARGS = 1 << 7;
+
+  private JsonPackets() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * 解码客户端发送的 Packet.
+   *
+   * <p>同时记录原始 JSON 是否为规范的格式: 只包含消息包定义的属性, 每个属性只出现一次, 属性值不为 {@code null} 且为预期的 JSON
+   * 类型(不经过类型转换), 对象之后只有空白字符. 只有规范的原始 JSON 可以直接转发, 见 {@link RawJsonPackets}.
+   *
+   * @param data JSON 数据
+   * @return Packet
+   * @throws InvalidTypeIdException 缺少 {@code @ns} 属性或未定义的消息类型
+   * @throws com.fasterxml.jackson.core.JsonParseException JSON 格式错误
+   * @throws IOException 属性值类型错误
+   */
+  public static Packet decode(ByteString data) throws IOException {
+    try (var p = createParser(data)) {
+      return decode(p);
+    }
+  }
+
+  // 连续存储的数据直接解析底层数组, 省去 InputStream 复制到解析器缓冲区的开销
+  private static JsonParser createParser(ByteString data) throws IOException {
+    var array = new BackingArray();
+    UnsafeByteOperations.unsafeWriteTo(data, array);
+    if (array.chunks == 1) {
+      return JSON_FACTORY.createParser(array.bytes, array.offset, array.length);
+    }
+    return JSON_FACTORY.createParser(new ByteBufferBackedInputStream(data.asReadOnlyByteBuffer()));
+  }
+
+  /**
+   * 将 Packet 编码为 JSON 数据.
+   *
+   * @param packet Packet
+   * @return JSON 数据
+   * @throws IOException 编码错误
+   */
+  public static ByteString encode(Packet packet) throws IOException {
+    var output = new ExactOutputStream();
+    if (packet instanceof MessagePacketBase) {
+      try (var g = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8)) {
+        writeMessage(g, (MessagePacketBase) packet);
+      }
+    } else if (packet instanceof ErrorPacket && ((ErrorPacket) packet).getDetails() == null) {
+      try (var g = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8)) {
+        writeError(g, (ErrorPacket) packet);
+      }
+    } else {
+      PACKET_WRITER.writeValue(output, packet);
+    }
+    return output.toByteString();
+  }
+
+  private static Packet decode(JsonParser p) throws IOException {
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      throw MismatchedInputException.from(
+          p, Packet.class, "Unexpected token (" + p.currentToken() + "), expected START_OBJECT");
+    }
+
+    String ns = null;
+    var nsFound = false;
+    String messageId = null;
+    Long from = null;
+    long to = 0;
+    int kind = 0;
+    String content = null;
+    int contentType = 0;
+    String extraArgs = null;
+    var seen = 0;
+    var canonical = true;
+
+    String name;
+    while ((name = p.nextFieldName()) != null) {
+      var token = p.nextToken();
+      int field;
+      switch (name) {
+        case Packet.NS_JSON_PROPERTY_NAME:
+          field = SEEN_NS;
+          // 与 Jackson 相同, 重复的 @ns 以第一个为准
+          if (!nsFound) {
+            nsFound = true;
+            ns = token == JsonToken.VALUE_NULL ? null : p.getText();
+          }
+          canonical &= token == JsonToken.VALUE_STRING;
+          break;
+        case "message_id":
+          field = SEEN_MESSAGE_ID;
+          messageId = readString(p, token);
+          canonical &= token == JsonToken.VALUE_STRING;
+          break;
+        case "from":
+          field = SEEN_FROM;
+          from = readLong(p, token, Long.class);
+          canonical &= token == JsonToken.VALUE_NUMBER_INT;
+          break;
+        case "to":
+          field = SEEN_TO;
+          to = readLong(p, token, long.class);
+          canonical &= token == JsonToken.VALUE_NUMBER_INT;
+          break;
+        case "kind":
+          field = SEEN_KIND;
+          kind = readInt(p, token);
+          canonical &= token == JsonToken.VALUE_NUMBER_INT;
+          break;
+        case "content":
+          field = SEEN_CONTENT;
+          content = readString(p, token);
+          canonical &= token == JsonToken.VALUE_STRING;
+          break;
+        case "content_type":
+          field = SEEN_CONTENT_TYPE;
+          contentType = readInt(p, token);
+          canonical &= token == JsonToken.VALUE_NUMBER_INT;
+          break;
+        case "extra_args":
+          field = SEEN_EXTRA_ARGS;
+          extraArgs = readString(p, token);
+          canonical &= token == JsonToken.VALUE_STRING;
+          break;
+        default:
+          field = 0;
+          canonical = false;
+          p.skipChildren();
+      }
+      // 重复的属性由 Jackson 以最后一个为准(@ns 除外), 直接转发时客户端的解析结果可能不同
+      canonical &= (seen & field) == 0;
+      seen |= field;
+    }
+    if (p.currentToken() != JsonToken.END_OBJECT) {
+      throw MismatchedInputException.from(
+          p, Packet.class, "Unexpected token (" + p.currentToken() + "), expected FIELD_NAME");
+    }
+    // 与 Jackson 相同, 忽略对象之后的内容, 但不能直接转发
+    if (canonical) {
+      try {
+        canonical = p.nextToken() == null;
+      } catch (JsonParseException e) {
+        canonical = false;
+      }
+    }
+
+    MessagePacketBase packet;
+    if (Packet.NS_PRIVATE_MESSAGE.equals(ns)) {
+      packet = new PrivateMessagePacket();
+    } else if (Packet.NS_GROUP_MESSAGE.equals(ns)) {
+      packet = new GroupMessagePacket();
+    } else {
+      var packetType = TypeFactory.defaultInstance().constructType(Packet.class);
+      if (!nsFound) {
+        throw InvalidTypeIdException.from(
+            p, "missing type id property '" + Packet.NS_JSON_PROPERTY_NAME + "'", packetType, null);
+      }
+      throw InvalidTypeIdException.from(
+          p, "Could not resolve type id '" + ns + "'", packetType, ns);
+    }
+    packet.messageId = messageId;
+    packet.from = from;
+    packet.to = to;
+    packet.kind = kind;
+    packet.content = content;
+    packet.contentType = contentType;
+    packet.extraArgs = extraArgs;
+    packet.canonicalJson = canonical;
+    return packet;
+  }
+
+  private static String readString(JsonParser p, JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_STRING) {
+      return p.getText();
+    }
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token.isScalarValue()) {
+      return p.getText();
+    }
+    throw MismatchedInputException.from(
+        p, String.class, "Cannot deserialize value of type `java.lang.String` from " + token);
+  }
+
+  private static Long readLong(JsonParser p, JsonToken token, Class<?> type) throws IOException {
+    switch (token) {
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return p.getLongValue();
+      case VALUE_NULL:
+        return type == long.class ? 0L : null;
+      case VALUE_STRING:
+        var text = p.getText().trim();
+        if (text.isEmpty()) {
+          return type == long.class ? 0L : null;
+        }
+        try {
+          return NumberInput.parseLong(text);
+        } catch (NumberFormatException e) {
+          throw InvalidFormatException.from(p, "not a valid `long` value", text, type);
+        }
+      default:
+        throw MismatchedInputException.from(
+            p, type, "Cannot deserialize value of type `long` from " + token);
+    }
+  }
+
+  private static int readInt(JsonParser p, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return p.getIntValue();
+      case VALUE_NULL:
+        return 0;
+      case VALUE_STRING:
+        var text = p.getText().trim();
+        if (text.isEmpty()) {
+          return 0;
+        }
+        try {
+          return NumberInput.parseInt(text);
+        } catch (NumberFormatException e) {
+          throw InvalidFormatException.from(p, "not a valid `int` value", text, int.class);
+        }
+      default:
+        throw MismatchedInputException.from(
+            p, int.class, "Cannot deserialize value of type `int` from " + token);
+    }
+  }
+
+  private static void writeMessage(JsonGenerator g, MessagePacketBase packet) throws IOException {
+    g.writeStartObject();
+    g.writeFieldName(NS);
+    g.writeString(packet.getNs());
+    writeStringField(g, MESSAGE_ID, packet.messageId);
+    if (packet.from != null) {
+      g.writeFieldName(FROM);
+      g.writeNumber(packet.from);
+    }
+    g.writeFieldName(TO);
+    g.writeNumber(packet.to);
+    g.writeFieldName(KIND);
+    g.writeNumber(packet.kind);
+    writeStringField(g, CONTENT, packet.content);
+    g.writeFieldName(CONTENT_TYPE);
+    g.writeNumber(packet.contentType);
+    writeStringField(g, EXTRA_ARGS, packet.extraArgs);
+    g.writeEndObject();
+  }
+
+  private static void writeError(JsonGenerator g, ErrorPacket packet) throws IOException {
+    g.writeStartObject();
+    g.writeFieldName(NS);
+    g.writeString(packet.getNs());
+    g.writeFieldName(CODE);
+    g.writeNumber(packet.getCode());
+    writeStringField(g, MESSAGE, packet.getMessage());
+    g.writeEndObject();
+  }
+
+  /**
+   * 生成器在关闭时才将缓冲区写出, 小于生成器缓冲区的 Packet 只写出一次, 直接复制为大小刚好的数组并包装为 {@link ByteString}.
+   */
+  private static final class ExactOutputStream extends OutputStream {
+
+    private byte[] buf = EMPTY_BYTES;
+    private int size;
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(size + 1);
+      buf[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (size == 0) {
+        buf = Arrays.copyOfRange(b, off, off + len);
+        size = len;
+        return;
+      }
+      ensureCapacity(size + len);
+      System.arraycopy(b, off, buf, size, len);
+      size += len;
+    }
+
+    ByteString toByteString() {
+      // 数组不会再被修改
+      return UnsafeByteOperations.unsafeWrap(buf, 0, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+      }
+    }
+  }
+
+  /**
+   * 记录 {@link ByteString} 的底层数组.
+   *
+   * <p>只有一段数组存储的数据时可以直接解析, 其它情况 {@code chunks} 大于 1.
+   */
+  private static final class BackingArray extends ByteOutput {
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private int chunks;
+
+    @Override
+    public void write(byte value) {
+      chunks = 2;
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) {
+      capture(value, offset, length);
+    }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length) {
+      capture(value, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer value) {
+      writeLazy(value);
+    }
+
+    @Override
+    public void writeLazy(ByteBuffer value) {
+      if (value.hasArray()) {
+        capture(value.array(), value.arrayOffset() + value.position(), value.remaining());
+      } else {
+        chunks = 2;
+      }
+    }
+
+    private void capture(byte[] value, int offset, int length) {
+      if (chunks++ == 0) {
+        this.bytes = value;
+        this.offset = offset;
+        this.length = length;
+      }
+    }
+  }
+
+  // 与 JsonInclude.Include.NON_EMPTY 相同, 忽略 null 与空字符串
+  private static void writeStringField(JsonGenerator g, SerializableString name, String value)
+      throws IOException {
+    if (value == null || value.isEmpty()) {
+      return;
+    }
+    g.writeFieldName(name);
+    g.writeString(value);
+  }
+}
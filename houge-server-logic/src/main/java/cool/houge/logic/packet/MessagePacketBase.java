@@ -15,6 +15,7 @@
  */
 package cool.houge.logic.packet;
 
+import lombok.AccessLevel;
 import lombok.Setter;
 import lombok.ToString;
 import cool.houge.constants.MessageContentType;
@@ -43,6 +44,15 @@ public abstract class MessagePacketBase implements MessagePacket {
   /** 扩展参数. */
   String extraArgs;
 
+  // 客户端发送的原始 JSON, 未修改的消息包分发时直接转发
+  @Setter(AccessLevel.NONE)
+  @ToString.Exclude
+  transient RawJson rawJson;
+  // 原始 JSON 是否为规范的格式, 只有规范的原始 JSON 可以直接转发
+  @Setter(AccessLevel.NONE)
+  @ToString.Exclude
+  transient boolean canonicalJson;
+
   @Override
   public String getMessageId() {
     return messageId;
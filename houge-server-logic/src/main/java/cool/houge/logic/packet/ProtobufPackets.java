@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import com.google.common.base.Strings;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import cool.houge.grpc.ClientPb;
+import cool.houge.grpc.ClientPb.ClientPacket;
+
+/**
+ * 客户端二进制协议的 Packet 编解码.
+ *
+ * <p>{@link ClientPacket} 与 JSON 协议的 Packet 一一对应, protobuf 中的空字符串与 {@code 0} 的 {@code from} 对应 JSON
+ * 中缺省的属性.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class ProtobufPackets {
+
+  private ProtobufPackets() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * 解码客户端发送的 Packet.
+   *
+   * @param data protobuf 数据
+   * @return Packet, 未定义的消息类型返回 {@code null}
+   * @throws InvalidProtocolBufferException protobuf 格式错误
+   */
+  public static Packet decode(ByteString data) throws InvalidProtocolBufferException {
+    var cp = ClientPacket.parseFrom(data);
+    switch (cp.getKindCase()) {
+      case PRIVATE_MESSAGE:
+        return fill(new PrivateMessagePacket(), cp.getPrivateMessage());
+      case GROUP_MESSAGE:
+        return fill(new GroupMessagePacket(), cp.getGroupMessage());
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * 将 Packet 编码为 protobuf 数据.
+   *
+   * @param packet Packet
+   * @return protobuf 数据, 二进制协议不支持的 Packet 返回 {@link ByteString#EMPTY}
+   */
+  public static ByteString encode(Packet packet) {
+    var builder = ClientPacket.newBuilder();
+    if (packet instanceof PrivateMessagePacket) {
+      builder.setPrivateMessage(toProto((MessagePacket) packet));
+    } else if (packet instanceof GroupMessagePacket) {
+      builder.setGroupMessage(toProto((MessagePacket) packet));
+    } else if (packet instanceof ErrorPacket) {
+      var ep = (ErrorPacket) packet;
+      builder.setError(
+          ClientPb.ErrorPacket.newBuilder()
+              .setCode(ep.getCode())
+              .setMessage(Strings.nullToEmpty(ep.getMessage())));
+    } else {
+      return ByteString.EMPTY;
+    }
+    return builder.build().toByteString();
+  }
+
+  private static MessagePacketBase fill(MessagePacketBase packet, ClientPb.MessagePacket mp) {
+    packet.setMessageId(Strings.emptyToNull(mp.getMessageId()));
+    packet.setFrom(mp.getFrom() == 0 ? null : mp.getFrom());
+    packet.setTo(mp.getTo());
+    packet.setKind(mp.getKind());
+    packet.setContent(Strings.emptyToNull(mp.getContent()));
+    packet.setContentType(mp.getContentType());
+    packet.setExtraArgs(Strings.emptyToNull(mp.getExtraArgs()));
+    return packet;
+  }
+
+  private static ClientPb.MessagePacket toProto(MessagePacket packet) {
+    var builder =
+        ClientPb.MessagePacket.newBuilder()
+            .setMessageId(Strings.nullToEmpty(packet.getMessageId()))
+            .setTo(packet.getTo())
+            .setKind(packet.getKind())
+            .setContent(Strings.nullToEmpty(packet.getContent()))
+            .setContentType(packet.getContentType())
+            .setExtraArgs(Strings.nullToEmpty(packet.getExtraArgs()));
+    if (packet.getFrom() != null) {
+      builder.setFrom(packet.getFrom());
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * 客户端发送的原始 JSON 以及解析后的字段值.
+ *
+ * <p>字段值用于判断处理器是否修改了消息包, 字符串字段比较引用.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class RawJson {
+
+  final ByteString bytes;
+  final String messageId;
+  final Long from;
+  final long to;
+  final int kind;
+  final String content;
+  final int contentType;
+  final String extraArgs;
+
+  RawJson(ByteString bytes, MessagePacketBase packet) {
+    this.bytes = bytes;
+    this.messageId = packet.messageId;
+    this.from = packet.from;
+    this.to = packet.to;
+    this.kind = packet.kind;
+    this.content = packet.content;
+    this.contentType = packet.contentType;
+    this.extraArgs = packet.extraArgs;
+  }
+}
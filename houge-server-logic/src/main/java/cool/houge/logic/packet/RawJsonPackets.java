@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.protobuf.ByteString;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * 消息包原始 JSON 的转发.
+ *
+ * <p>客户端发送的完整消息包在逻辑服务中通常不会被修改, 分发时直接转发客户端发送的原始 JSON, 省去 Jackson 的再次序列化:
+ *
+ * <ul>
+ *   <li>消息包未被修改时返回原始 JSON
+ *   <li>仅自动填充了 {@code message_id}/{@code from} 时在原始 JSON 对象末尾拼接缺失的属性, 不复制原始 JSON
+ *   <li>其它字段被修改或原始 JSON 不是规范的格式时返回 {@code null}, 由调用方完整序列化
+ * </ul>
+ *
+ * <p>原始 JSON 是否为规范的格式由 {@link JsonPackets#decode(ByteString)} 记录. 规范的原始 JSON 中每个属性的值与解码结果一一对应,
+ * 宽松解码接受的类型转换(例如 {@code "to":"123"}、{@code "kind":1.9})、{@code null} 值与重复的属性都不会直接转发, 解码结果为 {@code null}
+ * 的属性在原始 JSON 中一定不存在, 拼接时不会与已有的属性重复.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class RawJsonPackets {
+
+  private RawJsonPackets() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * 保留消息包的原始 JSON, 必须在解析后修改消息包前调用.
+   *
+   * @param packet 消息包
+   * @param json 原始 JSON
+   */
+  public static void retain(Packet packet, ByteString json) {
+    if (packet instanceof MessagePacketBase) {
+      var mp = (MessagePacketBase) packet;
+      if (mp.canonicalJson) {
+        mp.rawJson = new RawJson(json, mp);
+      }
+    }
+  }
+
+  /**
+   * 返回可直接转发的消息包 JSON.
+   *
+   * @param packet 消息包
+   * @return JSON, 消息包不能直接转发时返回 {@code null}
+   */
+  public static ByteString encode(Packet packet) {
+    if (!(packet instanceof MessagePacketBase)) {
+      return null;
+    }
+    var mp = (MessagePacketBase) packet;
+    var raw = mp.rawJson;
+    if (raw == null
+        || mp.to != raw.to
+        || mp.kind != raw.kind
+        || mp.contentType != raw.contentType
+        || mp.content != raw.content
+        || mp.extraArgs != raw.extraArgs) {
+      return null;
+    }
+    // 原始 JSON 中已有的字段被修改
+    if ((raw.messageId != null && mp.messageId != raw.messageId)
+        || (raw.from != null && !Objects.equals(raw.from, mp.from))) {
+      return null;
+    }
+
+    var fillMessageId = raw.messageId == null && mp.messageId != null;
+    var fillFrom = raw.from == null && mp.from != null;
+    if (!fillMessageId && !fillFrom) {
+      return raw.bytes;
+    }
+    var end = lastObjectEnd(raw.bytes);
+    if (end < 0) {
+      return null;
+    }
+
+    // 拼接在对象末尾, 规范的原始 JSON 中没有同名的属性
+    var sb = new StringBuilder(48);
+    if (fillMessageId) {
+      sb.append(",\"message_id\":\"");
+      JsonStringEncoder.getInstance().quoteAsString(mp.messageId, sb);
+      sb.append('"');
+    }
+    if (fillFrom) {
+      sb.append(",\"from\":").append(mp.from.longValue());
+    }
+    var patch = ByteString.copyFrom(sb.toString(), StandardCharsets.UTF_8);
+    return raw.bytes.substring(0, end).concat(patch).concat(raw.bytes.substring(end));
+  }
+
+  // 返回 JSON 对象结束符 '}' 的位置, 拼接的属性插入到该位置之前, 包级可见供测试
+  static int lastObjectEnd(ByteString json) {
+    for (int i = json.size() - 1; i > 0; i--) {
+      var b = json.byteAt(i);
+      if (b == '}') {
+        // '{}' 空对象不能以逗号开始拼接
+        for (int j = i - 1; j >= 0; j--) {
+          var c = json.byteAt(j);
+          if (c == '{') {
+            return -1;
+          }
+          if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+            return i;
+          }
+        }
+        return -1;
+      }
+      if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+}
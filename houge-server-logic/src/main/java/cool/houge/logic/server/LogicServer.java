@@ -18,10 +18,13 @@ package cool.houge.logic.server;
 import com.google.common.net.HostAndPort;
 import io.grpc.BindableService;
 import io.grpc.Server;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.services.HealthStatusManager;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -36,6 +39,7 @@ public class LogicServer {
 
   private final LogicServerConfig serverConfig;
   private final List<BindableService> bindableServices;
+  private final HealthStatusManager healthStatusManager = new HealthStatusManager();
   private Server server;
 
   /**
@@ -57,24 +61,46 @@ public class LogicServer {
     for (BindableService service : bindableServices) {
       builder.addService(service);
     }
+    // gRPC 健康检查, WS 服务的客户端负载均衡依据健康状态选择后端
+    builder.addService(healthStatusManager.getHealthService());
 
     this.server = builder.build();
     try {
       this.server.start();
+      healthStatusManager.setStatus(
+          HealthStatusManager.SERVICE_NAME_ALL_SERVICES, ServingStatus.SERVING);
       log.info("Logic gRPC服务启动成功 {}", this.server.getListenSockets());
     } catch (IOException e) {
       throw new IllegalStateException(e);
     }
   }
 
-  /** 停止逻辑服务. */
+  /**
+   * 停止逻辑服务.
+   *
+   * <p>先通知客户端停止选择当前节点, 等待 {@link LogicServerConfig#getShutdownGracePeriod()} 后停止接收新请求, 再等待已接收的请求完成,
+   * 超过 {@link LogicServerConfig#getShutdownTimeout()} 后强制关闭.
+   */
   public void stop() {
     if (this.server != null) {
       if (this.server.isShutdown()) {
         log.warn("Logic gRPC服务已停止，正在重复停止Logic gRPC服务");
         return;
       }
-      this.server.shutdownNow();
+      healthStatusManager.enterTerminalState();
+      try {
+        // 客户端的健康检查收到 NOT_SERVING 后将新的请求转移到其它节点
+        Thread.sleep(serverConfig.getShutdownGracePeriod().toMillis());
+        this.server.shutdown();
+        if (!this.server.awaitTermination(
+            serverConfig.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+          log.warn("Logic gRPC服务在 {} 内未完成所有请求，强制停止", serverConfig.getShutdownTimeout());
+          this.server.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.server.shutdownNow();
+      }
       log.info("Logic gRPC服务停止完成");
     }
   }
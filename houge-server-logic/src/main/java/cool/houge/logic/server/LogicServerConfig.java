@@ -15,6 +15,7 @@
  */
 package cool.houge.logic.server;
 
+import java.time.Duration;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -31,4 +32,8 @@ public class LogicServerConfig {
 
   /** gRPC服务地址. */
   private String addr;
+  /** 停止时通知客户端停止选择当前节点后等待的时长, 客户端在此期间通过健康检查将请求转移到其它节点. */
+  private Duration shutdownGracePeriod = Duration.ofSeconds(5);
+  /** 停止接收新请求后等待已接收的请求完成的最大时长, 超时后强制关闭仍未结束的调用(如终端的 Link 流). */
+  private Duration shutdownTimeout = Duration.ofSeconds(10);
 }
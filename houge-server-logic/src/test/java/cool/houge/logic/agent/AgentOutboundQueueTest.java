@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.protobuf.ByteString;
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.grpc.AgentPb;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link AgentOutboundQueue} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class AgentOutboundQueueTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final FakeObserver observer = new FakeObserver();
+
+  @BeforeEach
+  void setUp() {
+    Metrics.addRegistry(registry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    Metrics.removeRegistry(registry);
+  }
+
+  private static AgentPb.LinkResponse command(long uid) {
+    return AgentPb.LinkResponse.newBuilder()
+        .setCommand(
+            AgentPb.Command.newBuilder()
+                .setSubGroup(AgentPb.Command.SubGroup.newBuilder().setUid(uid)))
+        .build();
+  }
+
+  private static AgentPb.LinkResponse packetMixin(long to) {
+    return AgentPb.LinkResponse.newBuilder()
+        .setPacketMixin(
+            AgentPb.PacketMixin.newBuilder()
+                .addTo(to)
+                .setDataBytes(ByteString.copyFromUtf8("{}")))
+        .build();
+  }
+
+  // 队列最多缓存 2 个 command 响应
+  private static AgentOutboundConfig queueConfig(SlowAgentPolicy policy) {
+    return queueConfig(policy, 2L * command(1).getSerializedSize());
+  }
+
+  private static AgentOutboundConfig queueConfig(SlowAgentPolicy policy, long maxBytes) {
+    var config = new AgentOutboundConfig();
+    config.setMaxBytes(ConfigMemorySize.ofBytes(maxBytes));
+    config.setPolicy(policy);
+    return config;
+  }
+
+  // 队列最多缓存 2 个 packet_mixin 响应
+  private static AgentOutboundConfig packetQueueConfig(SlowAgentPolicy policy) {
+    return queueConfig(policy, 2L * packetMixin(1).getSerializedSize());
+  }
+
+  private static AgentOutboundConfig batchConfig(int maxPackets, Duration maxDelay) {
+    var config = new AgentOutboundConfig();
+    config.setBatchMaxPackets(maxPackets);
+    config.setBatchMaxDelay(maxDelay);
+    return config;
+  }
+
+  private static List<Long> uids(List<AgentPb.LinkResponse> responses) {
+    return responses.stream()
+        .map(response -> response.getCommand().getSubGroup().getUid())
+        .collect(Collectors.toList());
+  }
+
+  private static List<Long> packetTo(List<AgentPb.LinkResponse> responses) {
+    return responses.stream()
+        .map(response -> response.getPacketMixin().getTo(0))
+        .collect(Collectors.toList());
+  }
+
+  private static List<Long> batchTo(AgentPb.LinkResponse response) {
+    return response.getPacketMixinBatch().getPacketMixinsList().stream()
+        .map(mixin -> mixin.getTo(0))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void writeDirectlyWhenReady() {
+    var queue = new AgentOutboundQueue(observer, queueConfig(SlowAgentPolicy.DISCONNECT));
+    queue.onNext(command(1));
+    queue.onNext(command(2));
+    assertThat(uids(observer.written())).containsExactly(1L, 2L);
+    assertThat(queue.status("a", "h").getState()).isEqualTo(AgentLinkState.READY);
+  }
+
+  @Test
+  void drainWhenReady() {
+    var queue = new AgentOutboundQueue(observer, queueConfig(SlowAgentPolicy.DISCONNECT));
+    observer.ready = false;
+    queue.onNext(command(1));
+    queue.onNext(command(2));
+    assertThat(observer.written()).isEmpty();
+    var status = queue.status("a", "h");
+    assertThat(status.getState()).isEqualTo(AgentLinkState.STALLED);
+    assertThat(status.getQueuedResponses()).isEqualTo(2);
+
+    // 流可写后按顺序写出, 写出期间流再次不可写时停止
+    observer.ready = true;
+    observer.readyBudget = 1;
+    observer.onReadyHandler.run();
+    assertThat(uids(observer.written())).containsExactly(1L);
+    // 队列非空时新的响应排在队列之后
+    queue.onNext(command(3));
+    assertThat(uids(observer.written())).containsExactly(1L);
+
+    observer.readyBudget = Integer.MAX_VALUE;
+    observer.onReadyHandler.run();
+    assertThat(uids(observer.written())).containsExactly(1L, 2L, 3L);
+    status = queue.status("a", "h");
+    assertThat(status.getState()).isEqualTo(AgentLinkState.READY);
+    assertThat(status.getQueuedBytes()).isZero();
+  }
+
+  @Test
+  void dropOldest() {
+    var queue = new AgentOutboundQueue(observer, packetQueueConfig(SlowAgentPolicy.DROP_OLDEST));
+    observer.ready = false;
+    queue.onNext(packetMixin(1));
+    queue.onNext(packetMixin(2));
+    queue.onNext(packetMixin(3));
+    assertThat(queue.status("a", "h").getDroppedResponses()).isOne();
+
+    observer.ready = true;
+    observer.onReadyHandler.run();
+    assertThat(packetTo(observer.written())).containsExactly(2L, 3L);
+    assertThat(observer.error).isNull();
+  }
+
+  @Test
+  void dropNewest() {
+    var queue = new AgentOutboundQueue(observer, packetQueueConfig(SlowAgentPolicy.DROP_NEWEST));
+    observer.ready = false;
+    queue.onNext(packetMixin(1));
+    queue.onNext(packetMixin(2));
+    queue.onNext(packetMixin(3));
+    assertThat(queue.status("a", "h").getDroppedResponses()).isOne();
+
+    observer.ready = true;
+    observer.onReadyHandler.run();
+    assertThat(packetTo(observer.written())).containsExactly(1L, 2L);
+    assertThat(observer.error).isNull();
+  }
+
+  @Test
+  void dropOldestKeepsCommands() {
+    // 队列最多缓存 2 个 packet_mixin 与 1 个 command 响应
+    var maxBytes = 2L * packetMixin(1).getSerializedSize() + command(1).getSerializedSize();
+    var queue =
+        new AgentOutboundQueue(observer, queueConfig(SlowAgentPolicy.DROP_OLDEST, maxBytes));
+    observer.ready = false;
+    queue.onNext(packetMixin(1));
+    queue.onNext(command(1));
+    queue.onNext(packetMixin(2));
+
+    // 队列已满, 跳过 command 丢弃最早的 Packet
+    queue.onNext(command(2));
+    queue.onNext(packetMixin(3));
+    assertThat(queue.status("a", "h").getDroppedResponses()).isEqualTo(2);
+
+    observer.ready = true;
+    observer.onReadyHandler.run();
+    var written = observer.written();
+    assertThat(written).hasSize(3);
+    assertThat(uids(written.subList(0, 2))).containsExactly(1L, 2L);
+    assertThat(written.get(2).getPacketMixin().getTo(0)).isEqualTo(3L);
+    assertThat(observer.error).isNull();
+  }
+
+  @Test
+  void commandOverflowDisconnects() {
+    // 队列中只有 command 时丢弃策略同样断开 Link 流
+    for (var policy : List.of(SlowAgentPolicy.DROP_OLDEST, SlowAgentPolicy.DROP_NEWEST)) {
+      var linkObserver = new FakeObserver();
+      var queue = new AgentOutboundQueue(linkObserver, queueConfig(policy));
+      linkObserver.ready = false;
+      queue.onNext(command(1));
+      queue.onNext(command(2));
+      queue.onNext(command(3));
+      assertThat(queue.isClosed()).as("policy=%s", policy).isTrue();
+      assertThat(Status.fromThrowable(linkObserver.error).getCode())
+          .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+      assertThat(queue.status("a", "h").getDroppedResponses()).isZero();
+    }
+  }
+
+  @Test
+  void disconnect() {
+    var queue = new AgentOutboundQueue(observer, queueConfig(SlowAgentPolicy.DISCONNECT));
+    observer.ready = false;
+    queue.onNext(command(1));
+    queue.onNext(command(2));
+    queue.onNext(command(3));
+    assertThat(queue.isClosed()).isTrue();
+    assertThat(Status.fromThrowable(observer.error).getCode())
+        .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+
+    // 关闭后丢弃所有响应
+    observer.ready = true;
+    observer.onReadyHandler.run();
+    queue.onNext(command(4));
+    assertThat(observer.written()).isEmpty();
+  }
+
+  @Test
+  void batchFlushOrder() {
+    var queue = new AgentOutboundQueue(observer, batchConfig(3, Duration.ofHours(1)));
+    queue.enableBatch();
+    queue.onNext(packetMixin(1));
+    queue.onNext(packetMixin(2));
+    assertThat(observer.written()).isEmpty();
+
+    // 其它响应写出前先写出已合并的 Packet
+    queue.onNext(command(9));
+    var written = observer.written();
+    assertThat(written).hasSize(2);
+    assertThat(batchTo(written.get(0))).containsExactly(1L, 2L);
+    assertThat(written.get(1).getCommand().getSubGroup().getUid()).isEqualTo(9L);
+
+    // 达到最大数量时立即写出
+    queue.onNext(packetMixin(3));
+    queue.onNext(packetMixin(4));
+    queue.onNext(packetMixin(5));
+    written = observer.written();
+    assertThat(written).hasSize(3);
+    assertThat(batchTo(written.get(2))).containsExactly(3L, 4L, 5L);
+
+    // 结束流时写出剩余的 Packet, 单个 Packet 不使用批量响应
+    queue.onNext(packetMixin(6));
+    queue.onCompleted();
+    written = observer.written();
+    assertThat(written).hasSize(4);
+    assertThat(written.get(3).getPacketMixin().getTo(0)).isEqualTo(6L);
+    assertThat(observer.completed).isTrue();
+  }
+
+  @Test
+  void batchFlushAfterDelay() throws InterruptedException {
+    var queue = new AgentOutboundQueue(observer, batchConfig(64, Duration.ofMillis(20)));
+    queue.enableBatch();
+    queue.onNext(packetMixin(1));
+    queue.onNext(packetMixin(2));
+
+    var response = observer.responses.poll(5, TimeUnit.SECONDS);
+    assertThat(response).as("等待批量响应超时").isNotNull();
+    assertThat(response.getPacketMixinBatch().getPacketMixinsCount()).isEqualTo(2);
+  }
+
+  @Test
+  void reconnectKeepsNewMeters() {
+    var oldQueue = new AgentOutboundQueue(observer, queueConfig(SlowAgentPolicy.DISCONNECT));
+    oldQueue.bindMeters("agent-meters");
+    var newObserver = new FakeObserver();
+    newObserver.ready = false;
+    var newQueue = new AgentOutboundQueue(newObserver, queueConfig(SlowAgentPolicy.DISCONNECT));
+    newQueue.bindMeters("agent-meters");
+    newQueue.onNext(command(1));
+
+    // 终端重连后旧的 Link 流才关闭, 只删除旧 Link 流自身的监控指标
+    oldQueue.close();
+    var gauges =
+        Metrics.globalRegistry
+            .find("tethys.logic.agent.outbound.queued.bytes")
+            .tag("agent", "agent-meters")
+            .gauges();
+    assertThat(gauges).hasSize(1);
+    assertThat(gauges.iterator().next().value()).isEqualTo(newQueue.queuedBytes());
+    assertThat(
+            Metrics.globalRegistry
+                .find("tethys.logic.agent.outbound.stall")
+                .tag("agent", "agent-meters")
+                .timers())
+        .hasSize(1);
+
+    newQueue.close();
+    assertThat(
+            Metrics.globalRegistry
+                .find("tethys.logic.agent.outbound.queued.bytes")
+                .tag("agent", "agent-meters")
+                .gauges())
+        .isEmpty();
+  }
+
+  private static class FakeObserver extends ServerCallStreamObserver<AgentPb.LinkResponse> {
+
+    final BlockingQueue<AgentPb.LinkResponse> responses = new LinkedBlockingQueue<>();
+    volatile boolean ready = true;
+    // 流保持可写的写出次数
+    volatile int readyBudget = Integer.MAX_VALUE;
+    volatile Runnable onReadyHandler;
+    volatile Throwable error;
+    volatile boolean completed;
+
+    List<AgentPb.LinkResponse> written() {
+      return List.copyOf(responses);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+      // noop
+    }
+
+    @Override
+    public void setCompression(String compression) {
+      // noop
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready && readyBudget > 0;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+      this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+      // noop
+    }
+
+    @Override
+    public void request(int count) {
+      // noop
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+      // noop
+    }
+
+    @Override
+    public void onNext(AgentPb.LinkResponse value) {
+      if (readyBudget != Integer.MAX_VALUE) {
+        readyBudget--;
+      }
+      responses.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+    }
+  }
+}
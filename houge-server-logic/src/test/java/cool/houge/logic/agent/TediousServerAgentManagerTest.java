@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.protobuf.ByteString;
+import cool.houge.grpc.AgentPb;
+import cool.houge.logic.packet.ErrorPacket;
+import cool.houge.logic.packet.ProtobufPackets;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+/**
+ * {@link TediousServerAgentManager} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class TediousServerAgentManagerTest {
+
+  private final TediousServerAgentManager agentManager = new TediousServerAgentManager();
+  private final List<FakeObserver> observers = new ArrayList<>();
+
+  private StreamObserver<AgentPb.LinkRequest> register(String name) {
+    var observer = new FakeObserver();
+    observers.add(observer);
+    var requestObserver = agentManager.register(observer);
+    requestObserver.onNext(AgentPb.LinkRequest.newBuilder().setName(name).build());
+    return requestObserver;
+  }
+
+  private static AgentPb.LinkRequest clientProtocols(boolean protobuf) {
+    return AgentPb.LinkRequest.newBuilder()
+        .setClientProtocols(AgentPb.ClientProtocols.newBuilder().setProtobuf(protobuf))
+        .build();
+  }
+
+  private AgentPb.PacketMixin lastPacketMixin(int i) {
+    var responses = observers.get(i).responses;
+    assertThat(responses).isNotEmpty();
+    return responses.get(responses.size() - 1).getPacketMixin();
+  }
+
+  @Test
+  void encodeProtobufOnlyForProtobufAgents() {
+    var json = register("json");
+    var proto = register("proto");
+    // 未上报会话协议的终端
+    register("legacy");
+    json.onNext(clientProtocols(false));
+    proto.onNext(clientProtocols(true));
+
+    var packet = ErrorPacket.builder().code(1).message("hello").build();
+    agentManager.sendToAll(packet);
+
+    var jsonMixin = lastPacketMixin(0);
+    assertThat(jsonMixin.getDataBytes().isEmpty()).isFalse();
+    assertThat(jsonMixin.getProtoBytes().isEmpty()).isTrue();
+    var protoMixin = lastPacketMixin(1);
+    assertThat(protoMixin.getDataBytes()).isEqualTo(jsonMixin.getDataBytes());
+    assertThat(protoMixin.getProtoBytes()).isEqualTo(ProtobufPackets.encode(packet));
+    assertThat(lastPacketMixin(2).getProtoBytes()).isEqualTo(protoMixin.getProtoBytes());
+  }
+
+  @Test
+  void clientProtocolsChanged() {
+    var agent = register("agent");
+    agent.onNext(clientProtocols(false));
+    agentManager.sendToAll(ErrorPacket.builder().code(1).message("a").build());
+    assertThat(lastPacketMixin(0).getProtoBytes().isEmpty()).isTrue();
+
+    // 终端的首个 protobuf 会话加入
+    agent.onNext(clientProtocols(true));
+    agentManager.sendToAll(ErrorPacket.builder().code(2).message("b").build());
+    assertThat(lastPacketMixin(0).getProtoBytes().isEmpty()).isFalse();
+  }
+
+  @Test
+  void subGroupBeforeGroupInterestReport() {
+    var agent = register("agent");
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setPresence(AgentPb.Presence.newBuilder().setReset(true).addOnlineUids(1L))
+            .setGroupInterest(AgentPb.GroupInterest.newBuilder().setReset(true))
+            .build());
+    // 未上报订阅群组的终端接收所有的群组消息
+    register("legacy");
+    var packet = ErrorPacket.builder().code(1).message("hello").build();
+
+    agentManager.sendToGroup(List.of(9L), packet);
+    assertThat(observers.get(0).responses).isEmpty();
+    assertThat(observers.get(1).responses).hasSize(1);
+
+    // 终端上报订阅群组之前即可接收群组消息
+    var command =
+        AgentPb.Command.newBuilder()
+            .setSubGroup(AgentPb.Command.SubGroup.newBuilder().setUid(1L).addGids(9L))
+            .build();
+    agentManager.send(command);
+    assertThat(observers.get(0).responses.get(0).getCommand()).isEqualTo(command);
+    agentManager.sendToGroup(List.of(9L), packet);
+    assertThat(lastPacketMixin(0).getTo(0)).isEqualTo(9L);
+
+    // 取消订阅后按终端的上报跳过
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setGroupInterest(AgentPb.GroupInterest.newBuilder().addRemovedGids(9L))
+            .build());
+    agentManager.sendToGroup(List.of(9L), packet);
+    assertThat(observers.get(0).responses).hasSize(2);
+  }
+
+  private static ByteString serialize(long... ids) throws IOException {
+    var bitmap = Roaring64Bitmap.bitmapOf(ids);
+    var out = ByteString.newOutput();
+    try (var data = new DataOutputStream(out)) {
+      bitmap.serialize(data);
+    }
+    return out.toByteString();
+  }
+
+  private static AgentPb.LinkRequest groupInterestSnapshot(long... gids) throws IOException {
+    return AgentPb.LinkRequest.newBuilder()
+        .setGroupInterest(
+            AgentPb.GroupInterest.newBuilder().setReset(true).setSnapshot(serialize(gids)))
+        .build();
+  }
+
+  private static AgentPb.LinkRequest presenceSnapshot(long... uids) throws IOException {
+    return AgentPb.LinkRequest.newBuilder()
+        .setPresence(AgentPb.Presence.newBuilder().setReset(true).setSnapshot(serialize(uids)))
+        .build();
+  }
+
+  private static AgentPb.Command subGroup(long uid, long gid) {
+    return AgentPb.Command.newBuilder()
+        .setSubGroup(AgentPb.Command.SubGroup.newBuilder().setUid(uid).addGids(gid))
+        .build();
+  }
+
+  @Test
+  void snapshotKeepsGroupInterestAhead() throws IOException {
+    var agent = register("agent");
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setPresence(AgentPb.Presence.newBuilder().setReset(true).addOnlineUids(1L))
+            .build());
+    agent.onNext(groupInterestSnapshot(5L));
+    var responses = observers.get(0).responses;
+    var packet = ErrorPacket.builder().code(1).message("hello").build();
+
+    // 订阅命令执行期间终端重新上报的快照不包含新订阅的群组
+    agentManager.send(subGroup(1L, 9L));
+    agent.onNext(groupInterestSnapshot(5L));
+    agentManager.sendToGroup(List.of(9L), packet);
+    assertThat(lastPacketMixin(0).getTo(0)).isEqualTo(9L);
+
+    // 终端上报订阅后不再保留, 之后的快照以终端为准
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setGroupInterest(AgentPb.GroupInterest.newBuilder().addAddedGids(9L))
+            .build());
+    agent.onNext(groupInterestSnapshot(5L));
+    var n = responses.size();
+    agentManager.sendToGroup(List.of(9L), packet);
+    assertThat(responses).hasSize(n);
+
+    // 终端上报取消订阅同样清除预先添加的群组
+    agentManager.send(subGroup(1L, 7L));
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setGroupInterest(AgentPb.GroupInterest.newBuilder().addRemovedGids(7L))
+            .build());
+    agent.onNext(groupInterestSnapshot(5L));
+    n = responses.size();
+    agentManager.sendToGroup(List.of(7L), packet);
+    assertThat(responses).hasSize(n);
+
+    // 快照已包含预先添加的群组时同样不再保留
+    agentManager.send(subGroup(1L, 8L));
+    agent.onNext(groupInterestSnapshot(5L, 8L));
+    agent.onNext(groupInterestSnapshot(5L));
+    n = responses.size();
+    agentManager.sendToGroup(List.of(8L), packet);
+    assertThat(responses).hasSize(n);
+  }
+
+  @Test
+  void presenceSnapshotReplacesUsers() throws IOException {
+    var agent = register("agent");
+    agent.onNext(presenceSnapshot(1L, 2L));
+    var responses = observers.get(0).responses;
+    var packet = ErrorPacket.builder().code(1).message("hello").build();
+    agentManager.sendToUser(List.of(2L), packet);
+    assertThat(lastPacketMixin(0).getTo(0)).isEqualTo(2L);
+
+    // 重新上报的快照整体替换终端的在线用户
+    agent.onNext(presenceSnapshot(3L));
+    var n = responses.size();
+    agentManager.sendToUser(List.of(2L), packet);
+    assertThat(responses).hasSize(n);
+    agentManager.sendToUser(List.of(3L), packet);
+    assertThat(lastPacketMixin(0).getTo(0)).isEqualTo(3L);
+  }
+
+  @Test
+  void ackPresenceAfterApplied() {
+    var agent = register("agent");
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setPresence(AgentPb.Presence.newBuilder().setReset(true).addOnlineUids(1L))
+            .build());
+    var packet = ErrorPacket.builder().code(1).message("hello").build();
+    agentManager.sendToUser(List.of(2L), packet);
+    assertThat(observers.get(0).responses).isEmpty();
+
+    // 确认在应用变更之后发送, 终端收到确认后发送给新上线用户的消息不会跳过该终端
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setPresence(AgentPb.Presence.newBuilder().addOnlineUids(2L).setGeneration(7))
+            .build());
+    var responses = observers.get(0).responses;
+    assertThat(responses).hasSize(1);
+    assertThat(responses.get(0).getPresenceAck().getGeneration()).isEqualTo(7);
+    agentManager.sendToUser(List.of(2L), packet);
+    assertThat(lastPacketMixin(0).getTo(0)).isEqualTo(2L);
+
+    // 未携带序号的上报不需要确认
+    agent.onNext(
+        AgentPb.LinkRequest.newBuilder()
+            .setPresence(AgentPb.Presence.newBuilder().addOfflineUids(2L))
+            .build());
+    assertThat(responses).hasSize(2);
+  }
+
+  private static class FakeObserver extends ServerCallStreamObserver<AgentPb.LinkResponse> {
+
+    final List<AgentPb.LinkResponse> responses = new ArrayList<>();
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+      // noop
+    }
+
+    @Override
+    public void setCompression(String compression) {
+      // noop
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+      // noop
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+      // noop
+    }
+
+    @Override
+    public void request(int count) {
+      // noop
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+      // noop
+    }
+
+    @Override
+    public void onNext(AgentPb.LinkResponse value) {
+      responses.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      // noop
+    }
+
+    @Override
+    public void onCompleted() {
+      // noop
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import cool.houge.BizCodes;
+import cool.houge.auth.AuthContext;
+import cool.houge.auth.AuthService;
+import cool.houge.grpc.AuthGrpc;
+import cool.houge.grpc.AuthPb.ConnectRequest;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsRequest;
+import cool.houge.model.JwtSecret;
+import cool.houge.storage.JwtSecretDao;
+import cool.houge.storage.query.GroupQueryDao;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import top.yein.chaos.biz.BizCodeException;
+
+/**
+ * {@link AuthGrpcImpl} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class AuthGrpcImplTest {
+
+  private Server server;
+  private ManagedChannel channel;
+
+  @AfterEach
+  void tearDown() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  private AuthGrpc.AuthBlockingStub start(JwtSecretDao jwtSecretDao, boolean watchEnabled)
+      throws IOException {
+    return start(mock(AuthService.class), mock(GroupQueryDao.class), jwtSecretDao, watchEnabled);
+  }
+
+  private AuthGrpc.AuthBlockingStub start(AuthService authService, GroupQueryDao groupQueryDao)
+      throws IOException {
+    return start(authService, groupQueryDao, mock(JwtSecretDao.class), false);
+  }
+
+  private AuthGrpc.AuthBlockingStub start(
+      AuthService authService,
+      GroupQueryDao groupQueryDao,
+      JwtSecretDao jwtSecretDao,
+      boolean watchEnabled)
+      throws IOException {
+    var config = new JwtSecretWatchConfig();
+    config.setEnabled(watchEnabled);
+    var impl = new AuthGrpcImpl(authService, groupQueryDao, jwtSecretDao, config);
+    var name = InProcessServerBuilder.generateName();
+    server = InProcessServerBuilder.forName(name).directExecutor().addService(impl).build().start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    return AuthGrpc.newBlockingStub(channel);
+  }
+
+  private static JwtSecret newJwtSecret(String id, int deleted) {
+    var e = new JwtSecret();
+    e.setId(id);
+    e.setAlgorithm("HS256");
+    e.setSecretKey(ByteBuffer.wrap(("secret-" + id).getBytes(StandardCharsets.UTF_8)));
+    e.setDeleted(deleted);
+    return e;
+  }
+
+  private static ConnectRequest connectRequest(String token) {
+    return ConnectRequest.newBuilder().setToken(token).build();
+  }
+
+  private static AuthContext newAuthContext(long uid) {
+    var ac = mock(AuthContext.class);
+    when(ac.uid()).thenReturn(uid);
+    return ac;
+  }
+
+  private static Status.Code statusCode(Throwable ex) {
+    return ((StatusRuntimeException) ex).getStatus().getCode();
+  }
+
+  @Test
+  void connect() throws IOException {
+    var authService = mock(AuthService.class);
+    var groupQueryDao = mock(GroupQueryDao.class);
+    // 群组查询开始之后认证才完成, 串行执行时请求会超时
+    var gidsSubscribed = Sinks.empty();
+    when(authService.peekUid("token")).thenReturn(7L);
+    when(authService.authenticate("token"))
+        .thenReturn(Mono.just(newAuthContext(7)).delaySubscription(gidsSubscribed.asMono()));
+    when(groupQueryDao.queryGidByUid(7))
+        .thenReturn(
+            Flux.just(100L, 200L).doOnSubscribe(unused -> gidsSubscribed.tryEmitEmpty()));
+    var stub = start(authService, groupQueryDao);
+
+    var response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).connect(connectRequest("token"));
+    assertThat(response.getUid()).isEqualTo(7);
+    assertThat(response.getGidList()).containsExactly(100L, 200L);
+  }
+
+  @Test
+  void connectBadSignature() throws IOException {
+    var authService = mock(AuthService.class);
+    var groupQueryDao = mock(GroupQueryDao.class);
+    when(authService.peekUid("token")).thenReturn(7L);
+    when(authService.authenticate("token"))
+        .thenReturn(Mono.error(new BizCodeException(BizCodes.C3300)));
+    when(groupQueryDao.queryGidByUid(7)).thenReturn(Flux.just(100L, 200L));
+    var stub = start(authService, groupQueryDao);
+
+    // 认证失败时预加载的群组IDs不会返回给调用方
+    assertThatThrownBy(() -> stub.connect(connectRequest("token")))
+        .isInstanceOf(StatusRuntimeException.class)
+        .extracting(AuthGrpcImplTest::statusCode)
+        .isEqualTo(Status.Code.UNKNOWN);
+  }
+
+  @Test
+  void connectMalformedToken() throws IOException {
+    var authService = mock(AuthService.class);
+    var groupQueryDao = mock(GroupQueryDao.class);
+    when(authService.peekUid(anyString())).thenThrow(new BizCodeException(BizCodes.C3300));
+    var stub = start(authService, groupQueryDao);
+
+    // 解析令牌的异常作为 gRPC 错误返回, 不会从 connect 方法中抛出
+    assertThatThrownBy(() -> stub.connect(connectRequest("malformed")))
+        .isInstanceOf(StatusRuntimeException.class)
+        .extracting(AuthGrpcImplTest::statusCode)
+        .isEqualTo(Status.Code.UNKNOWN);
+    verify(authService, never()).authenticate(anyString());
+    verify(groupQueryDao, never()).queryGidByUid(anyLong());
+  }
+
+  @Test
+  void watchJwtSecretsDisabled() throws IOException {
+    var jwtSecretDao = mock(JwtSecretDao.class);
+    var stub = start(jwtSecretDao, false);
+
+    var it = stub.watchJwtSecrets(WatchJwtSecretsRequest.getDefaultInstance());
+    assertThatThrownBy(it::hasNext)
+        .isInstanceOf(StatusRuntimeException.class)
+        .extracting(ex -> ((StatusRuntimeException) ex).getStatus().getCode())
+        .isEqualTo(Status.Code.PERMISSION_DENIED);
+    // 未开启时不加载密钥
+    verifyNoInteractions(jwtSecretDao);
+  }
+
+  @Test
+  void watchJwtSecrets() throws IOException {
+    var jwtSecretDao = mock(JwtSecretDao.class);
+    when(jwtSecretDao.findAll())
+        .thenReturn(Flux.just(newJwtSecret("k2", 0), newJwtSecret("k1", 0), newJwtSecret("k0", 1)));
+    var stub = start(jwtSecretDao, true);
+
+    var it = stub.watchJwtSecrets(WatchJwtSecretsRequest.getDefaultInstance());
+    var response = it.next();
+    // 已删除的密钥不推送, 按 kid 排序
+    assertThat(response.getSecretList())
+        .extracting(s -> s.getId())
+        .containsExactly("k1", "k2");
+    assertThat(response.getSecret(0).getSecretKey().toStringUtf8()).isEqualTo("secret-k1");
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+import com.google.protobuf.ByteString;
+import cool.houge.grpc.PacketGrpc;
+import cool.houge.grpc.PacketPb.PacketRequest;
+import cool.houge.grpc.PacketPb.PacketStreamRequest;
+import cool.houge.grpc.PacketPb.PacketStreamResponse;
+import cool.houge.logic.handler.PacketHandler;
+import cool.houge.logic.packet.MessagePacketBase;
+import cool.houge.logic.packet.Packet;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link PacketGrpcImpl} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class PacketGrpcImplTest {
+
+  private Server server;
+  private ManagedChannel channel;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    // to 为 0 时处理失败
+    PacketHandler<Packet> handler =
+        packet ->
+            ((MessagePacketBase) packet).getTo() == 0
+                ? Mono.error(new IllegalArgumentException("to"))
+                : Mono.empty();
+    var injector =
+        Guice.createInjector(
+            binder ->
+                binder
+                    .bind(PacketHandler.class)
+                    .annotatedWith(Names.named(Packet.NS_PRIVATE_MESSAGE))
+                    .toInstance(handler));
+    var name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(new PacketGrpcImpl(injector, new PacketStreamConfig()))
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+  }
+
+  @AfterEach
+  void tearDown() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  private static PacketStreamRequest request(long requestId, String json) {
+    return PacketStreamRequest.newBuilder()
+        .setRequestId(requestId)
+        .setRequest(
+            PacketRequest.newBuilder()
+                .setRequestUid(1)
+                .setDataBytes(ByteString.copyFromUtf8(json)))
+        .build();
+  }
+
+  @Test
+  void failedRequestDoesNotCloseStream() throws InterruptedException {
+    var observer = new ResponseObserver(Integer.MAX_VALUE);
+    PacketGrpc.newStub(channel).processStream(observer);
+    var requests = observer.requestStream;
+    requests.onNext(request(1, "{\"@ns\":\"p.message\",\"to\":2}"));
+    assertThat(observer.next().getRequestId()).isEqualTo(1);
+
+    // 格式错误、未定义的消息类型与处理失败都只影响当前请求
+    requests.onNext(request(2, "{\"@ns\":"));
+    var r2 = observer.next();
+    assertThat(r2.getRequestId()).isEqualTo(2);
+    assertThat(r2.getStatusCode()).isZero();
+    assertThat(r2.getDataBytes().toStringUtf8()).contains("\"@ns\":\"error\"");
+
+    requests.onNext(request(3, "{\"@ns\":\"unknown\"}"));
+    var r3 = observer.next();
+    assertThat(r3.getRequestId()).isEqualTo(3);
+    assertThat(r3.getDataBytes().toStringUtf8()).contains("\"@ns\":\"error\"");
+
+    requests.onNext(request(4, "{\"@ns\":\"p.message\",\"to\":0}"));
+    var r4 = observer.next();
+    assertThat(r4.getRequestId()).isEqualTo(4);
+    assertThat(r4.getStatusCode()).isEqualTo(Status.Code.UNKNOWN.value());
+
+    requests.onNext(request(5, "{\"@ns\":\"p.message\",\"to\":2}"));
+    var r5 = observer.next();
+    assertThat(r5.getRequestId()).isEqualTo(5);
+    assertThat(r5.getStatusCode()).isZero();
+
+    requests.onCompleted();
+    assertThat(observer.completed.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(observer.error).isNull();
+  }
+
+  @Test
+  void writeResponsesOnlyWhenReady() throws InterruptedException {
+    // 客户端不接收响应时流不可写, 响应在服务端排队
+    var observer = new ResponseObserver(0);
+    PacketGrpc.newStub(channel).processStream(observer);
+    var requests = observer.requestStream;
+    requests.onNext(request(1, "{\"@ns\":\"p.message\",\"to\":2}"));
+    requests.onNext(request(2, "{\"@ns\":\"p.message\",\"to\":2}"));
+    requests.onCompleted();
+    assertThat(observer.responses.poll(200, TimeUnit.MILLISECONDS)).isNull();
+
+    requests.request(1);
+    assertThat(observer.next().getRequestId()).isIn(1L, 2L);
+    assertThat(observer.responses.poll(200, TimeUnit.MILLISECONDS)).isNull();
+    assertThat(observer.completed.getCount()).isOne();
+
+    // 所有响应写出后结束流
+    requests.request(1);
+    assertThat(observer.next().getRequestId()).isIn(1L, 2L);
+    assertThat(observer.completed.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private static class ResponseObserver
+      implements ClientResponseObserver<PacketStreamRequest, PacketStreamResponse> {
+
+    private final int initialRequests;
+    private final BlockingQueue<PacketStreamResponse> responses = new LinkedBlockingQueue<>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private ClientCallStreamObserver<PacketStreamRequest> requestStream;
+    private volatile Throwable error;
+
+    ResponseObserver(int initialRequests) {
+      this.initialRequests = initialRequests;
+    }
+
+    PacketStreamResponse next() throws InterruptedException {
+      var response = responses.poll(5, TimeUnit.SECONDS);
+      assertThat(response).as("等待响应超时").isNotNull();
+      return response;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<PacketStreamRequest> requestStream) {
+      this.requestStream = requestStream;
+      requestStream.disableAutoRequestWithInitial(initialRequests);
+    }
+
+    @Override
+    public void onNext(PacketStreamResponse value) {
+      responses.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+      completed.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+      completed.countDown();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.exc.InvalidTypeIdException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import cool.houge.util.JsonUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * {@link JsonPackets} 单元测试.
+ *
+ * <p>编解码结果与 {@link JsonUtils#objectMapper()} 对比.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class JsonPacketsTest {
+
+  private static final String FULL =
+      "{\"@ns\":\"p.message\",\"message_id\":\"m1\",\"from\":1,\"to\":2,\"kind\":3,"
+          + "\"content\":\"hi\",\"content_type\":4,\"extra_args\":\"{}\"}";
+
+  // ObjectMapper 解码失败时 JsonPackets 同样失败, 否则解码结果相同
+  private static void assertSameDecode(String json) throws IOException {
+    assertSameDecode(json, ByteString.copyFromUtf8(json));
+  }
+
+  private static void assertSameDecode(String json, ByteString data) throws IOException {
+    Packet expected;
+    try {
+      expected = JsonUtils.objectMapper().readValue(json, Packet.class);
+    } catch (JsonProcessingException e) {
+      assertThatThrownBy(() -> JsonPackets.decode(data)).as(json).isInstanceOf(IOException.class);
+      return;
+    }
+    var actual = JsonPackets.decode(data);
+    assertThat(actual).as(json).isExactlyInstanceOf(expected.getClass());
+    assertThat(actual)
+        .as(json)
+        .usingRecursiveComparison()
+        .ignoringFields("canonicalJson")
+        .isEqualTo(expected);
+  }
+
+  private static void assertSameEncode(Packet packet) throws IOException {
+    var expected = JsonUtils.objectMapper().writeValueAsBytes(packet);
+    var actual = JsonPackets.encode(packet);
+    assertThat(actual.toStringUtf8()).isEqualTo(new String(expected, StandardCharsets.UTF_8));
+    assertThat(actual.toByteArray()).isEqualTo(expected);
+  }
+
+  private static <T extends MessagePacketBase> T fill(T packet) {
+    packet.setMessageId("m1");
+    packet.setFrom(1L);
+    packet.setTo(2);
+    packet.setKind(3);
+    packet.setContent("hi");
+    packet.setContentType(4);
+    packet.setExtraArgs("{\"a\":1}");
+    return packet;
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        FULL,
+        "{\"@ns\":\"g.message\",\"to\":2}",
+        // @ns 不在第一个
+        "{\"to\":2,\"@ns\":\"g.message\",\"content\":\"x\"}",
+        "{\"to\":2,\"content\":\"x\",\"@ns\":\"p.message\"}",
+        // 类型转换
+        "{\"@ns\":\"p.message\",\"to\":\"123\",\"from\":\"7\"}",
+        "{\"@ns\":\"p.message\",\"kind\":1.9,\"content_type\":\"2\"}",
+        "{\"@ns\":\"p.message\",\"to\":2.5,\"from\":-3.7}",
+        "{\"@ns\":\"p.message\",\"content\":123,\"extra_args\":1.50,\"message_id\":true}",
+        "{\"@ns\":\"p.message\",\"from\":\"\",\"to\":\"\",\"kind\":\"\"}",
+        "{\"@ns\":\"p.message\",\"content\":\"\",\"message_id\":\"\"}",
+        // null 值
+        "{\"@ns\":\"p.message\",\"from\":null,\"to\":null,\"kind\":null,\"content_type\":null}",
+        "{\"@ns\":\"p.message\",\"message_id\":null,\"content\":null,\"extra_args\":null}",
+        // 重复的属性
+        "{\"@ns\":\"p.message\",\"to\":1,\"to\":2,\"content\":\"a\",\"content\":\"b\"}",
+        "{\"@ns\":\"p.message\",\"from\":1,\"from\":null}",
+        "{\"@ns\":\"p.message\",\"@ns\":\"g.message\",\"to\":1}",
+        "{\"to\":1,\"@ns\":\"g.message\",\"@ns\":\"p.message\"}",
+        // 未定义的属性
+        "{\"@ns\":\"p.message\",\"x\":{\"a\":[1,{\"b\":2}]},\"to\":1,\"y\":null}",
+        // 转义与非 ASCII 字符
+        "{\"@ns\":\"p.message\",\"content\":\"\\u4e2d\\\"\\n文\"}",
+        // 对象之后的内容
+        "{\"@ns\":\"p.message\",\"to\":1} ",
+        "{\"@ns\":\"p.message\",\"to\":1} {}",
+      })
+  void decode(String json) throws IOException {
+    assertSameDecode(json);
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        // 缺少 @ns 或未定义的消息类型
+        "{\"to\":2}",
+        "{}",
+        "{\"@ns\":\"unknown\",\"to\":2}",
+        "{\"@ns\":null,\"to\":2}",
+        // 超出范围的数字
+        "{\"@ns\":\"p.message\",\"kind\":4294967296}",
+        "{\"@ns\":\"p.message\",\"kind\":\"4294967296\"}",
+        "{\"@ns\":\"p.message\",\"content_type\":1e20}",
+        "{\"@ns\":\"p.message\",\"to\":9223372036854775808}",
+        "{\"@ns\":\"p.message\",\"from\":\"9223372036854775808\"}",
+        // 类型错误
+        "{\"@ns\":\"p.message\",\"to\":\"abc\"}",
+        "{\"@ns\":\"p.message\",\"to\":[1]}",
+        "{\"@ns\":\"p.message\",\"content\":{}}",
+        "{\"@ns\":\"p.message\",\"kind\":true}",
+        // 格式错误
+        "[]",
+        "\"p.message\"",
+        "{\"@ns\":\"p.message\",",
+        "{\"@ns\":\"p.message\" \"to\":1}",
+        "",
+      })
+  void decodeError(String json) throws IOException {
+    assertSameDecode(json);
+  }
+
+  @Test
+  void missingNs() {
+    assertThatThrownBy(() -> JsonPackets.decode(ByteString.copyFromUtf8("{\"to\":2}")))
+        .isInstanceOf(InvalidTypeIdException.class);
+    assertThatThrownBy(() -> JsonPackets.decode(ByteString.copyFromUtf8("{\"@ns\":\"x\"}")))
+        .isInstanceOf(InvalidTypeIdException.class);
+  }
+
+  @Test
+  void decodeByteStringLayouts() throws IOException {
+    var bytes = FULL.getBytes(StandardCharsets.UTF_8);
+    // 带偏移的数组
+    var padded = ByteString.copyFromUtf8("xx" + FULL + "yy");
+    assertSameDecode(FULL, padded.substring(2, 2 + bytes.length));
+    // 多段数组
+    var mid = bytes.length / 2;
+    assertSameDecode(
+        FULL,
+        ByteString.copyFrom(bytes, 0, mid)
+            .concat(ByteString.copyFrom(bytes, mid, bytes.length - mid)));
+    // 堆内与堆外的 ByteBuffer
+    assertSameDecode(FULL, UnsafeByteOperations.unsafeWrap(ByteBuffer.wrap(bytes)));
+    var direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    assertSameDecode(FULL, UnsafeByteOperations.unsafeWrap(direct));
+  }
+
+  @Test
+  void encodeMessage() throws IOException {
+    assertSameEncode(fill(new PrivateMessagePacket()));
+    assertSameEncode(fill(new GroupMessagePacket()));
+  }
+
+  @Test
+  void encodeEmptyMessage() throws IOException {
+    // 忽略 null 与空字符串, 基本类型的属性始终输出
+    assertSameEncode(new PrivateMessagePacket());
+    var packet = new GroupMessagePacket();
+    packet.setMessageId("");
+    packet.setContent("");
+    packet.setExtraArgs("");
+    packet.setFrom(0L);
+    assertSameEncode(packet);
+  }
+
+  @Test
+  void encodeSpecialValues() throws IOException {
+    var packet = fill(new PrivateMessagePacket());
+    packet.setFrom(Long.MIN_VALUE);
+    packet.setTo(Long.MAX_VALUE);
+    packet.setKind(Integer.MIN_VALUE);
+    packet.setContentType(-1);
+    packet.setContent("a\"b\\c\n\t\u0001中文\uD83D\uDE00</script>");
+    assertSameEncode(packet);
+  }
+
+  @Test
+  void encodeDecoded() throws IOException {
+    // 解码后重新编码, @ns 移到最前, 其余属性按字段声明的顺序
+    var packet = JsonPackets.decode(ByteString.copyFromUtf8("{\"to\":2,\"x\":1,\"@ns\":\"g.message\"}"));
+    assertSameEncode(packet);
+    assertThat(JsonPackets.encode(packet).toStringUtf8())
+        .isEqualTo("{\"@ns\":\"g.message\",\"to\":2,\"kind\":0,\"content_type\":0}");
+  }
+
+  @Test
+  void encodeError() throws IOException {
+    assertSameEncode(ErrorPacket.builder().code(1).message("错误").build());
+    assertSameEncode(ErrorPacket.builder().code(0).build());
+    assertSameEncode(ErrorPacket.builder().code(2).message("").build());
+    // 携带 details 时使用 ObjectMapper 编码
+    assertSameEncode(ErrorPacket.builder().code(3).message("m").details(Map.of("k", "v")).build());
+    assertSameEncode(ErrorPacket.builder().code(4).details("d").build());
+  }
+}
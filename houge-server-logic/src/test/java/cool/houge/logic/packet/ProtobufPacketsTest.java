@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import cool.houge.grpc.ClientPb;
+import cool.houge.grpc.ClientPb.ClientPacket;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link ProtobufPackets} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class ProtobufPacketsTest {
+
+  private static <T extends MessagePacketBase> T fill(T packet) {
+    packet.setMessageId("m1");
+    packet.setFrom(10L);
+    packet.setTo(20);
+    packet.setKind(1);
+    packet.setContent("hello 世界");
+    packet.setContentType(2);
+    packet.setExtraArgs("{\"a\":1}");
+    return packet;
+  }
+
+  private static MessagePacketBase roundTrip(Packet packet) throws InvalidProtocolBufferException {
+    return (MessagePacketBase) ProtobufPackets.decode(ProtobufPackets.encode(packet));
+  }
+
+  private static void assertSameFields(MessagePacketBase actual, MessagePacketBase expected) {
+    assertThat(actual).isExactlyInstanceOf(expected.getClass());
+    assertThat(actual.getMessageId()).isEqualTo(expected.getMessageId());
+    assertThat(actual.getFrom()).isEqualTo(expected.getFrom());
+    assertThat(actual.getTo()).isEqualTo(expected.getTo());
+    assertThat(actual.getKind()).isEqualTo(expected.getKind());
+    assertThat(actual.getContent()).isEqualTo(expected.getContent());
+    assertThat(actual.getContentType()).isEqualTo(expected.getContentType());
+    assertThat(actual.getExtraArgs()).isEqualTo(expected.getExtraArgs());
+  }
+
+  @Test
+  void privateMessage() throws InvalidProtocolBufferException {
+    var packet = fill(new PrivateMessagePacket());
+    var data = ProtobufPackets.encode(packet);
+    assertThat(ClientPacket.parseFrom(data).getKindCase())
+        .isEqualTo(ClientPacket.KindCase.PRIVATE_MESSAGE);
+    assertSameFields(roundTrip(packet), packet);
+  }
+
+  @Test
+  void groupMessage() throws InvalidProtocolBufferException {
+    var packet = fill(new GroupMessagePacket());
+    var data = ProtobufPackets.encode(packet);
+    assertThat(ClientPacket.parseFrom(data).getKindCase())
+        .isEqualTo(ClientPacket.KindCase.GROUP_MESSAGE);
+    assertSameFields(roundTrip(packet), packet);
+  }
+
+  @Test
+  void absentFields() throws InvalidProtocolBufferException {
+    // 未设置的字符串与 from 编码为 protobuf 的默认值, 解码后仍为 null
+    var packet = new PrivateMessagePacket();
+    packet.setTo(20);
+    var data = ProtobufPackets.encode(packet);
+    var mp = ClientPacket.parseFrom(data).getPrivateMessage();
+    assertThat(mp.getMessageId()).isEmpty();
+    assertThat(mp.getFrom()).isZero();
+    assertThat(mp.getContent()).isEmpty();
+    assertThat(mp.getExtraArgs()).isEmpty();
+
+    var decoded = roundTrip(packet);
+    assertSameFields(decoded, packet);
+    assertThat(decoded.getMessageId()).isNull();
+    assertThat(decoded.getFrom()).isNull();
+    assertThat(decoded.getContent()).isNull();
+    assertThat(decoded.getExtraArgs()).isNull();
+  }
+
+  @Test
+  void emptyStringAndZeroFrom() throws InvalidProtocolBufferException {
+    // 空字符串与 from = 0 和缺省的属性无法区分, 解码为 null
+    var packet = new GroupMessagePacket();
+    packet.setMessageId("");
+    packet.setFrom(0L);
+    packet.setContent("");
+    packet.setExtraArgs("");
+    var decoded = roundTrip(packet);
+    assertThat(decoded.getMessageId()).isNull();
+    assertThat(decoded.getFrom()).isNull();
+    assertThat(decoded.getContent()).isNull();
+    assertThat(decoded.getExtraArgs()).isNull();
+
+    // 客户端显式发送 0 与空字符串时同样解码为 null
+    var data =
+        ClientPacket.newBuilder()
+            .setPrivateMessage(
+                ClientPb.MessagePacket.newBuilder().setFrom(0).setContent("").setTo(0))
+            .build()
+            .toByteString();
+    var fromClient = (MessagePacketBase) ProtobufPackets.decode(data);
+    assertThat(fromClient).isInstanceOf(PrivateMessagePacket.class);
+    assertThat(fromClient.getFrom()).isNull();
+    assertThat(fromClient.getContent()).isNull();
+    assertThat(fromClient.getTo()).isZero();
+  }
+
+  @Test
+  void negativeNumbers() throws InvalidProtocolBufferException {
+    var packet = fill(new PrivateMessagePacket());
+    packet.setFrom(-1L);
+    packet.setTo(Long.MIN_VALUE);
+    packet.setKind(-2);
+    assertSameFields(roundTrip(packet), packet);
+  }
+
+  @Test
+  void errorPacket() throws InvalidProtocolBufferException {
+    var data = ProtobufPackets.encode(ErrorPacket.builder().code(100).message("错误").build());
+    var cp = ClientPacket.parseFrom(data);
+    assertThat(cp.getKindCase()).isEqualTo(ClientPacket.KindCase.ERROR);
+    assertThat(cp.getError().getCode()).isEqualTo(100);
+    assertThat(cp.getError().getMessage()).isEqualTo("错误");
+
+    // details 不在二进制协议中传输, null 的 message 编码为空字符串
+    var withoutMessage =
+        ClientPacket.parseFrom(
+            ProtobufPackets.encode(ErrorPacket.builder().code(1).details("d").build()));
+    assertThat(withoutMessage.getError().getMessage()).isEmpty();
+
+    // 客户端发送的错误包不是可处理的消息类型
+    assertThat(ProtobufPackets.decode(data)).isNull();
+  }
+
+  @Test
+  void unknownKind() throws InvalidProtocolBufferException {
+    // 未设置 oneof
+    assertThat(ProtobufPackets.decode(ByteString.EMPTY)).isNull();
+    // 新版本客户端新增的 oneof 字段(字段号 9, length-delimited)
+    var unknown = ByteString.copyFrom(new byte[] {(9 << 3) | 2, 1, 'x'});
+    assertThat(ProtobufPackets.decode(unknown)).isNull();
+  }
+
+  @Test
+  void invalidData() {
+    // 长度超出数据范围
+    var truncated = ByteString.copyFrom(new byte[] {(2 << 3) | 2, 5, 1});
+    assertThatThrownBy(() -> ProtobufPackets.decode(truncated))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void unsupportedPacket() {
+    Packet packet = () -> Packet.NS_SYSTEM_MESSAGE;
+    assertThat(ProtobufPackets.encode(packet)).isEqualTo(ByteString.EMPTY);
+  }
+}
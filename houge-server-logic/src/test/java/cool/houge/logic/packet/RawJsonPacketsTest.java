@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.packet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.protobuf.ByteString;
+import cool.houge.util.JsonUtils;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * {@link RawJsonPackets} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class RawJsonPacketsTest {
+
+  private static final String JSON =
+      "{\"@ns\":\"p.message\",\"to\":2,\"kind\":1,\"content\":\"hi\",\"content_type\":3}";
+
+  private static MessagePacketBase decode(String json) throws IOException {
+    var data = ByteString.copyFromUtf8(json);
+    var packet = JsonPackets.decode(data);
+    RawJsonPackets.retain(packet, data);
+    return (MessagePacketBase) packet;
+  }
+
+  private static MessagePacketBase parse(ByteString json) throws IOException {
+    return (MessagePacketBase) JsonUtils.objectMapper().readValue(json.toByteArray(), Packet.class);
+  }
+
+  @Test
+  void untouched() throws IOException {
+    var packet = decode(JSON);
+    var raw = RawJsonPackets.encode(packet);
+    assertThat(raw).isSameAs(packet.rawJson.bytes);
+    assertThat(raw.toStringUtf8()).isEqualTo(JSON);
+  }
+
+  @Test
+  void spliceMessageIdAndFrom() throws IOException {
+    var packet = decode(JSON);
+    packet.setMessageId("m\"1");
+    packet.setFrom(10L);
+
+    var raw = RawJsonPackets.encode(packet);
+    assertThat(raw.toStringUtf8())
+        .isEqualTo(
+            "{\"@ns\":\"p.message\",\"to\":2,\"kind\":1,\"content\":\"hi\",\"content_type\":3"
+                + ",\"message_id\":\"m\\\"1\",\"from\":10}");
+    var parsed = parse(raw);
+    assertThat(parsed.getMessageId()).isEqualTo("m\"1");
+    assertThat(parsed.getFrom()).isEqualTo(10L);
+    assertThat(parsed.getTo()).isEqualTo(2L);
+    assertThat(parsed.getContent()).isEqualTo("hi");
+    // 拼接后的 JSON 与完整序列化的结果等价
+    assertThat(parse(JsonPackets.encode(packet))).usingRecursiveComparison().isEqualTo(parsed);
+  }
+
+  @Test
+  void spliceOnlyMissingProperty() throws IOException {
+    var packet = decode("{\"@ns\":\"g.message\",\"message_id\":\"m1\",\"to\":2}");
+    packet.setFrom(10L);
+    assertThat(RawJsonPackets.encode(packet).toStringUtf8())
+        .isEqualTo("{\"@ns\":\"g.message\",\"message_id\":\"m1\",\"to\":2,\"from\":10}");
+  }
+
+  @Test
+  void trailingWhitespace() throws IOException {
+    var packet = decode("{\"@ns\":\"p.message\",\"to\":2 } \r\n\t");
+    assertThat(RawJsonPackets.encode(packet)).isNotNull();
+
+    packet.setFrom(10L);
+    var raw = RawJsonPackets.encode(packet);
+    assertThat(raw.toStringUtf8()).isEqualTo("{\"@ns\":\"p.message\",\"to\":2 ,\"from\":10} \r\n\t");
+    assertThat(parse(raw).getFrom()).isEqualTo(10L);
+  }
+
+  @Test
+  void emptyObject() {
+    assertThat(RawJsonPackets.lastObjectEnd(ByteString.copyFromUtf8("{}"))).isNegative();
+    assertThat(RawJsonPackets.lastObjectEnd(ByteString.copyFromUtf8("{ \n}"))).isNegative();
+    assertThat(RawJsonPackets.lastObjectEnd(ByteString.copyFromUtf8("{\"a\":1}x"))).isNegative();
+    assertThat(RawJsonPackets.lastObjectEnd(ByteString.copyFromUtf8("{\"a\":1} \n")))
+        .isEqualTo(6);
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        // 类型转换
+        "{\"@ns\":\"p.message\",\"to\":\"123\"}",
+        "{\"@ns\":\"p.message\",\"to\":2,\"kind\":1.9}",
+        "{\"@ns\":\"p.message\",\"to\":2,\"from\":\"1\"}",
+        "{\"@ns\":\"p.message\",\"to\":2,\"content\":123}",
+        "{\"@ns\":\"p.message\",\"to\":2,\"message_id\":true}",
+        // null 值
+        "{\"@ns\":\"p.message\",\"to\":2,\"message_id\":null}",
+        "{\"@ns\":\"p.message\",\"to\":2,\"from\":null}",
+        "{\"@ns\":\"p.message\",\"to\":null}",
+        // 重复的属性
+        "{\"@ns\":\"p.message\",\"to\":2,\"to\":3}",
+        "{\"@ns\":\"p.message\",\"@ns\":\"g.message\",\"to\":2}",
+        "{\"@ns\":\"p.message\",\"to\":2,\"message_id\":\"a\",\"message_id\":\"b\"}",
+        // 未定义的属性
+        "{\"@ns\":\"p.message\",\"to\":2,\"x\":{\"y\":1}}",
+        // 对象之后的内容
+        "{\"@ns\":\"p.message\",\"to\":2} {}",
+        "{\"@ns\":\"p.message\",\"to\":2} x",
+      })
+  void fallback(String json) throws IOException {
+    var packet = decode(json);
+    assertThat(packet.rawJson).isNull();
+    packet.setFrom(10L);
+    assertThat(RawJsonPackets.encode(packet)).isNull();
+  }
+
+  @Test
+  void modified() throws IOException {
+    var packet = decode(JSON);
+    packet.setContent(new String("hi"));
+    assertThat(RawJsonPackets.encode(packet)).isNull();
+
+    packet = decode(JSON);
+    packet.setTo(3);
+    assertThat(RawJsonPackets.encode(packet)).isNull();
+
+    // 原始 JSON 中已有的 message_id/from 被修改
+    packet = decode("{\"@ns\":\"p.message\",\"message_id\":\"m1\",\"from\":1,\"to\":2}");
+    packet.setMessageId("m2");
+    assertThat(RawJsonPackets.encode(packet)).isNull();
+    packet = decode("{\"@ns\":\"p.message\",\"message_id\":\"m1\",\"from\":1,\"to\":2}");
+    packet.setFrom(2L);
+    assertThat(RawJsonPackets.encode(packet)).isNull();
+  }
+
+  @Test
+  void notDecodedFromJson() {
+    var packet = new PrivateMessagePacket();
+    packet.setTo(2);
+    assertThat(RawJsonPackets.encode(packet)).isNull();
+    assertThat(RawJsonPackets.encode(ErrorPacket.builder().code(1).build())).isNull();
+  }
+}
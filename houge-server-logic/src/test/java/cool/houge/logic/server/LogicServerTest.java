@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.logic.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.grpc.BindableService;
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link LogicServer} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class LogicServerTest {
+
+  private static final MethodDescriptor<String, String> ECHO =
+      MethodDescriptor.<String, String>newBuilder()
+          .setType(MethodDescriptor.MethodType.UNARY)
+          .setFullMethodName("test.Echo/Echo")
+          .setRequestMarshaller(new StringMarshaller())
+          .setResponseMarshaller(new StringMarshaller())
+          .build();
+
+  private final BlockingQueue<StreamObserver<String>> calls = new LinkedBlockingQueue<>();
+  private LogicServer server;
+  private ManagedChannel channel;
+
+  @AfterEach
+  void tearDown() {
+    if (channel != null) {
+      channel.shutdownNow();
+    }
+  }
+
+  private void start(Duration gracePeriod, Duration timeout) throws IOException {
+    int port;
+    try (var socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    var config = new LogicServerConfig();
+    config.setAddr("127.0.0.1:" + port);
+    config.setShutdownGracePeriod(gracePeriod);
+    config.setShutdownTimeout(timeout);
+    BindableService echoService =
+        () ->
+            ServerServiceDefinition.builder("test.Echo")
+                .addMethod(
+                    ECHO, ServerCalls.asyncUnaryCall((request, observer) -> calls.add(observer)))
+                .build();
+    server = new LogicServer(config, List.of(echoService));
+    server.start();
+    channel = ManagedChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().build();
+  }
+
+  private CompletableFuture<String> call() {
+    var future = new CompletableFuture<String>();
+    var call = channel.newCall(ECHO, CallOptions.DEFAULT);
+    ClientCalls.asyncUnaryCall(
+        call,
+        "ping",
+        new StreamObserver<>() {
+          @Override
+          public void onNext(String value) {
+            future.complete(value);
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            future.completeExceptionally(t);
+          }
+
+          @Override
+          public void onCompleted() {
+            // noop
+          }
+        });
+    return future;
+  }
+
+  private StreamObserver<String> nextCall() throws InterruptedException {
+    var observer = calls.poll(5, TimeUnit.SECONDS);
+    assertThat(observer).as("等待请求超时").isNotNull();
+    return observer;
+  }
+
+  @Test
+  void stopWaitsForInFlightCalls()
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    start(Duration.ofMillis(200), Duration.ofSeconds(5));
+    var health = HealthGrpc.newBlockingStub(channel);
+    var future = call();
+    var observer = nextCall();
+
+    var stop = CompletableFuture.runAsync(server::stop);
+    // 等待期间仍然接收请求, 健康状态为 NOT_SERVING
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    var status = health.check(HealthCheckRequest.getDefaultInstance()).getStatus();
+    while (status != ServingStatus.NOT_SERVING && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+      status = health.check(HealthCheckRequest.getDefaultInstance()).getStatus();
+    }
+    assertThat(status).isEqualTo(ServingStatus.NOT_SERVING);
+    assertThat(stop).isNotDone();
+
+    // 停止接收新请求后等待已接收的请求完成
+    observer.onNext("pong");
+    observer.onCompleted();
+    assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("pong");
+    stop.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void stopTimeout() throws IOException, InterruptedException {
+    start(Duration.ZERO, Duration.ofMillis(100));
+    var future = call();
+    nextCall();
+
+    // 超时后强制关闭未完成的请求
+    server.stop();
+    assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+        .hasCauseInstanceOf(StatusRuntimeException.class)
+        .satisfies(
+            e ->
+                assertThat(Status.fromThrowable(e.getCause()).getCode())
+                    .isEqualTo(Status.Code.CANCELLED));
+  }
+
+  private static class StringMarshaller implements MethodDescriptor.Marshaller<String> {
+
+    @Override
+    public InputStream stream(String value) {
+      return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String parse(InputStream stream) {
+      try {
+        return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
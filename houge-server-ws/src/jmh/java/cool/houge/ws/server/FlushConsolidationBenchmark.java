@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.ws.session.OutboundQueue;
+import cool.houge.ws.session.OutboundQueueConfig;
+import cool.houge.ws.session.SharedFrames;
+import cool.houge.ws.session.SlowConsumerPolicy;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 写合并基准测试.
+ *
+ * <p>在回环地址上建立 {@code recipients} 个 TCP 连接, 服务端所有连接共享一个 EventLoop. 每次调用在 EventLoop 中推送 {@code burst}
+ * 条消息:
+ *
+ * <ul>
+ *   <li>{@code recipients = 1} 模拟 1:1 单聊, 每条消息调用一次 {@link OutboundQueue#send(ByteBuf)}
+ *   <li>{@code recipients > 1} 模拟 1:N 群聊, 与 {@code FanoutWriter} 相同先写入所有会话再统一 flush
+ * </ul>
+ *
+ * <p>到达 pipeline 头部的 flush 次数近似于 write 系统调用次数, 通过 {@link Counters#flushes} 输出.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FlushConsolidationBenchmark {
+
+  @Param({"false", "true"})
+  boolean consolidation;
+
+  @Param({"1", "100"})
+  int recipients;
+
+  @Param({"16"})
+  int burst;
+
+  @Param({"256"})
+  int payloadSize;
+
+  final LongAdder flushes = new LongAdder();
+  final List<OutboundQueue> queues = new CopyOnWriteArrayList<>();
+
+  EventLoopGroup serverGroup;
+  EventLoopGroup clientGroup;
+  Channel serverChannel;
+  List<Channel> clientChannels;
+  ByteBuf frame;
+
+  @Setup(Level.Trial)
+  public void setup() throws InterruptedException {
+    var flushConfig = new FlushConsolidationConfig();
+    flushConfig.setEnabled(consolidation);
+    flushConfig.setExplicitFlushAfterFlushes(256);
+    flushConfig.setConsolidateWhenNoReadInProgress(true);
+
+    var queueConfig = new OutboundQueueConfig();
+    queueConfig.setMaxBytes(ConfigMemorySize.ofBytes(64L * 1024 * 1024));
+    queueConfig.setPolicy(SlowConsumerPolicy.DROP_OLDEST);
+
+    var flushCounter = new FlushCounter();
+    serverGroup = new NioEventLoopGroup(1);
+    clientGroup = new NioEventLoopGroup();
+    serverChannel =
+        new ServerBootstrap()
+            .group(serverGroup)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(
+                new ChannelInitializer<SocketChannel>() {
+                  @Override
+                  protected void initChannel(SocketChannel ch) {
+                    var queue = new OutboundQueue(ch, queueConfig);
+                    ch.pipeline().addLast(OutboundQueue.HANDLER_NAME, queue);
+                    WsServer.installFlushConsolidation(ch.pipeline(), flushConfig);
+                    // 计数处理器位于最前端, 只统计真正到达 socket 的 flush
+                    ch.pipeline().addFirst(flushCounter);
+                    queues.add(queue);
+                  }
+                })
+            .bind(new InetSocketAddress("127.0.0.1", 0))
+            .sync()
+            .channel();
+
+    var client =
+        new Bootstrap()
+            .group(clientGroup)
+            .channel(NioSocketChannel.class)
+            .handler(new Discard());
+    clientChannels = new ArrayList<>();
+    for (int i = 0; i < recipients; i++) {
+      clientChannels.add(client.connect(serverChannel.localAddress()).sync().channel());
+    }
+    while (queues.size() < recipients) {
+      Thread.sleep(10);
+    }
+
+    frame =
+        SharedFrames.textFrame(ByteBufAllocator.DEFAULT, ByteBuffer.allocate(payloadSize));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    clientChannels.forEach(Channel::close);
+    serverChannel.close();
+    clientGroup.shutdownGracefully();
+    serverGroup.shutdownGracefully();
+    frame.release();
+  }
+
+  /** 在 EventLoop 中推送一批消息并等待完成. */
+  @Benchmark
+  public void push(Counters counters) throws Exception {
+    var before = flushes.sum();
+    serverGroup.next().submit(this::pushBurst).sync();
+    counters.flushes += flushes.sum() - before;
+    counters.messages += (long) burst * recipients;
+  }
+
+  private void pushBurst() {
+    for (int i = 0; i < burst; i++) {
+      if (recipients == 1) {
+        queues.get(0).send(frame.retainedDuplicate());
+        continue;
+      }
+      for (OutboundQueue queue : queues) {
+        queue.offer(frame.retainedDuplicate());
+      }
+      for (OutboundQueue queue : queues) {
+        queue.flush();
+      }
+    }
+  }
+
+  /** 输出 flush 次数与消息数. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    /** 到达 socket 的 flush 次数. */
+    public long flushes;
+    /** 推送的消息数. */
+    public long messages;
+  }
+
+  @Sharable
+  class FlushCounter extends ChannelDuplexHandler {
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+      flushes.increment();
+      ctx.flush();
+    }
+  }
+
+  @Sharable
+  static class Discard extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    var opts =
+        new OptionsBuilder().include(FlushConsolidationBenchmark.class.getSimpleName()).build();
+    new Runner(opts).run();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import cool.houge.grpc.PacketPb.PacketFormat;
+import cool.houge.grpc.PacketPb.PacketRequest;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 上行帧构造 Packet 请求的基准测试.
+ *
+ * <p>{@code fragments > 1} 时帧内容与 {@code WebSocketFrameAggregator} 聚合分片帧的结果相同, 为由多个直接内存分片组成的 {@link
+ * io.netty.buffer.CompositeByteBuf}:
+ *
+ * <ul>
+ *   <li>{@link #nioBuffer()} 原有实现, 通过 {@link ByteBuf#nioBuffer()} 包装, 多个分片时会复制全部负载
+ *   <li>{@link #zeroCopy()} 通过 {@link WebSocketHandler#unsafeWrap(ByteBuf)} 包装, 不复制负载
+ * </ul>
+ *
+ * <p>使用 GC profiler 运行, {@code gc.alloc.rate.norm} 在零拷贝实现下不随 {@code payloadSize} 增长, 即构造请求时没有额外的拷贝.
+ * gRPC 每次发送请求(包括重试时重放缓存的请求)都从帧的内存序列化, 因此帧的引用需要保持到收到响应或调用结束, 本基准测试只衡量构造请求的开销.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InboundFrameBenchmark {
+
+  @Param({"1", "4"})
+  int fragments;
+
+  @Param({"256", "4096", "65536"})
+  int payloadSize;
+
+  ByteBuf content;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    var alloc = PooledByteBufAllocator.DEFAULT;
+    var fragmentSize = payloadSize / fragments;
+    var bytes = new byte[fragmentSize];
+    if (fragments == 1) {
+      ThreadLocalRandom.current().nextBytes(bytes);
+      content = alloc.directBuffer(fragmentSize).writeBytes(bytes);
+      return;
+    }
+    var composite = alloc.compositeDirectBuffer(fragments);
+    for (int i = 0; i < fragments; i++) {
+      ThreadLocalRandom.current().nextBytes(bytes);
+      composite.addComponent(true, alloc.directBuffer(fragmentSize).writeBytes(bytes));
+    }
+    content = composite;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    content.release();
+  }
+
+  @Benchmark
+  public PacketRequest nioBuffer() {
+    return newRequest(UnsafeByteOperations.unsafeWrap(content.nioBuffer()));
+  }
+
+  @Benchmark
+  public PacketRequest zeroCopy() {
+    return newRequest(WebSocketHandler.unsafeWrap(content));
+  }
+
+  private static PacketRequest newRequest(ByteString dataBytes) {
+    return PacketRequest.newBuilder()
+        .setRequestUid(1)
+        .setDataBytes(dataBytes)
+        .setFormat(PacketFormat.JSON)
+        .build();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    var opts =
+        new OptionsBuilder()
+            .include(InboundFrameBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(opts).run();
+  }
+}
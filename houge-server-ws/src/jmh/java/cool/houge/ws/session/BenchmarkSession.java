@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import io.netty.buffer.ByteBuf;
+import reactor.core.publisher.Mono;
+
+/**
+ * 基准测试使用的 {@link Session} 实现, 不持有网络连接.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class BenchmarkSession implements Session {
+
+  private final long sessionId;
+  private final long uid;
+  private volatile long[] subGroupIds = SortedLongArrays.EMPTY;
+
+  BenchmarkSession(long sessionId, long uid) {
+    this.sessionId = sessionId;
+    this.uid = uid;
+  }
+
+  @Override
+  public long sessionId() {
+    return sessionId;
+  }
+
+  @Override
+  public long uid() {
+    return uid;
+  }
+
+  @Override
+  public long[] subGroupIds() {
+    return subGroupIds;
+  }
+
+  @Override
+  public boolean isSubGroup(long gid) {
+    return SortedLongArrays.contains(subGroupIds, gid);
+  }
+
+  @Override
+  public synchronized long[] addSubGroupIds(long... gids) {
+    var added = SortedLongArrays.difference(SortedLongArrays.sortedDistinct(gids), subGroupIds);
+    subGroupIds = SortedLongArrays.union(subGroupIds, added);
+    return added;
+  }
+
+  @Override
+  public synchronized long[] removeSubGroupIds(long... gids) {
+    var removed = SortedLongArrays.intersection(subGroupIds, SortedLongArrays.sortedDistinct(gids));
+    subGroupIds = SortedLongArrays.difference(subGroupIds, removed);
+    return removed;
+  }
+
+  @Override
+  public void markActive(long nanoTime) {
+    // noop
+  }
+
+  @Override
+  public long lastActiveTime() {
+    return 0;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return false;
+  }
+
+  @Override
+  public ClientProtocol protocol() {
+    return ClientProtocol.JSON;
+  }
+
+  @Override
+  public OutboundQueue outboundQueue() {
+    return null;
+  }
+
+  @Override
+  public Mono<Void> send(Mono<ByteBuf> source) {
+    return source.doOnNext(ByteBuf::release).then();
+  }
+
+  @Override
+  public Mono<Void> close() {
+    return Mono.empty();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * {@link DefaultSession} 堆内存占用基准测试.
+ *
+ * <p>直接运行 {@link #main(String[])} 会先使用 JOL 输出不同订阅群组数量下每个会话保留的字节数(不包含共享的 Netty 连接对象),
+ * 并与旧版的会话内存布局对比, 再使用 {@link GCProfiler} 运行 JMH 测试, {@code gc.alloc.rate.norm} 为创建一个会话的分配字节数.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DefaultSessionFootprintBenchmark {
+
+  private static final InetSocketAddress REMOTE_ADDRESS = new InetSocketAddress("10.20.30.40", 52001);
+  /** 长度与 HS512 签名的访问令牌相当. */
+  private static final String TOKEN = "x".repeat(180);
+
+  @Param({"0", "10", "100", "500"})
+  int groups;
+
+  long[] gids;
+
+  @Setup
+  public void setup() {
+    gids = groupIds(groups);
+  }
+
+  @Benchmark
+  public Session newSession() {
+    var session = new DefaultSession(null, 1L, REMOTE_ADDRESS, ClientProtocol.JSON, null);
+    session.addSubGroupIds(gids);
+    return session;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    System.out.printf("%8s %16s %16s%n", "groups", "legacy(bytes)", "compact(bytes)");
+    for (int groups : new int[] {0, 10, 100, 500}) {
+      var gids = groupIds(groups);
+      var session = new DefaultSession(null, 1L, REMOTE_ADDRESS, ClientProtocol.JSON, null);
+      session.addSubGroupIds(gids);
+
+      var legacy = new LegacySession(1L, TOKEN, REMOTE_ADDRESS.getAddress().getHostAddress());
+      for (long gid : gids) {
+        legacy.subGroupIds.add(gid);
+      }
+      System.out.printf(
+          "%8d %16d %16d%n",
+          groups,
+          GraphLayout.parseInstance(legacy).totalSize(),
+          GraphLayout.parseInstance(session).totalSize());
+    }
+
+    var opts =
+        new OptionsBuilder()
+            .include(DefaultSessionFootprintBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(opts).run();
+  }
+
+  private static long[] groupIds(int groups) {
+    // 使用较大的 ID 避免命中 Long 缓存, 与线上数据保持一致
+    return LongStream.rangeClosed(1, groups).map(i -> 1_000_000_000L + i * 7).toArray();
+  }
+
+  /** 旧版会话的内存布局, 仅用于对比. */
+  static class LegacySession {
+
+    final Object inbound = null;
+    final Object outbound = null;
+    final long uid;
+    final String token;
+    final long sessionId = 1L;
+    final Set<Long> subGroupIds = new CopyOnWriteArraySet<>();
+    final String clientIp;
+
+    LegacySession(long uid, String token, String clientIp) {
+      this.uid = uid;
+      this.token = token;
+      this.clientIp = clientIp;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * {@link DefaultSessionManager} 吞吐量基准测试.
+ *
+ * <p>预先装载 {@code preloadedUsers} 个在线用户, 测试 add/remove 与 findByUid 在不同线程数下的吞吐量. 直接运行 {@link
+ * #main(String[])} 会依次使用 1、2、4、8、16、32、64 个线程执行.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DefaultSessionManagerBenchmark {
+
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  @Param({"100000"})
+  int preloadedUsers;
+
+  DefaultSessionManager sessionManager;
+  final AtomicLong sessionIdSeq = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setup() {
+    sessionManager = new DefaultSessionManager();
+    for (int i = 1; i <= preloadedUsers; i++) {
+      sessionManager.add0(new BenchmarkSession(sessionIdSeq.incrementAndGet(), i));
+    }
+  }
+
+  /** 模拟会话上线后立即下线, 每次调用包含一次 add 与一次 remove. */
+  @Benchmark
+  public void addRemove() {
+    var uid = ThreadLocalRandom.current().nextLong(1, preloadedUsers * 2L);
+    var session = new BenchmarkSession(sessionIdSeq.incrementAndGet(), uid);
+    sessionManager.add0(session);
+    sessionManager.remove0(session);
+  }
+
+  /** 按用户 ID 查询会话, 约一半的查询命中. */
+  @Benchmark
+  public void findByUid(Blackhole bh) {
+    var uid = ThreadLocalRandom.current().nextLong(1, preloadedUsers * 2L);
+    bh.consume(sessionManager.findByUid0(uid));
+  }
+
+  /** 通过 {@link SessionManager} 的响应式接口查询会话, 包含 Reactor 的额外开销. */
+  @Benchmark
+  public void findByUidFlux(Blackhole bh) {
+    var uid = ThreadLocalRandom.current().nextLong(1, preloadedUsers * 2L);
+    sessionManager.findByUid(uid).subscribe(bh::consume);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREADS) {
+      var opts =
+          new OptionsBuilder()
+              .include(DefaultSessionManagerBenchmark.class.getSimpleName())
+              .threads(threads)
+              .build();
+      new Runner(opts).run();
+    }
+  }
+}
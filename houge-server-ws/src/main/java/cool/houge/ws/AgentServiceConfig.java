@@ -15,6 +15,7 @@
  */
 package cool.houge.ws;
 
+import java.time.Duration;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -42,4 +43,12 @@ public class AgentServiceConfig {
    * </ul>
    */
   private String multiGrpcTarget;
+  /** 合并用户下线与取消订阅群组变更的时长, 在此期间的变更合并为一次上报, 用户上线与订阅群组立即上报. */
+  private Duration linkReportDelay;
+  /**
+   * 新上线用户的会话等待逻辑服务确认在线状态的最长时长, 超时后会话仍然开始接收消息, 为 0 时不等待.
+   *
+   * <p>逻辑服务应用上报之前不会向当前节点转发该用户的消息, 会话在确认之后才开始接收客户端的请求.
+   */
+  private Duration presenceAckTimeout;
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 本地令牌认证配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class LocalAuthConfig {
+
+  /** 是否在 WS 服务本地校验访问令牌. */
+  private boolean enabled;
+  /** 密钥订阅中断后重新订阅的延迟. */
+  private Duration resubscribeDelay;
+}
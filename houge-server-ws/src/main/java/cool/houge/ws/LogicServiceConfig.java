@@ -15,6 +15,7 @@
  */
 package cool.houge.ws;
 
+import cool.houge.ws.grpc.LoadBalancingConfig;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -31,4 +32,10 @@ public class LogicServiceConfig {
 
   /** 逻辑服务开放的 gRPC 访问地址. */
   private String grpcTarget;
+  /** 客户端负载均衡配置. */
+  private LoadBalancingConfig loadBalancing;
+  /** Packet 双向流的最小数量, 可选择的逻辑服务后端更多时按后端数量增加, 为 0 时仅使用一元调用. */
+  private int packetStreams;
+  /** 每个 Packet 双向流允许的最大未响应请求数, 向上取整为 2 的幂, 必须与逻辑服务的 {@code packet-stream.max-in-flight} 一致. */
+  private int packetStreamMaxInFlight;
 }
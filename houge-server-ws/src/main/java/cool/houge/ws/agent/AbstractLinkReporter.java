@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.agent;
+
+import com.google.protobuf.ByteString;
+import cool.houge.grpc.AgentPb;
+import io.grpc.stub.StreamObserver;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * 通过 Link 流向逻辑服务上报 ID 集合的基础实现.
+ *
+ * <p>记录当前节点的 ID 集合, 并为每个 Link 流记录待上报的增量变更. Link 流建立后首先上报全量快照, 之后上报增量变更, 同一 ID 在上报之前的多次变更只上报最后的状态.
+ *
+ * <p>逻辑服务收到新增的 ID 之前不会向当前节点转发该 ID 的消息, 新增的 ID 立即在后台线程上报, 同时上报期间的其它变更. 删除的 ID
+ * 延迟只会造成多余的转发, 按指定的时长合并后上报.
+ *
+ * <p>每次上报增量变更使用递增的序号, 逻辑服务应用变更后回复序号确认, 调用方可以通过 {@link #awaitAcked(long)} 等待新增的 ID
+ * 被所有逻辑服务确认.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+abstract class AbstractLinkReporter {
+
+  private static final Logger log = LogManager.getLogger();
+  /** 单个请求携带的最大 ID 数量, 避免超过 gRPC 的最大消息长度. */
+  static final int MAX_IDS_PER_REQUEST = 65536;
+
+  private final long reportDelayMillis;
+  // 以下字段由 this 锁保护
+  private final Roaring64Bitmap ids = new Roaring64Bitmap();
+  private final List<Link> links = new ArrayList<>();
+
+  /**
+   * 使用合并删除变更的时长构造对象.
+   *
+   * @param reportDelayMillis 合并删除变更的时长
+   */
+  AbstractLinkReporter(long reportDelayMillis) {
+    this.reportDelayMillis = reportDelayMillis;
+  }
+
+  /**
+   * 在 Link 流上开始上报, 立即上报全量快照.
+   *
+   * <p>调用方需要先在 Link 流上发送携带终端标识的首个请求.
+   *
+   * @param requestObserver Link 请求流
+   * @return Link 上报, Link 流中断时需要调用 {@link Link#close()}
+   */
+  public Link open(StreamObserver<AgentPb.LinkRequest> requestObserver) {
+    var link = new Link(requestObserver);
+    // 持有 link 锁直至快照发送完成, 保证增量变更在快照之后上报
+    synchronized (link) {
+      Roaring64Bitmap snapshot;
+      synchronized (this) {
+        snapshot = ids.clone();
+        links.add(link);
+      }
+      reportSnapshot(link, snapshot);
+    }
+    return link;
+  }
+
+  /**
+   * 添加 ID.
+   *
+   * @param id ID
+   */
+  protected synchronized void add(long id) {
+    ids.addLong(id);
+    for (Link link : links) {
+      link.pendingRemoved.removeLong(id);
+      link.pendingAdded.addLong(id);
+      link.scheduleReport(true);
+    }
+  }
+
+  /**
+   * 删除 ID.
+   *
+   * @param id ID
+   */
+  protected synchronized void remove(long id) {
+    ids.removeLong(id);
+    for (Link link : links) {
+      link.pendingAdded.removeLong(id);
+      link.pendingRemoved.addLong(id);
+      link.scheduleReport(false);
+    }
+  }
+
+  /**
+   * 返回所有 Link 流的逻辑服务都已确认 ID 的信号.
+   *
+   * <p>ID 等待上报时需要确认包含该 ID 的上报, 否则需要确认 Link 流上已发送的最后一次上报. 逻辑服务未应用全量快照之前不会跳过当前节点,
+   * 快照中的 ID 不需要确认. Link 流关闭时信号完成.
+   *
+   * @param id ID
+   * @return 确认的信号
+   */
+  protected Mono<Void> awaitAcked(long id) {
+    return Mono.defer(
+        () -> {
+          var acks = new ArrayList<Mono<Void>>();
+          synchronized (this) {
+            for (Link link : links) {
+              var future = link.awaitAck(id);
+              if (future != null) {
+                // 等待同一序号的调用方共享 future, 取消订阅时只取消副本
+                acks.add(Mono.fromFuture(future.copy()));
+              }
+            }
+          }
+          return Mono.when(acks);
+        });
+  }
+
+  /**
+   * 将全量快照序列化为 {@link Roaring64Bitmap} 的格式, 快照在一个请求中上报, 逻辑服务收到后直接替换终端的 ID 集合.
+   *
+   * @param snapshot 全量快照
+   * @return 序列化后的快照
+   */
+  static ByteString serialize(Roaring64Bitmap snapshot) {
+    snapshot.runOptimize();
+    var output = ByteString.newOutput((int) snapshot.serializedSizeInBytes());
+    try (var out = new DataOutputStream(output)) {
+      snapshot.serialize(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return output.toByteString();
+  }
+
+  /**
+   * 上报全量快照.
+   *
+   * @param link Link 上报
+   * @param snapshot 全量快照
+   */
+  protected abstract void reportSnapshot(Link link, Roaring64Bitmap snapshot);
+
+  /**
+   * 上报一批增量变更, 每个请求最多携带 {@link #MAX_IDS_PER_REQUEST} 个 ID, 调用方会重复调用直至迭代器为空.
+   *
+   * @param link Link 上报
+   * @param added 新增的 ID
+   * @param removed 删除的 ID
+   * @param generation 本次上报的序号, 由需要确认的实现设置在最后一个请求中
+   */
+  protected abstract void reportDelta(
+      Link link, LongIterator added, LongIterator removed, long generation);
+
+  /** 单个 Link 流的上报. */
+  public class Link {
+
+    private final StreamObserver<AgentPb.LinkRequest> requestObserver;
+    // 以下字段由 AbstractLinkReporter.this 锁保护
+    private final Roaring64Bitmap pendingAdded = new Roaring64Bitmap();
+    private final Roaring64Bitmap pendingRemoved = new Roaring64Bitmap();
+    private boolean immediateReportScheduled;
+    private boolean delayedReportScheduled;
+    private boolean closed;
+    // 最后一次上报的序号与逻辑服务确认的序号
+    private long generation;
+    private long ackedGeneration;
+    // 序号 -> 等待确认的调用方
+    private final NavigableMap<Long, CompletableFuture<Void>> ackWaiters = new TreeMap<>();
+
+    Link(StreamObserver<AgentPb.LinkRequest> requestObserver) {
+      this.requestObserver = requestObserver;
+    }
+
+    /** 停止上报, 完成所有等待确认的信号. */
+    public void close() {
+      List<CompletableFuture<Void>> waiters;
+      synchronized (AbstractLinkReporter.this) {
+        closed = true;
+        links.remove(this);
+        waiters = new ArrayList<>(ackWaiters.values());
+        ackWaiters.clear();
+      }
+      waiters.forEach(future -> future.complete(null));
+    }
+
+    /**
+     * 逻辑服务确认已应用指定序号及之前的上报.
+     *
+     * @param generation 上报的序号
+     */
+    public void ack(long generation) {
+      List<CompletableFuture<Void>> waiters;
+      synchronized (AbstractLinkReporter.this) {
+        if (generation <= ackedGeneration) {
+          return;
+        }
+        ackedGeneration = generation;
+        var acked = ackWaiters.headMap(generation, true);
+        waiters = new ArrayList<>(acked.values());
+        acked.clear();
+      }
+      // 在锁外完成, 等待方的后续操作不会持有上报的锁
+      waiters.forEach(future -> future.complete(null));
+    }
+
+    /**
+     * 返回等待确认 ID 的 future, 调用方持有 {@code AbstractLinkReporter.this} 锁.
+     *
+     * @param id ID
+     * @return future, 已确认时返回 {@code null}
+     */
+    private CompletableFuture<Void> awaitAck(long id) {
+      var required = pendingAdded.contains(id) ? generation + 1 : generation;
+      if (required <= ackedGeneration) {
+        return null;
+      }
+      return ackWaiters.computeIfAbsent(required, unused -> new CompletableFuture<>());
+    }
+
+    /**
+     * 在 Link 流上发送请求, Link 流中断时忽略.
+     *
+     * <p>同一 Link 流上的多个上报共享请求流, 发送时锁定请求流.
+     *
+     * @param request 请求
+     */
+    void send(AgentPb.LinkRequest request) {
+      try {
+        synchronized (requestObserver) {
+          requestObserver.onNext(request);
+        }
+      } catch (RuntimeException e) {
+        // Link 流已中断, 重新连接后上报全量快照
+        log.debug("Link 上报失败", e);
+      }
+    }
+
+    /**
+     * 安排上报增量变更.
+     *
+     * <p>调用方持有 {@code AbstractLinkReporter.this} 锁, 上报需要锁定 Link 后再锁定 {@code
+     * AbstractLinkReporter.this}, 所以即使立即上报也在后台线程执行.
+     *
+     * @param immediate 是否立即上报
+     */
+    private void scheduleReport(boolean immediate) {
+      if (immediate) {
+        if (!immediateReportScheduled) {
+          immediateReportScheduled = true;
+          Schedulers.parallel().schedule(() -> report(true));
+        }
+      } else if (!delayedReportScheduled) {
+        delayedReportScheduled = true;
+        Schedulers.parallel()
+            .schedule(() -> report(false), reportDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private synchronized void report(boolean immediate) {
+      Roaring64Bitmap added;
+      Roaring64Bitmap removed;
+      long reportGeneration;
+      synchronized (AbstractLinkReporter.this) {
+        if (immediate) {
+          immediateReportScheduled = false;
+        } else {
+          delayedReportScheduled = false;
+        }
+        if (closed || (pendingAdded.isEmpty() && pendingRemoved.isEmpty())) {
+          return;
+        }
+        added = pendingAdded.clone();
+        removed = pendingRemoved.clone();
+        pendingAdded.clear();
+        pendingRemoved.clear();
+        reportGeneration = ++generation;
+      }
+
+      var addedIt = added.getLongIterator();
+      var removedIt = removed.getLongIterator();
+      while (addedIt.hasNext() || removedIt.hasNext()) {
+        reportDelta(this, addedIt, removedIt, reportGeneration);
+      }
+    }
+  }
+}
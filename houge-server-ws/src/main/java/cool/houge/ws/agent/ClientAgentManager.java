@@ -43,6 +43,8 @@ import java.util.stream.Collectors;
 import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * 消息监控管理器.
@@ -59,9 +61,13 @@ public class ClientAgentManager {
   private final AgentServiceConfig agentServiceConfig;
   private final PacketProcessor packetProcessor;
   private final CommandProcessor commandProcessor;
+  private final PresenceReporter presenceReporter;
+  private final GroupInterestReporter groupInterestReporter;
+  private final ProtocolReporter protocolReporter;
   private final AtomicBoolean STARTED = new AtomicBoolean();
   private final AtomicBoolean RUN = new AtomicBoolean(true);
   private final List<ManagedChannel> channels = new CopyOnWriteArrayList<>();
+  private final List<LinkHelper> links = new CopyOnWriteArrayList<>();
 
   /**
    * 使用配置及处理器构造对象.
@@ -69,18 +75,27 @@ public class ClientAgentManager {
    * @param agentServiceConfig 配置对象
    * @param packetProcessor Packet处理器
    * @param commandProcessor Command处理器
+   * @param presenceReporter 用户在线状态上报
+   * @param groupInterestReporter 订阅群组上报
+   * @param protocolReporter 会话协议上报
    */
   @Inject
   public ClientAgentManager(
       AgentServiceConfig agentServiceConfig,
       PacketProcessor packetProcessor,
-      CommandProcessor commandProcessor) {
+      CommandProcessor commandProcessor,
+      PresenceReporter presenceReporter,
+      GroupInterestReporter groupInterestReporter,
+      ProtocolReporter protocolReporter) {
     var pid = ProcessHandle.current().pid();
     var ran = (short) new SecureRandom().nextInt(Short.MAX_VALUE);
     this.name = Strings.lenientFormat("tethys-ws-%s.%s", pid, ran);
     this.agentServiceConfig = agentServiceConfig;
     this.packetProcessor = packetProcessor;
     this.commandProcessor = commandProcessor;
+    this.presenceReporter = presenceReporter;
+    this.groupInterestReporter = groupInterestReporter;
+    this.protocolReporter = protocolReporter;
   }
 
   /** 启动监控管理器. */
@@ -109,7 +124,9 @@ public class ClientAgentManager {
       channels.add(channel);
       log.info("初始化Agent通道完成 target={}", target, channel);
 
-      new LinkHelper(target, channel).run();
+      var link = new LinkHelper(target, channel);
+      links.add(link);
+      link.run();
     }
   }
 
@@ -122,6 +139,9 @@ public class ClientAgentManager {
     for (ManagedChannel channel : channels) {
       channel.shutdownNow();
     }
+    for (LinkHelper link : links) {
+      link.packetWorker.dispose();
+    }
   }
 
   class LinkHelper {
@@ -131,6 +151,16 @@ public class ClientAgentManager {
     private final AgentStub agentStub;
     private final AtomicInteger retryCount;
     private final AtomicReference<Status.Code> lastStatusCodeRef;
+    /** 停止 Link 流上报的操作. */
+    private final List<Runnable> reportLinks;
+    /** 当前 Link 流的在线用户上报, 接收逻辑服务的确认. */
+    private volatile AbstractLinkReporter.Link presenceLink;
+    /**
+     * 推送 Packet 的工作线程.
+     *
+     * <p>同一个 Worker 的任务按提交顺序串行执行, 逻辑服务在 Link 流中的响应顺序即会话接收消息的顺序, 相邻的批量响应不会交错推送.
+     */
+    private final Scheduler.Worker packetWorker = Schedulers.parallel().createWorker();
 
     LinkHelper(String target, ManagedChannel channel) {
       this.target = target;
@@ -138,17 +168,30 @@ public class ClientAgentManager {
       this.agentStub = AgentGrpc.newStub(channel);
       this.retryCount = new AtomicInteger();
       this.lastStatusCodeRef = new AtomicReference<>();
+      this.reportLinks = new CopyOnWriteArrayList<>();
     }
 
     void run() {
       var request =
-          AgentPb.LinkRequest.newBuilder().setName(name).setHostName(getHostName()).build();
+          AgentPb.LinkRequest.newBuilder()
+              .setName(name)
+              .setHostName(getHostName())
+              .setPacketMixinBatch(true)
+              .build();
       if (retryCount.get() > 0) {
         log.info("请求连接Agent name={} target={} retryCount={}", name, target, retryCount.get());
       } else {
         log.info("请求连接Agent name={} target={}", name, target);
       }
-      this.agentStub.link(request, response());
+      var requestObserver = this.agentStub.link(response());
+      requestObserver.onNext(request);
+      // 先上报会话协议与在线用户、订阅群组的全量快照, 再上报增量变更
+      synchronized (reportLinks) {
+        reportLinks.add(protocolReporter.open(requestObserver));
+        presenceLink = presenceReporter.open(requestObserver);
+        reportLinks.add(presenceLink::close);
+        reportLinks.add(groupInterestReporter.open(requestObserver)::close);
+      }
     }
 
     private ClientResponseObserver<AgentPb.LinkRequest, AgentPb.LinkResponse> response() {
@@ -169,9 +212,18 @@ public class ClientAgentManager {
           }
 
           if (response.hasPacketMixin()) {
-            packetProcessor.process(response.getPacketMixin());
+            var packetMixin = response.getPacketMixin();
+            packetWorker.schedule(() -> packetProcessor.process(packetMixin));
+          } else if (response.hasPacketMixinBatch()) {
+            var batch = response.getPacketMixinBatch();
+            packetWorker.schedule(() -> packetProcessor.process(batch));
           } else if (response.hasCommand()) {
             commandProcessor.process(response.getCommand());
+          } else if (response.hasPresenceAck()) {
+            var link = presenceLink;
+            if (link != null) {
+              link.ack(response.getPresenceAck().getGeneration());
+            }
           } else {
             log.error("不支持的响应 channel={} response={}", channel, response);
           }
@@ -180,6 +232,7 @@ public class ClientAgentManager {
         @Override
         public void onError(Throwable t) {
           requestStream.cancel("request-error", t);
+          closeReportLinks();
 
           Status status = null;
           if (t instanceof StatusRuntimeException) {
@@ -210,10 +263,18 @@ public class ClientAgentManager {
         @Override
         public void onCompleted() {
           log.info("完成 target={}", target);
+          closeReportLinks();
         }
       };
     }
 
+    private void closeReportLinks() {
+      synchronized (reportLinks) {
+        reportLinks.forEach(Runnable::run);
+        reportLinks.clear();
+      }
+    }
+
     private String getHostName() {
       try {
         return InetAddress.getLocalHost().getHostName();
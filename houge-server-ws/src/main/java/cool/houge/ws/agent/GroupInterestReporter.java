@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.agent;
+
+import cool.houge.grpc.AgentPb;
+import cool.houge.ws.AgentServiceConfig;
+import cool.houge.ws.session.GroupInterestListener;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+/**
+ * 订阅群组上报.
+ *
+ * <p>通过与每个逻辑服务之间的 Link 流上报当前节点订阅群组的变更, 逻辑服务据此跳过没有会话订阅群组的节点. 订阅群组立即上报,
+ * 逻辑服务发送订阅命令时也会预先将群组加入当前节点的订阅群组. 群组 ID 由序列生成且较为连续, 全量快照使用 {@link Roaring64Bitmap}
+ * 序列化后压缩的格式上报.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class GroupInterestReporter extends AbstractLinkReporter implements GroupInterestListener {
+
+  private static final Logger log = LogManager.getLogger();
+
+  /**
+   * 使用配置构造对象.
+   *
+   * @param agentServiceConfig 配置对象
+   */
+  @Inject
+  public GroupInterestReporter(AgentServiceConfig agentServiceConfig) {
+    super(agentServiceConfig.getLinkReportDelay().toMillis());
+  }
+
+  @Override
+  public void onSubscribed(long gid) {
+    add(gid);
+  }
+
+  @Override
+  public void onUnsubscribed(long gid) {
+    remove(gid);
+  }
+
+  @Override
+  protected void reportSnapshot(Link link, Roaring64Bitmap snapshot) {
+    var bytes = serialize(snapshot);
+    link.send(
+        AgentPb.LinkRequest.newBuilder()
+            .setGroupInterest(AgentPb.GroupInterest.newBuilder().setReset(true).setSnapshot(bytes))
+            .build());
+    log.info(
+        "上报订阅群组快照 count={} bytes={}", snapshot.getLongCardinality(), bytes.size());
+  }
+
+  @Override
+  protected void reportDelta(
+      Link link, LongIterator added, LongIterator removed, long generation) {
+    // 逻辑服务在发送订阅命令之前已加入订阅群组, 订阅群组的上报不需要确认
+    var builder = AgentPb.GroupInterest.newBuilder();
+    var n = 0;
+    for (; n < MAX_IDS_PER_REQUEST && added.hasNext(); n++) {
+      builder.addAddedGids(added.next());
+    }
+    for (; n < MAX_IDS_PER_REQUEST && removed.hasNext(); n++) {
+      builder.addRemovedGids(removed.next());
+    }
+    link.send(AgentPb.LinkRequest.newBuilder().setGroupInterest(builder).build());
+  }
+}
@@ -17,9 +17,26 @@ package cool.houge.ws.agent;
 
 import cool.houge.grpc.AgentPb;
 
-/** @author KK (kzou227@qq.com) */
+/**
+ * 逻辑服务转发的 Packet 处理器.
+ *
+ * <p>推送在调用线程中同步完成, 调用方按接收顺序串行调用时会话接收消息的顺序与调用顺序一致. 调用方不应在 gRPC 回调线程中直接调用.
+ *
+ * @author KK (kzou227@qq.com)
+ */
 public interface PacketProcessor {
 
-  /** @param packetMixin */
+  /**
+   * 处理单个转发的 Packet.
+   *
+   * @param packetMixin 转发的 Packet
+   */
   void process(AgentPb.PacketMixin packetMixin);
+
+  /**
+   * 按顺序处理批量转发的 Packet.
+   *
+   * @param batch 批量转发的 Packet
+   */
+  void process(AgentPb.PacketMixinBatch batch);
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.agent;
+
+import cool.houge.grpc.AgentPb;
+import cool.houge.ws.AgentServiceConfig;
+import cool.houge.ws.session.PresenceListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import reactor.core.publisher.Mono;
+
+/**
+ * 用户在线状态上报.
+ *
+ * <p>通过与每个逻辑服务之间的 Link 流上报当前节点在线用户的变更, 逻辑服务据此只向托管了接收用户的节点分发用户消息. 用户上线立即上报,
+ * 避免逻辑服务在收到上报之前跳过当前节点. 全量快照使用 {@link Roaring64Bitmap} 序列化的格式在一个请求中上报, 逻辑服务不会在应用快照期间使用不完整的在线用户.
+ *
+ * <p>增量变更的最后一个请求携带序号, 逻辑服务应用后回复确认. 新上线用户的会话在所有逻辑服务确认之后才开始接收消息, 关闭了上报与应用之间跳过当前节点的窗口.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class PresenceReporter extends AbstractLinkReporter implements PresenceListener {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final Counter ACK_TIMEOUT = Metrics.counter("tethys.ws.presence.ack.timeout");
+
+  private final Duration ackTimeout;
+
+  /**
+   * 使用配置构造对象.
+   *
+   * @param agentServiceConfig 配置对象
+   */
+  @Inject
+  public PresenceReporter(AgentServiceConfig agentServiceConfig) {
+    super(agentServiceConfig.getLinkReportDelay().toMillis());
+    this.ackTimeout = agentServiceConfig.getPresenceAckTimeout();
+  }
+
+  @Override
+  public void onOnline(long uid) {
+    add(uid);
+  }
+
+  @Override
+  public void onOffline(long uid) {
+    remove(uid);
+  }
+
+  @Override
+  public Mono<Void> awaitOnline(long uid) {
+    if (ackTimeout == null || ackTimeout.isZero()) {
+      return Mono.empty();
+    }
+    // 逻辑服务未回复确认时(旧版本或丢弃了响应)超时后继续
+    return awaitAcked(uid)
+        .timeout(
+            ackTimeout,
+            Mono.fromRunnable(
+                () -> {
+                  ACK_TIMEOUT.increment();
+                  log.warn("等待逻辑服务确认用户上线超时 uid={} timeout={}", uid, ackTimeout);
+                }));
+  }
+
+  @Override
+  protected void reportSnapshot(Link link, Roaring64Bitmap snapshot) {
+    var bytes = serialize(snapshot);
+    link.send(
+        AgentPb.LinkRequest.newBuilder()
+            .setPresence(AgentPb.Presence.newBuilder().setReset(true).setSnapshot(bytes))
+            .build());
+    log.info("上报在线用户快照 count={} bytes={}", snapshot.getLongCardinality(), bytes.size());
+  }
+
+  @Override
+  protected void reportDelta(
+      Link link, LongIterator added, LongIterator removed, long generation) {
+    var builder = AgentPb.Presence.newBuilder();
+    var n = 0;
+    for (; n < MAX_IDS_PER_REQUEST && added.hasNext(); n++) {
+      builder.addOnlineUids(added.next());
+    }
+    for (; n < MAX_IDS_PER_REQUEST && removed.hasNext(); n++) {
+      builder.addOfflineUids(removed.next());
+    }
+    // 逻辑服务应用最后一个请求后确认本次上报
+    if (!added.hasNext() && !removed.hasNext()) {
+      builder.setGeneration(generation);
+    }
+    link.send(AgentPb.LinkRequest.newBuilder().setPresence(builder).build());
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.agent;
+
+import cool.houge.grpc.AgentPb;
+import cool.houge.ws.session.ClientProtocol;
+import cool.houge.ws.session.ProtocolListener;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 会话协议上报.
+ *
+ * <p>通过与每个逻辑服务之间的 Link 流上报当前节点是否托管了 protobuf 二进制协议的会话, 逻辑服务只为上报了 protobuf 会话的节点编码
+ * protobuf 格式的消息. 首个 protobuf 会话加入与最后一个 protobuf 会话移除时立即上报.
+ *
+ * <p>上报到达逻辑服务之前转发的消息没有 protobuf 格式的数据, 二进制协议的会话使用 JSON 文本帧接收.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class ProtocolReporter implements ProtocolListener {
+
+  private static final Logger log = LogManager.getLogger();
+
+  // 以下字段由 this 锁保护
+  private final List<StreamObserver<AgentPb.LinkRequest>> links = new ArrayList<>();
+  private int protobufSessions;
+
+  /**
+   * 在 Link 流上开始上报, 立即上报当前的会话协议.
+   *
+   * <p>调用方需要先在 Link 流上发送携带终端标识的首个请求.
+   *
+   * @param requestObserver Link 请求流
+   * @return 停止上报的操作, Link 流中断时需要调用
+   */
+  public synchronized Runnable open(StreamObserver<AgentPb.LinkRequest> requestObserver) {
+    links.add(requestObserver);
+    send(requestObserver, protobufSessions > 0);
+    return () -> close(requestObserver);
+  }
+
+  @Override
+  public void onSessionAdded(ClientProtocol protocol) {
+    if (protocol != ClientProtocol.PROTOBUF) {
+      return;
+    }
+    synchronized (this) {
+      if (protobufSessions++ == 0) {
+        links.forEach(link -> send(link, true));
+      }
+    }
+  }
+
+  @Override
+  public void onSessionRemoved(ClientProtocol protocol) {
+    if (protocol != ClientProtocol.PROTOBUF) {
+      return;
+    }
+    synchronized (this) {
+      if (--protobufSessions == 0) {
+        links.forEach(link -> send(link, false));
+      }
+    }
+  }
+
+  private synchronized void close(StreamObserver<AgentPb.LinkRequest> requestObserver) {
+    links.remove(requestObserver);
+  }
+
+  private void send(StreamObserver<AgentPb.LinkRequest> requestObserver, boolean protobuf) {
+    var request =
+        AgentPb.LinkRequest.newBuilder()
+            .setClientProtocols(AgentPb.ClientProtocols.newBuilder().setProtobuf(protobuf))
+            .build();
+    try {
+      // 同一 Link 流上的多个上报共享请求流, 发送时锁定请求流
+      synchronized (requestObserver) {
+        requestObserver.onNext(request);
+      }
+    } catch (RuntimeException e) {
+      // Link 流已中断, 重新连接后重新上报
+      log.debug("Link 上报会话协议失败", e);
+    }
+  }
+}
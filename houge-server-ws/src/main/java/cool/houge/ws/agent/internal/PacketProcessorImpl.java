@@ -16,13 +16,17 @@
 package cool.houge.ws.agent.internal;
 
 import io.netty.buffer.ByteBufAllocator;
+import java.util.ArrayList;
+import java.util.List;
 import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 import cool.houge.grpc.AgentPb;
+import cool.houge.ws.session.ClientProtocol;
+import cool.houge.ws.session.FanoutWriter;
+import cool.houge.ws.session.FrameDeflater;
 import cool.houge.ws.session.Session;
 import cool.houge.ws.session.SessionGroupManager;
 import cool.houge.ws.session.SessionManager;
@@ -35,60 +39,115 @@ public class PacketProcessorImpl implements PacketProcessor {
 
   private final SessionManager sessionManager;
   private final SessionGroupManager sessionGroupManager;
+  private final FanoutWriter fanoutWriter;
+  private final FrameDeflater frameDeflater;
+  private final ByteBufAllocator allocator;
 
   @Inject
   public PacketProcessorImpl(
-      SessionManager sessionManager, SessionGroupManager sessionGroupManager) {
+      SessionManager sessionManager,
+      SessionGroupManager sessionGroupManager,
+      FanoutWriter fanoutWriter,
+      FrameDeflater frameDeflater,
+      ByteBufAllocator allocator) {
     this.sessionManager = sessionManager;
     this.sessionGroupManager = sessionGroupManager;
+    this.fanoutWriter = fanoutWriter;
+    this.frameDeflater = frameDeflater;
+    this.allocator = allocator;
   }
 
   @Override
   public void process(AgentPb.PacketMixin packetMixin) {
+    // 会话查询都在内存中完成, 推送在调用线程中同步执行, 由调用方保证同一个 Link 流的推送顺序
+    deliver(packetMixin).subscribe(null, ex -> log.error("推送消息出现错误 {}", packetMixin, ex));
+  }
+
+  @Override
+  public void process(AgentPb.PacketMixinBatch batch) {
+    // 批量中的 Packet 在调用线程中按顺序推送, 保证会话接收消息的顺序
+    Flux.fromIterable(batch.getPacketMixinsList())
+        .concatMap(
+            packetMixin ->
+                deliver(packetMixin)
+                    .onErrorResume(
+                        ex -> {
+                          log.error("推送消息出现错误 {}", packetMixin, ex);
+                          return Mono.empty();
+                        }))
+        .subscribe();
+  }
+
+  private Mono<Void> deliver(AgentPb.PacketMixin packetMixin) {
+    Flux<Session> sessionFlux;
     switch (packetMixin.getTypeValue()) {
       case AgentPb.PacketMixinType.USER_VALUE:
-        {
-          if (packetMixin.getToCount() == 1) {
-            invoke(sessionManager.findByUid(packetMixin.getTo(0)), packetMixin);
-            return;
-          }
-          invoke(
-              Flux.fromIterable(packetMixin.getToList()).flatMap(sessionManager::findByUid),
-              packetMixin);
+        if (packetMixin.getToCount() == 1) {
+          sessionFlux = sessionManager.findByUid(packetMixin.getTo(0));
+        } else {
+          sessionFlux =
+              Flux.fromIterable(packetMixin.getToList()).flatMap(sessionManager::findByUid);
         }
         break;
       case AgentPb.PacketMixinType.GROUP_VALUE:
-        {
-          if (packetMixin.getToCount() == 1) {
-            invoke(sessionGroupManager.findByGroupId(packetMixin.getTo(0)), packetMixin);
-            return;
-          }
-
-          invoke(
+        if (packetMixin.getToCount() == 1) {
+          sessionFlux = sessionGroupManager.findByGroupId(packetMixin.getTo(0));
+        } else {
+          sessionFlux =
               Flux.fromIterable(packetMixin.getToList())
-                  .flatMap(sessionGroupManager::findByGroupId),
-              packetMixin);
-          break;
+                  .flatMap(sessionGroupManager::findByGroupId);
         }
+        break;
       case AgentPb.PacketMixinType.ALL_VALUE:
-        invoke(sessionManager.all(), packetMixin);
+        sessionFlux = sessionManager.all();
         break;
       default:
         log.error("不支持的消息转发类型 {}", packetMixin);
+        return Mono.empty();
     }
+
+    // 先收集接收消息的会话, 帧只编码一次并由所有会话共享
+    return sessionFlux
+        .collectList()
+        .filter(sessions -> !sessions.isEmpty())
+        .doOnNext(
+            sessions -> {
+              write(sessions, packetMixin);
+              log.debug("已向 {} 个会话推送消息 {}", sessions.size(), packetMixin);
+            })
+        .then();
   }
 
-  private void invoke(Flux<Session> sessionFlux, AgentPb.PacketMixin packetMixin) {
-    var src = packetMixin.getDataBytes().asReadOnlyByteBuffer();
-    var byteBuf = ByteBufAllocator.DEFAULT.buffer(src.capacity());
-    byteBuf.writeBytes(src);
-    var byteBufMono = Mono.fromSupplier(() -> byteBuf.retainedDuplicate());
-    sessionFlux
-        .flatMap(session -> session.send(byteBufMono).thenReturn(session))
-        .doOnNext(session -> log.debug("已向用户 {} 推送消息 {}", session, packetMixin))
-        .onErrorContinue((ex, o) -> log.error("向 {} 发送消息出现错误", o, ex))
-        .doFinally(unused -> byteBuf.release())
-        .subscribeOn(Schedulers.parallel())
-        .subscribe();
+  private void write(List<Session> sessions, AgentPb.PacketMixin packetMixin) {
+    // 按客户端协议与是否协商压缩分组, 每组的帧只编码一次
+    // 逻辑服务未提供 protobuf 数据时二进制协议的会话也使用 JSON 文本帧
+    var hasProto = !packetMixin.getProtoBytes().isEmpty();
+    @SuppressWarnings("unchecked")
+    var groups = (List<Session>[]) new List[4];
+    for (Session session : sessions) {
+      var protocol = hasProto ? session.protocol() : ClientProtocol.JSON;
+      var queue = session.outboundQueue();
+      var deflate = queue != null && queue.isDeflate();
+      var key = protocol.ordinal() << 1 | (deflate ? 1 : 0);
+      if (groups[key] == null) {
+        groups[key] = new ArrayList<>();
+      }
+      groups[key].add(session);
+    }
+
+    for (int key = 0; key < groups.length; key++) {
+      if (groups[key] == null) {
+        continue;
+      }
+      var protocol = ClientProtocol.values()[key >> 1];
+      var data =
+          protocol == ClientProtocol.PROTOBUF
+              ? packetMixin.getProtoBytes()
+              : packetMixin.getDataBytes();
+      // 共享帧使用与连接相同的分配器
+      var frame =
+          frameDeflater.frame(allocator, protocol, (key & 1) != 0, data.asReadOnlyByteBuffer());
+      fanoutWriter.write(groups[key], frame);
+    }
   }
 }
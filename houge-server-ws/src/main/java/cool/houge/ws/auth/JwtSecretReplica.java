@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.auth;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTDecodeException;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import cool.houge.grpc.AuthGrpc.AuthStub;
+import cool.houge.grpc.AuthPb.JwtSecret;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsRequest;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsResponse;
+import cool.houge.ws.LocalAuthConfig;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * 逻辑服务 JWT 密钥的本地副本.
+ *
+ * <p>通过 {@code Auth.WatchJwtSecrets} 流式接口订阅密钥, 逻辑服务在订阅建立时与密钥变更后推送全量密钥. WS 服务使用本地密钥校验访问令牌,
+ * 本地不存在令牌 kid 对应的密钥时由调用方回退至远程认证.
+ *
+ * <p>订阅得到的是 HMAC 原始密钥, 逻辑服务默认不开放订阅({@code jwt-secret-watch.enabled}), 未开放时返回 {@code
+ * PERMISSION_DENIED}, 本地没有密钥, 所有令牌均使用远程认证.
+ *
+ * <p>密钥变更不是实时推送的: 逻辑服务按 {@code jwt-secret-watch.refresh-interval}(默认 30s) 周期从数据库重新加载密钥, 发现变更后才推送.
+ * 因此删除或轮换的 kid 在 WS 服务本地最长仍有效 {@code refresh-interval}; 订阅中断期间本地保留最近一次的密钥, 撤销窗口再延长至重新订阅成功为止,
+ * 至少为 {@code local-auth.resubscribe-delay}. 需要立即吊销令牌的场景不应开启本地认证.
+ *
+ * <p>支持的算法与 {@code JwsAuthService} 保持一致: HS256、HS512.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class JwtSecretReplica {
+
+  private static final Logger log = LogManager.getLogger();
+  /** 与 {@code JwsAuthService} 相同的时间校验宽限秒数. */
+  private static final long ACCEPT_LEEWAY = 90;
+
+  private static final Counter LOCAL_HITS =
+      Metrics.counter("tethys.ws.auth.local", "result", "hit");
+  private static final Counter LOCAL_MISSES =
+      Metrics.counter("tethys.ws.auth.local", "result", "miss");
+
+  private final LocalAuthConfig config;
+  private final AuthStub authStub;
+
+  // kid -> 令牌校验器, 每次推送整体替换
+  private volatile Map<String, JWTVerifier> verifiers = Map.of();
+  private volatile Context.CancellableContext watchContext;
+  private volatile boolean stopped;
+  private volatile boolean denied;
+
+  /**
+   * 构造对象.
+   *
+   * @param config 本地认证配置
+   * @param authStub 认证服务 gRPC 存根
+   */
+  @Inject
+  public JwtSecretReplica(LocalAuthConfig config, AuthStub authStub) {
+    this.config = config;
+    this.authStub = authStub;
+  }
+
+  /** 开始订阅逻辑服务的 JWT 密钥. */
+  public void start() {
+    if (!config.isEnabled()) {
+      log.info("未开启本地令牌认证");
+      return;
+    }
+    watch();
+  }
+
+  /** 停止订阅. */
+  public void stop() {
+    stopped = true;
+    var ctx = this.watchContext;
+    if (ctx != null) {
+      ctx.cancel(null);
+    }
+  }
+
+  /**
+   * 校验访问令牌.
+   *
+   * @param token 访问令牌
+   * @return 用户ID, 本地没有令牌 kid 对应的密钥时返回 {@code null}
+   * @throws JWTVerificationException 访问令牌不合法
+   */
+  public Long verify(String token) throws JWTVerificationException {
+    var verifiers = this.verifiers;
+    if (verifiers.isEmpty()) {
+      return null;
+    }
+    var decoded = JWT.decode(token);
+    var verifier = verifiers.get(decoded.getKeyId());
+    if (verifier == null) {
+      LOCAL_MISSES.increment();
+      return null;
+    }
+    verifier.verify(decoded);
+    LOCAL_HITS.increment();
+    try {
+      return Long.parseLong(decoded.getId());
+    } catch (NumberFormatException e) {
+      throw new JWTDecodeException("非法的 jti " + decoded.getId());
+    }
+  }
+
+  private void watch() {
+    if (stopped) {
+      return;
+    }
+    var ctx = Context.current().withCancellation();
+    this.watchContext = ctx;
+    ctx.run(
+        () ->
+            authStub.watchJwtSecrets(
+                WatchJwtSecretsRequest.getDefaultInstance(),
+                new StreamObserver<>() {
+                  @Override
+                  public void onNext(WatchJwtSecretsResponse value) {
+                    denied = false;
+                    update(value);
+                  }
+
+                  @Override
+                  public void onError(Throwable t) {
+                    if (Status.fromThrowable(t).getCode() == Status.Code.PERMISSION_DENIED) {
+                      // 逻辑服务未开启密钥订阅, 仅首次输出警告, 开启后重新订阅时恢复
+                      if (!denied) {
+                        denied = true;
+                        log.warn("逻辑服务未开启 JWT 密钥订阅, 使用远程认证: {}", t.getMessage());
+                      }
+                    } else {
+                      log.warn("JWT 密钥订阅中断, {} 后重新订阅", config.getResubscribeDelay(), t);
+                    }
+                    resubscribe();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    log.warn("JWT 密钥订阅结束, {} 后重新订阅", config.getResubscribeDelay());
+                    resubscribe();
+                  }
+                }));
+  }
+
+  private void resubscribe() {
+    if (stopped) {
+      return;
+    }
+    Schedulers.parallel()
+        .schedule(this::watch, config.getResubscribeDelay().toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void update(WatchJwtSecretsResponse response) {
+    var map = new HashMap<String, JWTVerifier>();
+    for (JwtSecret secret : response.getSecretList()) {
+      var algorithm = toAlgorithm(secret);
+      if (algorithm == null) {
+        log.warn("不支持的 JWT 算法 kid={} algorithm={}", secret.getId(), secret.getAlgorithm());
+        continue;
+      }
+      map.put(secret.getId(), JWT.require(algorithm).acceptLeeway(ACCEPT_LEEWAY).build());
+    }
+    this.verifiers = Map.copyOf(map);
+    log.info("已更新本地 JWT 密钥 kids={}", map.keySet());
+  }
+
+  private Algorithm toAlgorithm(JwtSecret secret) {
+    var key = secret.getSecretKey().toByteArray();
+    if ("HS256".equals(secret.getAlgorithm())) {
+      return Algorithm.HMAC256(key);
+    }
+    if ("HS512".equals(secret.getAlgorithm())) {
+      return Algorithm.HMAC512(key);
+    }
+    return null;
+  }
+}
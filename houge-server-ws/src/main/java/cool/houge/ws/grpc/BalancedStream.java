@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import io.grpc.CallOptions;
+import io.grpc.Status;
+
+/**
+ * 由逻辑服务负载均衡器管理的长连接流.
+ *
+ * <p>通过 {@link #KEY} 放入流式调用的 {@link CallOptions}, 负载均衡器将流分配到已建立流最少的后端, 并在以下情况下通知调用方:
+ *
+ * <ul>
+ *   <li>流所在的后端被驱逐、移除或不再可用, 或新增可用后端后流所在的后端承载的流超过平均数, 调用方应重新建立该流
+ *   <li>可选择的后端数量, 调用方应保证流的数量不少于后端的数量
+ * </ul>
+ *
+ * <p>流的生命周期与请求耗时无关, 调用方通过 {@link #requestStarted()} 与 {@link #requestCompleted(Status.Code, long)}
+ * 上报流中每个请求的耗时, 与一元调用一同参与慢后端驱逐的统计.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class BalancedStream {
+
+  /** {@link CallOptions} 中的键. */
+  public static final CallOptions.Key<BalancedStream> KEY =
+      CallOptions.Key.create("houge-balanced-stream");
+
+  private final Listener listener;
+  private volatile LogicLoadBalancer.Backend backend;
+
+  /**
+   * 构造对象.
+   *
+   * @param listener 负载均衡事件监听器
+   */
+  public BalancedStream(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** 流中发出一个请求. */
+  public void requestStarted() {
+    var b = backend;
+    if (b != null) {
+      b.outstanding.incrementAndGet();
+    }
+  }
+
+  /**
+   * 流中的一个请求已完成.
+   *
+   * @param code 请求的响应状态
+   * @param latencyNanos 请求耗时
+   */
+  public void requestCompleted(Status.Code code, long latencyNanos) {
+    var b = backend;
+    if (b != null) {
+      b.outstanding.decrementAndGet();
+      b.record(code, latencyNanos);
+    }
+  }
+
+  /** 流已结束, 不再占用后端. */
+  public synchronized void closed() {
+    if (backend != null) {
+      backend.streams.remove(this);
+    }
+  }
+
+  /** 负载均衡器为流选择了后端. 流在建立前可能被多次选择, 以最后一次为准. */
+  synchronized void bind(LogicLoadBalancer.Backend newBackend, int backends) {
+    if (backend != null) {
+      backend.streams.remove(this);
+    }
+    backend = newBackend;
+    newBackend.streams.add(this);
+    listener.onBackendsChanged(backends);
+  }
+
+  /** 可选择的后端数量变化. */
+  void backendsChanged(int backends) {
+    listener.onBackendsChanged(backends);
+  }
+
+  /** 流需要迁移到其它后端, 调用前已从后端移除. 流中未完成的请求仍计入原后端. */
+  void rebalance() {
+    listener.onRebalance();
+  }
+
+  /** 负载均衡事件监听器, 回调中不应阻塞. */
+  public interface Listener {
+
+    /** 应关闭当前流并重新建立, 新的流由负载均衡器重新选择后端. */
+    void onRebalance();
+
+    /**
+     * 可选择的后端数量.
+     *
+     * @param backends 当前可选择的后端数量
+     */
+    void onBackendsChanged(int backends);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 慢后端驱逐配置.
+ *
+ * <p>每个统计周期计算各个后端一元调用的平均耗时, 平均耗时超过所有后端中位数指定倍数的后端将被暂时驱逐.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class EjectionConfig {
+
+  /** 是否开启慢后端驱逐. */
+  private boolean enabled;
+  /** 统计周期. */
+  private Duration interval;
+  /** 后端在统计周期内至少完成的请求数, 请求数不足的后端不参与计算. */
+  private int minRequests;
+  /** 平均耗时超过中位数的倍数时驱逐. */
+  private double latencyMultiplier;
+  /** 基础驱逐时长, 后端每多被驱逐一次时长增加一倍基础驱逐时长. */
+  private Duration baseEjectionTime;
+  /** 同时被驱逐的后端占所有后端的最大百分比. */
+  private int maxEjectionPercent;
+}
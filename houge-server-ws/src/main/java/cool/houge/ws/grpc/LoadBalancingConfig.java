@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 访问逻辑服务的客户端负载均衡配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class LoadBalancingConfig {
+
+  /** 负载均衡策略. */
+  private LoadBalancingPolicy policy;
+  /** 是否开启 gRPC 健康检查, 未处于 SERVING 状态的后端不会被选中. */
+  private boolean healthCheck;
+  /** 慢后端驱逐配置. */
+  private EjectionConfig ejection;
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+/**
+ * 负载均衡策略.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public enum LoadBalancingPolicy {
+  /** 使用第一个可用的后端, gRPC 默认策略. */
+  PICK_FIRST,
+  /** 轮询所有可用的后端. */
+  ROUND_ROBIN,
+  /** 随机选择两个可用的后端, 使用未完成请求数较少的后端. */
+  LEAST_OUTSTANDING,
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import cool.houge.ws.LogicServiceConfig;
+import io.grpc.LoadBalancerRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.NameResolverRegistry;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 访问逻辑服务的 gRPC 通道工厂.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class LogicChannels {
+
+  private static final Logger log = LogManager.getLogger();
+
+  static {
+    NameResolverRegistry.getDefaultRegistry().register(new StaticNameResolverProvider());
+    LoadBalancerRegistry.getDefaultRegistry().register(new LogicLoadBalancerProvider());
+  }
+
+  private LogicChannels() {}
+
+  /**
+   * 按逻辑服务配置创建 gRPC 通道.
+   *
+   * @param config 逻辑服务配置
+   * @return gRPC 通道
+   */
+  public static ManagedChannel newChannel(LogicServiceConfig config) {
+    var lb = config.getLoadBalancing();
+    var builder =
+        ManagedChannelBuilder.forTarget(config.getGrpcTarget()).enableRetry().usePlaintext();
+    if (lb.getPolicy() == LoadBalancingPolicy.PICK_FIRST) {
+      if (lb.isHealthCheck()) {
+        log.warn("PICK_FIRST 负载均衡策略不支持健康检查, 忽略 health-check 配置");
+      }
+      builder.defaultLoadBalancingPolicy("pick_first");
+    } else {
+      // 忽略名称解析器返回的服务配置, 保证负载均衡与应用配置一致
+      builder.defaultServiceConfig(serviceConfig(lb)).disableServiceConfigLookUp();
+    }
+    log.info("逻辑服务 gRPC 通道 target={} loadBalancing={}", config.getGrpcTarget(), lb);
+    return builder.build();
+  }
+
+  private static Map<String, ?> serviceConfig(LoadBalancingConfig lb) {
+    var ejection = lb.getEjection();
+    Map<String, ?> ejectionConfig =
+        Map.of(
+            "enabled", ejection.isEnabled(),
+            "intervalMillis", (double) ejection.getInterval().toMillis(),
+            "minRequests", (double) ejection.getMinRequests(),
+            "latencyMultiplier", ejection.getLatencyMultiplier(),
+            "baseEjectionTimeMillis", (double) ejection.getBaseEjectionTime().toMillis(),
+            "maxEjectionPercent", (double) ejection.getMaxEjectionPercent());
+    Map<String, ?> policyConfig =
+        Map.of("policy", lb.getPolicy().name(), "ejection", ejectionConfig);
+    var loadBalancingConfig =
+        List.of(Map.of(LogicLoadBalancerProvider.POLICY_NAME, policyConfig));
+    if (!lb.isHealthCheck()) {
+      return Map.of("loadBalancingConfig", loadBalancingConfig);
+    }
+    // 空的服务名称表示检查逻辑服务整体的健康状态
+    return Map.of(
+        "loadBalancingConfig",
+        loadBalancingConfig,
+        "healthCheckConfig",
+        Map.of("serviceName", ""));
+  }
+}
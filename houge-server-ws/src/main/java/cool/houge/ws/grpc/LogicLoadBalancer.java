@@ -0,0 +1,507 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import static io.grpc.ConnectivityState.CONNECTING;
+import static io.grpc.ConnectivityState.IDLE;
+import static io.grpc.ConnectivityState.READY;
+import static io.grpc.ConnectivityState.TRANSIENT_FAILURE;
+
+import com.google.common.base.Ticker;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.Status;
+import io.grpc.SynchronizationContext.ScheduledHandle;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 逻辑服务负载均衡器.
+ *
+ * <p>为每个后端地址建立独立的子通道, 在 READY 状态的后端中按策略选择:
+ *
+ * <ul>
+ *   <li>{@link LoadBalancingPolicy#ROUND_ROBIN} 轮询
+ *   <li>{@link LoadBalancingPolicy#LEAST_OUTSTANDING} 随机选择两个后端, 使用未完成一元调用较少的后端
+ * </ul>
+ *
+ * <p>开启慢后端驱逐后周期性统计各个后端一元调用的平均耗时, 平均耗时明显高于其它后端的后端在驱逐期内不会被选中. 流式调用的生命周期与请求耗时无关, 不参与统计,
+ * 携带 {@link BalancedStream} 的流由调用方上报流中每个请求的耗时. 以 {@code UNAVAILABLE}、{@code INTERNAL}、{@code UNKNOWN} 或
+ * {@code DATA_LOSS} 结束的调用记为失败, 不计入耗时, 统计周期内多数调用失败的后端视为最慢的后端; 客户端取消的调用不参与统计.
+ *
+ * <p>携带 {@link BalancedStream} 的流分配到已建立流最少的后端. 可选择的后端变化时, 被驱逐、移除或不再可用的后端上的流, 以及承载的流超过平均数的后端上多出的流,
+ * 通知调用方重新建立, 长连接的流不会固定在最初选择的后端上.
+ *
+ * <p>除选择器外的所有方法都在 gRPC 的 {@link io.grpc.SynchronizationContext} 中执行.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class LogicLoadBalancer extends LoadBalancer {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final Counter EJECTIONS = Metrics.counter("tethys.ws.logic.lb.ejections");
+  private static final Counter STREAM_REBALANCES =
+      Metrics.counter("tethys.ws.logic.lb.stream.rebalances");
+
+  private final Helper helper;
+  private final Ticker ticker;
+  private final Map<EquivalentAddressGroup, Backend> backends = new HashMap<>();
+  private Config config = Config.DEFAULT;
+  private ScheduledHandle ejectionTimer;
+  private ConnectivityState currentState;
+  // 当前选择器中可选择的后端
+  private List<Backend> pickedBackends = List.of();
+
+  LogicLoadBalancer(Helper helper) {
+    this(helper, Ticker.systemTicker());
+  }
+
+  LogicLoadBalancer(Helper helper, Ticker ticker) {
+    this.helper = helper;
+    this.ticker = ticker;
+  }
+
+  @Override
+  public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
+    var newConfig = (Config) resolvedAddresses.getLoadBalancingPolicyConfig();
+    this.config = newConfig == null ? Config.DEFAULT : newConfig;
+
+    var latest = new HashSet<EquivalentAddressGroup>();
+    for (EquivalentAddressGroup eag : resolvedAddresses.getAddresses()) {
+      // 以去除属性后的地址作为后端的标识
+      var key = new EquivalentAddressGroup(eag.getAddresses());
+      latest.add(key);
+      if (backends.containsKey(key)) {
+        continue;
+      }
+      var subchannel =
+          helper.createSubchannel(CreateSubchannelArgs.newBuilder().setAddresses(eag).build());
+      var backend = new Backend(key, subchannel, ticker);
+      backends.put(key, backend);
+      subchannel.start(stateInfo -> processSubchannelState(backend, stateInfo));
+      subchannel.requestConnection();
+      log.info("新增逻辑服务后端 {}", key);
+    }
+    for (var it = backends.values().iterator(); it.hasNext(); ) {
+      var backend = it.next();
+      if (!latest.contains(backend.key)) {
+        it.remove();
+        backend.subchannel.shutdown();
+        log.info("移除逻辑服务后端 {}", backend.key);
+      }
+    }
+
+    scheduleEjection();
+    updateBalancingState();
+  }
+
+  @Override
+  public void handleNameResolutionError(Status error) {
+    if (currentState != READY) {
+      currentState = TRANSIENT_FAILURE;
+      helper.updateBalancingState(TRANSIENT_FAILURE, new ErrorPicker(error));
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    if (ejectionTimer != null) {
+      ejectionTimer.cancel();
+      ejectionTimer = null;
+    }
+    for (Backend backend : backends.values()) {
+      backend.subchannel.shutdown();
+    }
+    backends.clear();
+  }
+
+  private void processSubchannelState(Backend backend, ConnectivityStateInfo stateInfo) {
+    if (backends.get(backend.key) != backend) {
+      return;
+    }
+    if (stateInfo.getState() == IDLE) {
+      backend.subchannel.requestConnection();
+    }
+    backend.stateInfo = stateInfo;
+    updateBalancingState();
+  }
+
+  private void updateBalancingState() {
+    var now = ticker.read();
+    var ready = new ArrayList<Backend>();
+    var active = new ArrayList<Backend>();
+    var connecting = false;
+    Status failure = null;
+    for (Backend backend : backends.values()) {
+      var state = backend.stateInfo.getState();
+      if (state == READY) {
+        ready.add(backend);
+        if (!backend.isEjected(now)) {
+          active.add(backend);
+        }
+      } else if (state == CONNECTING || state == IDLE) {
+        connecting = true;
+      } else if (state == TRANSIENT_FAILURE) {
+        failure = backend.stateInfo.getStatus();
+      }
+    }
+
+    if (!ready.isEmpty()) {
+      // 所有可用后端都被驱逐时忽略驱逐状态
+      var picked = active.isEmpty() ? ready : active;
+      currentState = READY;
+      helper.updateBalancingState(READY, new ReadyPicker(picked, config.policy));
+      rebalanceStreams(picked);
+    } else if (connecting || failure == null) {
+      currentState = CONNECTING;
+      helper.updateBalancingState(CONNECTING, new ErrorPicker(null));
+      rebalanceStreams(List.of());
+    } else {
+      currentState = TRANSIENT_FAILURE;
+      helper.updateBalancingState(TRANSIENT_FAILURE, new ErrorPicker(failure));
+      rebalanceStreams(List.of());
+    }
+  }
+
+  private void rebalanceStreams(List<Backend> picked) {
+    var previous = pickedBackends;
+    pickedBackends = picked;
+    if (previous.size() == picked.size() && previous.containsAll(picked)) {
+      return;
+    }
+    // 不再可选择的后端上的流全部迁移
+    for (Backend backend : previous) {
+      if (!picked.contains(backend)) {
+        backend.rebalanceStreams(0);
+      }
+    }
+    if (picked.isEmpty()) {
+      return;
+    }
+    // 超过平均数的流迁移到新增的后端
+    var total = 0;
+    for (Backend backend : picked) {
+      total += backend.streams.size();
+    }
+    var fair = (total + picked.size() - 1) / picked.size();
+    for (Backend backend : picked) {
+      backend.rebalanceStreams(fair);
+    }
+    for (Backend backend : picked) {
+      for (BalancedStream stream : backend.streams) {
+        stream.backendsChanged(picked.size());
+      }
+    }
+  }
+
+  private void scheduleEjection() {
+    if (config.ejection == null) {
+      if (ejectionTimer != null) {
+        ejectionTimer.cancel();
+        ejectionTimer = null;
+      }
+      return;
+    }
+    if (ejectionTimer == null || !ejectionTimer.isPending()) {
+      ejectionTimer =
+          helper
+              .getSynchronizationContext()
+              .schedule(
+                  this::detectSlowBackends,
+                  config.ejection.intervalNanos,
+                  TimeUnit.NANOSECONDS,
+                  helper.getScheduledExecutorService());
+    }
+  }
+
+  void detectSlowBackends() {
+    var ejection = config.ejection;
+    if (ejection == null) {
+      return;
+    }
+    var now = ticker.read();
+    var changed = false;
+    var ejected = 0;
+    var candidates = new ArrayList<Backend>();
+    for (Backend backend : backends.values()) {
+      var succeeded = backend.completed.sumThenReset();
+      var latency = backend.latencyNanos.sumThenReset();
+      var failed = backend.failed.sumThenReset();
+      var count = succeeded + failed;
+      if (backend.ejectedUntil != 0) {
+        if (backend.isEjected(now)) {
+          ejected++;
+          continue;
+        }
+        backend.ejectedUntil = 0;
+        changed = true;
+        log.info("逻辑服务后端驱逐结束 {}", backend.key);
+      }
+      if (count >= ejection.minRequests && backend.stateInfo.getState() == READY) {
+        // 快速失败的后端耗时较低, 多数调用失败时视为最慢的后端, 避免其吸引更多的请求
+        backend.meanLatencyNanos = failed * 2 > count ? Long.MAX_VALUE : latency / succeeded;
+        candidates.add(backend);
+      }
+    }
+
+    if (candidates.size() > 1) {
+      candidates.sort(Comparator.comparingLong(b -> b.meanLatencyNanos));
+      // 使用较低的中位数, 两个后端时与较快的后端比较
+      var median = candidates.get((candidates.size() - 1) / 2).meanLatencyNanos;
+      var threshold = median * ejection.latencyMultiplier;
+      var maxEjected = backends.size() * ejection.maxEjectionPercent / 100;
+      for (int i = candidates.size() - 1; i >= 0; i--) {
+        var backend = candidates.get(i);
+        if (backend.meanLatencyNanos <= threshold) {
+          // 表现正常的后端逐步恢复驱逐倍数
+          backend.ejectionCount = Math.max(backend.ejectionCount - 1, 0);
+          continue;
+        }
+        if (ejected >= maxEjected) {
+          continue;
+        }
+        backend.ejectionCount++;
+        backend.ejectedUntil = now + ejection.baseEjectionTimeNanos * backend.ejectionCount;
+        ejected++;
+        changed = true;
+        EJECTIONS.increment();
+        log.warn(
+            "驱逐慢逻辑服务后端 {} meanLatency={}us medianLatency={}us ejectionCount={}",
+            backend.key,
+            TimeUnit.NANOSECONDS.toMicros(backend.meanLatencyNanos),
+            TimeUnit.NANOSECONDS.toMicros(median),
+            backend.ejectionCount);
+      }
+    }
+
+    ejectionTimer = null;
+    scheduleEjection();
+    if (changed) {
+      updateBalancingState();
+    }
+  }
+
+  /** 负载均衡配置. */
+  static final class Config {
+
+    static final Config DEFAULT = new Config(LoadBalancingPolicy.ROUND_ROBIN, null);
+
+    final LoadBalancingPolicy policy;
+    final Ejection ejection;
+
+    Config(LoadBalancingPolicy policy, Ejection ejection) {
+      this.policy = policy;
+      this.ejection = ejection;
+    }
+  }
+
+  /** 慢后端驱逐配置. */
+  static final class Ejection {
+
+    final long intervalNanos;
+    final int minRequests;
+    final double latencyMultiplier;
+    final long baseEjectionTimeNanos;
+    final int maxEjectionPercent;
+
+    Ejection(
+        long intervalNanos,
+        int minRequests,
+        double latencyMultiplier,
+        long baseEjectionTimeNanos,
+        int maxEjectionPercent) {
+      this.intervalNanos = intervalNanos;
+      this.minRequests = Math.max(minRequests, 1);
+      this.latencyMultiplier = latencyMultiplier;
+      this.baseEjectionTimeNanos = baseEjectionTimeNanos;
+      this.maxEjectionPercent = maxEjectionPercent;
+    }
+  }
+
+  /** 后端状态. */
+  static final class Backend {
+
+    final EquivalentAddressGroup key;
+    final Subchannel subchannel;
+    // 未完成的一元调用数
+    final AtomicInteger outstanding = new AtomicInteger();
+    // 统计周期内成功完成的一元调用数与总耗时
+    final LongAdder completed = new LongAdder();
+    final LongAdder latencyNanos = new LongAdder();
+    // 统计周期内失败的一元调用数
+    final LongAdder failed = new LongAdder();
+    final ClientStreamTracer.Factory tracerFactory;
+    // 分配到当前后端的 BalancedStream
+    final Set<BalancedStream> streams = ConcurrentHashMap.newKeySet();
+    // 以下字段仅在 SynchronizationContext 中访问
+    ConnectivityStateInfo stateInfo = ConnectivityStateInfo.forNonError(IDLE);
+    long meanLatencyNanos;
+    int ejectionCount;
+    long ejectedUntil;
+
+    Backend(EquivalentAddressGroup key, Subchannel subchannel, Ticker ticker) {
+      this.key = key;
+      this.subchannel = subchannel;
+      this.tracerFactory =
+          new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(
+                ClientStreamTracer.StreamInfo info, Metadata headers) {
+              var startTime = ticker.read();
+              outstanding.incrementAndGet();
+              return new ClientStreamTracer() {
+                @Override
+                public void streamClosed(Status status) {
+                  outstanding.decrementAndGet();
+                  record(status.getCode(), ticker.read() - startTime);
+                }
+              };
+            }
+          };
+    }
+
+    void record(Status.Code code, long latency) {
+      switch (code) {
+        case CANCELLED:
+          // 客户端取消的调用不反映后端的耗时
+          break;
+        case UNAVAILABLE:
+        case INTERNAL:
+        case UNKNOWN:
+        case DATA_LOSS:
+          failed.increment();
+          break;
+        default:
+          latencyNanos.add(latency);
+          completed.increment();
+      }
+    }
+
+    // 保留 keep 个流, 通知其余的流迁移
+    void rebalanceStreams(int keep) {
+      var excess = streams.size() - keep;
+      for (var it = streams.iterator(); excess > 0 && it.hasNext(); excess--) {
+        var stream = it.next();
+        it.remove();
+        STREAM_REBALANCES.increment();
+        stream.rebalance();
+      }
+    }
+
+    boolean isEjected(long now) {
+      return ejectedUntil != 0 && ejectedUntil - now > 0;
+    }
+  }
+
+  /** 在可用后端中选择. */
+  private static final class ReadyPicker extends SubchannelPicker {
+
+    private final Backend[] backends;
+    private final LoadBalancingPolicy policy;
+    private final AtomicInteger index = new AtomicInteger();
+
+    ReadyPicker(List<Backend> backends, LoadBalancingPolicy policy) {
+      this.backends = backends.toArray(new Backend[0]);
+      this.policy = policy;
+    }
+
+    @Override
+    public PickResult pickSubchannel(PickSubchannelArgs args) {
+      if (args.getMethodDescriptor().getType() != MethodType.UNARY) {
+        var stream = args.getCallOptions().getOption(BalancedStream.KEY);
+        if (stream != null) {
+          var backend = pickFewestStreams();
+          stream.bind(backend, backends.length);
+          return PickResult.withSubchannel(backend.subchannel);
+        }
+        return PickResult.withSubchannel(pick().subchannel);
+      }
+      var backend = pick();
+      return PickResult.withSubchannel(backend.subchannel, backend.tracerFactory);
+    }
+
+    private Backend pick() {
+      return policy == LoadBalancingPolicy.LEAST_OUTSTANDING ? pickLeastOutstanding() : pickNext();
+    }
+
+    private Backend pickFewestStreams() {
+      var n = backends.length;
+      var start = Math.floorMod(index.getAndIncrement(), n);
+      var picked = backends[start];
+      for (int i = 1; i < n; i++) {
+        var backend = backends[(start + i) % n];
+        if (backend.streams.size() < picked.streams.size()) {
+          picked = backend;
+        }
+      }
+      return picked;
+    }
+
+    private Backend pickNext() {
+      return backends[Math.floorMod(index.getAndIncrement(), backends.length)];
+    }
+
+    private Backend pickLeastOutstanding() {
+      var n = backends.length;
+      if (n == 1) {
+        return backends[0];
+      }
+      var random = ThreadLocalRandom.current();
+      var i = random.nextInt(n);
+      var j = random.nextInt(n - 1);
+      if (j >= i) {
+        j++;
+      }
+      var a = backends[i];
+      var b = backends[j];
+      return a.outstanding.get() <= b.outstanding.get() ? a : b;
+    }
+  }
+
+  /** 没有可用后端时使用的选择器. */
+  private static final class ErrorPicker extends SubchannelPicker {
+
+    private final Status status;
+
+    ErrorPicker(Status status) {
+      this.status = status;
+    }
+
+    @Override
+    public PickResult pickSubchannel(PickSubchannelArgs args) {
+      return status == null ? PickResult.withNoResult() : PickResult.withError(status);
+    }
+  }
+}
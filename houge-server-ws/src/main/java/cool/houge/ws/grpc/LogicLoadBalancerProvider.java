@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.NameResolver.ConfigOrError;
+import io.grpc.Status;
+import io.grpc.services.HealthCheckingLoadBalancerUtil;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逻辑服务负载均衡器的提供者.
+ *
+ * <p>负载均衡器由 gRPC 健康检查包装, 服务配置中包含 {@code healthCheckConfig} 时后端的健康状态会参与后端选择.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class LogicLoadBalancerProvider extends LoadBalancerProvider {
+
+  /** 负载均衡策略名称. */
+  public static final String POLICY_NAME = "houge_logic";
+
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  public int getPriority() {
+    return 5;
+  }
+
+  @Override
+  public String getPolicyName() {
+    return POLICY_NAME;
+  }
+
+  @Override
+  public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+    return HealthCheckingLoadBalancerUtil.newHealthCheckingLoadBalancer(
+        new LoadBalancer.Factory() {
+          @Override
+          public LoadBalancer newLoadBalancer(LoadBalancer.Helper h) {
+            return new LogicLoadBalancer(h);
+          }
+        },
+        helper);
+  }
+
+  @Override
+  public ConfigOrError parseLoadBalancingPolicyConfig(Map<String, ?> rawConfig) {
+    try {
+      var policy = LoadBalancingPolicy.valueOf((String) rawConfig.get("policy"));
+      @SuppressWarnings("unchecked")
+      var ejection = (Map<String, ?>) rawConfig.get("ejection");
+      if (ejection == null || !Boolean.TRUE.equals(ejection.get("enabled"))) {
+        return ConfigOrError.fromConfig(new LogicLoadBalancer.Config(policy, null));
+      }
+      return ConfigOrError.fromConfig(
+          new LogicLoadBalancer.Config(
+              policy,
+              new LogicLoadBalancer.Ejection(
+                  TimeUnit.MILLISECONDS.toNanos(number(ejection, "intervalMillis").longValue()),
+                  number(ejection, "minRequests").intValue(),
+                  number(ejection, "latencyMultiplier").doubleValue(),
+                  TimeUnit.MILLISECONDS.toNanos(
+                      number(ejection, "baseEjectionTimeMillis").longValue()),
+                  number(ejection, "maxEjectionPercent").intValue())));
+    } catch (RuntimeException e) {
+      return ConfigOrError.fromError(
+          Status.INVALID_ARGUMENT
+              .withDescription("非法的负载均衡配置 " + rawConfig)
+              .withCause(e));
+    }
+  }
+
+  private static Number number(Map<String, ?> map, String key) {
+    var v = map.get(key);
+    if (!(v instanceof Number)) {
+      throw new IllegalArgumentException("缺少配置项 " + key);
+    }
+    return (Number) v;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import com.google.common.base.Splitter;
+import com.google.common.net.HostAndPort;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+
+/**
+ * 静态地址列表的名称解析器.
+ *
+ * <p>目标地址格式为 {@code static:///host1:port1,host2:port2}, 每个地址作为一个独立的后端参与负载均衡.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class StaticNameResolverProvider extends NameResolverProvider {
+
+  /** 静态地址列表的 scheme. */
+  public static final String SCHEME = "static";
+
+  @Override
+  protected boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  protected int priority() {
+    // 仅处理 static scheme, 不影响默认的 DNS 解析器
+    return 5;
+  }
+
+  @Override
+  public String getDefaultScheme() {
+    return SCHEME;
+  }
+
+  @Override
+  public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+    if (!SCHEME.equals(targetUri.getScheme())) {
+      return null;
+    }
+    var path = targetUri.getPath();
+    var addresses = new ArrayList<EquivalentAddressGroup>();
+    for (String s : Splitter.on(',').trimResults().omitEmptyStrings().split(path.substring(1))) {
+      var hap = HostAndPort.fromString(s);
+      addresses.add(
+          new EquivalentAddressGroup(new InetSocketAddress(hap.getHost(), hap.getPort())));
+    }
+    if (addresses.isEmpty()) {
+      throw new IllegalArgumentException("static 目标地址不能为空 " + targetUri);
+    }
+    var authority = targetUri.getAuthority() == null ? SCHEME : targetUri.getAuthority();
+    return new NameResolver() {
+
+      @Override
+      public String getServiceAuthority() {
+        return authority;
+      }
+
+      @Override
+      public void start(Listener2 listener) {
+        listener.onResult(ResolutionResult.newBuilder().setAddresses(addresses).build());
+      }
+
+      @Override
+      public void shutdown() {
+        // noop
+      }
+    };
+  }
+}
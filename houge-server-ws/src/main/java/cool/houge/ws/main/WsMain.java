@@ -18,8 +18,11 @@ package cool.houge.ws.main;
 import com.google.inject.Guice;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import cool.houge.ws.auth.JwtSecretReplica;
 import cool.houge.ws.module.WsModule;
+import cool.houge.ws.server.PacketStreamPool;
 import cool.houge.ws.server.WsServer;
+import cool.houge.ws.session.HeartbeatManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import cool.houge.util.AppShutdownHelper;
@@ -44,16 +47,31 @@ public class WsMain implements Runnable {
   public void run() {
     var config = this.loadConfig();
     var injector = Guice.createInjector(new WsModule(config));
+    // 订阅 JWT 密钥
+    var jwtSecretReplica = injector.getInstance(JwtSecretReplica.class);
+    jwtSecretReplica.start();
+
+    // 建立与逻辑服务之间的 Packet 双向流
+    var packetStreamPool = injector.getInstance(PacketStreamPool.class);
+    packetStreamPool.start();
+
     var wsServer = injector.getInstance(WsServer.class);
     wsServer.start();
 
+    // 启动会话心跳检测
+    var heartbeatManager = injector.getInstance(HeartbeatManager.class);
+    heartbeatManager.start();
+
     // 启动 Agent 管理器
     var clientAgentManager = injector.getInstance(ClientAgentManager.class);
     clientAgentManager.start();
     shutdownHelper
         .addCallback(clientAgentManager::stop)
+        .addCallback(heartbeatManager::stop)
+        .addCallback(jwtSecretReplica::stop)
         // 停止 WS 服务
         .addCallback(wsServer::stop)
+        .addCallback(packetStreamPool::stop)
         .run();
   }
 
@@ -28,14 +28,27 @@ import cool.houge.ws.agent.command.SubGroupCommandHandler;
 import cool.houge.ws.agent.command.UnsubGroupCommandHandler;
 import cool.houge.ws.agent.internal.CommandProcessorImpl;
 import cool.houge.ws.agent.internal.PacketProcessorImpl;
+import cool.houge.ws.grpc.LogicChannels;
+import cool.houge.ws.server.TransportConfig;
 import cool.houge.ws.server.WsServer;
 import cool.houge.ws.server.WsServerConfig;
 import cool.houge.ws.session.DefaultSessionGroupManager;
 import cool.houge.ws.session.DefaultSessionManager;
+import cool.houge.ws.session.DeflateConfig;
+import cool.houge.ws.session.FanoutWriter;
+import cool.houge.ws.session.FrameDeflater;
+import cool.houge.ws.session.GroupInterestListener;
+import cool.houge.ws.session.HeartbeatConfig;
+import cool.houge.ws.session.HeartbeatManager;
+import cool.houge.ws.session.OutboundQueueConfig;
+import cool.houge.ws.session.PresenceListener;
+import cool.houge.ws.session.ProtocolListener;
+import cool.houge.ws.session.RateLimitConfig;
+import cool.houge.ws.session.RateLimiter;
 import cool.houge.ws.session.SessionGroupManager;
 import cool.houge.ws.session.SessionManager;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.netty.buffer.ByteBufAllocator;
 import cool.houge.grpc.AuthGrpc;
 import cool.houge.grpc.AuthGrpc.AuthStub;
 import cool.houge.grpc.PacketGrpc;
@@ -43,9 +56,15 @@ import cool.houge.grpc.PacketGrpc.PacketStub;
 import cool.houge.grpc.UserGroupGrpc;
 import cool.houge.grpc.UserGroupGrpc.UserGroupStub;
 import cool.houge.ws.AgentServiceConfig;
+import cool.houge.ws.LocalAuthConfig;
 import cool.houge.ws.LogicServiceConfig;
+import cool.houge.ws.auth.JwtSecretReplica;
 import cool.houge.ws.agent.ClientAgentManager;
 import cool.houge.ws.agent.CommandProcessor;
+import cool.houge.ws.agent.GroupInterestReporter;
+import cool.houge.ws.agent.PresenceReporter;
+import cool.houge.ws.agent.ProtocolReporter;
+import cool.houge.ws.server.PacketStreamPool;
 import cool.houge.ws.server.WebSocketHandler;
 
 /**
@@ -71,6 +90,18 @@ public class WsModule extends AbstractModule {
     bind(WebSocketHandler.class).in(Scopes.SINGLETON);
     bind(SessionManager.class).to(DefaultSessionManager.class).in(Scopes.SINGLETON);
     bind(SessionGroupManager.class).to(DefaultSessionGroupManager.class).in(Scopes.SINGLETON);
+    bind(FanoutWriter.class).in(Scopes.SINGLETON);
+    bind(HeartbeatManager.class).in(Scopes.SINGLETON);
+    bind(RateLimiter.class).in(Scopes.SINGLETON);
+    bind(FrameDeflater.class).in(Scopes.SINGLETON);
+    bind(PresenceReporter.class).in(Scopes.SINGLETON);
+    bind(PresenceListener.class).to(PresenceReporter.class);
+    bind(GroupInterestReporter.class).in(Scopes.SINGLETON);
+    bind(GroupInterestListener.class).to(GroupInterestReporter.class);
+    bind(ProtocolReporter.class).in(Scopes.SINGLETON);
+    bind(ProtocolListener.class).to(ProtocolReporter.class);
+    bind(JwtSecretReplica.class).in(Scopes.SINGLETON);
+    bind(PacketStreamPool.class).in(Scopes.SINGLETON);
 
     bind(PacketProcessor.class).to(PacketProcessorImpl.class).in(Scopes.SINGLETON);
     bind(CommandProcessor.class).to(CommandProcessorImpl.class).in(Scopes.SINGLETON);
@@ -81,19 +112,81 @@ public class WsModule extends AbstractModule {
 
   @Provides
   @Singleton
-  public WsServer wsServer(WebSocketHandler webSocketHandler) {
-    var serverConfig =
-        ConfigBeanFactory.create(config.getConfig("ws-server"), WsServerConfig.class);
-    return new WsServer(serverConfig, webSocketHandler);
+  public WsServerConfig wsServerConfig() {
+    return ConfigBeanFactory.create(config.getConfig("ws-server"), WsServerConfig.class);
+  }
+
+  @Provides
+  @Singleton
+  public TransportConfig transportConfig(WsServerConfig serverConfig) {
+    return serverConfig.getTransport();
+  }
+
+  @Provides
+  @Singleton
+  public ByteBufAllocator byteBufAllocator(TransportConfig transportConfig) {
+    return WsServer.newAllocator(transportConfig);
+  }
+
+  @Provides
+  @Singleton
+  public OutboundQueueConfig outboundQueueConfig(WsServerConfig serverConfig) {
+    return serverConfig.getOutboundQueue();
+  }
+
+  @Provides
+  @Singleton
+  public HeartbeatConfig heartbeatConfig(WsServerConfig serverConfig) {
+    return serverConfig.getHeartbeat();
+  }
+
+  @Provides
+  @Singleton
+  public DeflateConfig deflateConfig(WsServerConfig serverConfig) {
+    return serverConfig.getDeflate();
+  }
+
+  @Provides
+  @Singleton
+  public RateLimitConfig rateLimitConfig(WsServerConfig serverConfig) {
+    return serverConfig.getRateLimit();
+  }
+
+  @Provides
+  @Singleton
+  public LocalAuthConfig localAuthConfig() {
+    return ConfigBeanFactory.create(config.getConfig("local-auth"), LocalAuthConfig.class);
+  }
+
+  @Provides
+  @Singleton
+  public WsServer wsServer(
+      WsServerConfig serverConfig, WebSocketHandler webSocketHandler, ByteBufAllocator allocator) {
+    return new WsServer(serverConfig, webSocketHandler, allocator);
+  }
+
+  @Provides
+  @Singleton
+  public AgentServiceConfig agentServiceConfig() {
+    return ConfigBeanFactory.create(config.getConfig("agent-service"), AgentServiceConfig.class);
   }
 
   @Provides
   @Singleton
   public ClientAgentManager clientAgentManager(
-      PacketProcessor packetProcessor, CommandProcessor commandProcessor) {
-    var agentConfig =
-        ConfigBeanFactory.create(config.getConfig("agent-service"), AgentServiceConfig.class);
-    return new ClientAgentManager(agentConfig, packetProcessor, commandProcessor);
+      AgentServiceConfig agentConfig,
+      PacketProcessor packetProcessor,
+      CommandProcessor commandProcessor,
+      PresenceReporter presenceReporter,
+      GroupInterestReporter groupInterestReporter,
+      ProtocolReporter protocolReporter) {
+    return new ClientAgentManager(
+        agentConfig,
+        packetProcessor,
+        commandProcessor,
+        presenceReporter,
+        groupInterestReporter,
+        protocolReporter);
   }
 
   private void bindGrpcStub() {
@@ -101,11 +194,7 @@ public class WsModule extends AbstractModule {
         ConfigBeanFactory.create(config.getConfig("logic-service"), LogicServiceConfig.class);
     bind(LogicServiceConfig.class).toInstance(logicServiceConfig);
 
-    var managedChannel =
-        ManagedChannelBuilder.forTarget(logicServiceConfig.getGrpcTarget())
-            .enableRetry()
-            .usePlaintext()
-            .build();
+    var managedChannel = LogicChannels.newChannel(logicServiceConfig);
     bind(ManagedChannel.class).toInstance(managedChannel);
 
     // gRPC 存根对象注册
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 写合并配置.
+ *
+ * <p>开启后在连接 pipeline 的最前端安装 {@link io.netty.handler.flush.FlushConsolidationHandler}, 将同一轮 EventLoop
+ * 任务中的多次 flush 合并为一次系统调用.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class FlushConsolidationConfig {
+
+  /** 是否开启写合并. */
+  private boolean enabled;
+  /** 连续合并的 flush 次数上限, 达到后立即执行一次真正的 flush. */
+  private int explicitFlushAfterFlushes;
+  /** 连接没有正在处理的读事件时是否也合并 flush, 开启后合并的 flush 会延迟到当前 EventLoop 任务结束后执行. */
+  private boolean consolidateWhenNoReadInProgress;
+}
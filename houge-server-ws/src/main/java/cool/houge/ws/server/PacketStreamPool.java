@@ -0,0 +1,487 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import cool.houge.grpc.PacketGrpc.PacketStub;
+import cool.houge.grpc.PacketPb.PacketRequest;
+import cool.houge.grpc.PacketPb.PacketStreamRequest;
+import cool.houge.grpc.PacketPb.PacketStreamResponse;
+import cool.houge.ws.LogicServiceConfig;
+import cool.houge.ws.grpc.BalancedStream;
+import cool.houge.ws.session.FrameDeflater;
+import cool.houge.ws.session.Session;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * 与逻辑服务之间的 Packet 双向流连接池.
+ *
+ * <p>所有会话的 Packet 请求复用少量长连接的双向流, 不再为每个请求创建 HTTP/2 stream. 每个流使用递增的请求ID关联响应, 请求ID按流的最大并行请求数取模映射到槽位,
+ * 槽位仍被未响应的请求占用时跳过该请求ID向后查找空闲的槽位, 个别响应缓慢的请求不会阻塞整个流. 关联请求与响应不需要额外的内存分配.
+ *
+ * <p>流不可写或未响应的请求数达到最大并行请求数时视为流已饱和, 调用方应回退至一元调用.
+ *
+ * <p>槽位在锁内分配, 请求在锁外构建后进入发送队列, 由单个线程依次写入流, gRPC 的流不支持并发写入.
+ *
+ * <p>负载均衡: 流通过 {@link BalancedStream} 由逻辑服务负载均衡器分配后端, 流的数量不少于 {@code packet-streams} 与可选择的后端数量中的较大值,
+ * 每个后端至少承载一个流. 流所在的后端被驱逐、移除或需要将流分摊到新增的后端时, 建立新的流接收新的请求, 原有的流在未响应的请求完成后关闭. 流中每个请求的耗时上报给负载均衡器,
+ * 与一元调用一同参与慢后端驱逐的统计.
+ *
+ * <p>顺序: 同一会话的 Packet 请求<b>尽力而为</b>按发送顺序处理, 不做保证. 会话按 {@link Session#sessionId()} 映射到同一个流,
+ * 流未饱和时同一会话的请求按发送顺序到达逻辑服务; 固定的流饱和时请求直接回退为一元调用, 可能先于流中更早的请求到达; 流的数量增加或流迁移到其它后端时,
+ * 后续的请求也可能先于更早的请求到达. 逻辑服务对同一个流中的请求也是并行处理的, 先到达的请求不一定先处理完成. 这与原本全部使用一元调用时的语义一致,
+ * 需要严格有序的客户端应等待前一个请求的响应后再发送下一个请求.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class PacketStreamPool {
+
+  private static final Logger log = LogManager.getLogger();
+  /** 流中断后重新建立的延迟. */
+  private static final long REOPEN_DELAY_MILLIS = 1000;
+
+  private static final Counter FALLBACKS = Metrics.counter("tethys.ws.packet.stream.fallbacks");
+
+  private final PacketStub packetStub;
+  private final FrameDeflater frameDeflater;
+  private final int minStreams;
+  private final int maxInFlight;
+  // 仅在 this 锁中替换
+  private volatile Stream[] streams = new Stream[0];
+  private volatile boolean stopped;
+
+  /**
+   * 构造对象.
+   *
+   * @param config 逻辑服务配置
+   * @param packetStub Packet 服务 gRPC 存根
+   * @param frameDeflater 帧压缩
+   */
+  @Inject
+  public PacketStreamPool(
+      LogicServiceConfig config, PacketStub packetStub, FrameDeflater frameDeflater) {
+    this.packetStub = packetStub;
+    this.frameDeflater = frameDeflater;
+    this.minStreams = Math.max(config.getPacketStreams(), 0);
+    var n = Math.max(config.getPacketStreamMaxInFlight(), 2);
+    this.maxInFlight = Integer.highestOneBit(n - 1) << 1;
+  }
+
+  /** 建立双向流. */
+  public void start() {
+    if (minStreams == 0) {
+      log.info("未开启 Packet 双向流, 使用一元调用处理 Packet 请求");
+      return;
+    }
+    resize(minStreams);
+    log.info("Packet 双向流已启动 streams={} maxInFlight={}", minStreams, maxInFlight);
+  }
+
+  /** 关闭双向流. */
+  public void stop() {
+    Stream[] current;
+    synchronized (this) {
+      stopped = true;
+      current = streams;
+    }
+    for (Stream stream : current) {
+      stream.close();
+    }
+  }
+
+  /**
+   * 通过双向流发送 Packet 请求.
+   *
+   * <p>返回 {@code true} 时 {@code payload} 的引用转交给连接池, 收到响应或流中断时释放. 通道开启了重试, 流提交前 gRPC
+   * 会保留已发送的请求并在重试时重新序列化, 因此请求写入流后仍不能释放; 返回 {@code false} 或抛出异常时引用仍由调用方持有.
+   *
+   * @param session 发起请求的会话
+   * @param request Packet 请求
+   * @param payload 请求数据引用的内存
+   * @return false 会话对应的流不可用, 调用方应使用一元调用
+   */
+  public boolean process(Session session, PacketRequest request, ByteBuf payload) {
+    var current = streams;
+    var n = current.length;
+    if (n == 0) {
+      return false;
+    }
+    // 会话固定使用同一个流, 避免同一会话的连续请求经由不同的流乱序到达
+    var stream = current[(int) Math.floorMod(session.sessionId(), (long) n)];
+    if (stream.offer(session, request, payload)) {
+      return true;
+    }
+    FALLBACKS.increment();
+    return false;
+  }
+
+  // 可选择的后端多于流时增加流的数量
+  private void ensureStreams(int backends) {
+    if (backends > streams.length && !stopped) {
+      Schedulers.parallel().schedule(() -> resize(backends));
+    }
+  }
+
+  private synchronized void resize(int n) {
+    var current = streams;
+    if (stopped || n <= current.length) {
+      return;
+    }
+    var grown = Arrays.copyOf(current, n);
+    for (int i = current.length; i < n; i++) {
+      grown[i] = new Stream(i);
+    }
+    streams = grown;
+    for (int i = current.length; i < n; i++) {
+      grown[i].open();
+    }
+    if (current.length > 0) {
+      log.info("可选择的逻辑服务后端增加, Packet 双向流增加至 {} 个", n);
+    }
+  }
+
+  /** 单个双向流, 流中断或迁移时替换为新的 gRPC 调用. */
+  private class Stream {
+
+    private final int index;
+    // 接收新请求的调用, 仅在 this 锁中替换
+    private volatile Call current;
+
+    Stream(int index) {
+      this.index = index;
+    }
+
+    synchronized void open() {
+      if (stopped) {
+        return;
+      }
+      var call = new Call(this);
+      current = call;
+      packetStub.withOption(BalancedStream.KEY, call.balanced).processStream(call);
+    }
+
+    synchronized void close() {
+      var call = current;
+      current = null;
+      if (call != null) {
+        call.cancel();
+      }
+    }
+
+    boolean offer(Session session, PacketRequest request, ByteBuf payload) {
+      var call = current;
+      return call != null && call.offer(session, request, payload);
+    }
+
+    // 新的调用接收新的请求, 原有的调用在未响应的请求完成后关闭
+    void rebalance(Call call) {
+      synchronized (this) {
+        if (current != call) {
+          return;
+        }
+        open();
+      }
+      log.info("Packet 双向流迁移至其它逻辑服务后端 stream={}", index);
+      call.retire();
+    }
+
+    void closed(Call call) {
+      synchronized (this) {
+        if (current != call) {
+          // 已迁移或已停止
+          return;
+        }
+        current = null;
+      }
+      if (!stopped) {
+        Schedulers.parallel().schedule(this::open, REOPEN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /** 单个 gRPC 双向流调用. */
+  private class Call
+      implements ClientResponseObserver<PacketStreamRequest, PacketStreamResponse>,
+          BalancedStream.Listener {
+
+    private final Stream stream;
+    private final BalancedStream balanced = new BalancedStream(this);
+    // 待写入流的请求, 由 wip 保证同一时刻只有一个线程写入
+    private final Queue<PendingRequest> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile ClientCallStreamObserver<PacketStreamRequest> requestStream;
+    // 以下字段由 this 锁保护
+    private final Session[] sessions = new Session[maxInFlight];
+    private final long[] requestIds = new long[maxInFlight];
+    private final long[] startTimes = new long[maxInFlight];
+    // 已写入流的请求引用的内存, 收到响应或流中断时释放
+    private final ByteBuf[] payloads = new ByteBuf[maxInFlight];
+    private long requestIdSeq;
+    private int inFlight;
+    // 已分配槽位但尚未写入流的请求数
+    private int unsent;
+    // 已迁移, 不再接收新的请求
+    private boolean retired;
+    private boolean halfClosed;
+    private boolean terminated;
+
+    Call(Stream stream) {
+      this.stream = stream;
+    }
+
+    boolean offer(Session session, PacketRequest request, ByteBuf payload) {
+      long requestId;
+      synchronized (this) {
+        var rs = requestStream;
+        if (rs == null || retired || terminated || !rs.isReady() || inFlight >= maxInFlight) {
+          return false;
+        }
+        // 存在空闲的槽位, 跳过仍未响应的请求占用的槽位
+        requestId = requestIdSeq;
+        int slot;
+        do {
+          requestId++;
+          slot = (int) (requestId & (maxInFlight - 1));
+        } while (sessions[slot] != null);
+        requestIdSeq = requestId;
+        sessions[slot] = session;
+        requestIds[slot] = requestId;
+        startTimes[slot] = System.nanoTime();
+        inFlight++;
+        unsent++;
+      }
+      balanced.requestStarted();
+
+      var streamRequest =
+          PacketStreamRequest.newBuilder().setRequestId(requestId).setRequest(request).build();
+      sendQueue.offer(new PendingRequest(streamRequest, payload));
+      drain();
+      return true;
+    }
+
+    void retire() {
+      synchronized (this) {
+        retired = true;
+      }
+      drain();
+    }
+
+    void cancel() {
+      var rs = requestStream;
+      if (rs != null) {
+        rs.cancel("WS服务停止", null);
+      }
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      var missed = 1;
+      for (; ; ) {
+        PendingRequest pending;
+        while ((pending = sendQueue.poll()) != null) {
+          send(pending);
+        }
+        if (shouldHalfClose()) {
+          // 已迁移的流在已分配槽位的请求全部写入后半关闭, 逻辑服务响应全部请求后结束流
+          try {
+            requestStream.onCompleted();
+          } catch (RuntimeException e) {
+            log.warn("半关闭已迁移的 Packet 双向流失败 stream={}", stream.index, e);
+          }
+        }
+        missed = wip.addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+
+    private synchronized boolean shouldHalfClose() {
+      if (retired && unsent == 0 && !halfClosed && !terminated) {
+        halfClosed = true;
+        return true;
+      }
+      return false;
+    }
+
+    private void send(PendingRequest pending) {
+      var requestId = pending.request.getRequestId();
+      var failed = false;
+      try {
+        requestStream.onNext(pending.request);
+      } catch (RuntimeException e) {
+        // 流已被取消
+        log.warn("Packet 请求写入双向流失败 stream={} requestId={}", stream.index, requestId, e);
+        failed = true;
+      }
+
+      var held = false;
+      var cleared = false;
+      synchronized (this) {
+        unsent--;
+        var slot = (int) (requestId & (maxInFlight - 1));
+        if (sessions[slot] != null && requestIds[slot] == requestId) {
+          if (failed) {
+            sessions[slot] = null;
+            inFlight--;
+            cleared = true;
+          } else {
+            // 流提交前 gRPC 可能重放请求, 持有引用直至收到响应或流中断
+            payloads[slot] = pending.payload;
+            held = true;
+          }
+        }
+      }
+      // 已收到响应或流已中断, gRPC 不会再重放请求
+      if (!held) {
+        pending.payload.release();
+      }
+      if (cleared) {
+        balanced.requestCompleted(Status.Code.CANCELLED, 0);
+      }
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<PacketStreamRequest> requestStream) {
+      this.requestStream = requestStream;
+    }
+
+    @Override
+    public void onNext(PacketStreamResponse response) {
+      Session session;
+      ByteBuf payload;
+      long latency;
+      synchronized (this) {
+        var slot = (int) (response.getRequestId() & (maxInFlight - 1));
+        if (sessions[slot] == null || requestIds[slot] != response.getRequestId()) {
+          log.warn(
+              "未找到 Packet 响应对应的请求 stream={} requestId={}",
+              stream.index,
+              response.getRequestId());
+          return;
+        }
+        session = sessions[slot];
+        sessions[slot] = null;
+        payload = payloads[slot];
+        payloads[slot] = null;
+        inFlight--;
+        latency = System.nanoTime() - startTimes[slot];
+      }
+      // 请求尚未写入流时由 send 释放
+      if (payload != null) {
+        payload.release();
+      }
+
+      var code = Status.fromCodeValue(response.getStatusCode()).getCode();
+      balanced.requestCompleted(code, latency);
+      if (code != Status.Code.OK) {
+        log.error(
+            "远程接口处理 Packet 异常 session={} status={} message={}",
+            session,
+            code,
+            response.getStatusMessage());
+        return;
+      }
+      WebSocketHandler.sendResponse(frameDeflater, session, response.getDataBytes());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      log.warn("Packet 双向流中断 stream={}", stream.index, t);
+      terminate(Status.fromThrowable(t).getCode());
+    }
+
+    @Override
+    public void onCompleted() {
+      boolean retiredClose;
+      synchronized (this) {
+        retiredClose = halfClosed;
+      }
+      if (retiredClose) {
+        log.debug("已迁移的 Packet 双向流已关闭 stream={}", stream.index);
+      } else {
+        log.warn("Packet 双向流已被逻辑服务关闭 stream={}", stream.index);
+      }
+      terminate(Status.Code.UNAVAILABLE);
+    }
+
+    @Override
+    public void onRebalance() {
+      Schedulers.parallel().schedule(() -> stream.rebalance(this));
+    }
+
+    @Override
+    public void onBackendsChanged(int backends) {
+      ensureStreams(backends);
+    }
+
+    private void terminate(Status.Code code) {
+      var lost = 0;
+      var held = new ArrayList<ByteBuf>();
+      synchronized (this) {
+        terminated = true;
+        inFlight = 0;
+        for (int i = 0; i < sessions.length; i++) {
+          if (sessions[i] != null) {
+            sessions[i] = null;
+            lost++;
+          }
+          if (payloads[i] != null) {
+            held.add(payloads[i]);
+            payloads[i] = null;
+          }
+        }
+      }
+      held.forEach(ByteBuf::release);
+      for (int i = 0; i < lost; i++) {
+        balanced.requestCompleted(code, 0);
+      }
+      balanced.closed();
+      if (lost > 0) {
+        log.error("Packet 双向流中断, 丢失 {} 个未响应的请求 stream={}", lost, stream.index);
+      }
+      stream.closed(this);
+    }
+  }
+
+  /** 已分配槽位等待写入流的请求, 写入流前由 {@code payload} 持有请求引用的内存. */
+  private static class PendingRequest {
+
+    final PacketStreamRequest request;
+    final ByteBuf payload;
+
+    PendingRequest(PacketStreamRequest request, ByteBuf payload) {
+      this.request = request;
+      this.payload = payload;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import com.typesafe.config.ConfigMemorySize;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * WebSocket服务网络传输配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class TransportConfig {
+
+  /** 是否优先使用 native epoll 传输, 当前系统不支持 epoll 时自动回退为 NIO. */
+  private boolean nativeEpoll;
+  /** 使用 SO_REUSEPORT 在同一地址上绑定的次数, 每次绑定拥有独立的 accept 队列, 仅 epoll 传输下生效. */
+  private int reusePortBinds;
+  /** 处理 accept 事件的线程数. */
+  private int selectThreads;
+  /** 处理连接读写的 EventLoop 线程数, 小于等于 0 时使用 CPU 核数. */
+  private int eventLoopThreads;
+  /** 服务端 socket 的 accept 队列长度. */
+  private int soBacklog;
+  /** 是否使用池化的内存分配器. */
+  private boolean pooledAllocator;
+  /** 内存分配器是否优先使用直接内存. */
+  private boolean preferDirect;
+  /** 池化内存分配器的直接内存 arena 数量, 小于等于 0 时使用 Netty 默认值. */
+  private int directArenas;
+  /** 单个 WebSocket 帧负载的最大长度. */
+  private ConfigMemorySize maxFramePayloadLength;
+  /** 分片帧聚合后完整消息负载的最大长度, 超过时使用 1009 关闭连接. */
+  private ConfigMemorySize maxAggregatedPayloadLength;
+}
@@ -15,33 +15,50 @@
  */
 package cool.houge.ws.server;
 
+import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.UnsafeByteOperations;
 import cool.houge.grpc.AuthGrpc.AuthStub;
-import cool.houge.grpc.AuthPb.AuthRequest;
-import cool.houge.grpc.AuthPb.AuthResponse;
+import cool.houge.grpc.AuthPb.ConnectRequest;
+import cool.houge.grpc.AuthPb.ConnectResponse;
+import cool.houge.grpc.ClientPb.ClientPacket;
+import cool.houge.grpc.ClientPb.ErrorPacket;
 import cool.houge.grpc.PacketGrpc.PacketStub;
+import cool.houge.grpc.PacketPb.PacketFormat;
 import cool.houge.grpc.PacketPb.PacketRequest;
 import cool.houge.grpc.PacketPb.PacketResponse;
 import cool.houge.grpc.SinkOneStreamObserver;
 import cool.houge.grpc.UserGroupGrpc.UserGroupStub;
 import cool.houge.grpc.UserGroupPb.ListGidsRequest;
 import cool.houge.grpc.UserGroupPb.ListGidsResponse;
-import cool.houge.util.SocketExceptionUtils;
+import cool.houge.ws.auth.JwtSecretReplica;
+import cool.houge.ws.session.ClientProtocol;
 import cool.houge.ws.session.DefaultSession;
+import cool.houge.ws.session.FrameDeflater;
+import cool.houge.ws.session.HeartbeatManager;
+import cool.houge.ws.session.OutboundQueueConfig;
+import cool.houge.ws.session.RateLimiter;
 import cool.houge.ws.session.Session;
 import cool.houge.ws.session.SessionGroupManager;
 import cool.houge.ws.session.SessionManager;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -64,31 +81,73 @@ public class WebSocketHandler {
   /** 认证令牌在 query 参数中的名称. */
   private static final String ACCESS_TOKEN_QUERY_NAME = "access_token";
 
+  private static final Timer HANDSHAKE_SUCCESS = handshakeTimer("success");
+  private static final Timer HANDSHAKE_FAILURE = handshakeTimer("failure");
+  /** 超过限流时回复的错误包, 与逻辑服务的 ErrorPacket 格式一致. */
+  private static final byte[] THROTTLED_PACKET =
+      "{\"@ns\":\"error\",\"code\":429,\"message\":\"消息发送过于频繁\"}"
+          .getBytes(StandardCharsets.UTF_8);
+  /** 二进制协议的限流错误包. */
+  private static final byte[] THROTTLED_PROTO_PACKET =
+      ClientPacket.newBuilder()
+          .setError(ErrorPacket.newBuilder().setCode(429).setMessage("消息发送过于频繁"))
+          .build()
+          .toByteArray();
+
   private final AuthStub authStub;
   private final PacketStub packetStub;
   private final UserGroupStub userGroupStub;
+  private final JwtSecretReplica jwtSecretReplica;
   private final SessionManager sessionManager;
   private final SessionGroupManager sessionGroupManager;
+  private final OutboundQueueConfig outboundQueueConfig;
+  private final HeartbeatManager heartbeatManager;
+  private final PacketStreamPool packetStreamPool;
+  private final RateLimiter rateLimiter;
+  private final FrameDeflater frameDeflater;
+  private final int maxAggregatedPayloadLength;
 
   /**
    * @param authStub
    * @param packetStub
    * @param userGroupStub
+   * @param jwtSecretReplica
    * @param sessionManager
    * @param sessionGroupManager
+   * @param outboundQueueConfig
+   * @param heartbeatManager
+   * @param packetStreamPool
+   * @param rateLimiter
+   * @param frameDeflater
+   * @param transportConfig
    */
   @Inject
   public WebSocketHandler(
       AuthStub authStub,
       PacketStub packetStub,
       UserGroupStub userGroupStub,
+      JwtSecretReplica jwtSecretReplica,
       SessionManager sessionManager,
-      SessionGroupManager sessionGroupManager) {
+      SessionGroupManager sessionGroupManager,
+      OutboundQueueConfig outboundQueueConfig,
+      HeartbeatManager heartbeatManager,
+      PacketStreamPool packetStreamPool,
+      RateLimiter rateLimiter,
+      FrameDeflater frameDeflater,
+      TransportConfig transportConfig) {
     this.authStub = authStub;
     this.packetStub = packetStub;
     this.userGroupStub = userGroupStub;
+    this.jwtSecretReplica = jwtSecretReplica;
     this.sessionManager = sessionManager;
     this.sessionGroupManager = sessionGroupManager;
+    this.outboundQueueConfig = outboundQueueConfig;
+    this.heartbeatManager = heartbeatManager;
+    this.packetStreamPool = packetStreamPool;
+    this.rateLimiter = rateLimiter;
+    this.frameDeflater = frameDeflater;
+    this.maxAggregatedPayloadLength =
+        (int) transportConfig.getMaxAggregatedPayloadLength().toBytes();
   }
 
   /**
@@ -97,81 +156,132 @@ public class WebSocketHandler {
    * @return
    */
   public Mono<Void> handle(WebsocketInbound inbound, WebsocketOutbound outbound) {
-    // 1. 会话认证
+    // 1. 会话认证并订阅群组
     // 2. 接收WebSocket消息
-    return Mono.defer(() -> authenticate(inbound, outbound))
-        .flatMap(
+    var startTime = System.nanoTime();
+    return Mono.defer(() -> connect(inbound, outbound))
+        .doOnSuccess(
             session -> {
-              log.debug("加载用户 {} 的群组信息", session);
-              return loadGids(session.uid())
-                  .flatMap(gids -> sessionGroupManager.subGroups(session, gids))
-                  .thenReturn(session);
+              var timer = session != null ? HANDSHAKE_SUCCESS : HANDSHAKE_FAILURE;
+              timer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+              if (session != null) {
+                receiveFrames(inbound, outbound, session);
+              }
             })
-        .doOnSuccess(session -> receiveFrames(inbound, outbound, session))
+        .doOnError(
+            ex ->
+                HANDSHAKE_FAILURE.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS))
         .then(outbound.neverComplete());
   }
 
   @VisibleForTesting
   void receiveFrames(WebsocketInbound inbound, WebsocketOutbound outbound, Session session) {
+    var permit = rateLimiter.open(session);
     sessionManager
         .add(session)
-        .thenMany(inbound.aggregateFrames().receiveFrames())
+        .doOnSuccess(unused -> heartbeatManager.register(session))
+        .thenMany(inbound.aggregateFrames(maxAggregatedPayloadLength).receiveFrames())
         .doFinally(
             signalType -> {
               log.info("会话中止 signType={} {}", signalType, session);
+              heartbeatManager.unregister(session);
+              permit.close();
               // 删除会话管理器中的 Session
               sessionManager.remove(session).subscribe();
               // 删除群组会话管理器中的 Session
-              sessionGroupManager.unsubGroups(session, session.subGroupIds()).subscribe();
+              sessionGroupManager
+                  .unsubGroups(session, Longs.asList(session.subGroupIds()))
+                  .subscribe();
             })
         .doOnError(
             ex -> {
+              if (ex instanceof TooLongFrameException) {
+                log.warn("[连接关闭]-消息超过最大长度 {} {}", session, ex.getMessage());
+                outbound
+                    .sendClose(WebSocketCloseStatus.MESSAGE_TOO_BIG.code(), ex.getMessage())
+                    .subscribe();
+                return;
+              }
               log.error("未处理的异常 session={}", session, ex);
               outbound.sendClose().subscribe();
             })
         .subscribe(
             frame -> {
+              var now = System.nanoTime();
+              session.markActive(now);
+              // 未开启 handlePing, ping/pong 控制帧由应用处理
+              if (frame instanceof PingWebSocketFrame) {
+                outbound
+                    .sendObject(new PongWebSocketFrame(frame.content().retain()))
+                    .then()
+                    .subscribe();
+                return;
+              }
+              if (frame instanceof PongWebSocketFrame) {
+                heartbeatManager.onPong(session, frame.content());
+                return;
+              }
+              if (!permit.tryAcquire(now)) {
+                onThrottled(session);
+                return;
+              }
               // 处理WebSocket消息
               processPacket(frame, session);
             });
   }
 
+  private void onThrottled(Session session) {
+    var queue = session.outboundQueue();
+    if (queue == null) {
+      return;
+    }
+    switch (rateLimiter.action()) {
+      case ERROR_PACKET:
+        var packet =
+            session.protocol() == ClientProtocol.PROTOBUF
+                ? THROTTLED_PROTO_PACKET
+                : THROTTLED_PACKET;
+        queue.send(frameDeflater.frame(queue.alloc(), session, ByteBuffer.wrap(packet)));
+        break;
+      case CLOSE:
+        log.warn("[连接关闭]-消息发送过于频繁 {}", session);
+        queue.close(WebSocketCloseStatus.POLICY_VIOLATION);
+        break;
+      default:
+        // 丢弃消息
+    }
+  }
+
   @VisibleForTesting
   void processPacket(WebSocketFrame frame, Session session) {
+    // reactor-netty 在 onNext 返回后释放帧, 请求直接引用帧的内存, 需要持有引用直至 gRPC 调用结束
+    var content = frame.content().retain();
     var request =
         PacketRequest.newBuilder()
             .setRequestUid(session.uid())
-            .setDataBytes(UnsafeByteOperations.unsafeWrap(frame.content().nioBuffer()))
+            .setDataBytes(unsafeWrap(content))
+            .setFormat(
+                session.protocol() == ClientProtocol.PROTOBUF
+                    ? PacketFormat.PROTOBUF
+                    : PacketFormat.JSON)
             .build();
+    // 优先复用双向流, 双向流不可用或已饱和时回退为一元调用
+    try {
+      if (packetStreamPool.process(session, request, content)) {
+        return;
+      }
+    } catch (RuntimeException e) {
+      content.release();
+      throw e;
+    }
+    // 开启重试时 gRPC 在调用提交前会保留请求用于重放, 重放时再次从 content 序列化, 调用结束前不能释放
     packetStub.process(
         request,
         new StreamObserver<>() {
 
           @Override
           public void onNext(PacketResponse response) {
-            if (response.getDataBytes() == ByteString.EMPTY) {
-              return;
-            }
-            Supplier<ByteBuf> s =
-                () -> Unpooled.wrappedBuffer(response.getDataBytes().asReadOnlyByteBuffer());
-            session
-                .send(Mono.fromSupplier(s))
-                .doOnError(
-                    ex -> {
-                      if (!session.isClosed()) {
-                        session.close().subscribe();
-                      }
-                      if (SocketExceptionUtils.ignoreLogException(ex)) {
-                        log.debug("已忽略的网络异常", ex);
-                        return;
-                      }
-                      log.error(
-                          "向用户发送消息异常 session={} data(base64)={}",
-                          session,
-                          Base64.getEncoder().encodeToString(response.getDataBytes().toByteArray()),
-                          ex);
-                    })
-                .subscribe();
+            sendResponse(frameDeflater, session, response.getDataBytes());
           }
 
           @Override
@@ -181,25 +291,59 @@ public class WebSocketHandler {
                 session,
                 Base64.getEncoder().encodeToString(request.getDataBytes().toByteArray()),
                 t);
+            content.release();
           }
 
           @Override
           public void onCompleted() {
-            // noop
+            content.release();
           }
         });
   }
 
+  /**
+   * 不复制数据的将 {@link ByteBuf} 包装为 {@link ByteString}, gRPC 每次序列化请求(包括重试时重放)都直接从 {@code buf} 读取.
+   *
+   * <p>聚合后的分片帧为 {@link io.netty.buffer.CompositeByteBuf}, {@link ByteBuf#nioBuffer()} 会将所有分片复制到新的缓冲区,
+   * 此处将每个分片分别包装后拼接, 不复制任何数据. 返回的 {@link ByteString} 与 {@code buf} 共享内存, 调用方必须保证在使用期间持有
+   * {@code buf} 的引用.
+   *
+   * @param buf 数据
+   * @return 共享内存的 ByteString
+   */
   @VisibleForTesting
-  Mono<List<Long>> loadGids(long uid) {
-    var request = ListGidsRequest.newBuilder().setUid(uid).build();
-    var sink = new SinkOneStreamObserver<ListGidsResponse>();
-    userGroupStub.listGids(request, sink);
-    return sink.asMono().map(ListGidsResponse::getGidList);
+  static ByteString unsafeWrap(ByteBuf buf) {
+    if (buf.nioBufferCount() == 1) {
+      return UnsafeByteOperations.unsafeWrap(buf.nioBuffer());
+    }
+    var result = ByteString.EMPTY;
+    for (ByteBuffer b : buf.nioBuffers()) {
+      result = result.concat(UnsafeByteOperations.unsafeWrap(b));
+    }
+    return result;
+  }
+
+  /**
+   * 将逻辑服务的 Packet 响应发送给会话.
+   *
+   * @param frameDeflater 帧压缩
+   * @param session 会话
+   * @param dataBytes 响应数据, 已按会话的客户端协议编码, 为空时不发送
+   */
+  static void sendResponse(FrameDeflater frameDeflater, Session session, ByteString dataBytes) {
+    if (dataBytes.isEmpty()) {
+      return;
+    }
+    var queue = session.outboundQueue();
+    if (queue == null) {
+      return;
+    }
+    // 响应进入会话的有界发送队列, 客户端消费过慢时由队列策略处理
+    queue.send(frameDeflater.frame(queue.alloc(), session, dataBytes.asReadOnlyByteBuffer()));
   }
 
   @VisibleForTesting
-  Mono<Session> authenticate(WebsocketInbound in, WebsocketOutbound out) {
+  Mono<Session> connect(WebsocketInbound in, WebsocketOutbound out) {
     String token;
     try {
       token = getToken(in);
@@ -209,10 +353,51 @@ public class WebSocketHandler {
       return Mono.empty();
     }
 
-    var request = AuthRequest.newBuilder().setToken(token).build();
-    var streamObserver = new SinkOneStreamObserver<AuthResponse>();
-    authStub.auth(request, streamObserver);
-    return streamObserver.asMono().map(resp -> new DefaultSession(in, out, resp.getUid(), token));
+    // 优先使用本地密钥校验令牌, 校验通过后只需查询用户的群组IDs
+    Long uid;
+    try {
+      uid = jwtSecretReplica.verify(token);
+    } catch (JWTVerificationException e) {
+      log.debug("[连接关闭]-非法的访问令牌 {}", in, e);
+      return Mono.error(e);
+    }
+    if (uid != null) {
+      return loadGids(uid)
+          .flatMap(gids -> subGroups(new DefaultSession(in, out, uid, outboundQueueConfig), gids));
+    }
+
+    // 本地没有令牌对应的密钥, 一次请求完成远程认证并获取用户的群组IDs
+    var request = ConnectRequest.newBuilder().setToken(token).build();
+    var streamObserver = new SinkOneStreamObserver<ConnectResponse>();
+    authStub.connect(request, streamObserver);
+    return streamObserver
+        .asMono()
+        .flatMap(
+            resp ->
+                subGroups(
+                    new DefaultSession(in, out, resp.getUid(), outboundQueueConfig),
+                    resp.getGidList()));
+  }
+
+  @VisibleForTesting
+  Mono<List<Long>> loadGids(long uid) {
+    var request = ListGidsRequest.newBuilder().setUid(uid).build();
+    var sink = new SinkOneStreamObserver<ListGidsResponse>();
+    userGroupStub.listGids(request, sink);
+    return sink.asMono().map(ListGidsResponse::getGidList);
+  }
+
+  private Mono<Session> subGroups(Session session, List<Long> gids) {
+    log.debug("订阅用户 {} 的群组 count={}", session, gids.size());
+    return sessionGroupManager.subGroups(session, gids).thenReturn(session);
+  }
+
+  private static Timer handshakeTimer(String outcome) {
+    return Timer.builder("tethys.ws.handshake")
+        .description("WebSocket 连接认证与群组订阅耗时")
+        .tag("outcome", outcome)
+        .publishPercentileHistogram()
+        .register(Metrics.globalRegistry);
   }
 
   @VisibleForTesting
@@ -16,12 +16,31 @@
 package cool.houge.ws.server;
 
 import com.google.common.net.HostAndPort;
+import cool.houge.Env;
+import cool.houge.ws.session.ClientProtocol;
+import cool.houge.ws.session.DeflateConfig;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import reactor.netty.DisposableServer;
+import reactor.netty.NettyPipeline;
 import reactor.netty.http.server.HttpServer;
 import reactor.netty.http.server.HttpServerRoutes;
 import reactor.netty.http.server.WebsocketServerSpec;
+import reactor.netty.resources.LoopResources;
 
 /**
  * WebSocket服务.
@@ -31,20 +50,32 @@ import reactor.netty.http.server.WebsocketServerSpec;
 public class WsServer {
 
   private static final Logger log = LogManager.getLogger();
+  /** 写合并处理器在 pipeline 中的名称. */
+  static final String FLUSH_CONSOLIDATION_HANDLER_NAME = "houge.flush.consolidation";
+  /** WebSocket 扩展协商处理器在 pipeline 中的名称. */
+  static final String WS_EXTENSION_HANDLER_NAME = "houge.ws.extension";
+  /** WebSocket 访问路径. */
+  static final String WS_PATH = "/ws";
+
   private final WsServerConfig serverConfig;
   private final WebSocketHandler webSocketHandler;
+  private final ByteBufAllocator allocator;
 
-  private DisposableServer disposableServer;
+  private final List<DisposableServer> disposableServers = new ArrayList<>();
+  private LoopResources loopResources;
 
   /**
    * 使用服务配置与消息处理器构造对象.
    *
    * @param serverConfig 服务配置
    * @param webSocketHandler WebSocket消息处理器
+   * @param allocator 按传输配置创建的内存分配器, 见 {@link #newAllocator(TransportConfig)}
    */
-  public WsServer(WsServerConfig serverConfig, WebSocketHandler webSocketHandler) {
+  public WsServer(
+      WsServerConfig serverConfig, WebSocketHandler webSocketHandler, ByteBufAllocator allocator) {
     this.serverConfig = serverConfig;
     this.webSocketHandler = webSocketHandler;
+    this.allocator = allocator;
   }
 
   /**
@@ -55,19 +86,125 @@ public class WsServer {
   public void start() {
     log.debug("正在启动WS服务 addr={}", serverConfig.getAddr());
     var hap = HostAndPort.fromString(serverConfig.getAddr());
-    var routes = HttpServerRoutes.newRoutes();
+    var transport = serverConfig.getTransport();
+    var epoll = transport.isNativeEpoll() && Epoll.isAvailable();
+    var reusePortBinds = Math.max(transport.getReusePortBinds(), 1);
+    if (reusePortBinds > 1 && !epoll) {
+      log.warn("当前未使用 epoll 传输, 忽略 reuse-port-binds={} 配置", reusePortBinds);
+      reusePortBinds = 1;
+    }
+    var eventLoopThreads =
+        transport.getEventLoopThreads() > 0
+            ? transport.getEventLoopThreads()
+            : Runtime.getRuntime().availableProcessors();
+    var wiretap = Env.current() != Env.PROD;
 
+    // 写缓冲区水位线决定连接的可写状态, 会话发送队列依据可写状态缓存或写出消息
+    var queueConfig = serverConfig.getOutboundQueue();
+    var waterMark =
+        new WriteBufferWaterMark(
+            (int) queueConfig.getLowWaterMark().toBytes(),
+            (int) queueConfig.getHighWaterMark().toBytes());
+    log.info(
+        "WS传输配置 epoll={} reusePortBinds={} selectThreads={} eventLoopThreads={} soBacklog={}"
+            + " waterMark={} allocator={} maxFramePayloadLength={} wiretap={}"
+            + " flushConsolidation={} deflate={}",
+        epoll,
+        reusePortBinds,
+        transport.getSelectThreads(),
+        eventLoopThreads,
+        transport.getSoBacklog(),
+        waterMark,
+        allocator,
+        transport.getMaxFramePayloadLength(),
+        wiretap,
+        serverConfig.getFlushConsolidation(),
+        serverConfig.getDeflate());
+
+    // 声明子协议后 reactor-netty 不会为未协商出子协议的握手调用处理器
+    // 仅在客户端请求了支持的子协议时声明, 其余握手使用默认的 JSON 协议
+    var routes = HttpServerRoutes.newRoutes();
     routes.ws(
-        "/ws", webSocketHandler::handle, WebsocketServerSpec.builder().handlePing(false).build());
+        request ->
+            WS_PATH.equals(request.fullPath())
+                && ClientProtocol.isRequested(
+                    request.requestHeaders().get(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL)),
+        webSocketHandler::handle,
+        newWebsocketSpec(transport, ClientProtocol.SUBPROTOCOLS));
+    routes.ws(WS_PATH, webSocketHandler::handle, newWebsocketSpec(transport, null));
 
-    this.disposableServer =
+    this.loopResources =
+        LoopResources.create("houge-ws", transport.getSelectThreads(), eventLoopThreads, true);
+    var server =
         HttpServer.create()
             .host(hap.getHost())
             .port(hap.getPort())
-            .wiretap(true)
-            .handle(routes)
-            .bindNow();
-    log.info("WS服务启动成功 [{}]", disposableServer.address());
+            .runOn(loopResources, epoll)
+            .option(ChannelOption.SO_BACKLOG, transport.getSoBacklog())
+            .childOption(ChannelOption.ALLOCATOR, allocator)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+            .doOnChannelInit(
+                (observer, channel, remoteAddress) -> {
+                  installFlushConsolidation(
+                      channel.pipeline(), serverConfig.getFlushConsolidation());
+                  installDeflateExtension(channel.pipeline(), serverConfig.getDeflate());
+                })
+            .wiretap(wiretap)
+            .handle(routes);
+    if (reusePortBinds > 1) {
+      server = server.option(EpollChannelOption.SO_REUSEPORT, true);
+    }
+
+    var first = server.bindNow();
+    disposableServers.add(first);
+    // 端口配置为 0 时后续绑定需要使用首次绑定分配的端口
+    for (int i = 1; i < reusePortBinds; i++) {
+      disposableServers.add(server.port(first.port()).bindNow());
+    }
+    log.info("WS服务启动成功 [{}] binds={}", first.address(), disposableServers.size());
+  }
+
+  /**
+   * 按配置在 pipeline 最前端安装写合并处理器, 未开启时不做任何处理.
+   *
+   * @param pipeline 连接的 pipeline
+   * @param config 写合并配置
+   */
+  static void installFlushConsolidation(ChannelPipeline pipeline, FlushConsolidationConfig config) {
+    if (!config.isEnabled()) {
+      return;
+    }
+    pipeline.addFirst(
+        FLUSH_CONSOLIDATION_HANDLER_NAME,
+        new FlushConsolidationHandler(
+            config.getExplicitFlushAfterFlushes(), config.isConsolidateWhenNoReadInProgress()));
+  }
+
+  /**
+   * 按配置在 HTTP 编解码器之后安装 permessage-deflate 扩展协商处理器, 未开启时不做任何处理.
+   *
+   * <p>协商成功后 Netty 在 pipeline 中安装压缩编码器与解压解码器, 解码器处理客户端发送的压缩帧, 编码器只处理经过 WebSocket
+   * 编码器的帧. 预编码帧由 {@link cool.houge.ws.session.FrameDeflater} 压缩.
+   *
+   * <p>服务端的压缩使用固定的 15 位滑动窗口, 不接受客户端要求的 {@code server_max_window_bits}.
+   *
+   * @param pipeline 连接的 pipeline
+   * @param config 压缩配置
+   */
+  static void installDeflateExtension(ChannelPipeline pipeline, DeflateConfig config) {
+    if (!config.isEnabled() || pipeline.get(NettyPipeline.HttpCodec) == null) {
+      return;
+    }
+    pipeline.addAfter(
+        NettyPipeline.HttpCodec,
+        WS_EXTENSION_HANDLER_NAME,
+        new WebSocketServerExtensionHandler(
+            new PerMessageDeflateServerExtensionHandshaker(
+                config.getCompressionLevel(),
+                false,
+                config.getClientMaxWindowBits(),
+                config.isAllowServerNoContextTakeover(),
+                config.isClientNoContextTakeover())));
   }
 
   /**
@@ -76,10 +213,52 @@ public class WsServer {
    * <p>释放WS资源.
    */
   public void stop() {
-    if (this.disposableServer != null) {
-      var address = disposableServer.address();
-      this.disposableServer.disposeNow();
+    if (!this.disposableServers.isEmpty()) {
+      var address = disposableServers.get(0).address();
+      this.disposableServers.forEach(DisposableServer::disposeNow);
+      this.disposableServers.clear();
       log.info("WS服务停止成功 [{}]", address);
     }
+    if (this.loopResources != null) {
+      this.loopResources.disposeLater().block();
+    }
+  }
+
+  private static WebsocketServerSpec newWebsocketSpec(TransportConfig transport, String protocols) {
+    var builder =
+        WebsocketServerSpec.builder()
+            .handlePing(false)
+            .maxFramePayloadLength((int) transport.getMaxFramePayloadLength().toBytes());
+    if (protocols != null) {
+      builder.protocols(protocols);
+    }
+    return builder.build();
+  }
+
+  /**
+   * 按传输配置创建内存分配器.
+   *
+   * <p>连接与群发消息共享同一个分配器, 群发的预编码帧同样使用传输配置中的池化与直接内存设置.
+   *
+   * @param transport 传输配置
+   * @return 内存分配器
+   */
+  public static ByteBufAllocator newAllocator(TransportConfig transport) {
+    if (!transport.isPooledAllocator()) {
+      return new UnpooledByteBufAllocator(transport.isPreferDirect());
+    }
+    var directArenas =
+        transport.getDirectArenas() > 0
+            ? transport.getDirectArenas()
+            : PooledByteBufAllocator.defaultNumDirectArena();
+    return new PooledByteBufAllocator(
+        transport.isPreferDirect(),
+        PooledByteBufAllocator.defaultNumHeapArena(),
+        directArenas,
+        PooledByteBufAllocator.defaultPageSize(),
+        PooledByteBufAllocator.defaultMaxOrder(),
+        PooledByteBufAllocator.defaultSmallCacheSize(),
+        PooledByteBufAllocator.defaultNormalCacheSize(),
+        PooledByteBufAllocator.defaultUseCacheForAllThreads());
   }
 }
@@ -15,6 +15,10 @@
  */
 package cool.houge.ws.server;
 
+import cool.houge.ws.session.DeflateConfig;
+import cool.houge.ws.session.HeartbeatConfig;
+import cool.houge.ws.session.OutboundQueueConfig;
+import cool.houge.ws.session.RateLimitConfig;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -31,4 +35,16 @@ public class WsServerConfig {
 
   /** WebSocket服务地址. */
   private String addr;
+  /** 网络传输配置. */
+  private TransportConfig transport;
+  /** 会话发送队列配置. */
+  private OutboundQueueConfig outboundQueue;
+  /** 会话心跳配置. */
+  private HeartbeatConfig heartbeat;
+  /** 写合并配置. */
+  private FlushConsolidationConfig flushConsolidation;
+  /** 上行消息限流配置. */
+  private RateLimitConfig rateLimit;
+  /** permessage-deflate 压缩配置. */
+  private DeflateConfig deflate;
 }
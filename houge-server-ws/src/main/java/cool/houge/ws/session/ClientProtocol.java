@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+/**
+ * 客户端协议, 通过 WebSocket 子协议 {@code Sec-WebSocket-Protocol} 协商.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public enum ClientProtocol {
+  /** JSON 文本帧, 未指定子协议时的默认协议. */
+  JSON("houge.json"),
+  /** ClientPacket protobuf 二进制帧. */
+  PROTOBUF("houge.protobuf"),
+  ;
+
+  /** 服务端支持的所有子协议, 逗号分隔. */
+  public static final String SUBPROTOCOLS = JSON.subprotocol + "," + PROTOBUF.subprotocol;
+
+  private final String subprotocol;
+
+  ClientProtocol(String subprotocol) {
+    this.subprotocol = subprotocol;
+  }
+
+  /**
+   * 返回子协议名称.
+   *
+   * @return 子协议名称
+   */
+  public String subprotocol() {
+    return subprotocol;
+  }
+
+  /**
+   * 返回握手协商的子协议对应的客户端协议.
+   *
+   * @param selectedSubprotocol 协商的子协议, 可能为 {@code null}
+   * @return 客户端协议
+   */
+  public static ClientProtocol of(String selectedSubprotocol) {
+    return PROTOBUF.subprotocol.equals(selectedSubprotocol) ? PROTOBUF : JSON;
+  }
+
+  /**
+   * 判断客户端握手请求的子协议中是否包含服务端支持的子协议.
+   *
+   * @param requestedSubprotocols 请求头 {@code Sec-WebSocket-Protocol} 的值, 逗号分隔, 可能为 {@code null}
+   * @return 包含支持的子协议返回 {@code true}
+   */
+  public static boolean isRequested(String requestedSubprotocols) {
+    if (requestedSubprotocols == null || requestedSubprotocols.isEmpty()) {
+      return false;
+    }
+    for (String s : requestedSubprotocols.split(",")) {
+      var name = s.trim();
+      if (JSON.subprotocol.equals(name) || PROTOBUF.subprotocol.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -15,14 +15,12 @@
  */
 package cool.houge.ws.session;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import io.netty.buffer.ByteBuf;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import java.net.InetAddress;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicLong;
 import reactor.core.publisher.Mono;
 import reactor.netty.http.server.HttpServerRequest;
@@ -32,21 +30,38 @@ import reactor.netty.http.websocket.WebsocketOutbound;
 /**
  * 默认会话实现.
  *
+ * <p>为了支持单节点百万连接, 会话对象只保留必要的字段:
+ *
+ * <ul>
+ *   <li>订阅的群组 IDs 使用升序的 {@code long[]} 存储, 修改时复制
+ *   <li>不保留访问令牌
+ *   <li>IPv4 客户端地址编码为 {@code int}, 其它地址使用驻留的字符串
+ * </ul>
+ *
  * @author KK (kzou227@qq.com)
  */
 public final class DefaultSession implements Session {
 
   private static final AtomicLong SESSION_ID_SEQ = new AtomicLong();
+  /** 非 IPv4 客户端地址的驻留池, 同一 NAT 后的大量连接共享同一个字符串. */
+  private static final Interner<String> ADDRESS_INTERNER = Interners.newWeakInterner();
+  private static final String UNKNOWN_ADDRESS = "[UNKNOWN]";
 
-  final WebsocketInbound inbound;
   final WebsocketOutbound outbound;
+  // 有界发送队列, 所有下行数据都经过该队列
+  private final OutboundQueue outboundQueue;
   final long uid;
-  final String token;
   final long sessionId;
-  final Set<Long> subGroupIds;
+  private final ClientProtocol protocol;
+  // 升序排列的群组 IDs, 数组发布后不再修改
+  private volatile long[] subGroupIds = SortedLongArrays.EMPTY;
+  // 客户端最近一次活跃的时间, System.nanoTime()
+  private volatile long lastActiveTime = System.nanoTime();
 
-  // 客户端IP临时变量
-  private String clientIp;
+  // IPv4 编码后的客户端地址, 仅在 clientAddress 为 null 时有效
+  private final int clientIpv4;
+  // 非 IPv4 的客户端地址
+  private final String clientAddress;
 
   /**
    * 使用用户认证信息与WebSocket输入输出流构造对象.
@@ -54,16 +69,61 @@ public final class DefaultSession implements Session {
    * @param inbound WS输入流
    * @param outbound WS输出流
    * @param uid 认证用户ID
-   * @param token 访问令牌
+   * @param queueConfig 发送队列配置
    */
   public DefaultSession(
-      WebsocketInbound inbound, WebsocketOutbound outbound, long uid, String token) {
-    this.inbound = inbound;
+      WebsocketInbound inbound,
+      WebsocketOutbound outbound,
+      long uid,
+      OutboundQueueConfig queueConfig) {
+    this(
+        outbound,
+        uid,
+        ((HttpServerRequest) inbound).remoteAddress(),
+        ClientProtocol.of(inbound.selectedSubprotocol()),
+        queueConfig);
+  }
+
+  /**
+   * 使用用户认证信息与客户端地址构造对象.
+   *
+   * @param outbound WS输出流
+   * @param uid 认证用户ID
+   * @param remoteAddress 客户端地址
+   * @param protocol 客户端协议
+   * @param queueConfig 发送队列配置
+   */
+  DefaultSession(
+      WebsocketOutbound outbound,
+      long uid,
+      InetSocketAddress remoteAddress,
+      ClientProtocol protocol,
+      OutboundQueueConfig queueConfig) {
     this.outbound = outbound;
+    var queues = new OutboundQueue[1];
+    if (outbound != null) {
+      outbound.withConnection(
+          connection -> {
+            queues[0] = new OutboundQueue(connection.channel(), queueConfig);
+            connection.addHandlerLast(OutboundQueue.HANDLER_NAME, queues[0]);
+          });
+    }
+    this.outboundQueue = queues[0];
     this.uid = uid;
-    this.token = token;
     this.sessionId = SESSION_ID_SEQ.incrementAndGet();
-    this.subGroupIds = new CopyOnWriteArraySet<>();
+    this.protocol = protocol;
+
+    var address = remoteAddress == null ? null : remoteAddress.getAddress();
+    if (address instanceof Inet4Address) {
+      var b = address.getAddress();
+      this.clientIpv4 =
+          ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+      this.clientAddress = null;
+    } else {
+      this.clientIpv4 = 0;
+      this.clientAddress =
+          address == null ? UNKNOWN_ADDRESS : ADDRESS_INTERNER.intern(address.getHostAddress());
+    }
   }
 
   @Override
@@ -77,13 +137,43 @@ public final class DefaultSession implements Session {
   }
 
   @Override
-  public String token() {
-    return this.token;
+  public long[] subGroupIds() {
+    return this.subGroupIds;
   }
 
   @Override
-  public Set<Long> subGroupIds() {
-    return this.subGroupIds;
+  public boolean isSubGroup(long gid) {
+    return SortedLongArrays.contains(this.subGroupIds, gid);
+  }
+
+  @Override
+  public synchronized long[] addSubGroupIds(long... gids) {
+    var current = this.subGroupIds;
+    var added = SortedLongArrays.difference(SortedLongArrays.sortedDistinct(gids), current);
+    if (added.length > 0) {
+      this.subGroupIds = SortedLongArrays.union(current, added);
+    }
+    return added;
+  }
+
+  @Override
+  public synchronized long[] removeSubGroupIds(long... gids) {
+    var current = this.subGroupIds;
+    var removed = SortedLongArrays.intersection(current, SortedLongArrays.sortedDistinct(gids));
+    if (removed.length > 0) {
+      this.subGroupIds = SortedLongArrays.difference(current, removed);
+    }
+    return removed;
+  }
+
+  @Override
+  public void markActive(long nanoTime) {
+    this.lastActiveTime = nanoTime;
+  }
+
+  @Override
+  public long lastActiveTime() {
+    return this.lastActiveTime;
   }
 
   @Override
@@ -93,9 +183,28 @@ public final class DefaultSession implements Session {
     return closed[0];
   }
 
+  @Override
+  public ClientProtocol protocol() {
+    return this.protocol;
+  }
+
+  @Override
+  public OutboundQueue outboundQueue() {
+    return this.outboundQueue;
+  }
+
   @Override
   public Mono<Void> send(Mono<ByteBuf> source) {
-    return outbound.sendObject(source.map(TextWebSocketFrame::new)).then();
+    return source
+        .doOnNext(
+            payload -> {
+              if (outboundQueue == null) {
+                payload.release();
+                return;
+              }
+              outboundQueue.send(SharedFrames.textFrame(outbound.alloc(), payload));
+            })
+        .then();
   }
 
   @Override
@@ -115,6 +224,9 @@ public final class DefaultSession implements Session {
         .append(", ")
         .append("clientIp=")
         .append(getClientIp())
+        .append(", ")
+        .append("protocol=")
+        .append(protocol)
         .append("}")
         .toString();
   }
@@ -137,14 +249,18 @@ public final class DefaultSession implements Session {
   }
 
   private String getClientIp() {
-    if (this.clientIp == null) {
-      HttpServerRequest request = (HttpServerRequest) inbound;
-      this.clientIp =
-          Optional.ofNullable(request.remoteAddress())
-              .map(InetSocketAddress::getAddress)
-              .map(InetAddress::getHostAddress)
-              .orElse("[UNKNOWN]");
+    if (this.clientAddress != null) {
+      return this.clientAddress;
     }
-    return this.clientIp;
+    var ip = this.clientIpv4;
+    return new StringBuilder(15)
+        .append(ip >>> 24)
+        .append('.')
+        .append((ip >>> 16) & 0xff)
+        .append('.')
+        .append((ip >>> 8) & 0xff)
+        .append('.')
+        .append(ip & 0xff)
+        .toString();
   }
 }
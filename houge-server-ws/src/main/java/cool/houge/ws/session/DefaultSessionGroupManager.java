@@ -15,43 +15,83 @@
  */
 package cool.houge.ws.session;
 
-import com.github.benmanes.caffeine.cache.AsyncCache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.primitives.Longs;
 import java.util.Collection;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import javax.inject.Inject;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
 /**
- * 默认会话群组管理器实现类.
+ * 默认会话群组管理器实现.
+ *
+ * <p>每个会话被分配一个紧凑的 {@code int} 槽位, 群组的订阅者以槽位的形式存储在 {@link RoaringBitmap} 中, 订阅与取消订阅的复杂度为
+ * {@code O(log n)}. 群组索引按群组 ID 分段加锁, 查询时使用只读的位图快照, 快照在群组订阅者变更后的首次查询时重建.
+ *
+ * <p>群组的首个订阅者加入与最后一个订阅者离开时在分段的写锁内回调 {@link GroupInterestListener}.
  *
  * @author KK (kzou227@qq.com)
  */
 public class DefaultSessionGroupManager implements SessionGroupManager {
 
-  // 缓存组 Session
-  private final AsyncCache<Long, CopyOnWriteArrayList<Session>> groupSessions =
-      Caffeine.newBuilder().buildAsync();
+  // 包级可见, 供测试校验槽位的分配与释放
+  final SessionSlotTable slotTable = new SessionSlotTable();
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final GroupInterestListener groupInterestListener;
+
+  /** 使用默认的分段数构造对象. */
+  public DefaultSessionGroupManager() {
+    this(GroupInterestListener.NOOP);
+  }
+
+  /**
+   * 使用默认的分段数与群组订阅监听器构造对象.
+   *
+   * @param groupInterestListener 群组订阅监听器
+   */
+  @Inject
+  public DefaultSessionGroupManager(GroupInterestListener groupInterestListener) {
+    this(Runtime.getRuntime().availableProcessors() * 4, groupInterestListener);
+  }
+
+  /**
+   * 使用指定的分段数构造对象.
+   *
+   * @param concurrencyLevel 并发级别, 会被调整为 2 的幂
+   */
+  public DefaultSessionGroupManager(int concurrencyLevel) {
+    this(concurrencyLevel, GroupInterestListener.NOOP);
+  }
+
+  /**
+   * 使用指定的分段数与群组订阅监听器构造对象.
+   *
+   * @param concurrencyLevel 并发级别, 会被调整为 2 的幂
+   * @param groupInterestListener 群组订阅监听器
+   */
+  public DefaultSessionGroupManager(
+      int concurrencyLevel, GroupInterestListener groupInterestListener) {
+    var n = Integer.highestOneBit(Math.max(concurrencyLevel, 1) - 1) << 1;
+    n = Math.max(n, 1);
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.stripeMask = n - 1;
+    this.groupInterestListener = groupInterestListener;
+  }
 
   @Override
   public Mono<Void> subGroups(Session session, Collection<Long> groupIds) {
     if (groupIds == null || groupIds.isEmpty()) {
       return Mono.empty();
     }
-    return Flux.fromIterable(groupIds)
-        .flatMapSequential(
-            groupId ->
-                Mono.fromFuture(groupSessions.get(groupId, key -> new CopyOnWriteArrayList<>()))
-                    .map(
-                        sessions -> {
-                          session.subGroupIds().add(groupId);
-                          return sessions.addIfAbsent(session);
-                        }))
-        // 将所有 subGroups/unsubGroups 操作放置在同一个线程中执行，避免使用额外的 Lock
-        .subscribeOn(Schedulers.single())
-        .publishOn(Schedulers.parallel())
-        .then();
+    return Mono.fromRunnable(() -> subGroups0(session, groupIds));
   }
 
   @Override
@@ -59,40 +99,197 @@ public class DefaultSessionGroupManager implements SessionGroupManager {
     if (gids == null || gids.isEmpty()) {
       return Mono.empty();
     }
-
-    return Flux.fromIterable(gids)
-        .flatMapSequential(
-            gid -> {
-              var f = groupSessions.getIfPresent(gid);
-              if (f == null) {
-                return Mono.empty();
-              }
-              return Mono.fromFuture(f)
-                  .doOnNext(
-                      set -> {
-                        session.subGroupIds().remove(gid);
-                        set.remove(session);
-                        // 如果 group 中没有 session 则从缓存中删除
-                        if (set.isEmpty()) {
-                          groupSessions.synchronous().invalidate(gid);
-                        }
-                      });
-            })
-        // 将所有 subGroups/unsubGroups 操作放置在同一个线程中执行，避免使用额外的 Lock
-        .subscribeOn(Schedulers.single())
-        .publishOn(Schedulers.parallel())
-        .then();
+    return Mono.fromRunnable(() -> unsubGroups0(session, gids));
   }
 
   @Override
   public Flux<Session> findByGroupId(long groupId) {
     return Flux.defer(
         () -> {
-          var cf = groupSessions.getIfPresent(groupId);
-          if (cf == null) {
+          var snapshot = snapshot(groupId);
+          if (snapshot == null) {
             return Flux.empty();
           }
-          return Mono.fromFuture(cf).flatMapMany(Flux::fromIterable);
+          return Flux.fromIterable(() -> new SessionIterator(snapshot.getIntIterator(), groupId));
         });
   }
+
+  void subGroups0(Session session, Collection<Long> groupIds) {
+    var gids = Longs.toArray(groupIds);
+    for (; ; ) {
+      var slot = slotTable.acquire(session);
+      synchronized (slot) {
+        // 槽位在获取后被并发释放, 重新获取
+        if (slot.released) {
+          continue;
+        }
+        for (long gid : session.addSubGroupIds(gids)) {
+          addSlot(gid, slot.index);
+        }
+        // 没有新增群组且会话未订阅任何群组时槽位不被任何群组引用, 立即释放
+        if (session.subGroupIds().length == 0) {
+          slotTable.release(session, slot);
+        }
+        return;
+      }
+    }
+  }
+
+  void unsubGroups0(Session session, Collection<Long> groupIds) {
+    var slot = slotTable.get(session);
+    if (slot == null) {
+      return;
+    }
+    var gids = Longs.toArray(groupIds);
+    synchronized (slot) {
+      if (slot.released) {
+        return;
+      }
+      for (long gid : session.removeSubGroupIds(gids)) {
+        removeSlot(gid, slot.index);
+      }
+      // 会话不再订阅任何群组时释放槽位
+      if (session.subGroupIds().length == 0) {
+        slotTable.release(session, slot);
+      }
+    }
+  }
+
+  /**
+   * 返回群组订阅者的只读快照.
+   *
+   * @param groupId 群组 ID
+   * @return 快照, 群组无订阅者时返回 {@code null}
+   */
+  RoaringBitmap snapshot(long groupId) {
+    var stripe = stripeFor(groupId);
+    var lock = stripe.lock;
+    var stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      GroupSubscribers subscribers = null;
+      RoaringBitmap snapshot = null;
+      try {
+        subscribers = stripe.groups.get(groupId);
+        snapshot = subscribers == null ? null : subscribers.snapshot;
+      } catch (RuntimeException e) {
+        // 乐观读期间发生并发修改, 由 validate 判定并回退到读锁
+      }
+      if (lock.validate(stamp) && (subscribers == null || snapshot != null)) {
+        return snapshot;
+      }
+    }
+
+    stamp = lock.readLock();
+    try {
+      var subscribers = stripe.groups.get(groupId);
+      if (subscribers == null) {
+        return null;
+      }
+      var snapshot = subscribers.snapshot;
+      if (snapshot == null) {
+        // 读锁内没有写操作, 多个读线程并发重建快照的结果是一致的
+        snapshot = subscribers.slots.clone();
+        subscribers.snapshot = snapshot;
+      }
+      return snapshot;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private void addSlot(long gid, int slot) {
+    var stripe = stripeFor(gid);
+    var stamp = stripe.lock.writeLock();
+    try {
+      var subscribers = stripe.groups.get(gid);
+      if (subscribers == null) {
+        subscribers = new GroupSubscribers();
+        stripe.groups.put(gid, subscribers);
+        groupInterestListener.onSubscribed(gid);
+      }
+      if (subscribers.slots.checkedAdd(slot)) {
+        subscribers.snapshot = null;
+      }
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  private void removeSlot(long gid, int slot) {
+    var stripe = stripeFor(gid);
+    var stamp = stripe.lock.writeLock();
+    try {
+      var subscribers = stripe.groups.get(gid);
+      if (subscribers == null) {
+        return;
+      }
+      if (subscribers.slots.checkedRemove(slot)) {
+        subscribers.snapshot = null;
+      }
+      // 如果 group 中没有 session 则删除
+      if (subscribers.slots.isEmpty()) {
+        stripe.groups.remove(gid);
+        groupInterestListener.onUnsubscribed(gid);
+      }
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  private Stripe stripeFor(long gid) {
+    var h = (int) (gid ^ (gid >>> 32));
+    h ^= h >>> 16;
+    return stripes[h & stripeMask];
+  }
+
+  /** 群组索引分段. */
+  private static final class Stripe {
+
+    final StampedLock lock = new StampedLock();
+    // 群组ID->订阅者
+    final LongObjectHashMap<GroupSubscribers> groups = new LongObjectHashMap<>();
+  }
+
+  /** 群组订阅者. */
+  private static final class GroupSubscribers {
+
+    // 订阅群组的会话槽位, 仅在分段写锁内修改
+    final RoaringBitmap slots = new RoaringBitmap();
+    // 只读快照, 订阅者变更后置为 null
+    volatile RoaringBitmap snapshot;
+  }
+
+  /** 将快照中的槽位转换为会话, 并过滤槽位复用产生的非订阅会话. */
+  private final class SessionIterator implements Iterator<Session> {
+
+    private final IntIterator slots;
+    private final long gid;
+    private Session next;
+
+    SessionIterator(IntIterator slots, long gid) {
+      this.slots = slots;
+      this.gid = gid;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && slots.hasNext()) {
+        var s = slotTable.session(slots.next());
+        if (s != null && s.isSubGroup(gid)) {
+          next = s;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Session next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      var s = next;
+      next = null;
+      return s;
+    }
+  }
 }
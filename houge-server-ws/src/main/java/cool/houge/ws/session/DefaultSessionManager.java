@@ -15,126 +15,241 @@
  */
 package cool.houge.ws.session;
 
-import com.github.benmanes.caffeine.cache.AsyncCache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import io.micrometer.core.instrument.Metrics;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import javax.inject.Inject;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
 /**
  * 默认会话管理器实现.
  *
+ * <p>会话按用户 ID 分段存储, 每个分段持有一个以 {@code long} 为键的哈希表 {@code uid -> Session[]} 与一把 {@link
+ * StampedLock}. 写操作只锁定用户所在的分段, 读操作优先使用乐观读, 所有操作均在调用线程上同步完成.
+ *
+ * <p>用户的首个会话加入与最后一个会话移除时在分段的写锁内回调 {@link PresenceListener}, 保证同一用户的在线状态事件有序.
+ * 每个会话加入与移除时在分段的写锁内回调 {@link ProtocolListener}. 会话加入后等待 {@link
+ * PresenceListener#awaitOnline(long)} 完成, 调用方在此之后才开始接收会话的消息.
+ *
  * @author KK (kzou227@qq.com)
  */
 public class DefaultSessionManager implements SessionManager {
 
-  // Session 记数器
-  private final AtomicInteger sessionCounter =
-      Metrics.gauge("tethys.ws.session.counts", new AtomicInteger(0));
-  // 会话缓存
-  private final AsyncCache<Long, Session> sessionCache = Caffeine.newBuilder().buildAsync();
-  // 用户->会话缓存
-  private final AsyncCache<Long, CopyOnWriteArrayList<Session>> uidSessionCache =
-      Caffeine.newBuilder().buildAsync();
+  private static final Session[] EMPTY_SESSIONS = new Session[0];
+
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final PresenceListener presenceListener;
+  private final ProtocolListener protocolListener;
+
+  /** 使用默认的分段数构造不监听用户在线状态与会话协议的对象, 用于测试与基准测试. */
+  public DefaultSessionManager() {
+    this(PresenceListener.NOOP, ProtocolListener.NOOP);
+  }
+
+  /**
+   * 使用用户在线状态监听器与会话协议监听器构造对象.
+   *
+   * <p>分段数为 CPU 核数的 4 倍.
+   *
+   * @param presenceListener 用户在线状态监听器
+   * @param protocolListener 会话协议监听器
+   */
+  @Inject
+  public DefaultSessionManager(
+      PresenceListener presenceListener, ProtocolListener protocolListener) {
+    var concurrencyLevel = Runtime.getRuntime().availableProcessors() * 4;
+    var n = Integer.highestOneBit(Math.max(concurrencyLevel, 1) - 1) << 1;
+    n = Math.max(n, 1);
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.stripeMask = n - 1;
+    this.presenceListener = presenceListener;
+    this.protocolListener = protocolListener;
+    // Session 记数器
+    Metrics.gauge("tethys.ws.session.counts", this, DefaultSessionManager::size);
+  }
 
   @Override
   public Mono<Void> add(Session session) {
-    return Mono.fromFuture(() -> sessionCache.get(session.sessionId(), unused -> session))
-        .flatMap(
-            s ->
-                Mono.fromFuture(
-                    uidSessionCache.get(session.uid(), unused -> new CopyOnWriteArrayList<>())))
-        .doOnNext(
-            list -> {
-              list.add(session);
-              // 增加会话数量
-              sessionCounter.incrementAndGet();
-            })
-        // 将所有add/remove操作放置在同一个线程中执行，避免使用额外的Lock
-        .subscribeOn(Schedulers.single())
-        .publishOn(Schedulers.parallel())
-        .then();
+    // 用户的其它会话仍在等待确认时同样需要等待
+    return Mono.defer(
+        () -> {
+          add0(session);
+          return presenceListener.awaitOnline(session.uid());
+        });
   }
 
   @Override
   public Mono<Void> remove(Session session) {
-    return Mono.defer(
-            () -> {
-              // 删除会话缓存
-              sessionCache.synchronous().invalidate(session.sessionId());
-              var f = uidSessionCache.getIfPresent(session.uid());
-              if (f == null) {
-                return Mono.empty();
-              }
-              return Mono.fromCompletionStage(f);
-            })
-        .doOnNext(
-            list -> {
-              // 删除用户的会话缓存
-              list.remove(session);
-              if (list.isEmpty()) {
-                uidSessionCache.synchronous().invalidate(session.uid());
-              }
-              // 减少会话数量
-              sessionCounter.decrementAndGet();
-            })
-        // 将所有add/remove操作放置在同一个线程中执行，避免使用额外的Lock
-        .subscribeOn(Schedulers.single())
-        .publishOn(Schedulers.parallel())
-        .then();
+    return Mono.fromRunnable(() -> remove0(session));
   }
 
   @Override
   public Flux<Session> removeByUid(long uid) {
-    return Mono.defer(
-            () -> {
-              var f = uidSessionCache.getIfPresent(uid);
-              if (f == null) {
-                return Mono.empty();
-              }
-              return Mono.fromFuture(f);
-            })
-        .doOnNext(
-            list -> {
-              // 删除用户的会话删除
-              uidSessionCache.synchronous().invalidate(uid);
-              if (!list.isEmpty()) {
-                // 删除会话缓存
-                sessionCache
-                    .synchronous()
-                    .invalidateAll(
-                        list.stream().map(Session::sessionId).collect(Collectors.toList()));
-                // 减少会话数量
-                sessionCounter.addAndGet(-list.size());
-              }
-            })
-        // 将所有add/remove操作放置在同一个线程中执行，避免使用额外的Lock
-        .subscribeOn(Schedulers.single())
-        .publishOn(Schedulers.parallel())
-        .flatMapMany(Flux::fromIterable);
+    return Flux.defer(() -> Flux.fromArray(removeByUid0(uid)));
   }
 
   @Override
   public Flux<Session> findByUid(long uid) {
-    return Mono.defer(
-            () -> {
-              var f = uidSessionCache.getIfPresent(uid);
-              if (f == null) {
-                return Mono.empty();
-              }
-              return Mono.fromCompletionStage(f);
-            })
-        .flatMapMany(Flux::fromIterable);
+    return Flux.defer(() -> Flux.fromArray(findByUid0(uid)));
   }
 
   @Override
   public Flux<Session> all() {
-    return Mono.fromSupplier(() -> sessionCache.asMap().values())
-        .flatMapMany(Flux::fromIterable)
-        .flatMap(Mono::fromCompletionStage);
+    return Flux.defer(() -> Flux.fromIterable(all0()));
+  }
+
+  /**
+   * 返回当前会话数量.
+   *
+   * @return 会话数量
+   */
+  public int size() {
+    var n = 0;
+    for (Stripe stripe : stripes) {
+      // 计数器仅在写锁内修改, 用于监控的读取不需要严格一致
+      n += stripe.sessionCount;
+    }
+    return n;
+  }
+
+  void add0(Session session) {
+    var uid = session.uid();
+    var stripe = stripeFor(uid);
+    var stamp = stripe.lock.writeLock();
+    try {
+      var sessions = stripe.uidSessions.get(uid);
+      if (sessions == null) {
+        stripe.uidSessions.put(uid, new Session[] {session});
+        presenceListener.onOnline(uid);
+      } else {
+        for (Session s : sessions) {
+          if (s == session) {
+            return;
+          }
+        }
+        var newSessions = Arrays.copyOf(sessions, sessions.length + 1);
+        newSessions[sessions.length] = session;
+        stripe.uidSessions.put(uid, newSessions);
+      }
+      stripe.sessionCount++;
+      protocolListener.onSessionAdded(session.protocol());
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  void remove0(Session session) {
+    var uid = session.uid();
+    var stripe = stripeFor(uid);
+    var stamp = stripe.lock.writeLock();
+    try {
+      var sessions = stripe.uidSessions.get(uid);
+      if (sessions == null) {
+        return;
+      }
+      var idx = -1;
+      for (int i = 0; i < sessions.length; i++) {
+        if (sessions[i] == session) {
+          idx = i;
+          break;
+        }
+      }
+      if (idx < 0) {
+        return;
+      }
+      if (sessions.length == 1) {
+        stripe.uidSessions.remove(uid);
+        presenceListener.onOffline(uid);
+      } else {
+        var newSessions = new Session[sessions.length - 1];
+        System.arraycopy(sessions, 0, newSessions, 0, idx);
+        System.arraycopy(sessions, idx + 1, newSessions, idx, sessions.length - idx - 1);
+        stripe.uidSessions.put(uid, newSessions);
+      }
+      stripe.sessionCount--;
+      protocolListener.onSessionRemoved(session.protocol());
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  Session[] removeByUid0(long uid) {
+    var stripe = stripeFor(uid);
+    var stamp = stripe.lock.writeLock();
+    try {
+      var sessions = stripe.uidSessions.remove(uid);
+      if (sessions == null) {
+        return EMPTY_SESSIONS;
+      }
+      presenceListener.onOffline(uid);
+      stripe.sessionCount -= sessions.length;
+      for (Session session : sessions) {
+        protocolListener.onSessionRemoved(session.protocol());
+      }
+      return sessions;
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  Session[] findByUid0(long uid) {
+    var stripe = stripeFor(uid);
+    var lock = stripe.lock;
+    var stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      Session[] sessions = null;
+      try {
+        sessions = stripe.uidSessions.get(uid);
+      } catch (RuntimeException e) {
+        // 乐观读期间发生并发修改, 由 validate 判定并回退到读锁
+      }
+      if (lock.validate(stamp)) {
+        return sessions == null ? EMPTY_SESSIONS : sessions;
+      }
+    }
+
+    stamp = lock.readLock();
+    try {
+      var sessions = stripe.uidSessions.get(uid);
+      return sessions == null ? EMPTY_SESSIONS : sessions;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  List<Session> all0() {
+    var list = new ArrayList<Session>(size());
+    for (Stripe stripe : stripes) {
+      var stamp = stripe.lock.readLock();
+      try {
+        stripe.uidSessions.forEachValue(sessions -> list.addAll(Arrays.asList(sessions)));
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+    }
+    return list;
+  }
+
+  private Stripe stripeFor(long uid) {
+    var h = (int) (uid ^ (uid >>> 32));
+    h ^= h >>> 16;
+    return stripes[h & stripeMask];
+  }
+
+  /** 会话分段. */
+  private static final class Stripe {
+
+    final StampedLock lock = new StampedLock();
+    // 用户->会话, 数组为不可变对象, 修改时复制
+    final LongObjectHashMap<Session[]> uidSessions = new LongObjectHashMap<>();
+    // 分段内的会话数量
+    int sessionCount;
   }
 }
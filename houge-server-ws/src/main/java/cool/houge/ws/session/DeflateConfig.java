@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import com.typesafe.config.ConfigMemorySize;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * WebSocket permessage-deflate 压缩配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class DeflateConfig {
+
+  /** 是否允许客户端协商 permessage-deflate 扩展, 默认关闭. */
+  private boolean enabled;
+  /** 压缩级别 0-9. */
+  private int compressionLevel;
+  /** 负载小于该值的帧不压缩. */
+  private ConfigMemorySize minPayloadSize;
+  /** 建议客户端使用的最大滑动窗口位数 8-15, 较小的值可以降低服务端解压的内存. */
+  private int clientMaxWindowBits;
+  /** 是否要求客户端每条消息使用独立的压缩上下文. */
+  private boolean clientNoContextTakeover;
+  /** 是否接受客户端要求的服务端不复用压缩上下文. */
+  private boolean allowServerNoContextTakeover;
+}
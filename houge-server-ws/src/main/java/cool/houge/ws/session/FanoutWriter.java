@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 预编码帧的扇出写入器.
+ *
+ * <p>将同一个预编码帧写入多个会话时, 按会话所属的 {@link EventLoop} 分组, 每个 {@link EventLoop} 只提交一个任务. 任务内先将帧的 {@link
+ * ByteBuf#retainedDuplicate()} 放入所有会话的 {@link OutboundQueue}, 最后统一 flush, 不再为每个会话创建 Reactor 订阅.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class FanoutWriter {
+
+  private static final Logger log = LogManager.getLogger();
+
+  /**
+   * 将预编码帧写入会话.
+   *
+   * <p>方法会接管 {@code frame} 的引用计数, 调用方不需要再释放.
+   *
+   * @param sessions 会话列表
+   * @param frame 使用 {@link SharedFrames} 编码的完整帧
+   */
+  public void write(List<Session> sessions, ByteBuf frame) {
+    try {
+      if (sessions.size() == 1) {
+        var queue = sessions.get(0).outboundQueue();
+        if (queue != null) {
+          submit(queue.eventLoop(), List.of(queue), frame);
+        }
+        return;
+      }
+
+      var groups = new IdentityHashMap<EventLoop, List<OutboundQueue>>();
+      for (Session session : sessions) {
+        var queue = session.outboundQueue();
+        if (queue == null) {
+          continue;
+        }
+        groups.computeIfAbsent(queue.eventLoop(), unused -> new ArrayList<>()).add(queue);
+      }
+      groups.forEach((eventLoop, queues) -> submit(eventLoop, queues, frame));
+    } finally {
+      frame.release();
+    }
+  }
+
+  private void submit(EventLoop eventLoop, List<OutboundQueue> queues, ByteBuf frame) {
+    frame.retain();
+    try {
+      eventLoop.execute(() -> writeAndFlush(queues, frame));
+    } catch (RuntimeException e) {
+      frame.release();
+      log.error("提交扇出写入任务失败 sessions={}", queues.size(), e);
+    }
+  }
+
+  private void writeAndFlush(List<OutboundQueue> queues, ByteBuf frame) {
+    try {
+      for (OutboundQueue queue : queues) {
+        queue.offer(frame.retainedDuplicate());
+      }
+      for (OutboundQueue queue : queues) {
+        queue.flush();
+      }
+    } finally {
+      frame.release();
+    }
+  }
+}
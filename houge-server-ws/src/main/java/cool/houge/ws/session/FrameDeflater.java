@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import javax.inject.Inject;
+
+/**
+ * permessage-deflate 帧压缩.
+ *
+ * <p>预编码帧不经过 Netty 的 WebSocket 压缩编码器, 由该类直接编码为压缩帧. 每条消息使用重置后的 {@link Deflater} 独立压缩, 不依赖之前的压缩上下文,
+ * 因此无论客户端协商的上下文复用参数如何, 同一条消息压缩后的帧对所有会话都是相同的, 群发时只需要压缩一次.
+ *
+ * <p>每个线程复用一个 {@link Deflater} 与输出缓冲区. 负载小于阈值或压缩后没有变小的帧以未压缩的形式发送.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class FrameDeflater {
+
+  /** 同步刷新时 DEFLATE 输出末尾的空块, 按 RFC 7692 发送前需要移除. */
+  private static final int TAIL_LENGTH = 4;
+
+  private static final Counter SKIPPED_SMALL = skippedCounter("small");
+  private static final Counter SKIPPED_INCOMPRESSIBLE = skippedCounter("incompressible");
+  private static final DistributionSummary RATIO =
+      DistributionSummary.builder("tethys.ws.deflate.ratio")
+          .description("压缩后与压缩前的字节数比值")
+          .publishPercentiles(0.5, 0.9)
+          .register(Metrics.globalRegistry);
+  private static final Counter BYTES_IN = Metrics.counter("tethys.ws.deflate.bytes.in");
+  private static final Counter BYTES_OUT = Metrics.counter("tethys.ws.deflate.bytes.out");
+  private static final Timer DEFLATE_TIME =
+      Timer.builder("tethys.ws.deflate.time")
+          .description("压缩单个帧的耗时")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+
+  private final boolean enabled;
+  private final int minPayloadSize;
+  private final ThreadLocal<State> states;
+
+  /**
+   * 使用压缩配置构造对象.
+   *
+   * @param config 压缩配置
+   */
+  @Inject
+  public FrameDeflater(DeflateConfig config) {
+    this.enabled = config.isEnabled();
+    this.minPayloadSize = (int) config.getMinPayloadSize().toBytes();
+    var level = config.getCompressionLevel();
+    this.states = ThreadLocal.withInitial(() -> new State(level));
+  }
+
+  /**
+   * 按会话的客户端协议与压缩协商结果编码帧.
+   *
+   * @param alloc 内存分配器
+   * @param session 会话
+   * @param payload 负载, 调用后 position 不会改变
+   * @return 完整的帧
+   */
+  public ByteBuf frame(ByteBufAllocator alloc, Session session, ByteBuffer payload) {
+    var queue = session.outboundQueue();
+    return frame(alloc, session.protocol(), queue != null && queue.isDeflate(), payload);
+  }
+
+  /**
+   * 编码帧.
+   *
+   * @param alloc 内存分配器
+   * @param protocol 客户端协议
+   * @param deflate 接收帧的连接是否已协商 permessage-deflate
+   * @param payload 负载, 调用后 position 不会改变
+   * @return 完整的帧
+   */
+  public ByteBuf frame(
+      ByteBufAllocator alloc, ClientProtocol protocol, boolean deflate, ByteBuffer payload) {
+    if (!enabled || !deflate) {
+      return SharedFrames.frame(alloc, protocol, payload);
+    }
+    var len = payload.remaining();
+    if (len < minPayloadSize) {
+      SKIPPED_SMALL.increment();
+      return SharedFrames.frame(alloc, protocol, payload);
+    }
+
+    var startTime = System.nanoTime();
+    var state = states.get();
+    var compressedLength = state.deflate(payload.duplicate());
+    DEFLATE_TIME.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+    if (compressedLength >= len) {
+      SKIPPED_INCOMPRESSIBLE.increment();
+      return SharedFrames.frame(alloc, protocol, payload);
+    }
+    BYTES_IN.increment(len);
+    BYTES_OUT.increment(compressedLength);
+    RATIO.record((double) compressedLength / len);
+    return SharedFrames.encodeCompressed(
+        alloc, SharedFrames.opcode(protocol), state.buffer, compressedLength);
+  }
+
+  private static Counter skippedCounter(String reason) {
+    return Counter.builder("tethys.ws.deflate.skipped")
+        .description("未压缩的帧数")
+        .tag("reason", reason)
+        .register(Metrics.globalRegistry);
+  }
+
+  /** 线程独享的压缩状态. */
+  private static final class State {
+
+    final Deflater deflater;
+    byte[] buffer = new byte[4096];
+
+    State(int level) {
+      this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * 压缩负载并移除末尾的空块.
+     *
+     * @return 压缩后的字节数, 数据在 {@link #buffer} 中
+     */
+    int deflate(ByteBuffer input) {
+      deflater.setInput(input);
+      var n = 0;
+      for (; ; ) {
+        n += deflater.deflate(buffer, n, buffer.length - n, Deflater.SYNC_FLUSH);
+        // 输出缓冲区未写满时同步刷新已完成
+        if (n < buffer.length) {
+          break;
+        }
+        var newBuffer = new byte[buffer.length << 1];
+        System.arraycopy(buffer, 0, newBuffer, 0, n);
+        buffer = newBuffer;
+      }
+      deflater.reset();
+      return n - TAIL_LENGTH;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+/**
+ * 群组订阅监听器.
+ *
+ * <p>群组在当前节点的首个会话订阅时回调 {@link #onSubscribed(long)}, 最后一个会话取消订阅时回调 {@link #onUnsubscribed(long)}.
+ * 同一群组的事件按发生的顺序在持有群组索引锁的线程上同步回调, 实现不能阻塞.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public interface GroupInterestListener {
+
+  /** 不做任何处理的监听器. */
+  GroupInterestListener NOOP =
+      new GroupInterestListener() {
+        @Override
+        public void onSubscribed(long gid) {
+          // noop
+        }
+
+        @Override
+        public void onUnsubscribed(long gid) {
+          // noop
+        }
+      };
+
+  /**
+   * 当前节点开始订阅群组.
+   *
+   * @param gid 群组 ID
+   */
+  void onSubscribed(long gid);
+
+  /**
+   * 当前节点不再订阅群组.
+   *
+   * @param gid 群组 ID
+   */
+  void onUnsubscribed(long gid);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 会话心跳配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class HeartbeatConfig {
+
+  /** 是否开启服务端心跳检测. */
+  private boolean enabled;
+  /** 每个会话被检查的周期, 客户端在半个周期内没有活跃时发送 ping. */
+  private Duration pingInterval;
+  /** 客户端超过该时长没有发送任何帧(包含 pong)时关闭会话. */
+  private Duration idleTimeout;
+  /** 时间轮的刻度, 每个刻度检查一个分桶内的会话. */
+  private Duration tickDuration;
+}
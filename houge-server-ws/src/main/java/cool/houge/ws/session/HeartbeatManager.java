@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import com.google.common.base.Ticker;
+import com.google.common.primitives.Longs;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Flux;
+
+/**
+ * 会话心跳管理器.
+ *
+ * <p>所有会话共享一个 {@link HashedWheelTimer}, 不为每个连接创建定时任务. 会话按 ID 散列到 {@code ping-interval /
+ * tick-duration} 个分桶中, 时间轮每个刻度检查一个分桶, 每个会话在一个 {@code ping-interval} 内恰好被检查一次:
+ *
+ * <ul>
+ *   <li>超过 {@code idle-timeout} 没有活跃的会话被批量驱逐
+ *   <li>半个 {@code ping-interval} 内没有活跃的会话发送 ping, ping 负载为发送时间, 收到 pong 后记录往返时延
+ * </ul>
+ *
+ * <p>{@code tick-duration} 不能大于 {@code ping-interval}, {@code idle-timeout} 必须大于 {@code
+ * ping-interval}, 否则构造时抛出 {@link IllegalArgumentException}.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class HeartbeatManager {
+
+  private static final Logger log = LogManager.getLogger();
+
+  private static final Timer RTT =
+      Timer.builder("tethys.ws.heartbeat.rtt")
+          .description("客户端 ping/pong 往返时延")
+          .publishPercentileHistogram()
+          .register(Metrics.globalRegistry);
+  private static final Counter PINGS = Metrics.counter("tethys.ws.heartbeat.pings");
+  private static final Counter EVICTIONS = Metrics.counter("tethys.ws.heartbeat.evictions");
+
+  private final HeartbeatConfig config;
+  private final SessionManager sessionManager;
+  private final SessionGroupManager sessionGroupManager;
+  private final Ticker ticker;
+  private final long tickNanos;
+  private final long pingThresholdNanos;
+  private final long idleTimeoutNanos;
+  private final LongObjectHashMap<Session>[] buckets;
+
+  private HashedWheelTimer timer;
+  private volatile boolean stopped;
+  // 仅在时间轮线程中访问, 第 0 个刻度即启动时刻, 从第 1 个刻度开始检查
+  private long startTime;
+  private long nextTick = 1;
+
+  /**
+   * 构造对象.
+   *
+   * @param config 心跳配置
+   * @param sessionManager 会话管理器
+   * @param sessionGroupManager 会话群组管理器
+   */
+  @Inject
+  public HeartbeatManager(
+      HeartbeatConfig config,
+      SessionManager sessionManager,
+      SessionGroupManager sessionGroupManager) {
+    this(config, sessionManager, sessionGroupManager, Ticker.systemTicker());
+  }
+
+  @SuppressWarnings("unchecked")
+  HeartbeatManager(
+      HeartbeatConfig config,
+      SessionManager sessionManager,
+      SessionGroupManager sessionGroupManager,
+      Ticker ticker) {
+    var pingIntervalNanos = config.getPingInterval().toNanos();
+    this.tickNanos = config.getTickDuration().toNanos();
+    this.idleTimeoutNanos = config.getIdleTimeout().toNanos();
+    if (tickNanos <= 0 || tickNanos > pingIntervalNanos) {
+      throw new IllegalArgumentException(
+          "tick-duration 必须大于 0 且不能大于 ping-interval " + config);
+    }
+    if (idleTimeoutNanos <= pingIntervalNanos) {
+      throw new IllegalArgumentException("idle-timeout 必须大于 ping-interval " + config);
+    }
+
+    this.config = config;
+    this.sessionManager = sessionManager;
+    this.sessionGroupManager = sessionGroupManager;
+    this.ticker = ticker;
+    this.pingThresholdNanos = pingIntervalNanos / 2;
+    this.startTime = ticker.read();
+
+    var n = (int) (pingIntervalNanos / tickNanos);
+    this.buckets = new LongObjectHashMap[n];
+    for (int i = 0; i < n; i++) {
+      buckets[i] = new LongObjectHashMap<>();
+    }
+  }
+
+  /** 启动心跳检测. */
+  public void start() {
+    if (!config.isEnabled()) {
+      log.info("未开启服务端心跳检测");
+      return;
+    }
+    this.timer =
+        new HashedWheelTimer(
+            new DefaultThreadFactory("houge-ws-heartbeat", true),
+            tickNanos,
+            TimeUnit.NANOSECONDS,
+            buckets.length);
+    this.startTime = ticker.read();
+    this.nextTick = 1;
+    timer.newTimeout(this::tick, tickNanos, TimeUnit.NANOSECONDS);
+    log.info("服务端心跳检测已启动 {} buckets={}", config, buckets.length);
+  }
+
+  /** 停止心跳检测. */
+  public void stop() {
+    if (timer != null) {
+      stopped = true;
+      timer.stop();
+      log.info("服务端心跳检测已停止");
+    }
+  }
+
+  /**
+   * 注册需要心跳检测的会话.
+   *
+   * @param session 会话
+   */
+  public void register(Session session) {
+    var bucket = bucket(session);
+    synchronized (bucket) {
+      bucket.put(session.sessionId(), session);
+    }
+  }
+
+  /**
+   * 取消会话的心跳检测.
+   *
+   * @param session 会话
+   */
+  public void unregister(Session session) {
+    var bucket = bucket(session);
+    synchronized (bucket) {
+      bucket.remove(session.sessionId());
+    }
+  }
+
+  /**
+   * 处理客户端返回的 pong 帧, 记录往返时延.
+   *
+   * @param session 会话
+   * @param content pong 帧负载
+   */
+  public void onPong(Session session, ByteBuf content) {
+    if (content.readableBytes() != Long.BYTES) {
+      // 不是服务端 ping 的响应
+      return;
+    }
+    var rtt = ticker.read() - content.getLong(content.readerIndex());
+    if (rtt >= 0) {
+      RTT.record(rtt, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private LongObjectHashMap<Session> bucket(Session session) {
+    return buckets[(int) Long.remainderUnsigned(session.sessionId(), buckets.length)];
+  }
+
+  private void tick(Timeout timeout) {
+    try {
+      tick();
+    } catch (Exception e) {
+      log.error("心跳检测异常", e);
+    } finally {
+      if (!stopped) {
+        timeout.timer().newTimeout(this::tick, tickNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /** 检查截至当前时间应检查的分桶, 仅在时间轮线程中调用. */
+  void tick() {
+    // 重新调度存在误差, 按实际经过的刻度补齐检查, 保证每个分桶在一个周期内被检查一次
+    var currentTick = (ticker.read() - startTime) / tickNanos;
+    nextTick = Math.max(nextTick, currentTick - buckets.length + 1);
+    for (; nextTick <= currentTick; nextTick++) {
+      check(buckets[(int) (nextTick % buckets.length)]);
+    }
+  }
+
+  private void check(LongObjectHashMap<Session> bucket) {
+    var now = ticker.read();
+    var pings = new ArrayList<Session>();
+    var idles = new ArrayList<Session>();
+    synchronized (bucket) {
+      bucket.forEachValue(
+          session -> {
+            var idle = now - session.lastActiveTime();
+            if (idle >= idleTimeoutNanos) {
+              idles.add(session);
+            } else if (idle >= pingThresholdNanos) {
+              pings.add(session);
+            }
+          });
+      for (Session session : idles) {
+        bucket.remove(session.sessionId());
+      }
+    }
+
+    for (Session session : pings) {
+      var queue = session.outboundQueue();
+      if (queue != null) {
+        queue.ping(now);
+        PINGS.increment();
+      }
+    }
+    if (!idles.isEmpty()) {
+      evict(idles);
+    }
+  }
+
+  private void evict(List<Session> sessions) {
+    log.info("驱逐空闲会话 count={}", sessions.size());
+    EVICTIONS.increment(sessions.size());
+    for (Session session : sessions) {
+      var queue = session.outboundQueue();
+      if (queue != null) {
+        queue.close(WebSocketCloseStatus.ENDPOINT_UNAVAILABLE);
+      }
+    }
+    // 连接关闭后 WebSocketHandler 也会清理会话, 这里提前批量清理使索引尽快失效
+    Flux.fromIterable(sessions)
+        .concatMap(
+            session ->
+                sessionManager
+                    .remove(session)
+                    .then(
+                        sessionGroupManager.unsubGroups(
+                            session, Longs.asList(session.subGroupIds()))))
+        .subscribe(null, ex -> log.error("驱逐空闲会话异常", ex));
+  }
+}
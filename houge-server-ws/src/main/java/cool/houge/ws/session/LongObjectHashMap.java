@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.util.function.Consumer;
+
+/**
+ * 以 {@code long} 为键的开放寻址哈希表.
+ *
+ * <p>键不会被装箱, 采用线性探测解决冲突, 删除时使用反向移位避免墓碑. 值不允许为 {@code null}, {@code null} 值的槽位即为空槽位.
+ *
+ * <p><b>非线程安全</b>, 并发访问需要由调用方加锁. {@link #get(long)} 在并发修改时保证不会死循环或越界, 可配合 {@link
+ * java.util.concurrent.locks.StampedLock#tryOptimisticRead()} 使用.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class LongObjectHashMap<V> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.5F;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  private int resizeThreshold;
+
+  /** 使用默认容量构造对象. */
+  LongObjectHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * 使用初始容量构造对象.
+   *
+   * @param initialCapacity 初始容量
+   */
+  LongObjectHashMap(int initialCapacity) {
+    var capacity = tableSizeFor(Math.max(initialCapacity, 2));
+    this.keys = new long[capacity];
+    this.values = new Object[capacity];
+    this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  /**
+   * 返回键对应的值.
+   *
+   * @param key 键
+   * @return 值, 不存在时返回 {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    // 并发修改时 keys 与 values 可能不是同一代数组, 读取本地变量并以较小的长度做边界
+    var ks = this.keys;
+    var vs = this.values;
+    var len = Math.min(ks.length, vs.length);
+    var mask = len - 1;
+    var i = hash(key) & mask;
+    for (int n = 0; n < len; n++) {
+      var v = vs[i];
+      if (v == null) {
+        return null;
+      }
+      if (ks[i] == key) {
+        return (V) v;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * 设置键值.
+   *
+   * @param key 键
+   * @param value 值
+   * @return 旧值, 不存在时返回 {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    var mask = keys.length - 1;
+    var i = hash(key) & mask;
+    while (values[i] != null) {
+      if (keys[i] == key) {
+        var old = (V) values[i];
+        values[i] = value;
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > resizeThreshold) {
+      resize();
+    }
+    return null;
+  }
+
+  /**
+   * 删除键.
+   *
+   * @param key 键
+   * @return 被删除的值, 不存在时返回 {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    var mask = keys.length - 1;
+    var i = hash(key) & mask;
+    while (values[i] != null) {
+      if (keys[i] == key) {
+        var old = (V) values[i];
+        values[i] = null;
+        size--;
+        shiftBackward(i, mask);
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * 返回键值对数量.
+   *
+   * @return 键值对数量
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * 遍历所有的值.
+   *
+   * @param action 值消费函数
+   */
+  @SuppressWarnings("unchecked")
+  void forEachValue(Consumer<? super V> action) {
+    for (Object v : values) {
+      if (v != null) {
+        action.accept((V) v);
+      }
+    }
+  }
+
+  // 删除后将同一探测链上的后续元素前移, 保证线性探测的正确性
+  private void shiftBackward(int deleted, int mask) {
+    var i = (deleted + 1) & mask;
+    while (values[i] != null) {
+      var ideal = hash(keys[i]) & mask;
+      // 判断 ideal 是否落在 (deleted, i] 区间之外(考虑环绕)
+      if (((i - ideal) & mask) >= ((i - deleted) & mask)) {
+        keys[deleted] = keys[i];
+        values[deleted] = values[i];
+        values[i] = null;
+        deleted = i;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  private void resize() {
+    var oldKeys = this.keys;
+    var oldValues = this.values;
+    var capacity = oldKeys.length << 1;
+    var newKeys = new long[capacity];
+    var newValues = new Object[capacity];
+    var mask = capacity - 1;
+    for (int j = 0; j < oldValues.length; j++) {
+      var v = oldValues[j];
+      if (v == null) {
+        continue;
+      }
+      var i = hash(oldKeys[j]) & mask;
+      while (newValues[i] != null) {
+        i = (i + 1) & mask;
+      }
+      newKeys[i] = oldKeys[j];
+      newValues[i] = v;
+    }
+    // 先发布 values 再发布 keys, 乐观读通过长度取最小值保证不会越界
+    this.values = newValues;
+    this.keys = newKeys;
+    this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  static int hash(long key) {
+    // murmur3 fmix64
+    var h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+
+  private static int tableSizeFor(int n) {
+    var c = Integer.highestOneBit(n - 1) << 1;
+    return Math.max(c, 2);
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 会话的有界发送队列.
+ *
+ * <p>连接可写时预编码帧直接写入连接, 连接不可写(写缓冲区超过高水位线)时帧进入队列, 待连接重新可写后按顺序写出. 队列字节数超出上限时按 {@link
+ * SlowConsumerPolicy} 处理.
+ *
+ * <p>除 {@link #send(ByteBuf)} 外的方法都必须在连接的 {@link EventLoop} 中调用, 队列本身不需要加锁.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class OutboundQueue extends ChannelInboundHandlerAdapter {
+
+  private static final Logger log = LogManager.getLogger();
+
+  /** 在连接 pipeline 中的处理器名称. */
+  public static final String HANDLER_NAME = "houge.outbound.queue";
+
+  private static final LongAdder QUEUED_BYTES = new LongAdder();
+  private static final Counter DROPPED_OLDEST =
+      Metrics.counter("tethys.ws.outbound.dropped.frames", "policy", "drop_oldest");
+  private static final Counter DROPPED_NEWEST =
+      Metrics.counter("tethys.ws.outbound.dropped.frames", "policy", "drop_newest");
+  private static final Counter SLOW_CONSUMER_DISCONNECTS =
+      Metrics.counter("tethys.ws.outbound.slow.consumer.disconnects");
+
+  static {
+    Metrics.gauge("tethys.ws.outbound.queued.bytes", QUEUED_BYTES, LongAdder::sum);
+  }
+
+  private final Channel channel;
+  private final long maxBytes;
+  private final SlowConsumerPolicy policy;
+  private final boolean deflate;
+
+  // 大多数会话的队列始终为空, 延迟创建以节省内存
+  private ArrayDeque<ByteBuf> queue;
+  private long queuedBytes;
+  private boolean needsFlush;
+  private boolean closed;
+
+  /**
+   * 构造对象.
+   *
+   * @param channel 网络连接
+   * @param config 发送队列配置
+   */
+  public OutboundQueue(Channel channel, OutboundQueueConfig config) {
+    this.channel = channel;
+    this.maxBytes = config.getMaxBytes().toBytes();
+    this.policy = config.getPolicy();
+    this.deflate = hasDeflateExtension(channel);
+  }
+
+  /**
+   * 连接是否已协商 permessage-deflate 扩展.
+   *
+   * @return true 已协商
+   */
+  public boolean isDeflate() {
+    return deflate;
+  }
+
+  /**
+   * 返回连接使用的内存分配器, 即按传输配置创建的分配器.
+   *
+   * @return 内存分配器
+   */
+  public ByteBufAllocator alloc() {
+    return channel.alloc();
+  }
+
+  /**
+   * 返回连接所属的 {@link EventLoop}.
+   *
+   * @return EventLoop
+   */
+  public EventLoop eventLoop() {
+    return channel.eventLoop();
+  }
+
+  /**
+   * 发送预编码帧, 可以在任意线程中调用.
+   *
+   * <p>方法会接管 {@code frame} 的引用计数.
+   *
+   * @param frame 使用 {@link SharedFrames} 编码的完整帧
+   */
+  public void send(ByteBuf frame) {
+    var eventLoop = channel.eventLoop();
+    if (eventLoop.inEventLoop()) {
+      offer(frame);
+      flush();
+      return;
+    }
+    try {
+      eventLoop.execute(
+          () -> {
+            offer(frame);
+            flush();
+          });
+    } catch (RejectedExecutionException e) {
+      frame.release();
+      log.debug("连接的 EventLoop 已关闭 {}", channel, e);
+    }
+  }
+
+  /**
+   * 将预编码帧写入连接或放入队列, 需要调用 {@link #flush()} 才会真正发送.
+   *
+   * <p>方法会接管 {@code frame} 的引用计数.
+   *
+   * @param frame 使用 {@link SharedFrames} 编码的完整帧
+   * @return true 帧已写入连接或进入队列, false 帧被丢弃
+   */
+  public boolean offer(ByteBuf frame) {
+    if (closed || !channel.isActive()) {
+      frame.release();
+      return false;
+    }
+    if ((queue == null || queue.isEmpty()) && channel.isWritable()) {
+      channel.write(frame, channel.voidPromise());
+      needsFlush = true;
+      return true;
+    }
+
+    var size = frame.readableBytes();
+    if (queuedBytes + size > maxBytes) {
+      switch (policy) {
+        case DROP_OLDEST:
+          // 单个帧超出上限时无论如何都无法入队, 不再淘汰队列中的帧
+          if (size > maxBytes) {
+            frame.release();
+            DROPPED_OLDEST.increment();
+            return false;
+          }
+          while (queue != null && !queue.isEmpty() && queuedBytes + size > maxBytes) {
+            dequeue().release();
+            DROPPED_OLDEST.increment();
+          }
+          break;
+        case DROP_NEWEST:
+          frame.release();
+          DROPPED_NEWEST.increment();
+          return false;
+        default:
+          frame.release();
+          disconnect();
+          return false;
+      }
+    }
+
+    if (queue == null) {
+      queue = new ArrayDeque<>();
+    }
+    queue.addLast(frame);
+    queuedBytes += size;
+    QUEUED_BYTES.add(size);
+    return true;
+  }
+
+  /** 刷新此前写入连接的帧. */
+  public void flush() {
+    if (needsFlush) {
+      needsFlush = false;
+      channel.flush();
+    }
+  }
+
+  /**
+   * 直接写出 ping 控制帧, 不进入发送队列, 可以在任意线程中调用.
+   *
+   * @param payload ping 帧负载, 客户端会在 pong 帧中原样返回
+   */
+  public void ping(long payload) {
+    var buf = channel.alloc().buffer(Long.BYTES).writeLong(payload);
+    channel.writeAndFlush(new PingWebSocketFrame(buf), channel.voidPromise());
+  }
+
+  /**
+   * 丢弃队列中的数据并关闭连接, 可以在任意线程中调用.
+   *
+   * <p>连接可写时先发送关闭帧, 否则直接关闭连接.
+   *
+   * @param status 关闭状态
+   */
+  public void close(WebSocketCloseStatus status) {
+    var eventLoop = channel.eventLoop();
+    if (eventLoop.inEventLoop()) {
+      close0(status);
+      return;
+    }
+    try {
+      eventLoop.execute(() -> close0(status));
+    } catch (RejectedExecutionException e) {
+      channel.close();
+    }
+  }
+
+  /**
+   * 返回队列中缓存的字节数.
+   *
+   * @return 字节数
+   */
+  public long queuedBytes() {
+    return queuedBytes;
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    drain();
+    ctx.fireChannelWritabilityChanged();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    closed = true;
+    releaseAll();
+    ctx.fireChannelInactive();
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    closed = true;
+    releaseAll();
+  }
+
+  private void drain() {
+    while (queue != null && !queue.isEmpty() && channel.isWritable()) {
+      channel.write(dequeue(), channel.voidPromise());
+      needsFlush = true;
+    }
+    flush();
+  }
+
+  private ByteBuf dequeue() {
+    var frame = queue.pollFirst();
+    var size = frame.readableBytes();
+    queuedBytes -= size;
+    QUEUED_BYTES.add(-size);
+    return frame;
+  }
+
+  private void releaseAll() {
+    while (queue != null && !queue.isEmpty()) {
+      dequeue().release();
+    }
+  }
+
+  private void disconnect() {
+    SLOW_CONSUMER_DISCONNECTS.increment();
+    log.info("客户端消费过慢, 关闭连接 {}", channel);
+    close0(WebSocketCloseStatus.POLICY_VIOLATION);
+  }
+
+  // 握手成功后 Netty 会在 pipeline 中安装扩展的编码器
+  private static boolean hasDeflateExtension(Channel channel) {
+    for (var entry : channel.pipeline()) {
+      if (entry.getValue() instanceof WebSocketExtensionEncoder) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void close0(WebSocketCloseStatus status) {
+    closed = true;
+    releaseAll();
+    if (channel.isWritable()) {
+      channel
+          .writeAndFlush(new CloseWebSocketFrame(status))
+          .addListener(ChannelFutureListener.CLOSE);
+    } else {
+      channel.close();
+    }
+  }
+}
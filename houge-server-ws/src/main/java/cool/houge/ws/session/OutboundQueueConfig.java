@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import com.typesafe.config.ConfigMemorySize;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 会话发送队列配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class OutboundQueueConfig {
+
+  /** 单个会话发送队列可缓存的最大字节数. */
+  private ConfigMemorySize maxBytes;
+  /** 发送队列超出上限时的处理策略. */
+  private SlowConsumerPolicy policy;
+  /** 连接写缓冲区的低水位线, 写缓冲区回落到该值以下时恢复发送队列中的消息. */
+  private ConfigMemorySize lowWaterMark;
+  /** 连接写缓冲区的高水位线, 写缓冲区超过该值时新消息进入发送队列. */
+  private ConfigMemorySize highWaterMark;
+}
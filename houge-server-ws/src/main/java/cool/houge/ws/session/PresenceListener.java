@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * 用户在线状态监听器.
+ *
+ * <p>用户在当前节点的首个会话加入时上线, 最后一个会话移除时下线. 同一用户的事件按发生的顺序在持有会话管理器锁的线程上同步回调, 实现不能阻塞.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public interface PresenceListener {
+
+  /** 不做任何处理的监听器. */
+  PresenceListener NOOP =
+      new PresenceListener() {
+        @Override
+        public void onOnline(long uid) {
+          // noop
+        }
+
+        @Override
+        public void onOffline(long uid) {
+          // noop
+        }
+      };
+
+  /**
+   * 用户上线.
+   *
+   * @param uid 用户 ID
+   */
+  void onOnline(long uid);
+
+  /**
+   * 用户下线.
+   *
+   * @param uid 用户 ID
+   */
+  void onOffline(long uid);
+
+  /**
+   * 返回逻辑服务已确认用户在线的信号.
+   *
+   * <p>会话加入会话管理器后等待该信号再开始接收消息, 默认立即完成.
+   *
+   * @param uid 用户 ID
+   * @return 确认的信号
+   */
+  default Mono<Void> awaitOnline(long uid) {
+    return Mono.empty();
+  }
+}
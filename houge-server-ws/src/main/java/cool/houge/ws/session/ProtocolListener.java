@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+/**
+ * 会话协议监听器.
+ *
+ * <p>会话加入与移除会话管理器时在持有会话管理器锁的线程上同步回调, 实现不能阻塞.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public interface ProtocolListener {
+
+  /** 不做任何处理的监听器. */
+  ProtocolListener NOOP =
+      new ProtocolListener() {
+        @Override
+        public void onSessionAdded(ClientProtocol protocol) {
+          // noop
+        }
+
+        @Override
+        public void onSessionRemoved(ClientProtocol protocol) {
+          // noop
+        }
+      };
+
+  /**
+   * 会话加入.
+   *
+   * @param protocol 会话的客户端协议
+   */
+  void onSessionAdded(ClientProtocol protocol);
+
+  /**
+   * 会话移除.
+   *
+   * @param protocol 会话的客户端协议
+   */
+  void onSessionRemoved(ClientProtocol protocol);
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+/**
+ * 超过限流的消息的处理方式.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public enum RateLimitAction {
+  /** 丢弃消息并回复错误包. */
+  ERROR_PACKET,
+  /** 直接丢弃消息. */
+  DROP,
+  /** 以 1008 状态码关闭连接. */
+  CLOSE,
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 客户端上行消息限流配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class RateLimitConfig {
+
+  /** 是否开启限流. */
+  private boolean enabled;
+  /** 单个会话每秒允许的消息数. */
+  private double sessionRate;
+  /** 单个会话允许的突发消息数. */
+  private int sessionBurst;
+  /** 单个用户所有会话每秒允许的消息数. */
+  private double userRate;
+  /** 单个用户所有会话允许的突发消息数. */
+  private int userBurst;
+  /** 超过限制的消息的处理方式. */
+  private RateLimitAction action;
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import javax.inject.Inject;
+
+/**
+ * 客户端上行消息限流器.
+ *
+ * <p>每个会话与每个用户各持有一个令牌桶, 消息需要同时从两个桶中获取令牌. 用户的令牌桶由该用户的所有会话共享, 按用户 ID 分段存储并使用引用计数管理,
+ * 用户的最后一个会话关闭时删除. 检查限流时只访问连接建立时已取得的令牌桶, 不查询哈希表也不分配内存.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class RateLimiter {
+
+  /** 未开启限流时使用的许可. */
+  private static final Permit UNLIMITED =
+      new Permit(null, null, null) {
+        @Override
+        public boolean tryAcquire(long now) {
+          return true;
+        }
+
+        @Override
+        public void close() {
+          // noop
+        }
+      };
+
+  private static final int STRIPES = 64;
+
+  private final RateLimitConfig config;
+  private final Stripe[] stripes;
+  private final Counter sessionThrottled;
+  private final Counter userThrottled;
+
+  /**
+   * 使用限流配置构造对象.
+   *
+   * @param config 限流配置
+   */
+  @Inject
+  public RateLimiter(RateLimitConfig config) {
+    this.config = config;
+    this.stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.sessionThrottled = throttledCounter("session");
+    this.userThrottled = throttledCounter("user");
+  }
+
+  /**
+   * 返回超过限流的消息的处理方式.
+   *
+   * @return 处理方式
+   */
+  public RateLimitAction action() {
+    return config.getAction();
+  }
+
+  /**
+   * 为会话创建限流许可, 会话结束时必须调用 {@link Permit#close()}.
+   *
+   * @param session 会话
+   * @return 限流许可
+   */
+  public Permit open(Session session) {
+    if (!config.isEnabled()) {
+      return UNLIMITED;
+    }
+    var now = System.nanoTime();
+    var sessionBucket = new TokenBucket(config.getSessionRate(), config.getSessionBurst(), now);
+    return new Permit(this, sessionBucket, acquireUserBucket(session.uid(), now));
+  }
+
+  private UserBucket acquireUserBucket(long uid, long now) {
+    var stripe = stripeFor(uid);
+    synchronized (stripe) {
+      var bucket = stripe.buckets.get(uid);
+      if (bucket == null) {
+        bucket = new UserBucket(uid, config.getUserRate(), config.getUserBurst(), now);
+        stripe.buckets.put(uid, bucket);
+      }
+      bucket.refCnt++;
+      return bucket;
+    }
+  }
+
+  private void releaseUserBucket(UserBucket bucket) {
+    var stripe = stripeFor(bucket.uid);
+    synchronized (stripe) {
+      if (--bucket.refCnt == 0) {
+        stripe.buckets.remove(bucket.uid);
+      }
+    }
+  }
+
+  private Stripe stripeFor(long uid) {
+    var h = (int) (uid ^ (uid >>> 32));
+    h ^= h >>> 16;
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  private Counter throttledCounter(String scope) {
+    return Counter.builder("tethys.ws.rate.limit.throttled")
+        .description("超过限流的上行消息数")
+        .tag("scope", scope)
+        .tag("action", String.valueOf(config.getAction()))
+        .register(Metrics.globalRegistry);
+  }
+
+  /** 会话的限流许可. */
+  public static class Permit {
+
+    private final RateLimiter limiter;
+    private final TokenBucket sessionBucket;
+    private final UserBucket userBucket;
+
+    Permit(RateLimiter limiter, TokenBucket sessionBucket, UserBucket userBucket) {
+      this.limiter = limiter;
+      this.sessionBucket = sessionBucket;
+      this.userBucket = userBucket;
+    }
+
+    /**
+     * 为一条上行消息获取令牌.
+     *
+     * @param now 当前时间, System.nanoTime()
+     * @return false 超过限流
+     */
+    public boolean tryAcquire(long now) {
+      if (!sessionBucket.tryAcquire(now)) {
+        limiter.sessionThrottled.increment();
+        return false;
+      }
+      if (!userBucket.tryAcquire(now)) {
+        // 未发送的消息不占用会话的令牌
+        sessionBucket.refund();
+        limiter.userThrottled.increment();
+        return false;
+      }
+      return true;
+    }
+
+    /** 释放用户令牌桶的引用. */
+    public void close() {
+      limiter.releaseUserBucket(userBucket);
+    }
+  }
+
+  /** 用户令牌桶. */
+  private static final class UserBucket extends TokenBucket {
+
+    final long uid;
+    // 引用该令牌桶的会话数, 由分段锁保护
+    int refCnt;
+
+    UserBucket(long uid, double rate, int burst, long now) {
+      super(rate, burst, now);
+      this.uid = uid;
+    }
+  }
+
+  /** 用户令牌桶分段. */
+  private static final class Stripe {
+
+    final LongObjectHashMap<UserBucket> buckets = new LongObjectHashMap<>();
+  }
+}
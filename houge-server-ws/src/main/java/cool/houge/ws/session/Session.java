@@ -16,7 +16,6 @@
 package cool.houge.ws.session;
 
 import io.netty.buffer.ByteBuf;
-import java.util.Set;
 import reactor.core.publisher.Mono;
 
 /**
@@ -41,18 +40,51 @@ public interface Session {
   long uid();
 
   /**
-   * 返回户认证的令牌.
+   * 已订阅群组消息的 IDs.
+   *
+   * <p>返回升序排列的只读数组, 调用方不能修改数组内容.
    *
-   * @return 令牌
+   * @return 订阅群组 IDs
    */
-  String token();
+  long[] subGroupIds();
 
   /**
-   * 已订阅群组消息的 IDs.
+   * 是否已订阅指定群组的消息.
    *
-   * @return 订阅群组 IDs
+   * @param gid 群组 ID
+   * @return true 已订阅
+   */
+  boolean isSubGroup(long gid);
+
+  /**
+   * 添加订阅的群组 IDs.
+   *
+   * @param gids 群组 IDs
+   * @return 此前未订阅而本次新增的群组 IDs
+   */
+  long[] addSubGroupIds(long... gids);
+
+  /**
+   * 删除订阅的群组 IDs.
+   *
+   * @param gids 群组 IDs
+   * @return 此前已订阅而本次删除的群组 IDs
    */
-  Set<Long> subGroupIds();
+  long[] removeSubGroupIds(long... gids);
+
+  /**
+   * 记录客户端最近一次活跃的时间, 收到客户端的任意帧时调用.
+   *
+   * @param nanoTime {@link System#nanoTime()} 时间
+   */
+  void markActive(long nanoTime);
+
+  /**
+   * 返回客户端最近一次活跃的时间.
+   *
+   * @return {@link System#nanoTime()} 时间
+   */
+  long lastActiveTime();
 
   /**
    * 会话是否关闭.
@@ -61,9 +93,27 @@ public interface Session {
    */
   boolean isClosed();
 
+  /**
+   * 返回握手时协商的客户端协议, 上行与下行的消息都使用该协议编码.
+   *
+   * @return 客户端协议
+   */
+  ClientProtocol protocol();
+
+  /**
+   * 返回会话的发送队列.
+   *
+   * <p>用于直接写入 {@link SharedFrames} 预编码的帧, 写入的数据不再经过 WebSocket 帧编码器.
+   *
+   * @return 发送队列, 会话未绑定网络连接时返回 {@code null}
+   */
+  OutboundQueue outboundQueue();
+
   /**
    * 向客户端发送数据.
    *
+   * <p>数据编码为文本帧后进入会话的发送队列.
+   *
    * @param source 数据
    * @return Mono
    */
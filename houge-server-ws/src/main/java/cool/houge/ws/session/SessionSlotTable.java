@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 会话槽位表.
+ *
+ * <p>为会话分配一个紧凑的 {@code int} 槽位, 释放后的槽位会被复用, 使群组订阅可以使用 {@code RoaringBitmap} 存储会话.
+ *
+ * <p>槽位的分配与释放不使用全局锁: 会话与槽位的映射使用 {@link ConcurrentHashMap}, 新槽位由原子计数器分配, 释放的槽位进入无锁的空闲队列,
+ * 只有创建新的页时才加锁. {@link #session(int)} 无锁读取. 由于槽位会被复用, 通过槽位取得的会话可能已不是订阅时的会话,
+ * 调用方需要自行校验会话状态.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class SessionSlotTable {
+
+  private static final int PAGE_SHIFT = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  // 会话ID->槽位
+  private final Map<Long, Slot> slots = new ConcurrentHashMap<>();
+  // 槽位->会话, 按页分配避免扩容时复制大数组
+  private volatile AtomicReferenceArray<Session>[] pages = newPages(16);
+  // 已释放可复用的槽位
+  private final ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger nextSlot = new AtomicInteger();
+
+  /**
+   * 获取会话的槽位, 会话未分配槽位时分配一个新的槽位.
+   *
+   * @param session 会话
+   * @return 槽位
+   */
+  Slot acquire(Session session) {
+    var slot = slots.get(session.sessionId());
+    if (slot != null) {
+      return slot;
+    }
+    return slots.computeIfAbsent(
+        session.sessionId(),
+        unused -> {
+          var index = freeSlots.poll();
+          var s = new Slot(index != null ? index : nextSlot.getAndIncrement());
+          pageFor(s.index).set(s.index & PAGE_MASK, session);
+          return s;
+        });
+  }
+
+  /**
+   * 返回会话已分配的槽位.
+   *
+   * @param session 会话
+   * @return 槽位, 未分配时返回 {@code null}
+   */
+  Slot get(Session session) {
+    return slots.get(session.sessionId());
+  }
+
+  /**
+   * 释放会话的槽位.
+   *
+   * <p>调用方必须保证槽位已从所有群组中移除.
+   *
+   * @param session 会话
+   * @param slot 槽位
+   */
+  void release(Session session, Slot slot) {
+    // 只有从映射中移除槽位的调用可以回收槽位, 重复释放或旧的槽位对象不会回收两次
+    if (slot.released || !slots.remove(session.sessionId(), slot)) {
+      return;
+    }
+    slot.released = true;
+    // 先清除会话再放入空闲队列, 避免覆盖复用该槽位的新会话
+    pages[slot.index >>> PAGE_SHIFT].set(slot.index & PAGE_MASK, null);
+    freeSlots.offer(slot.index);
+  }
+
+  /**
+   * 返回槽位上的会话.
+   *
+   * @param index 槽位
+   * @return 会话, 槽位未使用时返回 {@code null}
+   */
+  Session session(int index) {
+    var ps = this.pages;
+    var p = index >>> PAGE_SHIFT;
+    if (p >= ps.length) {
+      return null;
+    }
+    var page = ps[p];
+    return page == null ? null : page.get(index & PAGE_MASK);
+  }
+
+  /**
+   * 返回已分配的槽位数量.
+   *
+   * @return 槽位数量
+   */
+  int size() {
+    return slots.size();
+  }
+
+  private AtomicReferenceArray<Session> pageFor(int index) {
+    var p = index >>> PAGE_SHIFT;
+    var ps = this.pages;
+    if (p < ps.length && ps[p] != null) {
+      return ps[p];
+    }
+    // 每 PAGE_SIZE 个槽位才需要创建一次新的页
+    synchronized (this) {
+      ps = this.pages;
+      if (p >= ps.length) {
+        ps = Arrays.copyOf(ps, Math.max(ps.length << 1, p + 1));
+      }
+      var page = ps[p];
+      if (page == null) {
+        page = new AtomicReferenceArray<>(PAGE_SIZE);
+        ps[p] = page;
+      }
+      // 重新发布页数组, 保证无锁读取的线程可以看到新的页
+      this.pages = ps;
+      return page;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static AtomicReferenceArray<Session>[] newPages(int n) {
+    return new AtomicReferenceArray[n];
+  }
+
+  /**
+   * 会话槽位.
+   *
+   * <p>同一会话的订阅与取消订阅操作使用该对象作为锁, 保证槽位不会在仍被群组引用时释放.
+   */
+  static final class Slot {
+
+    final int index;
+    volatile boolean released;
+
+    Slot(int index) {
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.ByteBuffer;
+
+/**
+ * 预编码的 WebSocket 帧工具.
+ *
+ * <p>将帧头与负载一次性编码到同一个 {@link ByteBuf} 中, 编码后的数据可以直接写入任意已完成握手的 WebSocket 连接, 多个连接之间通过
+ * {@link ByteBuf#retainedDuplicate()} 共享同一份内存.
+ *
+ * <p>服务端发送的帧不需要掩码, 参考 <a href="https://tools.ietf.org/html/rfc6455#section-5.2">RFC 6455 5.2</a>.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public final class SharedFrames {
+
+  /** 文本帧操作码. */
+  static final int OPCODE_TEXT = 0x1;
+  /** 二进制帧操作码. */
+  static final int OPCODE_BINARY = 0x2;
+
+  /** permessage-deflate 压缩标识, 参考 RFC 7692. */
+  static final int RSV1 = 0x40;
+
+  private static final int FIN = 0x80;
+  private static final int MAX_HEADER_LENGTH = 10;
+
+  private SharedFrames() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * 将负载编码为完整的 WebSocket 文本帧.
+   *
+   * @param alloc 内存分配器
+   * @param payload 负载, 调用后 position 不会改变
+   * @return 包含帧头与负载的直接内存
+   */
+  public static ByteBuf textFrame(ByteBufAllocator alloc, ByteBuffer payload) {
+    return encode(alloc, OPCODE_TEXT, payload);
+  }
+
+  /**
+   * 将负载编码为完整的 WebSocket 二进制帧.
+   *
+   * @param alloc 内存分配器
+   * @param payload 负载, 调用后 position 不会改变
+   * @return 包含帧头与负载的直接内存
+   */
+  public static ByteBuf binaryFrame(ByteBufAllocator alloc, ByteBuffer payload) {
+    return encode(alloc, OPCODE_BINARY, payload);
+  }
+
+  /**
+   * 按客户端协议将负载编码为完整的 WebSocket 帧, JSON 协议使用文本帧, protobuf 协议使用二进制帧.
+   *
+   * @param alloc 内存分配器
+   * @param protocol 客户端协议
+   * @param payload 负载, 调用后 position 不会改变
+   * @return 包含帧头与负载的直接内存
+   */
+  public static ByteBuf frame(
+      ByteBufAllocator alloc, ClientProtocol protocol, ByteBuffer payload) {
+    return encode(alloc, opcode(protocol), payload);
+  }
+
+  /**
+   * 将负载编码为完整的 WebSocket 文本帧.
+   *
+   * <p>帧头与负载组合为 {@link io.netty.buffer.CompositeByteBuf}, 负载不会被复制. 方法会接管 {@code payload} 的引用计数.
+   *
+   * @param alloc 内存分配器
+   * @param payload 负载
+   * @return 包含帧头与负载的组合内存
+   */
+  public static ByteBuf textFrame(ByteBufAllocator alloc, ByteBuf payload) {
+    var len = payload.readableBytes();
+    var header = alloc.directBuffer(MAX_HEADER_LENGTH);
+    writeHeader(header, OPCODE_TEXT, len);
+    return alloc.compositeDirectBuffer(2).addComponents(true, header, payload);
+  }
+
+  static ByteBuf encode(ByteBufAllocator alloc, int opcode, ByteBuffer payload) {
+    var len = payload.remaining();
+    var buf = alloc.directBuffer(MAX_HEADER_LENGTH + len);
+    writeHeader(buf, opcode, len);
+    buf.writeBytes(payload.duplicate());
+    return buf;
+  }
+
+  /**
+   * 编码 permessage-deflate 压缩后的帧, 帧头设置 RSV1 标识.
+   *
+   * @param alloc 内存分配器
+   * @param opcode 操作码
+   * @param data 压缩后的负载
+   * @param len 负载长度
+   * @return 包含帧头与负载的直接内存
+   */
+  static ByteBuf encodeCompressed(ByteBufAllocator alloc, int opcode, byte[] data, int len) {
+    var buf = alloc.directBuffer(MAX_HEADER_LENGTH + len);
+    writeHeader(buf, opcode | RSV1, len);
+    buf.writeBytes(data, 0, len);
+    return buf;
+  }
+
+  static int opcode(ClientProtocol protocol) {
+    return protocol == ClientProtocol.PROTOBUF ? OPCODE_BINARY : OPCODE_TEXT;
+  }
+
+  private static void writeHeader(ByteBuf buf, int opcode, int len) {
+    buf.writeByte(FIN | opcode);
+    if (len < 126) {
+      buf.writeByte(len);
+    } else if (len <= 0xFFFF) {
+      buf.writeByte(126);
+      buf.writeShort(len);
+    } else {
+      buf.writeByte(127);
+      buf.writeLong(len);
+    }
+  }
+}
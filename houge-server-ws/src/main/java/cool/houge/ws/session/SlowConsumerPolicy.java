@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+/**
+ * 慢消费者策略.
+ *
+ * <p>客户端读取速度跟不上服务端推送速度, 会话发送队列超出上限时采用的处理方式.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public enum SlowConsumerPolicy {
+  /** 丢弃队列中最早的消息, 为新消息腾出空间. */
+  DROP_OLDEST,
+  /** 丢弃新的消息. */
+  DROP_NEWEST,
+  /** 断开连接. */
+  DISCONNECT,
+}
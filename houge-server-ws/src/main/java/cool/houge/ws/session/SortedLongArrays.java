@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.util.Arrays;
+
+/**
+ * 升序且无重复元素的 {@code long} 数组工具.
+ *
+ * <p>用于以紧凑的方式存储会话订阅的群组 IDs, 所有方法都不会修改入参数组.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class SortedLongArrays {
+
+  /** 空数组. */
+  static final long[] EMPTY = new long[0];
+
+  private SortedLongArrays() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * 返回升序且去重后的数组副本.
+   *
+   * @param a 数组
+   * @return 升序且无重复元素的数组
+   */
+  static long[] sortedDistinct(long[] a) {
+    if (a.length == 0) {
+      return EMPTY;
+    }
+    var copy = a.clone();
+    Arrays.sort(copy);
+    var n = 1;
+    for (int i = 1; i < copy.length; i++) {
+      if (copy[i] != copy[n - 1]) {
+        copy[n++] = copy[i];
+      }
+    }
+    return n == copy.length ? copy : Arrays.copyOf(copy, n);
+  }
+
+  /**
+   * 判断有序数组中是否包含指定的值.
+   *
+   * @param sorted 有序数组
+   * @param v 值
+   * @return true 包含
+   */
+  static boolean contains(long[] sorted, long v) {
+    return Arrays.binarySearch(sorted, v) >= 0;
+  }
+
+  /**
+   * 返回两个有序数组的并集.
+   *
+   * @param a 有序数组
+   * @param b 有序数组
+   * @return 并集
+   */
+  static long[] union(long[] a, long[] b) {
+    if (a.length == 0) {
+      return b;
+    }
+    if (b.length == 0) {
+      return a;
+    }
+    var r = new long[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        r[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        r[n++] = b[j++];
+      } else {
+        r[n++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length) {
+      r[n++] = a[i++];
+    }
+    while (j < b.length) {
+      r[n++] = b[j++];
+    }
+    return n == r.length ? r : Arrays.copyOf(r, n);
+  }
+
+  /**
+   * 返回在 {@code a} 中但不在 {@code b} 中的元素.
+   *
+   * @param a 有序数组
+   * @param b 有序数组
+   * @return 差集
+   */
+  static long[] difference(long[] a, long[] b) {
+    if (a.length == 0 || b.length == 0) {
+      return a;
+    }
+    var r = new long[a.length];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length) {
+      if (j >= b.length || a[i] < b[j]) {
+        r[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        i++;
+        j++;
+      }
+    }
+    return n == 0 ? EMPTY : (n == r.length ? a : Arrays.copyOf(r, n));
+  }
+
+  /**
+   * 返回两个有序数组的交集.
+   *
+   * @param a 有序数组
+   * @param b 有序数组
+   * @return 交集
+   */
+  static long[] intersection(long[] a, long[] b) {
+    if (a.length == 0 || b.length == 0) {
+      return EMPTY;
+    }
+    var r = new long[Math.min(a.length, b.length)];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        r[n++] = a[i++];
+        j++;
+      }
+    }
+    return n == 0 ? EMPTY : (n == r.length ? r : Arrays.copyOf(r, n));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 令牌桶.
+ *
+ * <p>使用 GCRA(Generic Cell Rate Algorithm) 实现, 整个桶的状态只有一个理论到达时间 {@code tat}, 获取令牌时通过 CAS 更新, 不加锁也不分配内存.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class TokenBucket {
+
+  private static final AtomicLongFieldUpdater<TokenBucket> TAT_UPDATER =
+      AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "tat");
+
+  // 生成一个令牌的间隔
+  private final long intervalNanos;
+  // 允许提前到达的时长, 对应桶的容量
+  private final long toleranceNanos;
+  // 理论到达时间, System.nanoTime()
+  private volatile long tat;
+
+  /**
+   * 构造对象, 新建的桶是满的.
+   *
+   * @param rate 每秒生成的令牌数
+   * @param burst 桶的容量
+   * @param now 当前时间, System.nanoTime()
+   */
+  TokenBucket(double rate, int burst, long now) {
+    this.intervalNanos = Math.max((long) (1_000_000_000L / rate), 1);
+    this.toleranceNanos = intervalNanos * (Math.max(burst, 1) - 1);
+    this.tat = now;
+  }
+
+  /**
+   * 获取一个令牌.
+   *
+   * @param now 当前时间, System.nanoTime()
+   * @return true 获取成功
+   */
+  boolean tryAcquire(long now) {
+    for (; ; ) {
+      var t = this.tat;
+      var base = t - now > 0 ? t : now;
+      if (base - now > toleranceNanos) {
+        return false;
+      }
+      if (TAT_UPDATER.compareAndSet(this, t, base + intervalNanos)) {
+        return true;
+      }
+    }
+  }
+
+  /** 归还通过 {@link #tryAcquire(long)} 获取的一个令牌. */
+  void refund() {
+    TAT_UPDATER.getAndAdd(this, -intervalNanos);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import cool.houge.grpc.AgentPb;
+import cool.houge.ws.AgentServiceConfig;
+import io.grpc.stub.StreamObserver;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+/**
+ * {@link GroupInterestReporter} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class GroupInterestReporterTest {
+
+  private final BlockingQueue<AgentPb.LinkRequest> requests = new LinkedBlockingQueue<>();
+  private final StreamObserver<AgentPb.LinkRequest> requestObserver =
+      new StreamObserver<>() {
+        @Override
+        public void onNext(AgentPb.LinkRequest value) {
+          requests.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          // noop
+        }
+
+        @Override
+        public void onCompleted() {
+          // noop
+        }
+      };
+
+  private static GroupInterestReporter newReporter() {
+    var config = new AgentServiceConfig();
+    config.setLinkReportDelay(Duration.ofHours(1));
+    return new GroupInterestReporter(config);
+  }
+
+  private AgentPb.GroupInterest nextGroupInterest() throws InterruptedException {
+    var request = requests.poll(5, TimeUnit.SECONDS);
+    assertThat(request).as("等待上报超时").isNotNull();
+    return request.getGroupInterest();
+  }
+
+  @Test
+  void snapshot() throws InterruptedException, IOException {
+    var reporter = newReporter();
+    for (long gid = 100; gid < 200; gid++) {
+      reporter.onSubscribed(gid);
+    }
+    reporter.onUnsubscribed(150);
+
+    reporter.open(requestObserver);
+    var interest = nextGroupInterest();
+    assertThat(interest.getReset()).isTrue();
+    var gids = new Roaring64Bitmap();
+    try (var in = new DataInputStream(interest.getSnapshot().newInput())) {
+      gids.deserialize(in);
+    }
+    assertThat(gids.getLongCardinality()).isEqualTo(99);
+    assertThat(gids.contains(150)).isFalse();
+    assertThat(gids.contains(199)).isTrue();
+  }
+
+  @Test
+  void reportSubscribedImmediately() throws InterruptedException {
+    var reporter = newReporter();
+    reporter.open(requestObserver);
+    nextGroupInterest();
+
+    reporter.onSubscribed(9);
+    var interest = nextGroupInterest();
+    assertThat(interest.getReset()).isFalse();
+    assertThat(interest.getAddedGidsList()).containsExactly(9L);
+
+    // 取消订阅按合并的时长延迟上报
+    reporter.onUnsubscribed(9);
+    assertThat(requests.poll(50, TimeUnit.MILLISECONDS)).isNull();
+  }
+}
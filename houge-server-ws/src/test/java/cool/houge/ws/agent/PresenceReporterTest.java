@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import cool.houge.grpc.AgentPb;
+import cool.houge.ws.AgentServiceConfig;
+import cool.houge.ws.session.DefaultSessionManager;
+import cool.houge.ws.session.ProtocolListener;
+import cool.houge.ws.session.Session;
+import io.grpc.stub.StreamObserver;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+/**
+ * {@link PresenceReporter} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class PresenceReporterTest {
+
+  private final FakeRequestObserver requestObserver = new FakeRequestObserver();
+
+  private static PresenceReporter newReporter(Duration linkReportDelay) {
+    return newReporter(linkReportDelay, Duration.ofSeconds(5));
+  }
+
+  private static PresenceReporter newReporter(
+      Duration linkReportDelay, Duration presenceAckTimeout) {
+    var config = new AgentServiceConfig();
+    config.setLinkReportDelay(linkReportDelay);
+    config.setPresenceAckTimeout(presenceAckTimeout);
+    return new PresenceReporter(config);
+  }
+
+  private static Session newSession(long uid) {
+    var session = mock(Session.class);
+    when(session.uid()).thenReturn(uid);
+    return session;
+  }
+
+  private static Roaring64Bitmap snapshotUids(AgentPb.Presence presence) throws IOException {
+    var uids = new Roaring64Bitmap();
+    try (var in = new DataInputStream(presence.getSnapshot().newInput())) {
+      uids.deserialize(in);
+    }
+    return uids;
+  }
+
+  @Test
+  void snapshot() throws InterruptedException, IOException {
+    var reporter = newReporter(Duration.ofHours(1));
+    reporter.onOnline(1);
+    reporter.onOnline(2);
+
+    reporter.open(requestObserver);
+    var presence = requestObserver.nextPresence();
+    assertThat(presence.getReset()).isTrue();
+    assertThat(presence.getOnlineUidsList()).isEmpty();
+    assertThat(snapshotUids(presence).toArray()).containsExactly(1L, 2L);
+  }
+
+  @Test
+  void largeSnapshotInSingleRequest() throws InterruptedException, IOException {
+    var reporter = newReporter(Duration.ofHours(1));
+    var n = AbstractLinkReporter.MAX_IDS_PER_REQUEST * 2 + 1;
+    for (long uid = 1; uid <= n; uid++) {
+      reporter.onOnline(uid);
+    }
+
+    // 超过单个请求 ID 数量的快照同样在一个请求中上报, 逻辑服务不会替换为部分在线用户
+    reporter.open(requestObserver);
+    var presence = requestObserver.nextPresence();
+    assertThat(presence.getReset()).isTrue();
+    var uids = snapshotUids(presence);
+    assertThat(uids.getLongCardinality()).isEqualTo(n);
+    assertThat(uids.contains(n)).isTrue();
+    assertThat(requestObserver.requests.poll(50, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  void reportOnlineImmediately() throws InterruptedException {
+    var reporter = newReporter(Duration.ofHours(1));
+    reporter.open(requestObserver);
+    requestObserver.nextPresence();
+
+    // 合并的时长为 1 小时, 上线仍然立即上报
+    reporter.onOnline(1);
+    var presence = requestObserver.nextPresence();
+    assertThat(presence.getReset()).isFalse();
+    assertThat(presence.getOnlineUidsList()).containsExactly(1L);
+  }
+
+  @Test
+  void coalesceOffline() throws InterruptedException {
+    var reporter = newReporter(Duration.ofMillis(200));
+    reporter.onOnline(1);
+    reporter.onOnline(2);
+    reporter.onOnline(3);
+    reporter.open(requestObserver);
+    requestObserver.nextPresence();
+
+    reporter.onOffline(1);
+    reporter.onOffline(2);
+    assertThat(requestObserver.requests.poll(50, TimeUnit.MILLISECONDS)).isNull();
+    var presence = requestObserver.nextPresence();
+    assertThat(presence.getOfflineUidsList()).containsExactly(1L, 2L);
+    assertThat(presence.getOnlineUidsList()).isEmpty();
+  }
+
+  @Test
+  void onlineFlushesPendingOffline() throws InterruptedException {
+    var reporter = newReporter(Duration.ofHours(1));
+    reporter.onOnline(1);
+    reporter.onOnline(2);
+    reporter.open(requestObserver);
+    requestObserver.nextPresence();
+
+    reporter.onOffline(1);
+    // 重新上线取消等待上报的下线
+    reporter.onOffline(2);
+    reporter.onOnline(2);
+    reporter.onOnline(3);
+    // 后台线程上报期间的变更可能拆分为多次上报
+    var online = new ArrayList<Long>();
+    var offline = new ArrayList<Long>();
+    while (!online.contains(3L)) {
+      var presence = requestObserver.nextPresence();
+      online.addAll(presence.getOnlineUidsList());
+      offline.addAll(presence.getOfflineUidsList());
+    }
+    assertThat(offline).containsExactly(1L);
+    assertThat(online).containsExactlyInAnyOrder(2L, 3L);
+    assertThat(requestObserver.requests.poll(50, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  void close() throws InterruptedException {
+    var reporter = newReporter(Duration.ofMillis(1));
+    var link = reporter.open(requestObserver);
+    requestObserver.nextPresence();
+
+    link.close();
+    reporter.onOnline(1);
+    reporter.onOffline(2);
+    assertThat(requestObserver.requests.poll(50, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  void sessionWaitsForPresenceAck() throws InterruptedException {
+    var reporter = newReporter(Duration.ofHours(1));
+    var link = reporter.open(requestObserver);
+    requestObserver.nextPresence();
+    var sessionManager = new DefaultSessionManager(reporter, ProtocolListener.NOOP);
+
+    // 会话加入后立即上报上线, 逻辑服务确认之前会话不能开始接收消息
+    var added = sessionManager.add(newSession(1)).toFuture();
+    var presence = requestObserver.nextPresence();
+    assertThat(presence.getOnlineUidsList()).containsExactly(1L);
+    assertThat(presence.getGeneration()).isPositive();
+    assertThat(sessionManager.findByUid(1).collectList().block()).hasSize(1);
+    assertThat(added).isNotDone();
+
+    // 同一用户的其它会话同样等待确认
+    var added2 = sessionManager.add(newSession(1)).toFuture();
+    assertThat(added2).isNotDone();
+
+    // 旧的确认不能完成等待
+    link.ack(presence.getGeneration() - 1);
+    assertThat(added).isNotDone();
+    link.ack(presence.getGeneration());
+    assertThat(added).isDone();
+    assertThat(added2).isDone();
+
+    // 已确认的用户不需要等待
+    assertThat(reporter.awaitOnline(1).toFuture()).isDone();
+  }
+
+  @Test
+  void snapshotNeedsNoAck() throws InterruptedException {
+    var reporter = newReporter(Duration.ofHours(1));
+    reporter.onOnline(1);
+    reporter.open(requestObserver);
+    requestObserver.nextPresence();
+
+    // 逻辑服务应用快照之前不会跳过当前节点
+    assertThat(reporter.awaitOnline(1).toFuture()).isDone();
+  }
+
+  @Test
+  void closeCompletesWaiters() throws InterruptedException {
+    var reporter = newReporter(Duration.ofHours(1));
+    var link = reporter.open(requestObserver);
+    requestObserver.nextPresence();
+    reporter.onOnline(1);
+    var online = reporter.awaitOnline(1).toFuture();
+    requestObserver.nextPresence();
+    assertThat(online).isNotDone();
+
+    // Link 流中断后重新连接时上报全量快照
+    link.close();
+    assertThat(online).isDone();
+  }
+
+  @Test
+  void ackTimeout() throws Exception {
+    var reporter = newReporter(Duration.ofHours(1), Duration.ofMillis(50));
+    reporter.open(requestObserver);
+    requestObserver.nextPresence();
+    reporter.onOnline(1);
+
+    // 逻辑服务未回复确认时超时后继续
+    reporter.awaitOnline(1).toFuture().get(5, TimeUnit.SECONDS);
+  }
+
+  private static class FakeRequestObserver implements StreamObserver<AgentPb.LinkRequest> {
+
+    final BlockingQueue<AgentPb.LinkRequest> requests = new LinkedBlockingQueue<>();
+
+    AgentPb.Presence nextPresence() throws InterruptedException {
+      var request = requests.poll(5, TimeUnit.SECONDS);
+      assertThat(request).as("等待上报超时").isNotNull();
+      assertThat(request.hasPresence()).isTrue();
+      return request.getPresence();
+    }
+
+    @Override
+    public void onNext(AgentPb.LinkRequest value) {
+      requests.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      // noop
+    }
+
+    @Override
+    public void onCompleted() {
+      // noop
+    }
+  }
+}
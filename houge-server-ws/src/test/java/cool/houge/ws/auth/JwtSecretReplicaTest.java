@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.auth;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTDecodeException;
+import com.auth0.jwt.exceptions.SignatureVerificationException;
+import com.google.protobuf.ByteString;
+import cool.houge.grpc.AuthGrpc;
+import cool.houge.grpc.AuthPb.JwtSecret;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsRequest;
+import cool.houge.grpc.AuthPb.WatchJwtSecretsResponse;
+import cool.houge.ws.LocalAuthConfig;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link JwtSecretReplica} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class JwtSecretReplicaTest {
+
+  private static final byte[] KEY1 =
+      "k1-secret-k1-secret-k1-secret-k1".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEY2 =
+      "k2-secret-k2-secret-k2-secret-k2".getBytes(StandardCharsets.UTF_8);
+
+  private final FakeAuthService authService = new FakeAuthService();
+  private Server server;
+  private ManagedChannel channel;
+  private JwtSecretReplica replica;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    var name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(authService)
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (replica != null) {
+      replica.stop();
+    }
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  private JwtSecretReplica startReplica(boolean enabled) {
+    var config = new LocalAuthConfig();
+    config.setEnabled(enabled);
+    config.setResubscribeDelay(Duration.ofMillis(10));
+    replica = new JwtSecretReplica(config, AuthGrpc.newStub(channel));
+    replica.start();
+    return replica;
+  }
+
+  private static WatchJwtSecretsResponse secrets(JwtSecret... secrets) {
+    return WatchJwtSecretsResponse.newBuilder().addAllSecret(List.of(secrets)).build();
+  }
+
+  private static JwtSecret secret(String kid, String algorithm, byte[] key) {
+    return JwtSecret.newBuilder()
+        .setId(kid)
+        .setAlgorithm(algorithm)
+        .setSecretKey(ByteString.copyFrom(key))
+        .build();
+  }
+
+  private static String token(String kid, Algorithm algorithm, String jti) {
+    return JWT.create().withKeyId(kid).withJWTId(jti).sign(algorithm);
+  }
+
+  private static void await(BooleanSupplier condition) {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime()).as("等待超时").isLessThan(deadline);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private static boolean verifies(JwtSecretReplica replica, String token) {
+    return replica.verify(token) != null;
+  }
+
+  @Test
+  void verify() throws InterruptedException {
+    var replica = startReplica(true);
+    var observer = authService.nextObserver();
+    observer.onNext(
+        secrets(
+            secret("k1", "HS256", KEY1),
+            secret("k2", "HS512", KEY2),
+            secret("k3", "RS256", KEY1)));
+
+    var token1 = token("k1", Algorithm.HMAC256(KEY1), "123");
+    await(() -> verifies(replica, token1));
+    assertThat(replica.verify(token1)).isEqualTo(123L);
+    assertThat(replica.verify(token("k2", Algorithm.HMAC512(KEY2), "456"))).isEqualTo(456L);
+
+    // 签名错误
+    assertThatThrownBy(() -> replica.verify(token("k1", Algorithm.HMAC256(KEY2), "123")))
+        .isInstanceOf(SignatureVerificationException.class);
+    // jti 不是用户ID
+    assertThatThrownBy(() -> replica.verify(token("k1", Algorithm.HMAC256(KEY1), "abc")))
+        .isInstanceOf(JWTDecodeException.class);
+    // 不支持的算法被忽略
+    assertThat(replica.verify(token("k3", Algorithm.HMAC256(KEY1), "123"))).isNull();
+  }
+
+  @Test
+  void kidMiss() throws InterruptedException {
+    var replica = startReplica(true);
+    var token1 = token("k1", Algorithm.HMAC256(KEY1), "123");
+    // 尚未收到密钥
+    assertThat(replica.verify(token1)).isNull();
+
+    authService.nextObserver().onNext(secrets(secret("k1", "HS256", KEY1)));
+    await(() -> verifies(replica, token1));
+    assertThat(replica.verify(token("k2", Algorithm.HMAC256(KEY2), "123"))).isNull();
+  }
+
+  @Test
+  void rotation() throws InterruptedException {
+    var replica = startReplica(true);
+    var observer = authService.nextObserver();
+    var token1 = token("k1", Algorithm.HMAC256(KEY1), "123");
+    var token2 = token("k2", Algorithm.HMAC256(KEY2), "123");
+
+    observer.onNext(secrets(secret("k1", "HS256", KEY1)));
+    await(() -> verifies(replica, token1));
+    assertThat(replica.verify(token2)).isNull();
+
+    // 推送全量密钥, 已删除的密钥不再可用
+    observer.onNext(secrets(secret("k2", "HS256", KEY2)));
+    await(() -> verifies(replica, token2));
+    assertThat(replica.verify(token1)).isNull();
+  }
+
+  @Test
+  void resubscribe() throws InterruptedException {
+    var replica = startReplica(true);
+    var token1 = token("k1", Algorithm.HMAC256(KEY1), "123");
+
+    authService.nextObserver().onError(Status.UNAVAILABLE.asRuntimeException());
+    // 逻辑服务未开启密钥订阅时同样会重新订阅
+    authService.nextObserver().onError(Status.PERMISSION_DENIED.asRuntimeException());
+    authService.nextObserver().onCompleted();
+    authService.nextObserver().onNext(secrets(secret("k1", "HS256", KEY1)));
+    await(() -> verifies(replica, token1));
+  }
+
+  @Test
+  void stop() throws InterruptedException {
+    var replica = startReplica(true);
+    var observer = (ServerCallStreamObserver<WatchJwtSecretsResponse>) authService.nextObserver();
+
+    replica.stop();
+    await(observer::isCancelled);
+    assertThat(authService.observers.poll(50, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  void disabled() throws InterruptedException {
+    var replica = startReplica(false);
+    assertThat(authService.observers.poll(50, TimeUnit.MILLISECONDS)).isNull();
+    assertThat(replica.verify(token("k1", Algorithm.HMAC256(KEY1), "123"))).isNull();
+  }
+
+  private static class FakeAuthService extends AuthGrpc.AuthImplBase {
+
+    final BlockingQueue<StreamObserver<WatchJwtSecretsResponse>> observers =
+        new LinkedBlockingQueue<>();
+
+    StreamObserver<WatchJwtSecretsResponse> nextObserver() throws InterruptedException {
+      var observer = observers.poll(5, TimeUnit.SECONDS);
+      assertThat(observer).as("等待订阅超时").isNotNull();
+      return observer;
+    }
+
+    @Override
+    public void watchJwtSecrets(
+        WatchJwtSecretsRequest request,
+        StreamObserver<WatchJwtSecretsResponse> responseObserver) {
+      observers.add(responseObserver);
+    }
+  }
+}
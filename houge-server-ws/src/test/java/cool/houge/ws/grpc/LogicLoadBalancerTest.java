@@ -0,0 +1,531 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancer.PickSubchannelArgs;
+import io.grpc.LoadBalancer.ResolvedAddresses;
+import io.grpc.LoadBalancer.SubchannelPicker;
+import io.grpc.LoadBalancer.SubchannelStateListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.SynchronizationContext;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link LogicLoadBalancer} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class LogicLoadBalancerTest {
+
+  private static final MethodDescriptor<Void, Void> UNARY =
+      newMethod(MethodDescriptor.MethodType.UNARY);
+  private static final MethodDescriptor<Void, Void> STREAMING =
+      newMethod(MethodDescriptor.MethodType.BIDI_STREAMING);
+
+  private final SynchronizationContext syncContext =
+      new SynchronizationContext(
+          (t, e) -> {
+            throw new AssertionError(e);
+          });
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final FakeTicker ticker = new FakeTicker();
+  private final FakeHelper helper = new FakeHelper();
+  private final LogicLoadBalancer balancer = new LogicLoadBalancer(helper, ticker);
+
+  @AfterEach
+  void tearDown() {
+    syncContext.execute(balancer::shutdown);
+    scheduler.shutdownNow();
+  }
+
+  private static MethodDescriptor<Void, Void> newMethod(MethodDescriptor.MethodType type) {
+    var marshaller =
+        new MethodDescriptor.Marshaller<Void>() {
+          @Override
+          public InputStream stream(Void value) {
+            return new ByteArrayInputStream(new byte[0]);
+          }
+
+          @Override
+          public Void parse(InputStream stream) {
+            return null;
+          }
+        };
+    return MethodDescriptor.<Void, Void>newBuilder()
+        .setType(type)
+        .setFullMethodName("test/" + type)
+        .setRequestMarshaller(marshaller)
+        .setResponseMarshaller(marshaller)
+        .build();
+  }
+
+  // 驱逐配置: 统计周期 1 小时(由测试手动触发), 最少 2 个请求, 2 倍中位数, 驱逐 10 秒
+  private static LogicLoadBalancer.Config ejection(int maxEjectionPercent) {
+    return new LogicLoadBalancer.Config(
+        LoadBalancingPolicy.ROUND_ROBIN,
+        new LogicLoadBalancer.Ejection(
+            TimeUnit.HOURS.toNanos(1), 2, 2, TimeUnit.SECONDS.toNanos(10), maxEjectionPercent));
+  }
+
+  private List<FakeSubchannel> start(int n, LogicLoadBalancer.Config config) {
+    var addresses = new ArrayList<EquivalentAddressGroup>();
+    for (int i = 0; i < n; i++) {
+      addresses.add(new EquivalentAddressGroup(new InetSocketAddress("127.0.0.1", 11012 + i)));
+    }
+    syncContext.execute(
+        () ->
+            balancer.handleResolvedAddresses(
+                ResolvedAddresses.newBuilder()
+                    .setAddresses(addresses)
+                    .setLoadBalancingPolicyConfig(config)
+                    .build()));
+    return helper.subchannels;
+  }
+
+  private void setState(FakeSubchannel subchannel, ConnectivityState state) {
+    syncContext.execute(
+        () -> subchannel.listener.onSubchannelState(ConnectivityStateInfo.forNonError(state)));
+  }
+
+  private void detect() {
+    syncContext.execute(balancer::detectSlowBackends);
+  }
+
+  private LoadBalancer.PickResult pick(MethodDescriptor<?, ?> method) {
+    return pick(method, CallOptions.DEFAULT);
+  }
+
+  private LoadBalancer.PickResult pick(MethodDescriptor<?, ?> method, CallOptions callOptions) {
+    var args = mock(PickSubchannelArgs.class);
+    when(args.getMethodDescriptor()).thenAnswer(invocation -> method);
+    when(args.getCallOptions()).thenReturn(callOptions);
+    return helper.picker.pickSubchannel(args);
+  }
+
+  private LoadBalancer.Subchannel pickStream(FakeStreamListener listener) {
+    return pick(STREAMING, CallOptions.DEFAULT.withOption(BalancedStream.KEY, listener.stream))
+        .getSubchannel();
+  }
+
+  private Set<LoadBalancer.Subchannel> pickMany(int n) {
+    var picked = new HashSet<LoadBalancer.Subchannel>();
+    for (int i = 0; i < n; i++) {
+      picked.add(pick(UNARY).getSubchannel());
+    }
+    return picked;
+  }
+
+  // 模拟在指定的后端上完成 n 次一元调用
+  private void call(FakeSubchannel subchannel, int n, long latencyMillis, Status status) {
+    for (int i = 0; i < n; i++) {
+      ClientStreamTracer tracer;
+      for (; ; ) {
+        var result = pick(UNARY);
+        if (result.getSubchannel() == subchannel) {
+          tracer = newTracer(result);
+          break;
+        }
+      }
+      ticker.advance(latencyMillis);
+      tracer.streamClosed(status);
+    }
+  }
+
+  private static ClientStreamTracer newTracer(LoadBalancer.PickResult result) {
+    return result
+        .getStreamTracerFactory()
+        .newClientStreamTracer(
+            ClientStreamTracer.StreamInfo.newBuilder().setCallOptions(CallOptions.DEFAULT).build(),
+            new Metadata());
+  }
+
+  @Test
+  void connecting() {
+    var subchannels = start(2, LogicLoadBalancer.Config.DEFAULT);
+    assertThat(helper.state).isEqualTo(ConnectivityState.CONNECTING);
+    assertThat(subchannels).allSatisfy(s -> assertThat(s.connectionRequested).isTrue());
+    assertThat(pick(UNARY).getSubchannel()).isNull();
+
+    setState(subchannels.get(0), ConnectivityState.READY);
+    assertThat(helper.state).isEqualTo(ConnectivityState.READY);
+  }
+
+  @Test
+  void roundRobin() {
+    var subchannels = start(3, LogicLoadBalancer.Config.DEFAULT);
+    setState(subchannels.get(0), ConnectivityState.READY);
+    setState(subchannels.get(1), ConnectivityState.READY);
+
+    // 只在 READY 的后端中轮询
+    var first = pick(UNARY).getSubchannel();
+    var second = pick(UNARY).getSubchannel();
+    assertThat(first).isNotSameAs(second);
+    assertThat(pick(UNARY).getSubchannel()).isSameAs(first);
+    assertThat(pickMany(10)).containsExactlyInAnyOrder(subchannels.get(0), subchannels.get(1));
+
+    // 流式调用不统计耗时
+    assertThat(pick(STREAMING).getStreamTracerFactory()).isNull();
+    assertThat(pick(UNARY).getStreamTracerFactory()).isNotNull();
+  }
+
+  @Test
+  void leastOutstanding() {
+    var subchannels =
+        start(2, new LogicLoadBalancer.Config(LoadBalancingPolicy.LEAST_OUTSTANDING, null));
+    setState(subchannels.get(0), ConnectivityState.READY);
+    setState(subchannels.get(1), ConnectivityState.READY);
+
+    // 两个后端时每次都比较两个后端, 选择未完成调用较少的后端
+    var busy = pick(UNARY);
+    var tracer = newTracer(busy);
+    var idle = subchannels.get(0) == busy.getSubchannel() ? subchannels.get(1) : subchannels.get(0);
+    assertThat(pickMany(20)).containsExactly(idle);
+
+    tracer.streamClosed(Status.OK);
+    assertThat(pickMany(50)).hasSize(2);
+  }
+
+  @Test
+  void ejectSlowBackend() {
+    var subchannels = start(3, ejection(50));
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    call(subchannels.get(0), 3, 10, Status.OK);
+    call(subchannels.get(1), 3, 12, Status.OK);
+    call(subchannels.get(2), 3, 100, Status.OK);
+
+    detect();
+    assertThat(pickMany(10)).containsExactlyInAnyOrder(subchannels.get(0), subchannels.get(1));
+
+    // 驱逐期内即使没有请求也保持驱逐
+    ticker.advance(TimeUnit.SECONDS.toMillis(5));
+    detect();
+    assertThat(pickMany(10)).doesNotContain(subchannels.get(2));
+
+    // 驱逐期结束后恢复
+    ticker.advance(TimeUnit.SECONDS.toMillis(6));
+    detect();
+    assertThat(pickMany(10)).containsExactlyInAnyOrderElementsOf(subchannels);
+
+    // 再次驱逐时驱逐时长翻倍
+    call(subchannels.get(0), 3, 10, Status.OK);
+    call(subchannels.get(1), 3, 12, Status.OK);
+    call(subchannels.get(2), 3, 100, Status.OK);
+    detect();
+    ticker.advance(TimeUnit.SECONDS.toMillis(15));
+    detect();
+    assertThat(pickMany(10)).doesNotContain(subchannels.get(2));
+    ticker.advance(TimeUnit.SECONDS.toMillis(6));
+    detect();
+    assertThat(pickMany(10)).contains(subchannels.get(2));
+  }
+
+  @Test
+  void ejectFailingBackend() {
+    var subchannels = start(3, ejection(50));
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    call(subchannels.get(0), 3, 10, Status.OK);
+    call(subchannels.get(1), 3, 10, Status.OK);
+    // 快速失败的后端不能因为耗时低而被视为最快的后端
+    call(subchannels.get(2), 3, 1, Status.UNAVAILABLE);
+    call(subchannels.get(2), 1, 1, Status.OK);
+
+    detect();
+    assertThat(pickMany(10)).doesNotContain(subchannels.get(2));
+  }
+
+  @Test
+  void ignoreCancelledAndApplicationErrors() {
+    var subchannels = start(3, ejection(50));
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    call(subchannels.get(0), 3, 10, Status.OK);
+    call(subchannels.get(1), 3, 10, Status.OK);
+    // 客户端取消的慢调用不计入耗时, 业务错误按正常调用计入耗时
+    call(subchannels.get(2), 3, 1000, Status.CANCELLED);
+    call(subchannels.get(2), 3, 10, Status.INVALID_ARGUMENT);
+
+    detect();
+    assertThat(pickMany(10)).containsExactlyInAnyOrderElementsOf(subchannels);
+  }
+
+  @Test
+  void maxEjectionPercent() {
+    var subchannels = start(4, ejection(25));
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    call(subchannels.get(0), 3, 10, Status.OK);
+    call(subchannels.get(1), 3, 10, Status.OK);
+    call(subchannels.get(2), 3, 100, Status.OK);
+    call(subchannels.get(3), 3, 200, Status.OK);
+
+    // 最多驱逐 25% 的后端, 优先驱逐最慢的后端
+    detect();
+    assertThat(pickMany(20))
+        .containsExactlyInAnyOrder(subchannels.get(0), subchannels.get(1), subchannels.get(2));
+  }
+
+  @Test
+  void minRequests() {
+    var subchannels = start(3, ejection(50));
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    call(subchannels.get(0), 3, 10, Status.OK);
+    call(subchannels.get(1), 3, 10, Status.OK);
+    call(subchannels.get(2), 1, 100, Status.OK);
+
+    // 请求数不足的后端不参与驱逐
+    detect();
+    assertThat(pickMany(10)).containsExactlyInAnyOrderElementsOf(subchannels);
+  }
+
+  @Test
+  void removeBackend() {
+    var subchannels = start(2, LogicLoadBalancer.Config.DEFAULT);
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    var removed = subchannels.get(1);
+    syncContext.execute(
+        () ->
+            balancer.handleResolvedAddresses(
+                ResolvedAddresses.newBuilder()
+                    .setAddresses(List.of(subchannels.get(0).eag))
+                    .setLoadBalancingPolicyConfig(LogicLoadBalancer.Config.DEFAULT)
+                    .build()));
+    assertThat(removed.shutdown).isTrue();
+    assertThat(pickMany(10)).containsExactly(subchannels.get(0));
+  }
+
+  @Test
+  void streamsSpreadAcrossBackends() {
+    var subchannels = start(3, LogicLoadBalancer.Config.DEFAULT);
+    setState(subchannels.get(0), ConnectivityState.READY);
+    setState(subchannels.get(1), ConnectivityState.READY);
+
+    // 流分配到已建立流最少的后端
+    var a = new FakeStreamListener();
+    var b = new FakeStreamListener();
+    a.subchannel = pickStream(a);
+    b.subchannel = pickStream(b);
+    assertThat(Set.of(a.subchannel, b.subchannel))
+        .containsExactlyInAnyOrder(subchannels.get(0), subchannels.get(1));
+    assertThat(a.backends).isEqualTo(2);
+
+    // 新增的后端上没有流, 不超过平均数的流不迁移, 调用方按后端数量增加流
+    setState(subchannels.get(2), ConnectivityState.READY);
+    assertThat(a.rebalances + b.rebalances).isZero();
+    assertThat(a.backends).isEqualTo(3);
+    assertThat(b.backends).isEqualTo(3);
+    var c = new FakeStreamListener();
+    assertThat(pickStream(c)).isSameAs(subchannels.get(2));
+
+    // 结束的流不再占用后端
+    a.stream.closed();
+    assertThat(pickStream(new FakeStreamListener())).isSameAs(a.subchannel);
+  }
+
+  @Test
+  void rebalanceStreamsToNewBackend() {
+    var subchannels = start(2, LogicLoadBalancer.Config.DEFAULT);
+    setState(subchannels.get(0), ConnectivityState.READY);
+    var a = new FakeStreamListener();
+    var b = new FakeStreamListener();
+    pickStream(a);
+    pickStream(b);
+
+    // 超过平均数的流迁移到新增的后端
+    setState(subchannels.get(1), ConnectivityState.READY);
+    assertThat(a.rebalances + b.rebalances).isEqualTo(1);
+    var moved = a.rebalances == 1 ? a : b;
+    assertThat(pickStream(moved)).isSameAs(subchannels.get(1));
+  }
+
+  @Test
+  void rebalanceStreamsFromUnavailableBackend() {
+    var subchannels = start(2, LogicLoadBalancer.Config.DEFAULT);
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    var a = new FakeStreamListener();
+    var b = new FakeStreamListener();
+    a.subchannel = pickStream(a);
+    b.subchannel = pickStream(b);
+
+    setState(subchannels.get(0), ConnectivityState.TRANSIENT_FAILURE);
+    var lost = a.subchannel == subchannels.get(0) ? a : b;
+    var kept = lost == a ? b : a;
+    assertThat(lost.rebalances).isEqualTo(1);
+    assertThat(kept.rebalances).isZero();
+    assertThat(pickStream(lost)).isSameAs(subchannels.get(1));
+  }
+
+  @Test
+  void ejectSlowStreamBackend() {
+    var subchannels = start(3, ejection(50));
+    subchannels.forEach(s -> setState(s, ConnectivityState.READY));
+    var listeners = new ArrayList<FakeStreamListener>();
+    for (int i = 0; i < 3; i++) {
+      var listener = new FakeStreamListener();
+      listener.subchannel = pickStream(listener);
+      listeners.add(listener);
+    }
+
+    // 流中请求的耗时参与慢后端驱逐的统计
+    for (FakeStreamListener listener : listeners) {
+      var slow = listener.subchannel == subchannels.get(2);
+      for (int i = 0; i < 3; i++) {
+        listener.stream.requestStarted();
+        listener.stream.requestCompleted(
+            Status.Code.OK, TimeUnit.MILLISECONDS.toNanos(slow ? 100 : 10));
+      }
+    }
+    detect();
+    assertThat(pickMany(10)).containsExactlyInAnyOrder(subchannels.get(0), subchannels.get(1));
+    // 被驱逐的后端上的流迁移到其它后端
+    for (FakeStreamListener listener : listeners) {
+      var slow = listener.subchannel == subchannels.get(2);
+      assertThat(listener.rebalances).isEqualTo(slow ? 1 : 0);
+    }
+  }
+
+  private static class FakeStreamListener implements BalancedStream.Listener {
+
+    final BalancedStream stream = new BalancedStream(this);
+    LoadBalancer.Subchannel subchannel;
+    int rebalances;
+    int backends;
+
+    @Override
+    public void onRebalance() {
+      rebalances++;
+    }
+
+    @Override
+    public void onBackendsChanged(int backends) {
+      this.backends = backends;
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+
+    private volatile long nanos = 1;
+
+    void advance(long millis) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+  private class FakeHelper extends LoadBalancer.Helper {
+
+    private final List<FakeSubchannel> subchannels = new ArrayList<>();
+    private ConnectivityState state;
+    private SubchannelPicker picker;
+
+    @Override
+    public LoadBalancer.Subchannel createSubchannel(LoadBalancer.CreateSubchannelArgs args) {
+      var subchannel = new FakeSubchannel(args.getAddresses().get(0));
+      subchannels.add(subchannel);
+      return subchannel;
+    }
+
+    @Override
+    public ManagedChannel createOobChannel(EquivalentAddressGroup eag, String authority) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateBalancingState(ConnectivityState newState, SubchannelPicker newPicker) {
+      this.state = newState;
+      this.picker = newPicker;
+    }
+
+    @Override
+    public SynchronizationContext getSynchronizationContext() {
+      return syncContext;
+    }
+
+    @Override
+    public ScheduledExecutorService getScheduledExecutorService() {
+      return scheduler;
+    }
+
+    @Override
+    public String getAuthority() {
+      return "logic";
+    }
+  }
+
+  private static class FakeSubchannel extends LoadBalancer.Subchannel {
+
+    private final EquivalentAddressGroup eag;
+    private SubchannelStateListener listener;
+    private boolean connectionRequested;
+    private boolean shutdown;
+
+    FakeSubchannel(EquivalentAddressGroup eag) {
+      this.eag = eag;
+    }
+
+    @Override
+    public void start(SubchannelStateListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public void requestConnection() {
+      connectionRequested = true;
+    }
+
+    @Override
+    public List<EquivalentAddressGroup> getAllAddresses() {
+      return List.of(eag);
+    }
+
+    @Override
+    public Attributes getAttributes() {
+      return Attributes.EMPTY;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.grpc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+import io.grpc.SynchronizationContext;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link StaticNameResolverProvider} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class StaticNameResolverProviderTest {
+
+  private final StaticNameResolverProvider provider = new StaticNameResolverProvider();
+  private final NameResolver.Args args =
+      NameResolver.Args.newBuilder()
+          .setDefaultPort(443)
+          .setProxyDetector(targetServerAddress -> null)
+          .setSynchronizationContext(
+              new SynchronizationContext((t, e) -> assertThat(e).isNull()))
+          .setServiceConfigParser(
+              new NameResolver.ServiceConfigParser() {
+                @Override
+                public NameResolver.ConfigOrError parseServiceConfig(Map<String, ?> rawConfig) {
+                  return NameResolver.ConfigOrError.fromConfig(rawConfig);
+                }
+              })
+          .build();
+
+  private static List<SocketAddress> resolve(NameResolver resolver) {
+    var result = new NameResolver.ResolutionResult[1];
+    resolver.start(
+        new NameResolver.Listener2() {
+          @Override
+          public void onResult(ResolutionResult resolutionResult) {
+            result[0] = resolutionResult;
+          }
+
+          @Override
+          public void onError(Status error) {
+            throw error.asRuntimeException();
+          }
+        });
+    assertThat(result[0]).isNotNull();
+    // 每个地址作为一个独立的后端
+    assertThat(result[0].getAddresses()).allSatisfy(eag -> assertThat(eag.getAddresses()).hasSize(1));
+    return result[0].getAddresses().stream()
+        .map(EquivalentAddressGroup::getAddresses)
+        .map(addresses -> addresses.get(0))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void newNameResolver() {
+    var resolver =
+        provider.newNameResolver(URI.create("static:///127.0.0.1:11012,127.0.0.2:11013"), args);
+    assertThat(resolver.getServiceAuthority()).isEqualTo("static");
+    assertThat(resolve(resolver))
+        .containsExactly(
+            new InetSocketAddress("127.0.0.1", 11012), new InetSocketAddress("127.0.0.2", 11013));
+  }
+
+  @Test
+  void trimAndOmitEmpty() {
+    var resolver =
+        provider.newNameResolver(URI.create("static:///%20127.0.0.1:11012,,[::1]:11013,"), args);
+    assertThat(resolve(resolver))
+        .containsExactly(
+            new InetSocketAddress("127.0.0.1", 11012), new InetSocketAddress("::1", 11013));
+  }
+
+  @Test
+  void authority() {
+    var resolver = provider.newNameResolver(URI.create("static://logic/127.0.0.1:11012"), args);
+    assertThat(resolver.getServiceAuthority()).isEqualTo("logic");
+  }
+
+  @Test
+  void emptyAddresses() {
+    assertThatThrownBy(() -> provider.newNameResolver(URI.create("static:///"), args))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> provider.newNameResolver(URI.create("static:///,%20,"), args))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void otherScheme() {
+    assertThat(provider.newNameResolver(URI.create("dns:///127.0.0.1:11012"), args)).isNull();
+    assertThat(provider.getDefaultScheme()).isEqualTo(StaticNameResolverProvider.SCHEME);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.grpc.AuthGrpc;
+import cool.houge.grpc.AuthPb.ConnectRequest;
+import cool.houge.grpc.AuthPb.ConnectResponse;
+import cool.houge.ws.LocalAuthConfig;
+import cool.houge.ws.auth.JwtSecretReplica;
+import cool.houge.ws.session.DeflateConfig;
+import cool.houge.ws.session.FrameDeflater;
+import cool.houge.ws.session.OutboundQueueConfig;
+import cool.houge.ws.session.SessionGroupManager;
+import cool.houge.ws.session.SlowConsumerPolicy;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.websocket.WebsocketInbound;
+import reactor.netty.http.websocket.WebsocketOutbound;
+import reactor.test.StepVerifier;
+
+/**
+ * {@link WebSocketHandler#connect(WebsocketInbound, WebsocketOutbound)} 单元测试.
+ *
+ * <p>本地没有令牌 kid 对应的密钥时, 通过一次 {@code Auth.Connect} 请求完成远程认证并获取用户的群组IDs.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class WebSocketHandlerConnectTest {
+
+  private final FakeAuthService authService = new FakeAuthService();
+  private final SessionGroupManager sessionGroupManager = mock(SessionGroupManager.class);
+  private Server server;
+  private ManagedChannel managedChannel;
+  private WebSocketHandler handler;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    var name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(authService)
+            .build()
+            .start();
+    managedChannel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    var authStub = AuthGrpc.newStub(managedChannel);
+    when(sessionGroupManager.subGroups(any(), any())).thenReturn(Mono.empty());
+
+    // 未启动订阅的本地副本没有任何密钥, 所有令牌都回退至远程认证
+    var jwtSecretReplica = new JwtSecretReplica(new LocalAuthConfig(), authStub);
+    var queueConfig = new OutboundQueueConfig();
+    queueConfig.setMaxBytes(ConfigMemorySize.ofBytes(1024));
+    queueConfig.setPolicy(SlowConsumerPolicy.DROP_NEWEST);
+    var deflateConfig = new DeflateConfig();
+    deflateConfig.setMinPayloadSize(ConfigMemorySize.ofBytes(0));
+    var transportConfig = new TransportConfig();
+    transportConfig.setMaxAggregatedPayloadLength(ConfigMemorySize.ofBytes(64 * 1024));
+    handler =
+        new WebSocketHandler(
+            authStub,
+            null,
+            // 远程认证已返回群组IDs, 不应再调用 UserGroup.ListGids
+            null,
+            jwtSecretReplica,
+            null,
+            sessionGroupManager,
+            queueConfig,
+            null,
+            null,
+            null,
+            new FrameDeflater(deflateConfig),
+            transportConfig);
+  }
+
+  @AfterEach
+  void tearDown() {
+    managedChannel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  private static WebsocketInbound newInbound(String token) {
+    var in = mock(WebsocketInbound.class, withSettings().extraInterfaces(HttpServerRequest.class));
+    when(in.headers())
+        .thenReturn(new DefaultHttpHeaders().set(HttpHeaderNames.AUTHORIZATION, "Bearer " + token));
+    return in;
+  }
+
+  @Test
+  void remoteConnect() {
+    authService.response = ConnectResponse.newBuilder().setUid(7).addGid(100).addGid(200).build();
+
+    StepVerifier.create(handler.connect(newInbound("remote-token"), mock(WebsocketOutbound.class)))
+        .assertNext(session -> assertThat(session.uid()).isEqualTo(7))
+        .expectComplete()
+        .verify(Duration.ofSeconds(5));
+    assertThat(authService.tokens).containsExactly("remote-token");
+    verify(sessionGroupManager).subGroups(any(), eq(List.of(100L, 200L)));
+  }
+
+  @Test
+  void remoteConnectFailed() {
+    authService.error = Status.UNAUTHENTICATED;
+
+    StepVerifier.create(handler.connect(newInbound("bad-token"), mock(WebsocketOutbound.class)))
+        .expectErrorSatisfies(
+            ex ->
+                assertThat(Status.fromThrowable(ex).getCode())
+                    .isEqualTo(Status.Code.UNAUTHENTICATED))
+        .verify(Duration.ofSeconds(5));
+    assertThat(authService.tokens).containsExactly("bad-token");
+    verify(sessionGroupManager, never()).subGroups(any(), any());
+  }
+
+  private static class FakeAuthService extends AuthGrpc.AuthImplBase {
+
+    final List<String> tokens = new CopyOnWriteArrayList<>();
+    volatile ConnectResponse response;
+    volatile Status error;
+
+    @Override
+    public void connect(
+        ConnectRequest request, StreamObserver<ConnectResponse> responseObserver) {
+      tokens.add(request.getToken());
+      if (error != null) {
+        responseObserver.onError(error.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.protobuf.ByteString;
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.grpc.PacketGrpc;
+import cool.houge.grpc.PacketPb.PacketRequest;
+import cool.houge.grpc.PacketPb.PacketResponse;
+import cool.houge.grpc.PacketPb.PacketStreamRequest;
+import cool.houge.grpc.PacketPb.PacketStreamResponse;
+import cool.houge.ws.LogicServiceConfig;
+import cool.houge.ws.session.ClientProtocol;
+import cool.houge.ws.session.DeflateConfig;
+import cool.houge.ws.session.FrameDeflater;
+import cool.houge.ws.session.OutboundQueue;
+import cool.houge.ws.session.OutboundQueueConfig;
+import cool.houge.ws.session.Session;
+import cool.houge.ws.session.SlowConsumerPolicy;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link WebSocketHandler#processPacket(WebSocketFrame, Session)} 与 {@link PacketStreamPool}
+ * 引用计数单元测试.
+ *
+ * <p>请求直接引用入站帧的内存, 测试在成功、失败、一元调用回退与流中断时帧的内存都会被释放, 以及开启重试时 gRPC
+ * 重放请求前帧的内存没有被释放. 测试以 {@code paranoid} 级别的内存泄漏检测运行.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class WebSocketHandlerPacketTest {
+
+  private final FakePacketService packetService = new FakePacketService();
+  private final EmbeddedChannel channel = new EmbeddedChannel();
+  private Server server;
+  private ManagedChannel managedChannel;
+  private PacketStreamPool packetStreamPool;
+
+  @AfterEach
+  void tearDown() {
+    if (packetStreamPool != null) {
+      packetStreamPool.stop();
+    }
+    if (managedChannel != null) {
+      managedChannel.shutdownNow();
+      server.shutdownNow();
+    }
+    releaseOutbound();
+    channel.finishAndReleaseAll();
+  }
+
+  private WebSocketHandler newHandler(int packetStreams, int maxInFlight) throws IOException {
+    return newHandler(packetStreams, maxInFlight, false);
+  }
+
+  private WebSocketHandler newHandler(int packetStreams, int maxInFlight, boolean retry)
+      throws IOException {
+    var name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .directExecutor()
+            .addService(packetService)
+            .build()
+            .start();
+    var channelBuilder = InProcessChannelBuilder.forName(name).directExecutor();
+    if (retry) {
+      // 与 LogicChannels 相同开启重试, 逻辑服务返回 UNAVAILABLE 时重放已发送的请求
+      channelBuilder.enableRetry().defaultServiceConfig(retryServiceConfig());
+    }
+    managedChannel = channelBuilder.build();
+    var packetStub = PacketGrpc.newStub(managedChannel);
+
+    var deflateConfig = new DeflateConfig();
+    deflateConfig.setMinPayloadSize(ConfigMemorySize.ofBytes(0));
+    var frameDeflater = new FrameDeflater(deflateConfig);
+    var logicServiceConfig = new LogicServiceConfig();
+    logicServiceConfig.setPacketStreams(packetStreams);
+    logicServiceConfig.setPacketStreamMaxInFlight(maxInFlight);
+    packetStreamPool = new PacketStreamPool(logicServiceConfig, packetStub, frameDeflater);
+    packetStreamPool.start();
+    if (packetStreams > 0) {
+      await(() -> packetService.streams.size() == packetStreams);
+    }
+
+    var transportConfig = new TransportConfig();
+    transportConfig.setMaxAggregatedPayloadLength(ConfigMemorySize.ofBytes(64 * 1024));
+    return new WebSocketHandler(
+        null,
+        packetStub,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        packetStreamPool,
+        null,
+        frameDeflater,
+        transportConfig);
+  }
+
+  private static Map<String, ?> retryServiceConfig() {
+    Map<String, ?> retryPolicy =
+        Map.of(
+            "maxAttempts", 2.0,
+            "initialBackoff", "0.01s",
+            "maxBackoff", "0.01s",
+            "backoffMultiplier", 1.0,
+            "retryableStatusCodes", List.of("UNAVAILABLE"));
+    return Map.of(
+        "methodConfig",
+        List.of(
+            Map.of(
+                "name",
+                List.of(Map.of("service", PacketGrpc.SERVICE_NAME)),
+                "retryPolicy",
+                retryPolicy)));
+  }
+
+  private Session newSession() {
+    var queueConfig = new OutboundQueueConfig();
+    queueConfig.setMaxBytes(ConfigMemorySize.ofBytes(1024 * 1024));
+    queueConfig.setPolicy(SlowConsumerPolicy.DROP_NEWEST);
+    var queue = new OutboundQueue(channel, queueConfig);
+    var session = mock(Session.class);
+    when(session.sessionId()).thenReturn(1L);
+    when(session.uid()).thenReturn(100L);
+    when(session.protocol()).thenReturn(ClientProtocol.JSON);
+    when(session.outboundQueue()).thenReturn(queue);
+    return session;
+  }
+
+  private static TextWebSocketFrame newFrame(String text) {
+    return new TextWebSocketFrame(Unpooled.copiedBuffer(text, StandardCharsets.UTF_8));
+  }
+
+  /** 与 reactor-netty 相同使用池化的直接内存, 释放后内存会被复用. */
+  private static TextWebSocketFrame newPooledFrame(String text) {
+    var buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+    buf.writeCharSequence(text, StandardCharsets.UTF_8);
+    return new TextWebSocketFrame(buf);
+  }
+
+  /** 与 reactor-netty 相同, 处理完成后释放入站帧. */
+  private static ByteBuf process(WebSocketHandler handler, WebSocketFrame frame, Session session) {
+    var content = frame.content();
+    handler.processPacket(frame, session);
+    frame.release();
+    return content;
+  }
+
+  private List<String> outboundPayloads() {
+    var payloads = new ArrayList<String>();
+    channel.runPendingTasks();
+    ByteBuf frame;
+    while ((frame = channel.readOutbound()) != null) {
+      // 文本帧的 2 字节帧头
+      payloads.add(frame.toString(2, frame.readableBytes() - 2, StandardCharsets.UTF_8));
+      frame.release();
+    }
+    return payloads;
+  }
+
+  private void releaseOutbound() {
+    Object msg;
+    while ((msg = channel.readOutbound()) != null) {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  private static void await(BooleanSupplier condition) {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime()).as("等待超时").isLessThan(deadline);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  @Test
+  void unarySuccess() throws IOException {
+    var handler = newHandler(0, 2);
+    packetService.unaryResponse = "pong";
+
+    var content = process(handler, newFrame("ping"), newSession());
+    await(() -> content.refCnt() == 0);
+    assertThat(packetService.unaryRequests).containsExactly("ping");
+    assertThat(outboundPayloads()).containsExactly("pong");
+  }
+
+  @Test
+  void unaryError() throws IOException {
+    var handler = newHandler(0, 2);
+    packetService.unaryError = Status.INTERNAL;
+
+    var content = process(handler, newFrame("ping"), newSession());
+    await(() -> content.refCnt() == 0);
+    assertThat(outboundPayloads()).isEmpty();
+  }
+
+  @Test
+  void streamSuccess() throws IOException {
+    var handler = newHandler(1, 2);
+    var session = newSession();
+
+    var content = process(handler, newFrame("ping"), session);
+    var stream = packetService.streams.get(0);
+    var request = stream.nextRequest();
+    assertThat(request.getRequest().getDataBytes().toStringUtf8()).isEqualTo("ping");
+    // 响应前由双向流持有引用
+    assertThat(content.refCnt()).isEqualTo(1);
+
+    stream.reply(request, "pong");
+    await(() -> content.refCnt() == 0);
+    assertThat(packetService.unaryRequests).isEmpty();
+    assertThat(outboundPayloads()).containsExactly("pong");
+  }
+
+  @Test
+  void streamErrorStatus() throws IOException {
+    var handler = newHandler(1, 2);
+
+    var content = process(handler, newFrame("ping"), newSession());
+    var stream = packetService.streams.get(0);
+    var request = stream.nextRequest();
+    stream.responses.onNext(
+        PacketStreamResponse.newBuilder()
+            .setRequestId(request.getRequestId())
+            .setStatusCode(Status.Code.INTERNAL.value())
+            .setStatusMessage("boom")
+            .build());
+    await(() -> content.refCnt() == 0);
+    assertThat(outboundPayloads()).isEmpty();
+  }
+
+  @Test
+  void streamSaturatedFallbackToUnary() throws IOException {
+    var handler = newHandler(1, 2);
+    var session = newSession();
+    packetService.unaryResponse = "unary";
+
+    // 最大并行请求数为 2, 第 3 个请求回退为一元调用
+    var contents = new ArrayList<ByteBuf>();
+    for (int i = 0; i < 3; i++) {
+      contents.add(process(handler, newFrame("ping" + i), session));
+    }
+    var stream = packetService.streams.get(0);
+    var request0 = stream.nextRequest();
+    var request1 = stream.nextRequest();
+    await(() -> contents.get(2).refCnt() == 0);
+    assertThat(packetService.unaryRequests).containsExactly("ping2");
+    assertThat(contents.get(0).refCnt()).isEqualTo(1);
+    assertThat(contents.get(1).refCnt()).isEqualTo(1);
+
+    stream.reply(request1, "stream1");
+    stream.reply(request0, "stream0");
+    await(() -> contents.stream().allMatch(c -> c.refCnt() == 0));
+    assertThat(outboundPayloads()).containsExactly("unary", "stream1", "stream0");
+  }
+
+  @Test
+  void streamStraggler() throws IOException {
+    var handler = newHandler(1, 4);
+    var session = newSession();
+    packetService.unaryResponse = "unary";
+
+    var stream = packetService.streams.get(0);
+    var requests = new ArrayList<PacketStreamRequest>();
+    for (int i = 0; i < 4; i++) {
+      process(handler, newFrame("ping" + i), session);
+      requests.add(stream.nextRequest());
+    }
+    // 第 1 个请求未响应, 其余请求的槽位已释放
+    for (int i = 1; i < 4; i++) {
+      stream.reply(requests.get(i), "stream" + i);
+    }
+
+    // 跳过未响应的请求占用的槽位, 新的请求继续使用双向流
+    for (int i = 4; i < 7; i++) {
+      process(handler, newFrame("ping" + i), session);
+      requests.add(stream.nextRequest());
+    }
+    assertThat(requests.stream().map(PacketStreamRequest::getRequestId).distinct()).hasSize(7);
+    assertThat(packetService.unaryRequests).isEmpty();
+
+    // 未响应的请求数达到上限时回退为一元调用
+    var content = process(handler, newFrame("ping7"), session);
+    await(() -> content.refCnt() == 0);
+    assertThat(packetService.unaryRequests).containsExactly("ping7");
+
+    stream.reply(requests.get(0), "stream0");
+    assertThat(outboundPayloads())
+        .containsExactly("stream1", "stream2", "stream3", "unary", "stream0");
+  }
+
+  @Test
+  void streamReset() throws IOException {
+    var handler = newHandler(1, 4);
+    var session = newSession();
+
+    var content0 = process(handler, newFrame("ping0"), session);
+    var content1 = process(handler, newFrame("ping1"), session);
+    var stream = packetService.streams.get(0);
+    stream.nextRequest();
+    stream.nextRequest();
+
+    // 流中断时释放所有未响应请求的引用
+    stream.responses.onError(Status.UNAVAILABLE.asRuntimeException());
+    await(() -> content0.refCnt() == 0 && content1.refCnt() == 0);
+    assertThat(outboundPayloads()).isEmpty();
+  }
+
+  @Test
+  void streamCompleted() throws IOException {
+    var handler = newHandler(1, 4);
+
+    var content = process(handler, newFrame("ping"), newSession());
+    var stream = packetService.streams.get(0);
+    stream.nextRequest();
+    // 逻辑服务关闭流时同样释放未响应请求的引用
+    stream.responses.onCompleted();
+    await(() -> content.refCnt() == 0);
+    assertThat(outboundPayloads()).isEmpty();
+  }
+
+  @Test
+  void unaryRetryReplay() throws IOException {
+    var handler = newHandler(0, 2, true);
+    packetService.unaryResponse = "pong";
+    packetService.unaryFailures.set(1);
+
+    var frame = newPooledFrame("ping");
+    packetService.tracked = frame.content();
+    var content = process(handler, frame, newSession());
+    await(() -> content.refCnt() == 0);
+    // 第 1 次调用返回 UNAVAILABLE, gRPC 从帧的内存重新序列化请求, 重放时帧仍被持有
+    assertThat(packetService.unaryRequests).containsExactly("ping", "ping");
+    assertThat(packetService.trackedRefCnts).hasSize(2).allMatch(n -> n > 0);
+    assertThat(outboundPayloads()).containsExactly("pong");
+  }
+
+  @Test
+  void streamRetryReplay() throws IOException {
+    packetService.streamFailures.set(1);
+    var handler = newHandler(1, 2, true);
+    var session = newSession();
+
+    var frame = newPooledFrame("ping");
+    packetService.tracked = frame.content();
+    var content = process(handler, frame, session);
+    // 第 1 个流在响应头之前返回 UNAVAILABLE, gRPC 使用新的流重放已发送的请求
+    packetService.streams.get(0).nextRequest();
+    await(() -> packetService.streams.size() == 2);
+    var stream = packetService.streams.get(1);
+    var request = stream.nextRequest();
+    assertThat(request.getRequest().getDataBytes().toStringUtf8()).isEqualTo("ping");
+    assertThat(packetService.trackedRefCnts).hasSize(2).allMatch(n -> n > 0);
+    assertThat(content.refCnt()).isEqualTo(1);
+
+    stream.reply(request, "pong");
+    await(() -> content.refCnt() == 0);
+    assertThat(outboundPayloads()).containsExactly("pong");
+  }
+
+  @Test
+  void compositeFrame() throws IOException {
+    var handler = newHandler(0, 2);
+    packetService.unaryResponse = "";
+
+    // 聚合后的分片帧
+    var composite = Unpooled.compositeBuffer();
+    composite.addComponent(true, Unpooled.copiedBuffer("hello ", StandardCharsets.UTF_8));
+    composite.addComponent(true, Unpooled.copiedBuffer("world", StandardCharsets.UTF_8));
+    var content = process(handler, new BinaryWebSocketFrame(composite), newSession());
+    await(() -> content.refCnt() == 0);
+    assertThat(packetService.unaryRequests).containsExactly("hello world");
+    assertThat(outboundPayloads()).isEmpty();
+  }
+
+  @Test
+  void unsafeWrap() {
+    var buf = Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8);
+    assertThat(WebSocketHandler.unsafeWrap(buf).toStringUtf8()).isEqualTo("hello");
+    buf.release();
+
+    // 较小的分片拼接时 ByteString 会复制数据, 使用超过 128 字节的分片验证不复制
+    var a = "a".repeat(200);
+    var b = "b".repeat(200);
+    CompositeByteBuf composite = Unpooled.compositeBuffer();
+    composite.addComponent(true, Unpooled.copiedBuffer(a, StandardCharsets.UTF_8));
+    composite.addComponent(true, Unpooled.copiedBuffer(b, StandardCharsets.UTF_8));
+    var bytes = WebSocketHandler.unsafeWrap(composite);
+    assertThat(bytes.toStringUtf8()).isEqualTo(a + b);
+    // 共享内存, 修改原始缓冲区后可见
+    composite.setByte(0, 'x');
+    composite.setByte(200, 'y');
+    assertThat(bytes.byteAt(0)).isEqualTo((byte) 'x');
+    assertThat(bytes.byteAt(200)).isEqualTo((byte) 'y');
+    composite.release();
+    assertThat(composite.refCnt()).isZero();
+  }
+
+  private static class FakePacketService extends PacketGrpc.PacketImplBase {
+
+    final List<String> unaryRequests = new CopyOnWriteArrayList<>();
+    final List<FakeStream> streams = new CopyOnWriteArrayList<>();
+    // 以 UNAVAILABLE 失败的调用数与流数, 用于触发客户端重试
+    final AtomicInteger unaryFailures = new AtomicInteger();
+    final AtomicInteger streamFailures = new AtomicInteger();
+    // 收到请求时记录 tracked 的引用计数
+    final List<Integer> trackedRefCnts = new CopyOnWriteArrayList<>();
+    volatile ByteBuf tracked;
+    volatile String unaryResponse = "";
+    volatile Status unaryError;
+
+    void track() {
+      var buf = tracked;
+      if (buf != null) {
+        trackedRefCnts.add(buf.refCnt());
+      }
+    }
+
+    @Override
+    public void process(PacketRequest request, StreamObserver<PacketResponse> responseObserver) {
+      unaryRequests.add(request.getDataBytes().toStringUtf8());
+      track();
+      if (unaryFailures.getAndDecrement() > 0) {
+        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+        return;
+      }
+      if (unaryError != null) {
+        responseObserver.onError(unaryError.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(
+          PacketResponse.newBuilder().setDataBytes(ByteString.copyFromUtf8(unaryResponse)).build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<PacketStreamRequest> processStream(
+        StreamObserver<PacketStreamResponse> responseObserver) {
+      var stream = new FakeStream(this, responseObserver, streamFailures.getAndDecrement() > 0);
+      streams.add(stream);
+      return stream;
+    }
+  }
+
+  private static class FakeStream implements StreamObserver<PacketStreamRequest> {
+
+    final FakePacketService service;
+    final StreamObserver<PacketStreamResponse> responses;
+    // 收到请求后以 UNAVAILABLE 结束流, 此前没有发送响应头
+    final boolean fail;
+    final BlockingQueue<PacketStreamRequest> requests = new LinkedBlockingQueue<>();
+
+    FakeStream(
+        FakePacketService service, StreamObserver<PacketStreamResponse> responses, boolean fail) {
+      this.service = service;
+      this.responses = responses;
+      this.fail = fail;
+    }
+
+    PacketStreamRequest nextRequest() {
+      try {
+        var request = requests.poll(5, TimeUnit.SECONDS);
+        assertThat(request).as("等待请求超时").isNotNull();
+        return request;
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void reply(PacketStreamRequest request, String data) {
+      responses.onNext(
+          PacketStreamResponse.newBuilder()
+              .setRequestId(request.getRequestId())
+              .setDataBytes(ByteString.copyFromUtf8(data))
+              .build());
+    }
+
+    @Override
+    public void onNext(PacketStreamRequest value) {
+      requests.add(value);
+      service.track();
+      if (fail) {
+        responses.onError(Status.UNAVAILABLE.asRuntimeException());
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      // 客户端取消
+    }
+
+    @Override
+    public void onCompleted() {
+      responses.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link DefaultSessionGroupManager} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class DefaultSessionGroupManagerTest {
+
+  private final List<String> events = new ArrayList<>();
+  private final DefaultSessionGroupManager manager =
+      new DefaultSessionGroupManager(
+          4,
+          new GroupInterestListener() {
+            @Override
+            public void onSubscribed(long gid) {
+              events.add("+" + gid);
+            }
+
+            @Override
+            public void onUnsubscribed(long gid) {
+              events.add("-" + gid);
+            }
+          });
+
+  private static Session newSession() {
+    return new DefaultSession(null, 1L, null, ClientProtocol.JSON, null);
+  }
+
+  private List<Session> find(long gid) {
+    return manager.findByGroupId(gid).collectList().block();
+  }
+
+  @Test
+  void subAndUnsub() {
+    var s1 = newSession();
+    var s2 = newSession();
+    manager.subGroups(s1, List.of(1L, 2L)).block();
+    manager.subGroups(s2, List.of(1L)).block();
+
+    assertThat(find(1)).containsExactlyInAnyOrder(s1, s2);
+    assertThat(find(2)).containsExactly(s1);
+    assertThat(find(3)).isEmpty();
+    assertThat(s1.subGroupIds()).containsExactly(1L, 2L);
+
+    manager.unsubGroups(s1, List.of(1L)).block();
+    assertThat(find(1)).containsExactly(s2);
+    assertThat(find(2)).containsExactly(s1);
+    assertThat(events).containsExactly("+1", "+2");
+
+    manager.unsubGroups(s1, List.of(2L)).block();
+    manager.unsubGroups(s2, List.of(1L)).block();
+    assertThat(find(1)).isEmpty();
+    assertThat(find(2)).isEmpty();
+    assertThat(events).containsExactly("+1", "+2", "-1", "-2");
+  }
+
+  @Test
+  void snapshotInvalidation() {
+    var s1 = newSession();
+    var s2 = newSession();
+    manager.subGroups(s1, List.of(1L)).block();
+
+    // 订阅者未变更时复用同一个快照
+    var snapshot = manager.snapshot(1);
+    assertThat(manager.snapshot(1)).isSameAs(snapshot);
+
+    // 订阅者变更后重建快照, 已取得的快照不受影响
+    manager.subGroups(s2, List.of(1L)).block();
+    var rebuilt = manager.snapshot(1);
+    assertThat(rebuilt).isNotSameAs(snapshot);
+    assertThat(rebuilt.getCardinality()).isEqualTo(2);
+    assertThat(snapshot.getCardinality()).isEqualTo(1);
+
+    // 重复订阅不会使快照失效
+    manager.subGroups(s2, List.of(1L)).block();
+    assertThat(manager.snapshot(1)).isSameAs(rebuilt);
+
+    manager.unsubGroups(s1, List.of(1L)).block();
+    assertThat(manager.snapshot(1)).isNotSameAs(rebuilt);
+    assertThat(manager.snapshot(1).getCardinality()).isEqualTo(1);
+
+    manager.unsubGroups(s2, List.of(1L)).block();
+    assertThat(manager.snapshot(1)).isNull();
+  }
+
+  @Test
+  void recycleSlotAfterUnsub() {
+    var s1 = newSession();
+    manager.subGroups(s1, List.of(1L, 2L)).block();
+    var index = manager.slotTable.get(s1).index;
+
+    // 仍订阅群组时不释放槽位
+    manager.unsubGroups(s1, List.of(1L)).block();
+    assertThat(manager.slotTable.get(s1)).isNotNull();
+
+    manager.unsubGroups(s1, List.of(2L)).block();
+    assertThat(manager.slotTable.get(s1)).isNull();
+    assertThat(manager.slotTable.size()).isZero();
+
+    // 槽位被新的会话复用, 原群组不能查询到新的会话
+    var s2 = newSession();
+    manager.subGroups(s2, List.of(3L)).block();
+    assertThat(manager.slotTable.get(s2).index).isEqualTo(index);
+    assertThat(find(1)).isEmpty();
+    assertThat(find(2)).isEmpty();
+    assertThat(find(3)).containsExactly(s2);
+  }
+
+  @Test
+  void filterReusedSlot() {
+    var s1 = newSession();
+    manager.subGroups(s1, List.of(1L)).block();
+    var stale = manager.snapshot(1);
+    manager.unsubGroups(s1, List.of(1L)).block();
+
+    // 旧快照中的槽位已分配给未订阅群组 1 的会话
+    var s2 = newSession();
+    manager.subGroups(s2, List.of(2L)).block();
+    assertThat(stale.contains(manager.slotTable.get(s2).index)).isTrue();
+    assertThat(s2.isSubGroup(1)).isFalse();
+    assertThat(find(2)).containsExactly(s2);
+  }
+
+  @Test
+  void releaseSlotWhenNothingAdded() {
+    var s1 = newSession();
+    manager.subGroups0(s1, List.of());
+    assertThat(manager.slotTable.get(s1)).isNull();
+    assertThat(manager.slotTable.size()).isZero();
+
+    // 已订阅的群组重复订阅时保留槽位
+    manager.subGroups(s1, List.of(1L)).block();
+    var slot = manager.slotTable.get(s1);
+    manager.subGroups0(s1, List.of(1L));
+    assertThat(manager.slotTable.get(s1)).isSameAs(slot);
+  }
+
+  @Test
+  void unsubWithoutSlot() {
+    var s1 = newSession();
+    manager.unsubGroups(s1, List.of(1L)).block();
+    assertThat(manager.slotTable.size()).isZero();
+    assertThat(events).isEmpty();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.typesafe.config.ConfigMemorySize;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link FanoutWriter} 单元测试.
+ *
+ * <p>每个 {@link EmbeddedChannel} 拥有独立的 {@link io.netty.channel.embedded.EmbeddedEventLoop}, 两个连接即模拟两个
+ * EventLoop.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class FanoutWriterTest {
+
+  private final FanoutWriter writer = new FanoutWriter();
+  private final EmbeddedChannel channel1 = new EmbeddedChannel();
+  private final EmbeddedChannel channel2 = new EmbeddedChannel();
+
+  @AfterEach
+  void tearDown() {
+    channel1.finishAndReleaseAll();
+    channel2.finishAndReleaseAll();
+  }
+
+  private static Session newSession(EmbeddedChannel channel) {
+    var config = new OutboundQueueConfig();
+    config.setMaxBytes(ConfigMemorySize.ofBytes(1024));
+    config.setPolicy(SlowConsumerPolicy.DISCONNECT);
+    var queue = new OutboundQueue(channel, config);
+    channel.pipeline().addLast(queue);
+    return newSession(queue);
+  }
+
+  private static Session newSession(OutboundQueue queue) {
+    var session = mock(Session.class);
+    when(session.outboundQueue()).thenReturn(queue);
+    return session;
+  }
+
+  private static ByteBuf newFrame() {
+    return Unpooled.directBuffer().writeBytes("hello".getBytes(StandardCharsets.UTF_8));
+  }
+
+  // 读取并释放连接写出的帧
+  private static List<String> written(EmbeddedChannel channel) {
+    var frames = new ArrayList<String>();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      frames.add(buf.toString(StandardCharsets.UTF_8));
+      buf.release();
+    }
+    return frames;
+  }
+
+  @Test
+  void writeAcrossEventLoops() {
+    var sessions = List.of(newSession(channel1), newSession(channel2), newSession(channel1));
+    var frame = newFrame();
+    writer.write(sessions, frame);
+
+    // 每个 EventLoop 的任务各持有一个引用, 调用方的引用已释放
+    assertThat(frame.refCnt()).isEqualTo(2);
+    channel1.runPendingTasks();
+    // channel2 的任务尚未执行, channel1 的两个会话各持有一个写出的副本
+    assertThat(frame.refCnt()).isEqualTo(1 + 2);
+    channel2.runPendingTasks();
+
+    assertThat(written(channel1)).containsExactly("hello", "hello");
+    assertThat(written(channel2)).containsExactly("hello");
+    assertThat(frame.refCnt()).isZero();
+  }
+
+  @Test
+  void writeSingleSession() {
+    var frame = newFrame();
+    writer.write(List.of(newSession(channel1)), frame);
+    channel1.runPendingTasks();
+
+    assertThat(written(channel1)).containsExactly("hello");
+    assertThat(frame.refCnt()).isZero();
+  }
+
+  @Test
+  void writeEmptySessions() {
+    var frame = newFrame();
+    writer.write(List.of(), frame);
+    assertThat(frame.refCnt()).isZero();
+  }
+
+  @Test
+  void writeUnboundSessions() {
+    var frame = newFrame();
+    writer.write(List.of(newSession((OutboundQueue) null)), frame);
+    assertThat(frame.refCnt()).isZero();
+
+    frame = newFrame();
+    var sessions = List.of(newSession((OutboundQueue) null), newSession((OutboundQueue) null));
+    writer.write(sessions, frame);
+    assertThat(frame.refCnt()).isZero();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.typesafe.config.ConfigMemorySize;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateClientExtensionHandshaker;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link FrameDeflater} 单元测试.
+ *
+ * <p>使用 Netty 客户端的 permessage-deflate 解码器解码压缩帧. 客户端未要求 {@code server_no_context_takeover}, 解码器在多条消息之间复用
+ * 解压上下文, 用于验证每条消息使用重置后的 {@link java.util.zip.Deflater} 独立压缩时客户端依然能够正确解压.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class FrameDeflaterTest {
+
+  private static final ByteBufAllocator ALLOC = ByteBufAllocator.DEFAULT;
+  private static final int MIN_PAYLOAD_SIZE = 64;
+
+  private final FrameDeflater deflater = new FrameDeflater(newConfig());
+  private EmbeddedChannel client;
+
+  @BeforeEach
+  void setUp() {
+    // 协商时服务端未返回任何参数, 即服务端复用压缩上下文
+    var extension =
+        new PerMessageDeflateClientExtensionHandshaker()
+            .handshakeExtension(new WebSocketExtensionData("permessage-deflate", Map.of()));
+    assertThat(extension).isNotNull();
+    client =
+        new EmbeddedChannel(
+            new WebSocket13FrameDecoder(false, true, 1 << 20), extension.newExtensionDecoder());
+  }
+
+  @AfterEach
+  void tearDown() {
+    client.finishAndReleaseAll();
+  }
+
+  private static DeflateConfig newConfig() {
+    var config = new DeflateConfig();
+    config.setEnabled(true);
+    config.setCompressionLevel(6);
+    config.setMinPayloadSize(ConfigMemorySize.ofBytes(MIN_PAYLOAD_SIZE));
+    return config;
+  }
+
+  private static byte[] json(int i) {
+    var sb = new StringBuilder("[");
+    for (int n = 0; n < 20; n++) {
+      sb.append("{\"kind\":\"message\",\"to\":").append(i).append(",\"content\":\"hello\"},");
+    }
+    sb.setCharAt(sb.length() - 1, ']');
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static boolean rsv1(ByteBuf frame) {
+    return (frame.getByte(frame.readerIndex()) & SharedFrames.RSV1) != 0;
+  }
+
+  private WebSocketFrame decode(ByteBuf frame) {
+    assertThat(client.writeInbound(frame)).isTrue();
+    WebSocketFrame decoded = client.readInbound();
+    assertThat(decoded).isNotNull();
+    return decoded;
+  }
+
+  private void assertRoundTrip(
+      ClientProtocol protocol, byte[] payload, Class<? extends WebSocketFrame> type) {
+    var frame = deflater.frame(ALLOC, protocol, true, ByteBuffer.wrap(payload));
+    assertThat(rsv1(frame)).as("压缩帧的 RSV1 标识").isTrue();
+    assertThat(frame.readableBytes()).isLessThan(payload.length);
+
+    var decoded = decode(frame);
+    try {
+      assertThat(decoded).isInstanceOf(type);
+      assertThat(decoded.isFinalFragment()).isTrue();
+      assertThat(ByteBufUtil.getBytes(decoded.content())).isEqualTo(payload);
+    } finally {
+      decoded.release();
+    }
+  }
+
+  @Test
+  void roundTrip() {
+    // 连续多条消息共用客户端的解压上下文
+    for (int i = 0; i < 5; i++) {
+      assertRoundTrip(ClientProtocol.JSON, json(i), TextWebSocketFrame.class);
+    }
+    assertRoundTrip(ClientProtocol.PROTOBUF, json(5), BinaryWebSocketFrame.class);
+    assertRoundTrip(ClientProtocol.JSON, json(6), TextWebSocketFrame.class);
+  }
+
+  @Test
+  void sameFrameForEverySession() {
+    var payload = ByteBuffer.wrap(json(1));
+    var f1 = deflater.frame(ALLOC, ClientProtocol.JSON, true, payload);
+    var f2 = deflater.frame(ALLOC, ClientProtocol.JSON, true, payload);
+    try {
+      // 不依赖之前的压缩上下文, 同一条消息压缩后的帧相同, 负载的 position 不变
+      assertThat(ByteBufUtil.equals(f1, f2)).isTrue();
+      assertThat(payload.position()).isZero();
+    } finally {
+      f1.release();
+      f2.release();
+    }
+  }
+
+  @Test
+  void skipSmallPayload() {
+    var payload = "{\"kind\":\"ping\"}".getBytes(StandardCharsets.UTF_8);
+    assertThat(payload.length).isLessThan(MIN_PAYLOAD_SIZE);
+    var frame = deflater.frame(ALLOC, ClientProtocol.JSON, true, ByteBuffer.wrap(payload));
+    assertThat(rsv1(frame)).isFalse();
+
+    var decoded = decode(frame);
+    try {
+      assertThat(decoded.rsv()).isZero();
+      assertThat(ByteBufUtil.getBytes(decoded.content())).isEqualTo(payload);
+    } finally {
+      decoded.release();
+    }
+    // 未压缩帧之后的压缩帧依然可以解压
+    assertRoundTrip(ClientProtocol.JSON, json(1), TextWebSocketFrame.class);
+  }
+
+  @Test
+  void skipIncompressiblePayload() {
+    var payload = new byte[1024];
+    new Random(1).nextBytes(payload);
+    var frame = deflater.frame(ALLOC, ClientProtocol.PROTOBUF, true, ByteBuffer.wrap(payload));
+    assertThat(rsv1(frame)).isFalse();
+
+    var decoded = decode(frame);
+    try {
+      assertThat(decoded).isInstanceOf(BinaryWebSocketFrame.class);
+      assertThat(decoded.rsv()).isZero();
+      assertThat(ByteBufUtil.getBytes(decoded.content())).isEqualTo(payload);
+    } finally {
+      decoded.release();
+    }
+    assertRoundTrip(ClientProtocol.JSON, json(2), TextWebSocketFrame.class);
+  }
+
+  @Test
+  void notNegotiated() {
+    var payload = json(1);
+    var frame = deflater.frame(ALLOC, ClientProtocol.JSON, false, ByteBuffer.wrap(payload));
+    assertThat(rsv1(frame)).isFalse();
+    assertThat(frame.readableBytes()).isGreaterThan(payload.length);
+    frame.release();
+  }
+}
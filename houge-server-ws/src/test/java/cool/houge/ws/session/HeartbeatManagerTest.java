@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link HeartbeatManager} 单元测试.
+ *
+ * <p>不启动时间轮, 由测试推进时钟后直接调用 {@link HeartbeatManager#tick()}. {@code ping-interval} 为 4s, {@code
+ * tick-duration} 为 1s, 会话按 ID 散列到 4 个分桶, 第 k 个刻度检查第 {@code k % 4} 个分桶.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class HeartbeatManagerTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final FakeTicker ticker = new FakeTicker();
+  private final SessionManager sessionManager = mock(SessionManager.class);
+  private final SessionGroupManager sessionGroupManager = mock(SessionGroupManager.class);
+
+  @BeforeEach
+  void setUp() {
+    Metrics.addRegistry(registry);
+    when(sessionManager.remove(any())).thenReturn(Mono.empty());
+    when(sessionGroupManager.unsubGroups(any(), any())).thenReturn(Mono.empty());
+  }
+
+  @AfterEach
+  void tearDown() {
+    Metrics.removeRegistry(registry);
+  }
+
+  private static HeartbeatConfig config(Duration idleTimeout) {
+    var config = new HeartbeatConfig();
+    config.setEnabled(true);
+    config.setPingInterval(Duration.ofSeconds(4));
+    config.setIdleTimeout(idleTimeout);
+    config.setTickDuration(Duration.ofSeconds(1));
+    return config;
+  }
+
+  private HeartbeatManager newManager(Duration idleTimeout) {
+    return new HeartbeatManager(config(idleTimeout), sessionManager, sessionGroupManager, ticker);
+  }
+
+  private static Session newSession(long sessionId, long lastActiveTime) {
+    var queue = mock(OutboundQueue.class);
+    var session = mock(Session.class);
+    when(session.sessionId()).thenReturn(sessionId);
+    when(session.lastActiveTime()).thenReturn(lastActiveTime);
+    when(session.outboundQueue()).thenReturn(queue);
+    when(session.subGroupIds()).thenReturn(new long[] {sessionId * 10});
+    return session;
+  }
+
+  // 每次推进一个刻度后检查
+  private void tick(HeartbeatManager manager, int ticks) {
+    for (int i = 0; i < ticks; i++) {
+      ticker.advance(SECOND);
+      manager.tick();
+    }
+  }
+
+  @Test
+  void illegalConfig() {
+    var config = config(Duration.ofSeconds(10));
+    config.setTickDuration(Duration.ofSeconds(5));
+    assertThatThrownBy(
+            () -> new HeartbeatManager(config, sessionManager, sessionGroupManager, ticker))
+        .isInstanceOf(IllegalArgumentException.class);
+
+    assertThatThrownBy(() -> newManager(Duration.ofSeconds(4)))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> newManager(Duration.ofSeconds(1)))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void pingAfterHalfInterval() {
+    var manager = newManager(Duration.ofSeconds(60));
+    var start = ticker.read();
+    // 会话 1 在第 1, 5 个刻度被检查
+    var session = newSession(1, start);
+    manager.register(session);
+
+    tick(manager, 4);
+    verify(session.outboundQueue(), never()).ping(anyLong());
+
+    // 超过半个 ping-interval 没有活跃, 发送负载为当前时间的 ping
+    tick(manager, 1);
+    verify(session.outboundQueue()).ping(start + 5 * SECOND);
+  }
+
+  @Test
+  void checkEachBucketOncePerInterval() {
+    var manager = newManager(Duration.ofSeconds(60));
+    var start = ticker.read();
+    var sessions = new ArrayList<Session>();
+    for (long id = 0; id < 8; id++) {
+      var session = newSession(id, start - 3 * SECOND);
+      sessions.add(session);
+      manager.register(session);
+    }
+
+    tick(manager, 4);
+    for (Session session : sessions) {
+      // 第 k 个刻度检查分桶 k % 4, 分桶 0 在第 4 个刻度检查
+      var k = session.sessionId() % 4 == 0 ? 4 : session.sessionId() % 4;
+      verify(session.outboundQueue(), times(1)).ping(anyLong());
+      verify(session.outboundQueue()).ping(start + k * SECOND);
+    }
+  }
+
+  @Test
+  void catchUpLostTicks() {
+    var manager = newManager(Duration.ofSeconds(60));
+    var start = ticker.read();
+    var sessions = new ArrayList<Session>();
+    for (long id = 0; id < 4; id++) {
+      var session = newSession(id, start - 3 * SECOND);
+      sessions.add(session);
+      manager.register(session);
+    }
+
+    // 调度延迟, 一次检查补齐第 1-3 个刻度
+    ticker.advance(3 * SECOND);
+    manager.tick();
+    verify(sessions.get(0).outboundQueue(), never()).ping(anyLong());
+    for (int i = 1; i < 4; i++) {
+      verify(sessions.get(i).outboundQueue(), times(1)).ping(anyLong());
+    }
+
+    // 延迟超过一个周期时每个分桶只补齐检查一次
+    ticker.advance(10 * SECOND);
+    manager.tick();
+    verify(sessions.get(0).outboundQueue(), times(1)).ping(anyLong());
+    for (int i = 1; i < 4; i++) {
+      verify(sessions.get(i).outboundQueue(), times(2)).ping(anyLong());
+    }
+
+    // 之后按正常刻度继续检查
+    tick(manager, 1);
+    verify(sessions.get(2).outboundQueue(), times(3)).ping(anyLong());
+  }
+
+  @Test
+  void evictIdleSession() {
+    var manager = newManager(Duration.ofSeconds(10));
+    var session = newSession(1, ticker.read());
+    manager.register(session);
+
+    // 会话 1 在第 1, 5, 9 个刻度被检查, 空闲时间未达到 idle-timeout
+    tick(manager, 12);
+    verify(session.outboundQueue(), never()).close(any());
+    verify(sessionManager, never()).remove(any());
+
+    // 第 13 个刻度空闲 13s, 关闭连接并清理会话索引
+    tick(manager, 1);
+    verify(session.outboundQueue()).close(WebSocketCloseStatus.ENDPOINT_UNAVAILABLE);
+    verify(sessionManager).remove(session);
+    verify(sessionGroupManager).unsubGroups(session, List.of(10L));
+
+    // 驱逐的会话不再被检查
+    tick(manager, 8);
+    verify(session.outboundQueue(), times(1)).close(any());
+    verify(sessionManager, times(1)).remove(any());
+  }
+
+  @Test
+  void unregister() {
+    var manager = newManager(Duration.ofSeconds(10));
+    var session = newSession(1, ticker.read());
+    manager.register(session);
+    manager.unregister(session);
+
+    tick(manager, 16);
+    verify(session.outboundQueue(), never()).ping(anyLong());
+    verify(session.outboundQueue(), never()).close(any());
+  }
+
+  @Test
+  void recordPongRtt() {
+    var manager = newManager(Duration.ofSeconds(10));
+    var session = newSession(1, ticker.read());
+    var content = Unpooled.buffer(Long.BYTES).writeLong(ticker.read());
+    ticker.advance(TimeUnit.MILLISECONDS.toNanos(5));
+
+    var other = Unpooled.buffer(1).writeByte(1);
+    manager.onPong(session, content);
+    // 不是服务端 ping 的响应
+    manager.onPong(session, other);
+    content.release();
+    other.release();
+
+    var rtt = registry.get("tethys.ws.heartbeat.rtt").timer();
+    assertThat(rtt.count()).isOne();
+    assertThat(rtt.totalTime(TimeUnit.MILLISECONDS)).isEqualTo(5.0);
+  }
+
+  private static class FakeTicker extends Ticker {
+
+    private volatile long nanos = TimeUnit.HOURS.toNanos(1);
+
+    void advance(long n) {
+      nanos += n;
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link LongObjectHashMap} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class LongObjectHashMapTest {
+
+  // 默认容量为 16, 超过 8 个元素时扩容
+  private static final int MASK = 15;
+
+  // 查找理想槽位为 slot 的 n 个键
+  private static long[] keysAt(int slot, int n) {
+    var keys = new long[n];
+    var i = 0;
+    for (long k = 1; i < n; k++) {
+      if ((LongObjectHashMap.hash(k) & MASK) == slot) {
+        keys[i++] = k;
+      }
+    }
+    return keys;
+  }
+
+  @Test
+  void putGetRemove() {
+    var map = new LongObjectHashMap<String>();
+    assertThat(map.put(1, "a")).isNull();
+    assertThat(map.put(2, "b")).isNull();
+    assertThat(map.get(1)).isEqualTo("a");
+    assertThat(map.get(2)).isEqualTo("b");
+    assertThat(map.get(3)).isNull();
+    assertThat(map.size()).isEqualTo(2);
+
+    assertThat(map.put(1, "c")).isEqualTo("a");
+    assertThat(map.get(1)).isEqualTo("c");
+    assertThat(map.size()).isEqualTo(2);
+
+    assertThat(map.remove(1)).isEqualTo("c");
+    assertThat(map.remove(1)).isNull();
+    assertThat(map.remove(3)).isNull();
+    assertThat(map.get(1)).isNull();
+    assertThat(map.get(2)).isEqualTo("b");
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  void zeroKey() {
+    var map = new LongObjectHashMap<String>();
+    assertThat(map.get(0)).isNull();
+    map.put(0, "zero");
+    map.put(Long.MIN_VALUE, "min");
+    map.put(-1, "neg");
+    assertThat(map.get(0)).isEqualTo("zero");
+    assertThat(map.get(Long.MIN_VALUE)).isEqualTo("min");
+    assertThat(map.get(-1)).isEqualTo("neg");
+    assertThat(map.remove(0)).isEqualTo("zero");
+    assertThat(map.get(0)).isNull();
+    assertThat(map.size()).isEqualTo(2);
+  }
+
+  @Test
+  void nullValue() {
+    var map = new LongObjectHashMap<String>();
+    assertThatThrownBy(() -> map.put(1, null)).isInstanceOf(NullPointerException.class);
+  }
+
+  @Test
+  void collisions() {
+    var map = new LongObjectHashMap<Long>();
+    var keys = keysAt(3, 4);
+    for (long k : keys) {
+      map.put(k, k);
+    }
+    for (long k : keys) {
+      assertThat(map.get(k)).isEqualTo(k);
+    }
+
+    // 删除探测链中间的元素, 后续元素需要前移
+    map.remove(keys[1]);
+    assertThat(map.get(keys[0])).isEqualTo(keys[0]);
+    assertThat(map.get(keys[1])).isNull();
+    assertThat(map.get(keys[2])).isEqualTo(keys[2]);
+    assertThat(map.get(keys[3])).isEqualTo(keys[3]);
+
+    // 删除链头
+    map.remove(keys[0]);
+    assertThat(map.get(keys[2])).isEqualTo(keys[2]);
+    assertThat(map.get(keys[3])).isEqualTo(keys[3]);
+    assertThat(map.size()).isEqualTo(2);
+  }
+
+  @Test
+  void shiftBackwardAcrossWrapAround() {
+    var map = new LongObjectHashMap<Long>();
+    // 理想槽位为最后一个槽位的键依次占用 15, 0, 1
+    var tail = keysAt(MASK, 3);
+    // 理想槽位为 0 的键被挤到 2
+    var head = keysAt(0, 1)[0];
+    for (long k : tail) {
+      map.put(k, k);
+    }
+    map.put(head, head);
+
+    // 删除槽位 15 的元素, 环绕后的元素需要前移到 15
+    map.remove(tail[0]);
+    assertThat(map.get(tail[1])).isEqualTo(tail[1]);
+    assertThat(map.get(tail[2])).isEqualTo(tail[2]);
+    assertThat(map.get(head)).isEqualTo(head);
+
+    map.remove(tail[1]);
+    assertThat(map.get(tail[2])).isEqualTo(tail[2]);
+    assertThat(map.get(head)).isEqualTo(head);
+    // 此时槽位 15 的元素被删除后, 理想槽位为 0 的元素不能移动到 15
+    map.remove(tail[2]);
+    assertThat(map.get(head)).isEqualTo(head);
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  void resize() {
+    var map = new LongObjectHashMap<Long>(2);
+    for (long k = 0; k < 1000; k++) {
+      map.put(k, k);
+    }
+    assertThat(map.size()).isEqualTo(1000);
+    for (long k = 0; k < 1000; k++) {
+      assertThat(map.get(k)).isEqualTo(k);
+    }
+
+    var values = new ArrayList<Long>();
+    map.forEachValue(values::add);
+    assertThat(values).hasSize(1000).doesNotHaveDuplicates();
+  }
+
+  @Test
+  void randomOperations() {
+    var map = new LongObjectHashMap<Long>();
+    var expected = new HashMap<Long, Long>();
+    var random = new Random(1);
+    for (int n = 0; n < 100_000; n++) {
+      // 键的范围较小, 保证冲突与删除频繁出现
+      long key = random.nextInt(512) - 256;
+      if (random.nextInt(3) == 0) {
+        assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+      } else {
+        long value = random.nextLong();
+        assertThat(map.put(key, value)).isEqualTo(expected.put(key, value));
+      }
+    }
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (long key = -256; key < 256; key++) {
+      assertThat(map.get(key)).isEqualTo(expected.get(key));
+    }
+    List<Long> values = new ArrayList<>();
+    map.forEachValue(values::add);
+    assertThat(values).containsExactlyInAnyOrderElementsOf(expected.values());
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.typesafe.config.ConfigMemorySize;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link OutboundQueue} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class OutboundQueueTest {
+
+  private static final int FRAME_SIZE = Integer.BYTES;
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final List<ByteBuf> frames = new ArrayList<>();
+  private EmbeddedChannel channel;
+
+  @BeforeEach
+  void setUp() {
+    Metrics.addRegistry(registry);
+    channel = new EmbeddedChannel();
+  }
+
+  @AfterEach
+  void tearDown() {
+    channel.finishAndReleaseAll();
+    // 无论帧被写出, 丢弃还是随连接关闭, 引用计数都必须归零
+    assertThat(frames).allSatisfy(frame -> assertThat(frame.refCnt()).isZero());
+    assertThat(queuedBytesGauge()).isZero();
+    Metrics.removeRegistry(registry);
+  }
+
+  // 队列最多缓存 2 个帧
+  private OutboundQueue newQueue(SlowConsumerPolicy policy) {
+    var config = new OutboundQueueConfig();
+    config.setMaxBytes(ConfigMemorySize.ofBytes(2L * FRAME_SIZE));
+    config.setPolicy(policy);
+    var queue = new OutboundQueue(channel, config);
+    channel.pipeline().addLast(OutboundQueue.HANDLER_NAME, queue);
+    return queue;
+  }
+
+  private ByteBuf frame(int id) {
+    return track(Unpooled.directBuffer(FRAME_SIZE).writeInt(id));
+  }
+
+  private ByteBuf track(ByteBuf frame) {
+    frames.add(frame);
+    return frame;
+  }
+
+  // 通过用户自定义的可写标识模拟写缓冲区超过高水位线, 状态变化时触发 channelWritabilityChanged
+  private void setWritable(boolean writable) {
+    channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+  }
+
+  private List<Integer> written() {
+    var ids = new ArrayList<Integer>();
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      ids.add(buf.getInt(buf.readerIndex()));
+      buf.release();
+    }
+    return ids;
+  }
+
+  private static double queuedBytesGauge() {
+    return Metrics.globalRegistry.get("tethys.ws.outbound.queued.bytes").gauge().value();
+  }
+
+  @Test
+  void writeDirectlyWhenWritable() {
+    var queue = newQueue(SlowConsumerPolicy.DISCONNECT);
+    assertThat(queue.offer(frame(1))).isTrue();
+    assertThat(queue.offer(frame(2))).isTrue();
+    assertThat(queue.queuedBytes()).isZero();
+
+    // 调用 flush 之前帧不会写出
+    assertThat(written()).isEmpty();
+    queue.flush();
+    assertThat(written()).containsExactly(1, 2);
+  }
+
+  @Test
+  void drainOnWritabilityChanged() {
+    var queue = newQueue(SlowConsumerPolicy.DISCONNECT);
+    setWritable(false);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+    queue.flush();
+    assertThat(written()).isEmpty();
+    assertThat(queue.queuedBytes()).isEqualTo(2L * FRAME_SIZE);
+    assertThat(queuedBytesGauge()).isEqualTo(2.0 * FRAME_SIZE);
+
+    // 连接恢复可写后按顺序写出队列中的帧
+    setWritable(true);
+    assertThat(written()).containsExactly(1, 2);
+    assertThat(queue.queuedBytes()).isZero();
+
+    queue.send(frame(3));
+    assertThat(written()).containsExactly(3);
+  }
+
+  @Test
+  void dropOldest() {
+    var queue = newQueue(SlowConsumerPolicy.DROP_OLDEST);
+    setWritable(false);
+    var first = frame(1);
+    assertThat(queue.offer(first)).isTrue();
+    assertThat(queue.offer(frame(2))).isTrue();
+    assertThat(queue.offer(frame(3))).isTrue();
+    assertThat(first.refCnt()).isZero();
+    assertThat(queue.queuedBytes()).isEqualTo(2L * FRAME_SIZE);
+
+    setWritable(true);
+    assertThat(written()).containsExactly(2, 3);
+  }
+
+  @Test
+  void dropOldestOversizedFrame() {
+    var queue = newQueue(SlowConsumerPolicy.DROP_OLDEST);
+    setWritable(false);
+    queue.offer(frame(1));
+    var oversized = track(Unpooled.directBuffer(3 * FRAME_SIZE).writeZero(3 * FRAME_SIZE));
+
+    // 超出上限的单个帧被丢弃, 队列中已有的帧保持不变
+    assertThat(queue.offer(oversized)).isFalse();
+    assertThat(oversized.refCnt()).isZero();
+    assertThat(queue.queuedBytes()).isEqualTo(FRAME_SIZE);
+
+    setWritable(true);
+    assertThat(written()).containsExactly(1);
+  }
+
+  @Test
+  void dropNewest() {
+    var queue = newQueue(SlowConsumerPolicy.DROP_NEWEST);
+    setWritable(false);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+    var third = frame(3);
+    assertThat(queue.offer(third)).isFalse();
+    assertThat(third.refCnt()).isZero();
+
+    setWritable(true);
+    assertThat(written()).containsExactly(1, 2);
+  }
+
+  @Test
+  void disconnect() {
+    var queue = newQueue(SlowConsumerPolicy.DISCONNECT);
+    setWritable(false);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+    assertThat(queue.offer(frame(3))).isFalse();
+    channel.runPendingTasks();
+
+    // 超出上限时丢弃队列中的所有帧并关闭连接
+    assertThat(channel.isOpen()).isFalse();
+    assertThat(queue.queuedBytes()).isZero();
+    assertThat(queue.offer(frame(4))).isFalse();
+    assertThat(written()).isEmpty();
+  }
+
+  @Test
+  void releaseOnChannelInactive() {
+    var queue = newQueue(SlowConsumerPolicy.DISCONNECT);
+    setWritable(false);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+    assertThat(queuedBytesGauge()).isEqualTo(2.0 * FRAME_SIZE);
+
+    channel.close();
+    channel.runPendingTasks();
+    assertThat(frames).allSatisfy(frame -> assertThat(frame.refCnt()).isZero());
+    assertThat(queue.queuedBytes()).isZero();
+    assertThat(queuedBytesGauge()).isZero();
+  }
+
+  @Test
+  void releaseOnHandlerRemoved() {
+    var queue = newQueue(SlowConsumerPolicy.DISCONNECT);
+    setWritable(false);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+
+    channel.pipeline().remove(queue);
+    assertThat(frames).allSatisfy(frame -> assertThat(frame.refCnt()).isZero());
+    assertThat(queue.queuedBytes()).isZero();
+    assertThat(queuedBytesGauge()).isZero();
+
+    // 处理器移除后不再接收新的帧
+    assertThat(queue.offer(frame(3))).isFalse();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link RateLimiter} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class RateLimiterTest {
+
+  // 会话容量 3, 用户容量 4, 速率都很低, 测试期间不会恢复令牌
+  private static RateLimiter newRateLimiter(boolean enabled) {
+    var config = new RateLimitConfig();
+    config.setEnabled(enabled);
+    config.setSessionRate(0.001);
+    config.setSessionBurst(3);
+    config.setUserRate(0.001);
+    config.setUserBurst(4);
+    config.setAction(RateLimitAction.DROP);
+    return new RateLimiter(config);
+  }
+
+  private static Session newSession(long uid) {
+    return new DefaultSession(null, uid, null, ClientProtocol.JSON, null);
+  }
+
+  private static int drain(RateLimiter.Permit permit, long now) {
+    var n = 0;
+    while (permit.tryAcquire(now) && n < 1000) {
+      n++;
+    }
+    return n;
+  }
+
+  @Test
+  void disabled() {
+    var limiter = newRateLimiter(false);
+    var permit = limiter.open(newSession(1));
+    assertThat(drain(permit, System.nanoTime())).isEqualTo(1000);
+    permit.close();
+  }
+
+  @Test
+  void sessionLimit() {
+    var limiter = newRateLimiter(true);
+    var permit = limiter.open(newSession(1));
+    assertThat(drain(permit, System.nanoTime())).isEqualTo(3);
+    permit.close();
+  }
+
+  @Test
+  void sharedUserBucket() {
+    var limiter = newRateLimiter(true);
+    var p1 = limiter.open(newSession(1));
+    var p2 = limiter.open(newSession(1));
+    var other = limiter.open(newSession(2));
+    var now = System.nanoTime();
+
+    // 同一用户的会话共享用户令牌桶
+    assertThat(drain(p1, now)).isEqualTo(3);
+    assertThat(drain(p2, now)).isEqualTo(1);
+    // 其它用户不受影响
+    assertThat(drain(other, now)).isEqualTo(3);
+
+    p1.close();
+    p2.close();
+    other.close();
+  }
+
+  @Test
+  void userLimitRefundsSessionToken() {
+    var config = new RateLimitConfig();
+    config.setEnabled(true);
+    config.setSessionRate(0.001);
+    config.setSessionBurst(3);
+    // 每 1ms 生成一个用户令牌, 容量为 1
+    config.setUserRate(1000);
+    config.setUserBurst(1);
+    config.setAction(RateLimitAction.DROP);
+    var permit = new RateLimiter(config).open(newSession(1));
+    var now = System.nanoTime();
+    var ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+    assertThat(permit.tryAcquire(now)).isTrue();
+    // 用户令牌桶拒绝的消息不消耗会话的令牌
+    assertThat(drain(permit, now)).isZero();
+    assertThat(permit.tryAcquire(now + ms)).isTrue();
+    assertThat(permit.tryAcquire(now + 2 * ms)).isTrue();
+    assertThat(permit.tryAcquire(now + 3 * ms)).isFalse();
+    permit.close();
+  }
+
+  @Test
+  void releaseUserBucket() {
+    var limiter = newRateLimiter(true);
+    var p1 = limiter.open(newSession(1));
+    var p2 = limiter.open(newSession(1));
+    drain(p1, System.nanoTime());
+
+    // 用户仍有会话时, 新会话继续使用已消耗的用户令牌桶
+    p1.close();
+    var p3 = limiter.open(newSession(1));
+    assertThat(drain(p3, System.nanoTime())).isEqualTo(1);
+
+    // 用户的最后一个会话关闭后删除用户令牌桶, 新会话使用新的令牌桶
+    p2.close();
+    p3.close();
+    var p4 = limiter.open(newSession(1));
+    assertThat(drain(p4, System.nanoTime())).isEqualTo(3);
+    var p5 = limiter.open(newSession(1));
+    assertThat(drain(p5, System.nanoTime())).isEqualTo(1);
+    p4.close();
+    p5.close();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link SessionSlotTable} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class SessionSlotTableTest {
+
+  private final SessionSlotTable table = new SessionSlotTable();
+
+  private static Session newSession() {
+    return new DefaultSession(null, 1L, null, ClientProtocol.JSON, null);
+  }
+
+  @Test
+  void acquire() {
+    var s1 = newSession();
+    var s2 = newSession();
+    var slot1 = table.acquire(s1);
+    var slot2 = table.acquire(s2);
+    assertThat(table.acquire(s1)).isSameAs(slot1);
+    assertThat(table.get(s1)).isSameAs(slot1);
+    assertThat(slot1.index).isNotEqualTo(slot2.index);
+    assertThat(table.session(slot1.index)).isSameAs(s1);
+    assertThat(table.session(slot2.index)).isSameAs(s2);
+    assertThat(table.size()).isEqualTo(2);
+  }
+
+  @Test
+  void reuseReleasedSlot() {
+    var s1 = newSession();
+    var s2 = newSession();
+    var slot1 = table.acquire(s1);
+    table.acquire(s2);
+
+    table.release(s1, slot1);
+    assertThat(slot1.released).isTrue();
+    assertThat(table.get(s1)).isNull();
+    assertThat(table.session(slot1.index)).isNull();
+    assertThat(table.size()).isEqualTo(1);
+
+    // 释放的槽位分配给新的会话
+    var s3 = newSession();
+    var slot3 = table.acquire(s3);
+    assertThat(slot3).isNotSameAs(slot1);
+    assertThat(slot3.index).isEqualTo(slot1.index);
+    assertThat(table.session(slot3.index)).isSameAs(s3);
+  }
+
+  @Test
+  void releaseTwice() {
+    var s1 = newSession();
+    var slot1 = table.acquire(s1);
+    table.release(s1, slot1);
+    table.release(s1, slot1);
+
+    // 重复释放不能使同一个槽位被分配两次
+    var slot2 = table.acquire(newSession());
+    var slot3 = table.acquire(newSession());
+    assertThat(slot2.index).isNotEqualTo(slot3.index);
+  }
+
+  @Test
+  void releaseStaleSlot() {
+    var s1 = newSession();
+    var stale = table.acquire(s1);
+    table.release(s1, stale);
+    var slot = table.acquire(s1);
+
+    // 旧的槽位对象不能释放会话重新获取的槽位
+    table.release(s1, stale);
+    assertThat(table.get(s1)).isSameAs(slot);
+    assertThat(slot.released).isFalse();
+    assertThat(table.session(slot.index)).isSameAs(s1);
+  }
+
+  @Test
+  void growPages() {
+    var sessions = new ArrayList<Session>();
+    var indexes = new HashSet<Integer>();
+    for (int i = 0; i < 10_000; i++) {
+      var session = newSession();
+      sessions.add(session);
+      indexes.add(table.acquire(session).index);
+    }
+    assertThat(indexes).hasSize(10_000);
+    for (Session session : sessions) {
+      assertThat(table.session(table.get(session).index)).isSameAs(session);
+    }
+    assertThat(table.session(Integer.MAX_VALUE)).isNull();
+  }
+
+  @Test
+  void concurrentAcquireAndRelease() throws InterruptedException {
+    var threads = 8;
+    var pool = Executors.newFixedThreadPool(threads);
+    var start = new CountDownLatch(1);
+    var done = new CountDownLatch(threads);
+    var owners = new ConcurrentHashMap<Integer, Session>();
+    var conflicts = new ArrayList<Integer>();
+    for (int t = 0; t < threads; t++) {
+      pool.execute(
+          () -> {
+            try {
+              start.await();
+              for (int i = 0; i < 10_000; i++) {
+                var session = newSession();
+                var slot = table.acquire(session);
+                // 同一时刻一个槽位只能属于一个会话
+                if (owners.putIfAbsent(slot.index, session) != null) {
+                  synchronized (conflicts) {
+                    conflicts.add(slot.index);
+                  }
+                }
+                if (table.session(slot.index) != session) {
+                  synchronized (conflicts) {
+                    conflicts.add(slot.index);
+                  }
+                }
+                owners.remove(slot.index, session);
+                table.release(session, slot);
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } finally {
+              done.countDown();
+            }
+          });
+    }
+    start.countDown();
+    assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+    pool.shutdown();
+    assertThat(conflicts).isEmpty();
+    assertThat(table.size()).isZero();
+    // 空闲队列中的槽位不会被分配两次
+    var indexes = new HashSet<Integer>();
+    for (int i = 0; i < threads * 4; i++) {
+      indexes.add(table.acquire(newSession()).index);
+    }
+    assertThat(indexes).hasSize(threads * 4);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * {@link SharedFrames} 单元测试.
+ *
+ * <p>使用 Netty 的 {@link WebSocket13FrameDecoder} 解码预编码帧, 覆盖负载长度的 7 位, 16 位与 64 位三种编码.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class SharedFramesTest {
+
+  private static final ByteBufAllocator ALLOC = ByteBufAllocator.DEFAULT;
+
+  private static byte[] payload(int len) {
+    var bytes = new byte[len];
+    Arrays.fill(bytes, (byte) 'a');
+    return bytes;
+  }
+
+  // 最短的负载长度编码对应的帧头长度
+  private static int headerLength(int len) {
+    if (len < 126) {
+      return 2;
+    }
+    return len <= 0xFFFF ? 4 : 10;
+  }
+
+  // 服务端发送的帧不带掩码, 按客户端的方式解码
+  private static WebSocketFrame decode(ByteBuf frame) {
+    var channel = new EmbeddedChannel(new WebSocket13FrameDecoder(false, false, 1 << 20));
+    assertThat(channel.writeInbound(frame)).isTrue();
+    WebSocketFrame decoded = channel.readInbound();
+    assertThat(channel.finish()).isFalse();
+    return decoded;
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 125, 126, 65535, 65536})
+  void textFrame(int len) {
+    var bytes = payload(len);
+    var frame = SharedFrames.textFrame(ALLOC, ByteBuffer.wrap(bytes));
+    assertThat(frame.readableBytes()).isEqualTo(headerLength(len) + len);
+
+    var decoded = decode(frame);
+    try {
+      assertThat(decoded).isInstanceOf(TextWebSocketFrame.class);
+      assertThat(decoded.isFinalFragment()).isTrue();
+      assertThat(decoded.rsv()).isZero();
+      assertThat(ByteBufUtil.getBytes(decoded.content())).isEqualTo(bytes);
+    } finally {
+      decoded.release();
+    }
+    assertThat(frame.refCnt()).isZero();
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 125, 126, 65535, 65536})
+  void binaryFrame(int len) {
+    var bytes = payload(len);
+    var frame = SharedFrames.binaryFrame(ALLOC, ByteBuffer.wrap(bytes));
+    assertThat(frame.readableBytes()).isEqualTo(headerLength(len) + len);
+
+    var decoded = decode(frame);
+    try {
+      assertThat(decoded).isInstanceOf(BinaryWebSocketFrame.class);
+      assertThat(ByteBufUtil.getBytes(decoded.content())).isEqualTo(bytes);
+    } finally {
+      decoded.release();
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 125, 126, 65535, 65536})
+  void compositeTextFrame(int len) {
+    var bytes = payload(len);
+    var payload = Unpooled.directBuffer(len).writeBytes(bytes);
+    var frame = SharedFrames.textFrame(ALLOC, payload);
+    assertThat(frame.readableBytes()).isEqualTo(headerLength(len) + len);
+
+    var decoded = decode(frame);
+    try {
+      assertThat(decoded).isInstanceOf(TextWebSocketFrame.class);
+      assertThat(ByteBufUtil.getBytes(decoded.content())).isEqualTo(bytes);
+    } finally {
+      decoded.release();
+    }
+    // 组合帧接管了负载的引用计数
+    assertThat(payload.refCnt()).isZero();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link SortedLongArrays} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class SortedLongArraysTest {
+
+  private static final long[] EMPTY = SortedLongArrays.EMPTY;
+
+  @Test
+  void sortedDistinct() {
+    assertThat(SortedLongArrays.sortedDistinct(new long[0])).isSameAs(EMPTY);
+    assertThat(SortedLongArrays.sortedDistinct(new long[] {3, 1, 2})).containsExactly(1, 2, 3);
+    assertThat(SortedLongArrays.sortedDistinct(new long[] {3, 1, 3, 1, 1}))
+        .containsExactly(1, 3);
+    assertThat(SortedLongArrays.sortedDistinct(new long[] {5, 5, 5})).containsExactly(5);
+    assertThat(SortedLongArrays.sortedDistinct(new long[] {0, -1, Long.MAX_VALUE, Long.MIN_VALUE}))
+        .containsExactly(Long.MIN_VALUE, -1, 0, Long.MAX_VALUE);
+
+    // 不修改入参数组
+    var a = new long[] {2, 1, 2};
+    SortedLongArrays.sortedDistinct(a);
+    assertThat(a).containsExactly(2, 1, 2);
+  }
+
+  @Test
+  void contains() {
+    assertThat(SortedLongArrays.contains(EMPTY, 1)).isFalse();
+    var a = new long[] {1, 3, 5};
+    assertThat(SortedLongArrays.contains(a, 1)).isTrue();
+    assertThat(SortedLongArrays.contains(a, 5)).isTrue();
+    assertThat(SortedLongArrays.contains(a, 0)).isFalse();
+    assertThat(SortedLongArrays.contains(a, 4)).isFalse();
+    assertThat(SortedLongArrays.contains(a, 6)).isFalse();
+  }
+
+  @Test
+  void union() {
+    var a = new long[] {1, 3};
+    assertThat(SortedLongArrays.union(EMPTY, EMPTY)).isEmpty();
+    assertThat(SortedLongArrays.union(a, EMPTY)).containsExactly(1, 3);
+    assertThat(SortedLongArrays.union(EMPTY, a)).containsExactly(1, 3);
+    assertThat(SortedLongArrays.union(a, new long[] {2, 4})).containsExactly(1, 2, 3, 4);
+    // 重复的元素只保留一个
+    assertThat(SortedLongArrays.union(a, new long[] {1, 2, 3})).containsExactly(1, 2, 3);
+    assertThat(SortedLongArrays.union(a, a)).containsExactly(1, 3);
+  }
+
+  @Test
+  void difference() {
+    var a = new long[] {1, 3, 5};
+    assertThat(SortedLongArrays.difference(EMPTY, a)).isEmpty();
+    assertThat(SortedLongArrays.difference(a, EMPTY)).containsExactly(1, 3, 5);
+    assertThat(SortedLongArrays.difference(a, new long[] {3})).containsExactly(1, 5);
+    assertThat(SortedLongArrays.difference(a, new long[] {1, 5})).containsExactly(3);
+    assertThat(SortedLongArrays.difference(a, a)).isSameAs(EMPTY);
+    // 删除不存在的元素时结果不变
+    assertThat(SortedLongArrays.difference(a, new long[] {0, 2, 4, 6})).containsExactly(1, 3, 5);
+    assertThat(a).containsExactly(1, 3, 5);
+  }
+
+  @Test
+  void intersection() {
+    var a = new long[] {1, 3, 5};
+    assertThat(SortedLongArrays.intersection(EMPTY, a)).isSameAs(EMPTY);
+    assertThat(SortedLongArrays.intersection(a, EMPTY)).isSameAs(EMPTY);
+    assertThat(SortedLongArrays.intersection(a, new long[] {2, 4})).isSameAs(EMPTY);
+    assertThat(SortedLongArrays.intersection(a, new long[] {3, 4, 5})).containsExactly(3, 5);
+    assertThat(SortedLongArrays.intersection(a, a)).containsExactly(1, 3, 5);
+  }
+
+  @Test
+  void randomOperations() {
+    var random = new Random(1);
+    var expected = new TreeSet<Long>();
+    var actual = EMPTY;
+    for (int n = 0; n < 10_000; n++) {
+      var gids = new long[random.nextInt(4)];
+      for (int i = 0; i < gids.length; i++) {
+        gids[i] = random.nextInt(64);
+      }
+      var sorted = SortedLongArrays.sortedDistinct(gids);
+      if (random.nextBoolean()) {
+        for (long gid : gids) {
+          expected.add(gid);
+        }
+        actual = SortedLongArrays.union(actual, sorted);
+      } else {
+        for (long gid : gids) {
+          expected.remove(gid);
+        }
+        actual = SortedLongArrays.difference(actual, sorted);
+      }
+      assertThat(actual).containsExactly(expected.stream().mapToLong(Long::longValue).toArray());
+    }
+  }
+
+  @Test
+  void sessionSubGroupIds() {
+    var session = new DefaultSession(null, 1L, null, ClientProtocol.JSON, null);
+    assertThat(session.subGroupIds()).isEmpty();
+    assertThat(session.removeSubGroupIds(1)).isEmpty();
+
+    // 重复的群组 ID 只返回一次新增
+    assertThat(session.addSubGroupIds(3, 1, 3)).containsExactly(1, 3);
+    assertThat(session.addSubGroupIds(1, 2)).containsExactly(2);
+    assertThat(session.addSubGroupIds(1, 2, 3)).isEmpty();
+    assertThat(session.subGroupIds()).containsExactly(1, 2, 3);
+    assertThat(session.isSubGroup(2)).isTrue();
+    assertThat(session.isSubGroup(4)).isFalse();
+
+    // 删除未订阅的群组 ID 不影响已订阅的群组
+    assertThat(session.removeSubGroupIds(4, 2, 2)).containsExactly(2);
+    assertThat(session.removeSubGroupIds(4)).isEmpty();
+    assertThat(session.subGroupIds()).containsExactly(1, 3);
+    assertThat(session.removeSubGroupIds(1, 3)).containsExactly(1, 3);
+    assertThat(session.subGroupIds()).isEmpty();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.ws.session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link TokenBucket} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class TokenBucketTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static int drain(TokenBucket bucket, long now) {
+    var n = 0;
+    while (bucket.tryAcquire(now)) {
+      n++;
+    }
+    return n;
+  }
+
+  @Test
+  void burst() {
+    // 每 100ms 生成一个令牌, 容量为 3
+    var t0 = System.nanoTime();
+    var bucket = new TokenBucket(10, 3, t0);
+    assertThat(drain(bucket, t0)).isEqualTo(3);
+    assertThat(bucket.tryAcquire(t0 + 99 * MS)).isFalse();
+  }
+
+  @Test
+  void refill() {
+    var t0 = System.nanoTime();
+    var bucket = new TokenBucket(10, 3, t0);
+    drain(bucket, t0);
+
+    // 每 100ms 恢复一个令牌
+    assertThat(bucket.tryAcquire(t0 + 100 * MS)).isTrue();
+    assertThat(bucket.tryAcquire(t0 + 100 * MS)).isFalse();
+    assertThat(drain(bucket, t0 + 250 * MS)).isEqualTo(1);
+    assertThat(drain(bucket, t0 + 300 * MS)).isEqualTo(1);
+
+    // 长时间空闲后最多恢复到桶的容量
+    assertThat(drain(bucket, t0 + 10_000 * MS)).isEqualTo(3);
+  }
+
+  @Test
+  void refund() {
+    var t0 = System.nanoTime();
+    var bucket = new TokenBucket(10, 3, t0);
+    drain(bucket, t0);
+
+    bucket.refund();
+    assertThat(drain(bucket, t0)).isEqualTo(1);
+  }
+
+  @Test
+  void steadyRate() {
+    var t0 = System.nanoTime();
+    var bucket = new TokenBucket(10, 1, t0);
+    var acquired = 0;
+    // 每 10ms 请求一次, 持续 1 秒, 只允许每秒 10 个
+    for (int i = 0; i < 100; i++) {
+      if (bucket.tryAcquire(t0 + i * 10 * MS)) {
+        acquired++;
+      }
+    }
+    assertThat(acquired).isEqualTo(10);
+  }
+
+  @Test
+  void minimumBurst() {
+    var t0 = System.nanoTime();
+    var bucket = new TokenBucket(10, 0, t0);
+    assertThat(drain(bucket, t0)).isEqualTo(1);
+  }
+
+  @Test
+  void concurrentAcquire() throws Exception {
+    var t0 = System.nanoTime();
+    var bucket = new TokenBucket(1, 100, t0);
+    var acquired = new AtomicInteger();
+    var start = new CountDownLatch(1);
+    var futures = new ArrayList<CompletableFuture<Void>>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(
+          CompletableFuture.runAsync(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  return;
+                }
+                for (int j = 0; j < 1000; j++) {
+                  if (bucket.tryAcquire(t0)) {
+                    acquired.incrementAndGet();
+                  }
+                }
+              }));
+    }
+    start.countDown();
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+    // CAS 竞争下令牌既不会多发也不会少发
+    assertThat(acquired.get()).isEqualTo(100);
+  }
+}
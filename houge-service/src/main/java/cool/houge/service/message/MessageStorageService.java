@@ -29,6 +29,8 @@ public interface MessageStorageService {
   /**
    * 存储消息包.
    *
+   * <p>成员数量达到配置的群组消息保存到群组时间线, 其它消息与用户逐一关联.
+   *
    * @param entity 消息实体
    * @param uids 用户ID列表
    * @return RS
@@ -59,7 +59,9 @@ public class MessageServiceImpl implements MessageService {
 
   @Override
   public Mono<Void> readMessages(long uid, List<String> messageIds) {
-    return messageDao.updateUnreadStatus(uid, messageIds, MessageReadStatus.READ.getCode());
+    return messageDao
+        .updateUnreadStatus(uid, messageIds, MessageReadStatus.READ.getCode())
+        .then(messageDao.updateGroupReadSeq(uid, messageIds));
   }
 
   @Override
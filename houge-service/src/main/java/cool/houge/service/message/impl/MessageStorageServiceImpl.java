@@ -19,7 +19,6 @@ import cool.houge.model.Message;
 import cool.houge.service.message.MessageStorageService;
 import cool.houge.storage.MessageDao;
 import java.util.List;
-import javax.inject.Inject;
 import lombok.extern.log4j.Log4j2;
 import reactor.core.publisher.Mono;
 
@@ -32,18 +31,26 @@ import reactor.core.publisher.Mono;
 public class MessageStorageServiceImpl implements MessageStorageService {
 
   private final MessageDao messageDao;
+  private final int groupTimelineMinMembers;
 
   /**
-   * 可被 IoC 容器使用的构造函数.
+   * 使用消息数据访问对象构造对象.
    *
    * @param messageDao 消息数据访问对象
+   * @param groupTimelineMinMembers 群组消息保存到群组时间线的最小成员数量, 小于等于 0 时不使用群组时间线
    */
-  public @Inject MessageStorageServiceImpl(MessageDao messageDao) {
+  public MessageStorageServiceImpl(MessageDao messageDao, int groupTimelineMinMembers) {
     this.messageDao = messageDao;
+    this.groupTimelineMinMembers = groupTimelineMinMembers;
   }
 
   @Override
   public Mono<Void> store(Message entity, List<Long> uids) {
+    if (entity.getGroupId() != null
+        && groupTimelineMinMembers > 0
+        && uids.size() >= groupTimelineMinMembers) {
+      return messageDao.insertGroupTimeline(entity);
+    }
     return messageDao.insert(entity, uids);
   }
 }
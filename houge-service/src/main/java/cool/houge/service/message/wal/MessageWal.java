@@ -0,0 +1,515 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.service.message.wal;
+
+import cool.houge.model.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 基于内存映射文件的消息预写日志.
+ *
+ * <p>日志由多个固定大小的段文件组成, 文件名为段内首条记录的序号. 每条记录的格式为:
+ *
+ * <pre>
+ * | length(4) | crc32c(4) | seq(8) | appendMillis(8) | payload |
+ * </pre>
+ *
+ * <p>{@code payload} 的最后一个字节为记录的标志位.
+ *
+ * <p>{@code length} 为 {@code seq} 之后的字节数, {@code crc32c} 校验 {@code seq} 之后的全部字节. 写入时最后写入 {@code
+ * length}, 段文件中 {@code length} 为 0 的位置即为段的结尾. 已写入数据库的最大序号保存在 {@code checkpoint} 文件中,
+ * 所有记录都已写入数据库的段文件会被删除.
+ *
+ * <p>记录写入内存映射文件后即可在进程崩溃后恢复, 操作系统崩溃时可能丢失未刷盘的记录.
+ *
+ * <p>写入可以在任意线程中调用, 读取与 {@link #checkpoint(long)} 只能在同一个线程中调用.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+final class MessageWal implements Closeable {
+
+  private static final Logger log = LogManager.getLogger();
+  private static final String SEGMENT_SUFFIX = ".wal";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  /** {@code length} 与 {@code crc32c} 的字节数. */
+  private static final int RECORD_HEADER_BYTES = 8;
+  /** {@code seq} 与 {@code appendMillis} 的字节数. */
+  private static final int RECORD_META_BYTES = 16;
+  /** 消息保存到群组时间线. */
+  private static final byte FLAG_GROUP_TIMELINE = 1;
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final List<Segment> segments = new ArrayList<>();
+  private final MappedByteBuffer checkpointBuf;
+  private final CRC32C writeCrc = new CRC32C();
+  private final CRC32C readCrc = new CRC32C();
+
+  // 写入时使用的临时缓冲区, 仅在对象锁内使用
+  private ByteBuffer scratch = ByteBuffer.allocate(4096);
+  private long nextSeq;
+  // 最后一条已写入日志的记录序号
+  private volatile long committedSeq;
+  private volatile long flushedSeq;
+
+  private boolean closed;
+
+  // 读取位置, 仅在读取线程中使用
+  private Segment readSegment;
+  private int readPos;
+  // 最后一条已读取的记录序号
+  private long readSeq;
+
+  private MessageWal(Path dir, int segmentBytes, long maxBytes, MappedByteBuffer checkpointBuf) {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+    this.checkpointBuf = checkpointBuf;
+  }
+
+  /**
+   * 打开预写日志, 恢复已有的段文件并将读取位置设置到第一条未写入数据库的记录.
+   *
+   * @param config 配置
+   * @return 预写日志
+   * @throws IOException 读写文件错误
+   */
+  static MessageWal open(WriteBehindConfig config) throws IOException {
+    var dir = Path.of(config.getDir());
+    Files.createDirectories(dir);
+    MappedByteBuffer checkpointBuf;
+    try (var channel =
+        FileChannel.open(
+            dir.resolve(CHECKPOINT_FILE),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      checkpointBuf = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+    }
+    var wal =
+        new MessageWal(
+            dir,
+            (int) Math.min(config.getSegmentSize().toBytes(), Integer.MAX_VALUE),
+            config.getMaxBytes().toBytes(),
+            checkpointBuf);
+    wal.recover();
+    return wal;
+  }
+
+  private void recover() throws IOException {
+    flushedSeq = checkpointBuf.getLong(0);
+    List<Path> paths;
+    try (var stream = Files.list(dir)) {
+      paths =
+          stream
+              .filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+
+    long lastSeq = flushedSeq;
+    for (Path path : paths) {
+      var segment = Segment.map(path, Files.size(path));
+      scan(segment);
+      if (segment.count == 0 || segment.lastSeq <= flushedSeq) {
+        // 记录已全部写入数据库
+        Files.delete(path);
+        continue;
+      }
+      segments.add(segment);
+      lastSeq = segment.lastSeq;
+    }
+    nextSeq = lastSeq + 1;
+    committedSeq = lastSeq;
+
+    if (segments.isEmpty()) {
+      segments.add(newSegment());
+    }
+    // 移动读取位置到第一条未写入数据库的记录
+    readSegment = segments.get(0);
+    readPos = 0;
+    readSeq = flushedSeq;
+    var buf = readSegment.buf;
+    while (readPos < readSegment.writePos
+        && buf.getLong(readPos + RECORD_HEADER_BYTES) <= flushedSeq) {
+      readPos += RECORD_HEADER_BYTES + buf.getInt(readPos);
+    }
+    log.info(
+        "已打开消息预写日志 dir={} segments={} flushedSeq={} committedSeq={}",
+        dir,
+        segments.size(),
+        flushedSeq,
+        committedSeq);
+  }
+
+  private void scan(Segment segment) {
+    var buf = segment.buf;
+    var pos = 0;
+    while (pos + RECORD_HEADER_BYTES + RECORD_META_BYTES <= buf.capacity()) {
+      var length = buf.getInt(pos);
+      if (length < RECORD_META_BYTES
+          || length > buf.capacity() - pos - RECORD_HEADER_BYTES) {
+        break;
+      }
+      if (crc(readCrc, buf, pos + RECORD_HEADER_BYTES, length) != buf.getInt(pos + 4)) {
+        log.warn("消息预写日志记录校验失败, 忽略段内后续的记录 file={} pos={}", segment.path, pos);
+        break;
+      }
+      var seq = buf.getLong(pos + RECORD_HEADER_BYTES);
+      if (segment.count == 0) {
+        segment.firstSeq = seq;
+      }
+      segment.lastSeq = seq;
+      segment.count++;
+      pos += RECORD_HEADER_BYTES + length;
+    }
+    segment.writePos = pos;
+    // 清除校验失败的残留数据, 避免被误认为有效的记录
+    clearLength(buf, pos);
+  }
+
+  /**
+   * 写入消息.
+   *
+   * @param entity 消息实体
+   * @param uids 关联的用户 IDs
+   * @param groupTimeline 消息保存到群组时间线
+   * @return 记录序号, 日志文件超出最大字节数或消息过大时返回 {@code -1}
+   */
+  synchronized long append(Message entity, List<Long> uids, boolean groupTimeline) {
+    if (closed) {
+      return -1;
+    }
+    var seq = nextSeq;
+    var length = encode(seq, entity, uids, groupTimeline);
+    var recordBytes = RECORD_HEADER_BYTES + length;
+    if (recordBytes > segmentBytes) {
+      return -1;
+    }
+
+    var segment = segments.get(segments.size() - 1);
+    if (segment.writePos + recordBytes > segment.buf.capacity()) {
+      if ((long) (segments.size() + 1) * segmentBytes > maxBytes) {
+        return -1;
+      }
+      try {
+        segment = newSegment();
+      } catch (IOException e) {
+        log.error("创建消息预写日志文件失败 dir={}", dir, e);
+        return -1;
+      }
+      segments.add(segment);
+    }
+
+    var buf = segment.buf;
+    var pos = segment.writePos;
+    buf.duplicate().position(pos + RECORD_HEADER_BYTES).put(scratch.array(), 0, length);
+    buf.putInt(pos + 4, crc(writeCrc, scratch, 0, length));
+    // 段文件可能残留有崩溃前写入的数据, 先清除下一条记录的长度
+    clearLength(buf, pos + recordBytes);
+    // 最后写入长度, 读取线程与恢复时据此判断记录是否完整
+    buf.putInt(pos, length);
+    segment.writePos = pos + recordBytes;
+    if (segment.count++ == 0) {
+      segment.firstSeq = seq;
+    }
+    segment.lastSeq = seq;
+    nextSeq = seq + 1;
+    committedSeq = seq;
+    return seq;
+  }
+
+  /**
+   * 读取未写入数据库的记录, 只能在读取线程中调用.
+   *
+   * @param maxMessages 最大消息数量
+   * @param maxRows 最大用户消息关联数量, 至少返回一条记录
+   * @return 记录列表
+   */
+  List<Entry> read(int maxMessages, int maxRows) {
+    var entries = new ArrayList<Entry>();
+    var rows = 0;
+    while (entries.size() < maxMessages && rows < maxRows) {
+      if (readSeq >= committedSeq) {
+        break;
+      }
+      var buf = readSegment.buf;
+      if (readPos + RECORD_HEADER_BYTES > buf.capacity() || buf.getInt(readPos) == 0) {
+        // 已写入的记录在后续的段中
+        readSegment = nextSegment();
+        readPos = 0;
+        continue;
+      }
+      var length = buf.getInt(readPos);
+      var entry = decode(buf, readPos + RECORD_HEADER_BYTES, length);
+      readSeq = entry.seq;
+      readPos += RECORD_HEADER_BYTES + length;
+      entries.add(entry);
+      rows += entry.uids.length;
+    }
+    return entries;
+  }
+
+  /**
+   * 保存已写入数据库的最大记录序号, 并删除所有记录都已写入数据库的段文件, 只能在读取线程中调用.
+   *
+   * @param seq 记录序号
+   */
+  synchronized void checkpoint(long seq) {
+    checkpointBuf.putLong(0, seq);
+    flushedSeq = seq;
+    while (segments.size() > 1) {
+      var segment = segments.get(0);
+      if (segment == readSegment || segment.lastSeq > seq) {
+        break;
+      }
+      segments.remove(0);
+      try {
+        Files.deleteIfExists(segment.path);
+      } catch (IOException e) {
+        log.warn("删除消息预写日志文件失败 file={}", segment.path, e);
+      }
+    }
+  }
+
+  /**
+   * 返回未写入数据库的消息数量.
+   *
+   * @return 消息数量
+   */
+  long pending() {
+    return committedSeq - flushedSeq;
+  }
+
+  /**
+   * 返回段文件占用的字节数.
+   *
+   * @return 字节数
+   */
+  synchronized long bytes() {
+    return (long) segments.size() * segmentBytes;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (Segment segment : segments) {
+      segment.buf.force();
+    }
+    checkpointBuf.force();
+  }
+
+  private synchronized Segment nextSegment() {
+    for (Segment segment : segments) {
+      if (segment.firstSeq > readSeq) {
+        return segment;
+      }
+    }
+    throw new IllegalStateException("未找到消息预写日志的后续段 readSeq=" + readSeq);
+  }
+
+  private Segment newSegment() throws IOException {
+    var path = dir.resolve(String.format("%020d%s", nextSeq, SEGMENT_SUFFIX));
+    var segment = Segment.map(path, segmentBytes);
+    segment.firstSeq = nextSeq;
+    segment.lastSeq = nextSeq - 1;
+    return segment;
+  }
+
+  private int encode(long seq, Message entity, List<Long> uids, boolean groupTimeline) {
+    while (true) {
+      try {
+        scratch.clear();
+        scratch.putLong(seq);
+        scratch.putLong(System.currentTimeMillis());
+        putString(entity.getId());
+        putLong(entity.getSenderId());
+        putLong(entity.getReceiverId());
+        putLong(entity.getGroupId());
+        putInt(entity.getKind());
+        putString(entity.getContent());
+        putInt(entity.getContentType());
+        putString(entity.getExtraArgs());
+        var createTime = entity.getCreateTime();
+        if (createTime == null) {
+          scratch.put((byte) 0);
+        } else {
+          scratch.put((byte) 1);
+          scratch.putLong(createTime.toEpochSecond(ZoneOffset.UTC));
+          scratch.putInt(createTime.getNano());
+        }
+        scratch.putInt(uids.size());
+        for (Long uid : uids) {
+          scratch.putLong(uid);
+        }
+        scratch.put(groupTimeline ? FLAG_GROUP_TIMELINE : 0);
+        return scratch.position();
+      } catch (BufferOverflowException e) {
+        scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+      }
+    }
+  }
+
+  private void putString(String s) {
+    if (s == null) {
+      scratch.putInt(-1);
+      return;
+    }
+    var bytes = s.getBytes(StandardCharsets.UTF_8);
+    scratch.putInt(bytes.length);
+    scratch.put(bytes);
+  }
+
+  private void putLong(Long v) {
+    if (v == null) {
+      scratch.put((byte) 0);
+    } else {
+      scratch.put((byte) 1);
+      scratch.putLong(v);
+    }
+  }
+
+  private void putInt(Integer v) {
+    if (v == null) {
+      scratch.put((byte) 0);
+    } else {
+      scratch.put((byte) 1);
+      scratch.putInt(v);
+    }
+  }
+
+  private Entry decode(ByteBuffer buf, int offset, int length) {
+    var in = buf.duplicate().limit(offset + length).position(offset);
+    var seq = in.getLong();
+    var appendMillis = in.getLong();
+    var entity = new Message();
+    entity.setId(getString(in));
+    entity.setSenderId(getLong(in));
+    entity.setReceiverId(getLong(in));
+    entity.setGroupId(getLong(in));
+    entity.setKind(getInt(in));
+    entity.setContent(getString(in));
+    entity.setContentType(getInt(in));
+    entity.setExtraArgs(getString(in));
+    if (in.get() != 0) {
+      entity.setCreateTime(LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC));
+    }
+    var uids = new long[in.getInt()];
+    for (int i = 0; i < uids.length; i++) {
+      uids[i] = in.getLong();
+    }
+    var groupTimeline = (in.get() & FLAG_GROUP_TIMELINE) != 0;
+    return new Entry(seq, appendMillis, entity, uids, groupTimeline);
+  }
+
+  private static String getString(ByteBuffer in) {
+    var length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    var bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static Long getLong(ByteBuffer in) {
+    return in.get() == 0 ? null : in.getLong();
+  }
+
+  private static Integer getInt(ByteBuffer in) {
+    return in.get() == 0 ? null : in.getInt();
+  }
+
+  private static void clearLength(ByteBuffer buf, int pos) {
+    if (pos + Integer.BYTES <= buf.capacity()) {
+      buf.putInt(pos, 0);
+    }
+  }
+
+  private static int crc(CRC32C crc, ByteBuffer buf, int offset, int length) {
+    crc.reset();
+    crc.update(buf.duplicate().limit(offset + length).position(offset));
+    return (int) crc.getValue();
+  }
+
+  /** 预写日志记录. */
+  static final class Entry {
+
+    /** 记录序号. */
+    final long seq;
+    /** 写入日志的时间, 毫秒. */
+    final long appendMillis;
+    /** 消息实体. */
+    final Message message;
+    /** 关联的用户 IDs. */
+    final long[] uids;
+    /** 消息保存到群组时间线, 不与用户关联. */
+    final boolean groupTimeline;
+
+    Entry(long seq, long appendMillis, Message message, long[] uids, boolean groupTimeline) {
+      this.seq = seq;
+      this.appendMillis = appendMillis;
+      this.message = message;
+      this.uids = uids;
+      this.groupTimeline = groupTimeline;
+    }
+  }
+
+  private static final class Segment {
+
+    final Path path;
+    final MappedByteBuffer buf;
+    // 以下字段在对象锁内访问
+    int writePos;
+    int count;
+    long firstSeq;
+    long lastSeq;
+
+    private Segment(Path path, MappedByteBuffer buf) {
+      this.path = path;
+      this.buf = buf;
+    }
+
+    static Segment map(Path path, long size) throws IOException {
+      try (var channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.service.message.wal;
+
+import com.typesafe.config.ConfigMemorySize;
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 消息异步写入配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class WriteBehindConfig {
+
+  /** 是否开启异步写入, 关闭时消息在请求中同步写入数据库. */
+  private boolean enabled = false;
+  /** 预写日志文件存放的目录. */
+  private String dir = "wal";
+  /** 单个预写日志文件的字节数. */
+  private ConfigMemorySize segmentSize = ConfigMemorySize.ofBytes(64L * 1024 * 1024);
+  /** 预写日志文件可占用的最大字节数, 超出时消息在请求中同步写入数据库. */
+  private ConfigMemorySize maxBytes = ConfigMemorySize.ofBytes(1024L * 1024 * 1024);
+  /** 单次写入数据库的最大消息数量. */
+  private int batchMaxMessages = 256;
+  /** 单次写入数据库的最大用户消息关联数量. */
+  private int batchMaxRows = 10000;
+  /** 没有待写入的消息时等待的时长. */
+  private Duration idleDelay = Duration.ofMillis(5);
+  /** 写入数据库失败后重试的最长等待时长. */
+  private Duration retryMaxBackoff = Duration.ofSeconds(10);
+  /** 停止服务时等待写入完成的最长时长. */
+  private Duration shutdownTimeout = Duration.ofSeconds(10);
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.service.message.wal;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
+import cool.houge.model.Message;
+import cool.houge.service.message.MessageStorageService;
+import cool.houge.storage.MessageDao;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.spi.R2dbcBadGrammarException;
+import io.r2dbc.spi.R2dbcException;
+import io.r2dbc.spi.R2dbcNonTransientException;
+import io.r2dbc.spi.R2dbcNonTransientResourceException;
+import io.r2dbc.spi.R2dbcPermissionDeniedException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * 异步写入的消息存储服务实现.
+ *
+ * <p>消息写入本地的预写日志后即返回, 由后台线程批量将预写日志中的消息写入数据库. 连接中断等临时错误按指数退避无限重试; 数据本身导致的错误(如违反约束)
+ * 无法通过重试恢复, 此时批次中的消息逐条写入, 仍无法写入的消息记录日志后丢弃并计入 {@code
+ * tethys.service.message.wal.dead.letters}, 避免阻塞后续消息的写入. 服务启动时会继续写入上次停止前未写入数据库的消息.
+ *
+ * <p>表结构或权限错误(如缺少表、列或授权)影响所有的消息, 与具体的消息无关, 同样按指数退避重试而不丢弃消息, 并计入 {@code
+ * tethys.service.message.wal.schema.errors} 用于告警, 人工修复后自动恢复写入.
+ *
+ * <p>批量写入是幂等的, 已存在的消息不会重复保存, 因此进程崩溃后重放预写日志不会产生重复的数据. 异步写入无法将数据库的错误返回给消息的发送者.
+ *
+ * <p>预写日志超出 {@link WriteBehindConfig#getMaxBytes()} 时消息在请求中同步写入数据库.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class WriteBehindMessageStorageService implements MessageStorageService {
+
+  private static final Logger log = LogManager.getLogger();
+  /** 不可重试的 SQL 状态类别: 数据异常、完整性约束. */
+  private static final Set<String> NON_TRANSIENT_SQL_STATE_CLASSES = Set.of("22", "23");
+  /** 表结构或权限错误的 SQL 状态类别: 语法或权限错误、WITH CHECK OPTION. */
+  private static final Set<String> SCHEMA_SQL_STATE_CLASSES = Set.of("42", "44");
+
+  private final WriteBehindConfig config;
+  private final MessageDao messageDao;
+  private final int groupTimelineMinMembers;
+  private final Counter fallbackCounter;
+  private final Counter failureCounter;
+  private final Counter deadLetterCounter;
+  private final Counter schemaErrorCounter;
+  private final DistributionSummary batchSizeSummary;
+  private final Timer lagTimer;
+
+  private MessageWal wal;
+  private Thread drainThread;
+  private volatile boolean running;
+
+  /**
+   * 使用配置与消息数据访问对象构造对象.
+   *
+   * @param config 异步写入配置
+   * @param messageDao 消息数据访问对象
+   * @param groupTimelineMinMembers 群组消息保存到群组时间线的最小成员数量, 小于等于 0 时不使用群组时间线
+   */
+  public WriteBehindMessageStorageService(
+      WriteBehindConfig config, MessageDao messageDao, int groupTimelineMinMembers) {
+    this.config = config;
+    this.messageDao = messageDao;
+    this.groupTimelineMinMembers = groupTimelineMinMembers;
+    this.fallbackCounter = Metrics.counter("tethys.service.message.wal.fallback");
+    this.failureCounter = Metrics.counter("tethys.service.message.wal.flush.failures");
+    this.deadLetterCounter = Metrics.counter("tethys.service.message.wal.dead.letters");
+    this.schemaErrorCounter = Metrics.counter("tethys.service.message.wal.schema.errors");
+    this.batchSizeSummary = Metrics.summary("tethys.service.message.wal.batch.size");
+    this.lagTimer = Metrics.timer("tethys.service.message.wal.lag");
+  }
+
+  /** 打开预写日志并启动后台写入线程. */
+  public void start() {
+    if (wal != null) {
+      throw new IllegalStateException("已启动的 WriteBehindMessageStorageService");
+    }
+    try {
+      wal = MessageWal.open(config);
+    } catch (IOException e) {
+      throw new UncheckedIOException("打开消息预写日志失败 dir=" + config.getDir(), e);
+    }
+    Gauge.builder("tethys.service.message.wal.pending", wal, MessageWal::pending)
+        .register(Metrics.globalRegistry);
+    Gauge.builder("tethys.service.message.wal.bytes", wal, MessageWal::bytes)
+        .register(Metrics.globalRegistry);
+
+    running = true;
+    drainThread = new Thread(this::drain, "houge-message-wal");
+    drainThread.setDaemon(true);
+    drainThread.start();
+  }
+
+  /**
+   * 停止后台写入线程并关闭预写日志.
+   *
+   * <p>在 {@link WriteBehindConfig#getShutdownTimeout()} 内未写入数据库的消息会在下次启动时继续写入.
+   */
+  public void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(drainThread);
+    try {
+      drainThread.join(config.getShutdownTimeout().toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    wal.close();
+    log.info("已停止消息异步写入 pending={}", wal.pending());
+  }
+
+  @Override
+  public Mono<Void> store(Message entity, List<Long> uids) {
+    return Mono.defer(
+        () -> {
+          // 使用写入日志的时间作为消息的创建时间, 避免与写入数据库的时间相差过大
+          if (entity.getCreateTime() == null) {
+            entity.setCreateTime(LocalDateTime.now());
+          }
+          // 群组时间线消息不与成员逐一关联, 预写日志中不记录成员
+          var groupTimeline =
+              entity.getGroupId() != null
+                  && groupTimelineMinMembers > 0
+                  && uids.size() >= groupTimelineMinMembers;
+          if (wal.append(entity, groupTimeline ? List.of() : uids, groupTimeline) > 0) {
+            LockSupport.unpark(drainThread);
+            return Mono.empty();
+          }
+          fallbackCounter.increment();
+          return groupTimeline
+              ? messageDao.insertGroupTimeline(entity)
+              : messageDao.insert(entity, uids);
+        });
+  }
+
+  private void drain() {
+    var idleNanos = config.getIdleDelay().toNanos();
+    // 停止后继续写入剩余的消息, 直到没有待写入的消息或写入失败
+    while (true) {
+      var entries = wal.read(config.getBatchMaxMessages(), config.getBatchMaxRows());
+      if (entries.isEmpty()) {
+        if (!running) {
+          return;
+        }
+        LockSupport.parkNanos(idleNanos);
+        continue;
+      }
+      if (!flush(entries)) {
+        return;
+      }
+    }
+  }
+
+  private boolean flush(List<MessageWal.Entry> entries) {
+    var result = write(batchWrite(entries), entries.size());
+    if (result == WriteResult.STOPPED) {
+      return false;
+    }
+    if (result == WriteResult.REJECTED) {
+      // 批次中存在无法写入的数据, 逐条写入以找出并跳过无法写入的消息, 避免阻塞后续的消息
+      for (MessageWal.Entry entry : entries) {
+        result = write(batchWrite(List.of(entry)), 1);
+        if (result == WriteResult.STOPPED) {
+          return false;
+        }
+        if (result == WriteResult.REJECTED) {
+          deadLetterCounter.increment();
+          log.error(
+              "消息无法写入数据库, 已丢弃 seq={} uids={} message={}",
+              entry.seq,
+              entry.uids.length,
+              entry.message);
+        }
+      }
+    }
+
+    wal.checkpoint(entries.get(entries.size() - 1).seq);
+    batchSizeSummary.record(entries.size());
+    var now = System.currentTimeMillis();
+    for (MessageWal.Entry entry : entries) {
+      lagTimer.record(now - entry.appendMillis, TimeUnit.MILLISECONDS);
+    }
+    return true;
+  }
+
+  private Mono<Void> batchWrite(List<MessageWal.Entry> entries) {
+    var messages = new ArrayList<Message>(entries.size());
+    var uids = new ArrayList<List<Long>>(entries.size());
+    var groupTimelineMessages = new ArrayList<Message>();
+    for (MessageWal.Entry entry : entries) {
+      if (entry.groupTimeline) {
+        groupTimelineMessages.add(entry.message);
+      } else {
+        messages.add(entry.message);
+        uids.add(Longs.asList(entry.uids));
+      }
+    }
+    // 群组时间线消息按写入日志的顺序保存, 保证群组内的消息序号与发送顺序一致
+    return Mono.when(messages.isEmpty() ? Mono.empty() : messageDao.insertBatch(messages, uids))
+        .thenMany(Flux.fromIterable(groupTimelineMessages))
+        .concatMap(messageDao::insertGroupTimeline)
+        .then();
+  }
+
+  /**
+   * 写入数据库, 临时错误与表结构或权限错误按指数退避重试直至成功或服务停止.
+   *
+   * @param p 写入操作
+   * @param messages 消息数量
+   * @return 写入结果
+   */
+  private WriteResult write(Mono<Void> p, int messages) {
+    var retries = 0;
+    while (true) {
+      try {
+        p.block();
+        return WriteResult.OK;
+      } catch (Exception e) {
+        failureCounter.increment();
+        if (isNonTransient(e)) {
+          log.error("写入消息失败, 错误不可重试 messages={}", messages, e);
+          return WriteResult.REJECTED;
+        }
+        if (!running) {
+          log.warn("停止时写入消息失败, 下次启动时继续写入 messages={}", messages, e);
+          return WriteResult.STOPPED;
+        }
+        var backoff =
+            Math.min(
+                TimeUnit.MILLISECONDS.toNanos(100L << Math.min(retries++, 16)),
+                config.getRetryMaxBackoff().toNanos());
+        if (isSchemaError(e)) {
+          schemaErrorCounter.increment();
+          log.error(
+              "写入消息失败, 数据库表结构或权限错误需要人工处理 messages={} retries={}",
+              messages,
+              retries,
+              e);
+        } else {
+          log.error("写入消息失败 messages={} retries={}", messages, retries, e);
+        }
+        LockSupport.parkNanos(backoff);
+      }
+    }
+  }
+
+  /**
+   * 判断错误是否由数据本身引起, 重试也无法成功.
+   *
+   * <p>只有数据异常(22)与完整性约束(23) SQL 状态类别视为不可重试; 语法或权限错误(42)等表结构问题与具体的消息无关, 见 {@link
+   * #isSchemaError(Throwable)}; 连接中断、超时等没有 SQL 状态或其它类别的错误视为临时错误.
+   *
+   * @param t 错误
+   * @return true 不可重试
+   */
+  @VisibleForTesting
+  static boolean isNonTransient(Throwable t) {
+    var e = findR2dbcException(t);
+    if (e == null) {
+      return false;
+    }
+    var sqlState = e.getSqlState();
+    if (sqlState != null && sqlState.length() >= 2) {
+      return NON_TRANSIENT_SQL_STATE_CLASSES.contains(sqlState.substring(0, 2));
+    }
+    return e instanceof R2dbcNonTransientException
+        && !(e instanceof R2dbcNonTransientResourceException)
+        && !(e instanceof R2dbcBadGrammarException)
+        && !(e instanceof R2dbcPermissionDeniedException);
+  }
+
+  /**
+   * 判断错误是否由数据库表结构或权限引起, 需要人工处理, 修复后重试可以成功.
+   *
+   * @param t 错误
+   * @return true 表结构或权限错误
+   */
+  @VisibleForTesting
+  static boolean isSchemaError(Throwable t) {
+    var e = findR2dbcException(t);
+    if (e == null) {
+      return false;
+    }
+    var sqlState = e.getSqlState();
+    if (sqlState != null && sqlState.length() >= 2) {
+      return SCHEMA_SQL_STATE_CLASSES.contains(sqlState.substring(0, 2));
+    }
+    return e instanceof R2dbcBadGrammarException || e instanceof R2dbcPermissionDeniedException;
+  }
+
+  private static R2dbcException findR2dbcException(Throwable t) {
+    for (var e = t; e != null; e = e.getCause()) {
+      if (e instanceof R2dbcException) {
+        return (R2dbcException) e;
+      }
+    }
+    return null;
+  }
+
+  private enum WriteResult {
+    /** 写入成功. */
+    OK,
+    /** 数据无法写入. */
+    REJECTED,
+    /** 服务停止时写入失败. */
+    STOPPED,
+  }
+}
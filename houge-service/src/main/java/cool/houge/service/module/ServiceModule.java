@@ -19,6 +19,7 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigBeanFactory;
 import cool.houge.ConfigKeys;
 import cool.houge.service.group.GroupService;
 import cool.houge.service.group.GroupServiceImpl;
@@ -29,6 +30,8 @@ import cool.houge.service.message.SendMessageService;
 import cool.houge.service.message.impl.MessageServiceImpl;
 import cool.houge.service.message.impl.MessageStorageServiceImpl;
 import cool.houge.service.message.impl.SendMessageServiceImpl;
+import cool.houge.service.message.wal.WriteBehindConfig;
+import cool.houge.service.message.wal.WriteBehindMessageStorageService;
 import cool.houge.service.user.UserService;
 import cool.houge.service.user.UserServiceImpl;
 import cool.houge.storage.MessageDao;
@@ -57,7 +60,30 @@ public class ServiceModule extends AbstractModule {
   protected void configure() {
     bind(UserService.class).to(UserServiceImpl.class).in(Scopes.SINGLETON);
     bind(GroupService.class).to(GroupServiceImpl.class).in(Scopes.SINGLETON);
-    bind(MessageStorageService.class).to(MessageStorageServiceImpl.class).in(Scopes.SINGLETON);
+  }
+
+  @Provides
+  @Singleton
+  public MessageStorageService messageStorageService(MessageDao messageDao) {
+    var writeBehindConfig = new WriteBehindConfig();
+    if (config.hasPath(ConfigKeys.MESSAGE_STORAGE_WRITE_BEHIND)) {
+      writeBehindConfig =
+          ConfigBeanFactory.create(
+              config.getConfig(ConfigKeys.MESSAGE_STORAGE_WRITE_BEHIND), WriteBehindConfig.class);
+    }
+    var groupTimelineMinMembers = 0;
+    if (config.hasPath(ConfigKeys.MESSAGE_STORAGE_GROUP_TIMELINE_MIN_MEMBERS)) {
+      groupTimelineMinMembers =
+          config.getInt(ConfigKeys.MESSAGE_STORAGE_GROUP_TIMELINE_MIN_MEMBERS);
+    }
+    if (!writeBehindConfig.isEnabled()) {
+      return new MessageStorageServiceImpl(messageDao, groupTimelineMinMembers);
+    }
+    var service =
+        new WriteBehindMessageStorageService(
+            writeBehindConfig, messageDao, groupTimelineMinMembers);
+    service.start();
+    return service;
   }
 
   @Provides
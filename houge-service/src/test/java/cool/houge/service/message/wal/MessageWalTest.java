@@ -0,0 +1,330 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.service.message.wal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.model.Message;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link MessageWal} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class MessageWalTest {
+
+  @TempDir Path dir;
+
+  private WriteBehindConfig newConfig(long segmentSize, long maxBytes) {
+    var config = new WriteBehindConfig();
+    config.setDir(dir.toString());
+    config.setSegmentSize(ConfigMemorySize.ofBytes(segmentSize));
+    config.setMaxBytes(ConfigMemorySize.ofBytes(maxBytes));
+    return config;
+  }
+
+  private static Message newMessage(int i) {
+    return Message.builder()
+        .id("m" + i)
+        .senderId(1L)
+        .receiverId(2L)
+        .kind(1)
+        .content("hello-" + i)
+        .contentType(1)
+        .createTime(LocalDateTime.of(2021, 1, 1, 0, 0, 0, i))
+        .build();
+  }
+
+  private static List<String> ids(List<MessageWal.Entry> entries) {
+    return entries.stream().map(e -> e.message.getId()).collect(Collectors.toList());
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    try (var stream = Files.list(dir)) {
+      return stream
+          .filter(p -> p.getFileName().toString().endsWith(".wal"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private List<MessageWal.Entry> readAll(MessageWal wal) {
+    var entries = new ArrayList<MessageWal.Entry>();
+    while (true) {
+      var batch = wal.read(3, Integer.MAX_VALUE);
+      if (batch.isEmpty()) {
+        return entries;
+      }
+      entries.addAll(batch);
+    }
+  }
+
+  @Test
+  void appendAndRead() throws IOException {
+    var wal = MessageWal.open(newConfig(64 * 1024, 1024 * 1024));
+    var message = newMessage(1);
+    message.setGroupId(9L);
+    message.setExtraArgs("{}");
+    assertThat(wal.append(message, List.of(1L, 2L), false)).isEqualTo(1);
+    var timeline = newMessage(2);
+    timeline.setGroupId(9L);
+    assertThat(wal.append(timeline, List.of(), true)).isEqualTo(2);
+    // 未关联用户的消息不是群组时间线消息
+    assertThat(wal.append(newMessage(3), List.of(), false)).isEqualTo(3);
+    assertThat(wal.pending()).isEqualTo(3);
+
+    var entries = wal.read(10, 10);
+    assertThat(entries).hasSize(3);
+    var entry = entries.get(0);
+    assertThat(entry.seq).isEqualTo(1);
+    assertThat(entry.appendMillis).isPositive();
+    assertThat(entry.message).isEqualTo(message);
+    assertThat(entry.uids).containsExactly(1L, 2L);
+    assertThat(entry.groupTimeline).isFalse();
+    assertThat(entries.get(1).uids).isEmpty();
+    assertThat(entries.get(1).groupTimeline).isTrue();
+    assertThat(entries.get(2).uids).isEmpty();
+    assertThat(entries.get(2).groupTimeline).isFalse();
+    assertThat(wal.read(10, 10)).isEmpty();
+    wal.close();
+  }
+
+  @Test
+  void readLimits() throws IOException {
+    var wal = MessageWal.open(newConfig(64 * 1024, 1024 * 1024));
+    for (int i = 1; i <= 5; i++) {
+      wal.append(newMessage(i), List.of(1L, 2L, 3L), false);
+    }
+    assertThat(ids(wal.read(2, 100))).containsExactly("m1", "m2");
+    // 用户关联数量达到上限时停止读取
+    assertThat(ids(wal.read(100, 4))).containsExactly("m3", "m4");
+    // 至少返回一条记录
+    assertThat(ids(wal.read(100, 1))).containsExactly("m5");
+    wal.close();
+  }
+
+  @Test
+  void rollOverAndReadAcrossSegments() throws IOException {
+    var wal = MessageWal.open(newConfig(1024, 1024 * 1024));
+    for (int i = 1; i <= 50; i++) {
+      assertThat(wal.append(newMessage(i), List.of(1L, 2L), false)).isEqualTo(i);
+    }
+    var files = segmentFiles();
+    assertThat(files.size()).isGreaterThan(2);
+    assertThat(files.get(0).getFileName().toString()).isEqualTo(String.format("%020d.wal", 1));
+    assertThat(wal.bytes()).isEqualTo(files.size() * 1024L);
+
+    var entries = readAll(wal);
+    assertThat(entries).hasSize(50);
+    for (int i = 0; i < entries.size(); i++) {
+      assertThat(entries.get(i).seq).isEqualTo(i + 1);
+    }
+    wal.close();
+  }
+
+  @Test
+  void checkpointDeletesFlushedSegments() throws IOException {
+    var wal = MessageWal.open(newConfig(1024, 1024 * 1024));
+    for (int i = 1; i <= 50; i++) {
+      wal.append(newMessage(i), List.of(1L), false);
+    }
+    var files = segmentFiles();
+
+    var entries = wal.read(15, Integer.MAX_VALUE);
+    wal.checkpoint(entries.get(entries.size() - 1).seq);
+    assertThat(wal.pending()).isEqualTo(35);
+    // 部分记录未写入数据库的段不删除
+    assertThat(segmentFiles()).hasSizeGreaterThan(1).isSubsetOf(files);
+    assertThat(segmentFiles()).doesNotContain(files.get(0));
+
+    entries = readAll(wal);
+    wal.checkpoint(entries.get(entries.size() - 1).seq);
+    assertThat(wal.pending()).isZero();
+    // 保留最后一个段继续写入
+    assertThat(segmentFiles()).containsExactly(files.get(files.size() - 1));
+    assertThat(wal.append(newMessage(51), List.of(1L), false)).isEqualTo(51);
+    assertThat(ids(wal.read(10, 10))).containsExactly("m51");
+    wal.close();
+  }
+
+  @Test
+  void reopenResumesAfterCheckpoint() throws IOException {
+    var config = newConfig(1024, 1024 * 1024);
+    var wal = MessageWal.open(config);
+    for (int i = 1; i <= 20; i++) {
+      wal.append(newMessage(i), List.of(1L), false);
+    }
+    wal.checkpoint(wal.read(12, Integer.MAX_VALUE).get(11).seq);
+    // 已读取但未保存检查点的记录在重新打开后再次读取
+    wal.read(3, Integer.MAX_VALUE);
+    wal.close();
+
+    wal = MessageWal.open(config);
+    assertThat(wal.pending()).isEqualTo(8);
+    var entries = readAll(wal);
+    assertThat(entries.get(0).seq).isEqualTo(13);
+    assertThat(entries).hasSize(8);
+    assertThat(wal.append(newMessage(21), List.of(1L), false)).isEqualTo(21);
+    wal.close();
+
+    wal = MessageWal.open(config);
+    wal.checkpoint(readAll(wal).get(8).seq);
+    wal.close();
+    // 所有记录都已写入数据库时删除全部的段文件, 重新打开后从新的段开始
+    wal = MessageWal.open(config);
+    assertThat(wal.pending()).isZero();
+    assertThat(wal.read(10, 10)).isEmpty();
+    assertThat(segmentFiles()).hasSize(1);
+    assertThat(wal.append(newMessage(22), List.of(1L), false)).isEqualTo(22);
+    wal.close();
+  }
+
+  @Test
+  void recoverTruncatedSegment() throws IOException {
+    var config = newConfig(4096, 1024 * 1024);
+    var wal = MessageWal.open(config);
+    for (int i = 1; i <= 3; i++) {
+      wal.append(newMessage(i), List.of(1L), false);
+    }
+    wal.close();
+
+    // 段文件在第三条记录中间被截断
+    var file = segmentFiles().get(0);
+    var recordBytes = recordBytes(file, 0);
+    try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(recordBytes * 2 + recordBytes / 2);
+    }
+
+    wal = MessageWal.open(config);
+    assertThat(wal.pending()).isEqualTo(2);
+    assertThat(wal.append(newMessage(4), List.of(1L), false)).isEqualTo(3);
+    assertThat(ids(readAll(wal))).containsExactly("m1", "m2", "m4");
+    // 截断的段已无剩余空间, 新的记录写入新的段
+    assertThat(segmentFiles()).hasSize(2);
+    wal.close();
+  }
+
+  @Test
+  void recoverCorruptedRecord() throws IOException {
+    var config = newConfig(4096, 1024 * 1024);
+    var wal = MessageWal.open(config);
+    for (int i = 1; i <= 3; i++) {
+      wal.append(newMessage(i), List.of(1L), false);
+    }
+    wal.close();
+
+    // 第二条记录的内容损坏, 校验失败后忽略该记录及之后的记录
+    var file = segmentFiles().get(0);
+    var second = recordBytes(file, 0);
+    try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+      var pos = second + recordBytes(file, second) - 1;
+      raf.seek(pos);
+      var b = raf.read();
+      raf.seek(pos);
+      raf.write(b ^ 0xFF);
+    }
+
+    wal = MessageWal.open(config);
+    assertThat(wal.pending()).isEqualTo(1);
+    assertThat(wal.append(newMessage(4), List.of(1L), false)).isEqualTo(2);
+    wal.close();
+
+    // 覆盖损坏的记录后, 残留的第三条记录不会被误认为有效的记录
+    wal = MessageWal.open(config);
+    assertThat(wal.pending()).isEqualTo(2);
+    assertThat(ids(readAll(wal))).containsExactly("m1", "m4");
+    wal.close();
+  }
+
+  @Test
+  void recoverTornLength() throws IOException {
+    var config = newConfig(4096, 1024 * 1024);
+    var wal = MessageWal.open(config);
+    for (int i = 1; i <= 2; i++) {
+      wal.append(newMessage(i), List.of(1L), false);
+    }
+    wal.close();
+
+    // 长度写入了超出段文件的值
+    var file = segmentFiles().get(0);
+    try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(recordBytes(file, 0));
+      raf.writeInt(Integer.MAX_VALUE);
+    }
+
+    wal = MessageWal.open(config);
+    assertThat(ids(readAll(wal))).containsExactly("m1");
+    wal.close();
+  }
+
+  @Test
+  void maxBytesFallback() throws IOException {
+    var wal = MessageWal.open(newConfig(1024, 2048));
+    var appended = 0;
+    while (wal.append(newMessage(appended + 1), List.of(1L), false) > 0) {
+      appended++;
+    }
+    assertThat(appended).isGreaterThan(0);
+    assertThat(wal.bytes()).isEqualTo(2048);
+    assertThat(segmentFiles()).hasSize(2);
+
+    // 写入数据库后释放空间
+    var entries = readAll(wal);
+    assertThat(entries).hasSize(appended);
+    wal.checkpoint(entries.get(entries.size() - 1).seq);
+    assertThat(wal.append(newMessage(appended + 1), List.of(1L), false)).isEqualTo(appended + 1);
+    wal.close();
+  }
+
+  @Test
+  void oversizedRecord() throws IOException {
+    var wal = MessageWal.open(newConfig(1024, 1024 * 1024));
+    var message = newMessage(1);
+    message.setContent("x".repeat(2048));
+    assertThat(wal.append(message, List.of(1L), false)).isEqualTo(-1);
+    assertThat(wal.append(newMessage(2), List.of(1L), false)).isEqualTo(1);
+    wal.close();
+  }
+
+  @Test
+  void appendAfterClose() throws IOException {
+    var wal = MessageWal.open(newConfig(1024, 1024 * 1024));
+    wal.close();
+    assertThat(wal.append(newMessage(1), List.of(1L), false)).isEqualTo(-1);
+  }
+
+  /** 返回段文件中指定位置的记录占用的字节数. */
+  private static int recordBytes(Path file, int pos) throws IOException {
+    try (var raf = new RandomAccessFile(file.toFile(), "r")) {
+      raf.seek(pos);
+      var header = new byte[4];
+      raf.readFully(header);
+      return 8 + ByteBuffer.wrap(header).getInt();
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.service.message.wal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.model.Message;
+import cool.houge.storage.MessageDao;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.r2dbc.spi.R2dbcBadGrammarException;
+import io.r2dbc.spi.R2dbcDataIntegrityViolationException;
+import io.r2dbc.spi.R2dbcNonTransientResourceException;
+import io.r2dbc.spi.R2dbcPermissionDeniedException;
+import io.r2dbc.spi.R2dbcTransientResourceException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+/**
+ * {@link WriteBehindMessageStorageService} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class WriteBehindMessageStorageServiceTest {
+
+  private static final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @TempDir Path dir;
+  private WriteBehindMessageStorageService service;
+
+  @BeforeAll
+  static void beforeAll() {
+    Metrics.addRegistry(meterRegistry);
+  }
+
+  @AfterAll
+  static void afterAll() {
+    Metrics.removeRegistry(meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (service != null) {
+      service.stop();
+    }
+  }
+
+  private WriteBehindConfig newConfig() {
+    var config = new WriteBehindConfig();
+    config.setEnabled(true);
+    config.setDir(dir.toString());
+    config.setSegmentSize(ConfigMemorySize.ofBytes(64 * 1024));
+    config.setMaxBytes(ConfigMemorySize.ofBytes(1024 * 1024));
+    config.setIdleDelay(Duration.ofMillis(1));
+    config.setRetryMaxBackoff(Duration.ofMillis(10));
+    config.setShutdownTimeout(Duration.ofSeconds(5));
+    return config;
+  }
+
+  private WriteBehindMessageStorageService start(
+      WriteBehindConfig config, MessageDao messageDao, int groupTimelineMinMembers) {
+    service = new WriteBehindMessageStorageService(config, messageDao, groupTimelineMinMembers);
+    service.start();
+    return service;
+  }
+
+  private static Message newMessage(String id) {
+    return Message.builder().id(id).senderId(1L).receiverId(2L).kind(1).content(id).build();
+  }
+
+  private static long pendingAfterStop(
+      WriteBehindMessageStorageService service, WriteBehindConfig config) throws IOException {
+    service.stop();
+    try (var wal = MessageWal.open(config)) {
+      return wal.pending();
+    }
+  }
+
+  private static void await(BooleanSupplier condition) {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime()).as("等待超时").isLessThan(deadline);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private static double deadLetters() {
+    return meterRegistry.counter("tethys.service.message.wal.dead.letters").count();
+  }
+
+  @Test
+  void store() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    when(messageDao.insertBatch(anyList(), anyList())).thenReturn(Mono.empty());
+    var config = newConfig();
+    var service = start(config, messageDao, 0);
+
+    var message = newMessage("m1");
+    StepVerifier.create(service.store(message, List.of(1L, 2L))).expectComplete().verify();
+    // 使用写入日志的时间作为消息的创建时间
+    assertThat(message.getCreateTime()).isNotNull();
+
+    verify(messageDao, timeout(5000)).insertBatch(List.of(message), List.of(List.of(1L, 2L)));
+    verify(messageDao, never()).insert(any(), anyList());
+    assertThat(pendingAfterStop(service, config)).isZero();
+  }
+
+  @Test
+  void storeGroupTimeline() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    when(messageDao.insertGroupTimeline(any())).thenReturn(Mono.empty());
+    var config = newConfig();
+    var service = start(config, messageDao, 2);
+
+    var message = newMessage("m1");
+    message.setGroupId(9L);
+    StepVerifier.create(service.store(message, List.of(1L, 2L))).expectComplete().verify();
+
+    verify(messageDao, timeout(5000)).insertGroupTimeline(message);
+    verify(messageDao, never()).insertBatch(anyList(), anyList());
+    assertThat(pendingAfterStop(service, config)).isZero();
+  }
+
+  @Test
+  void storeWithoutUids() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    when(messageDao.insertBatch(anyList(), anyList())).thenReturn(Mono.empty());
+    var config = newConfig();
+    var service = start(config, messageDao, 2);
+
+    // 未关联用户的消息不是群组时间线消息, 重放时不会按群组时间线写入
+    var message = newMessage("m1");
+    StepVerifier.create(service.store(message, List.of())).expectComplete().verify();
+    verify(messageDao, timeout(5000)).insertBatch(List.of(message), List.of(List.of()));
+
+    var groupMessage = newMessage("m2");
+    groupMessage.setGroupId(9L);
+    StepVerifier.create(service.store(groupMessage, List.of())).expectComplete().verify();
+    verify(messageDao, timeout(5000)).insertBatch(List.of(groupMessage), List.of(List.of()));
+    verify(messageDao, never()).insertGroupTimeline(any());
+    assertThat(pendingAfterStop(service, config)).isZero();
+  }
+
+  @Test
+  void retryTransientError() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    var calls = new AtomicInteger();
+    when(messageDao.insertBatch(anyList(), anyList()))
+        .thenReturn(
+            Mono.defer(
+                () ->
+                    calls.incrementAndGet() < 3
+                        ? Mono.error(new R2dbcTransientResourceException("connection reset"))
+                        : Mono.empty()));
+    var config = newConfig();
+    var service = start(config, messageDao, 0);
+    var deadLetters = deadLetters();
+
+    service.store(newMessage("m1"), List.of(1L)).block();
+
+    await(() -> calls.get() >= 3);
+    assertThat(pendingAfterStop(service, config)).isZero();
+    assertThat(calls).hasValue(3);
+    assertThat(deadLetters()).isEqualTo(deadLetters);
+  }
+
+  @Test
+  void deadLetterNonTransientError() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    var config = newConfig();
+    when(messageDao.insertBatch(anyList(), anyList()))
+        .thenAnswer(
+            invocation -> {
+              List<Message> messages = invocation.getArgument(0);
+              if (messages.stream().anyMatch(m -> m.getId().equals("bad"))) {
+                return Mono.error(
+                    new R2dbcDataIntegrityViolationException(
+                        "null value in column", "23502", null));
+              }
+              return Mono.empty();
+            });
+    var good1 = newMessage("good1");
+    var bad = newMessage("bad");
+    var good2 = newMessage("good2");
+    // 启动前写入日志, 保证 3 条消息在同一批次中写入
+    try (var wal = MessageWal.open(config)) {
+      wal.append(good1, List.of(1L), false);
+      wal.append(bad, List.of(1L), false);
+      wal.append(good2, List.of(1L), false);
+    }
+    var deadLetters = deadLetters();
+    var service = start(config, messageDao, 0);
+
+    // 批次写入失败后逐条写入, 无法写入的消息被丢弃, 后续的消息继续写入
+    verify(messageDao, timeout(5000)).insertBatch(List.of(good2), List.of(List.of(1L)));
+    verify(messageDao, times(1)).insertBatch(List.of(good1), List.of(List.of(1L)));
+    verify(messageDao, times(1)).insertBatch(List.of(bad), List.of(List.of(1L)));
+    assertThat(pendingAfterStop(service, config)).isZero();
+    assertThat(deadLetters()).isEqualTo(deadLetters + 1);
+  }
+
+  @Test
+  void retrySchemaError() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    var calls = new AtomicInteger();
+    when(messageDao.insertBatch(anyList(), anyList()))
+        .thenReturn(
+            Mono.defer(
+                () ->
+                    calls.incrementAndGet() < 3
+                        ? Mono.error(
+                            new R2dbcBadGrammarException(
+                                "relation \"t_message\" does not exist", "42P01", null))
+                        : Mono.empty()));
+    var config = newConfig();
+    var service = start(config, messageDao, 0);
+    var deadLetters = deadLetters();
+    var schemaErrors = meterRegistry.counter("tethys.service.message.wal.schema.errors").count();
+
+    // 表结构错误不丢弃消息, 修复后继续写入
+    service.store(newMessage("m1"), List.of(1L)).block();
+
+    await(() -> calls.get() >= 3);
+    assertThat(pendingAfterStop(service, config)).isZero();
+    assertThat(deadLetters()).isEqualTo(deadLetters);
+    assertThat(meterRegistry.counter("tethys.service.message.wal.schema.errors").count())
+        .isEqualTo(schemaErrors + 2);
+  }
+
+  @Test
+  void stopWithPendingMessages() throws IOException {
+    var messageDao = mock(MessageDao.class);
+    when(messageDao.insertBatch(anyList(), anyList()))
+        .thenReturn(Mono.error(new R2dbcTransientResourceException("connection refused")));
+    var config = newConfig();
+    var service = start(config, messageDao, 0);
+
+    service.store(newMessage("m1"), List.of(1L)).block();
+    verify(messageDao, timeout(5000)).insertBatch(anyList(), anyList());
+
+    // 停止时未写入的消息保留在日志中, 下次启动时继续写入
+    assertThat(pendingAfterStop(service, config)).isEqualTo(1);
+
+    var messageDao2 = mock(MessageDao.class);
+    when(messageDao2.insertBatch(anyList(), anyList())).thenReturn(Mono.empty());
+    service = start(config, messageDao2, 0);
+    verify(messageDao2, timeout(5000)).insertBatch(anyList(), anyList());
+    assertThat(pendingAfterStop(service, config)).isZero();
+  }
+
+  @Test
+  void fallbackWhenWalFull() {
+    var messageDao = mock(MessageDao.class);
+    when(messageDao.insert(any(), anyList())).thenReturn(Mono.empty());
+    var config = newConfig();
+    config.setSegmentSize(ConfigMemorySize.ofBytes(1024));
+    var service = start(config, messageDao, 0);
+
+    // 超出单个段文件大小的消息直接写入数据库
+    var message = newMessage("x".repeat(2048));
+    StepVerifier.create(service.store(message, List.of(1L))).expectComplete().verify();
+    verify(messageDao).insert(message, List.of(1L));
+    verify(messageDao, never()).insertBatch(anyList(), anyList());
+  }
+
+  @Test
+  void isNonTransient() {
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new R2dbcDataIntegrityViolationException("duplicate", "23505", null)))
+        .isTrue();
+    // 表结构或权限错误与具体的消息无关
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new R2dbcBadGrammarException("syntax error", "42601", null)))
+        .isFalse();
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new R2dbcPermissionDeniedException("permission denied")))
+        .isFalse();
+    // 数据异常类别
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new RuntimeException(
+                    new R2dbcNonTransientResourceException("value too long", "22001", null))))
+        .isTrue();
+    // 连接错误
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new R2dbcNonTransientResourceException("connection failure", "08006", null)))
+        .isFalse();
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new R2dbcNonTransientResourceException("closed")))
+        .isFalse();
+    assertThat(
+            WriteBehindMessageStorageService.isNonTransient(
+                new R2dbcTransientResourceException("timeout", "57014", null)))
+        .isFalse();
+    assertThat(WriteBehindMessageStorageService.isNonTransient(new IOException("reset")))
+        .isFalse();
+  }
+
+  @Test
+  void isSchemaError() {
+    assertThat(
+            WriteBehindMessageStorageService.isSchemaError(
+                new R2dbcBadGrammarException("relation does not exist", "42P01", null)))
+        .isTrue();
+    assertThat(
+            WriteBehindMessageStorageService.isSchemaError(
+                new RuntimeException(new R2dbcPermissionDeniedException("denied", "42501", null))))
+        .isTrue();
+    assertThat(
+            WriteBehindMessageStorageService.isSchemaError(
+                new R2dbcNonTransientResourceException("check option violation", "44000", null)))
+        .isTrue();
+    assertThat(
+            WriteBehindMessageStorageService.isSchemaError(new R2dbcBadGrammarException("syntax")))
+        .isTrue();
+    assertThat(
+            WriteBehindMessageStorageService.isSchemaError(
+                new R2dbcDataIntegrityViolationException("duplicate", "23505", null)))
+        .isFalse();
+    assertThat(WriteBehindMessageStorageService.isSchemaError(new IOException("reset")))
+        .isFalse();
+  }
+}
@@ -35,6 +35,27 @@ public interface MessageDao {
    */
   Mono<Void> insert(Message entity, List<Long> uids);
 
+  /**
+   * 批量保存消息并与用户进行关联.
+   *
+   * <p>已存在的消息及已存在用户关联的消息会被忽略, 重复保存同一批消息不会产生重复的数据.
+   *
+   * @param entities 消息实体
+   * @param uids 关联的用户 IDs, 与 {@code entities} 按下标一一对应
+   * @return RS
+   */
+  Mono<Void> insertBatch(List<Message> entities, List<List<Long>> uids);
+
+  /**
+   * 保存群组时间线消息.
+   *
+   * <p>消息仅保存一次并分配群组内递增的序号, 不与群组成员逐一关联, 成员拉取消息时读取群组的时间线. 已存在的消息会被忽略.
+   *
+   * @param entity 消息实体, {@code groupId} 不能为空
+   * @return RS
+   */
+  Mono<Void> insertGroupTimeline(Message entity);
+
   /**
    * 批量将用户的消息 {@code unread} 修改为指定状态.
    *
@@ -44,4 +65,15 @@ public interface MessageDao {
    * @return RS
    */
   Mono<Void> updateUnreadStatus(long uid, List<String> messageIds, int v);
+
+  /**
+   * 将用户在群组时间线中的已读位置移动到指定的消息.
+   *
+   * <p>已读位置只会向后移动, 不是群组时间线的消息会被忽略.
+   *
+   * @param uid 用户 ID
+   * @param messageIds 消息 IDs
+   * @return RS
+   */
+  Mono<Void> updateGroupReadSeq(long uid, List<String> messageIds);
 }
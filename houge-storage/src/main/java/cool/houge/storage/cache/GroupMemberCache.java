@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.storage.cache;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.ImmutableLongArray;
+import cool.houge.storage.query.GroupQueryDao;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import javax.inject.Inject;
+import reactor.core.publisher.Mono;
+
+/**
+ * 群组成员缓存.
+ *
+ * <p>缓存群组 ID 与升序排列的成员用户 ID 数组的映射, 群组消息无需在每条消息上查询群组是否存在及全部的群组成员. 缓存按成员数组占用的字节数计算权重,
+ * 总字节数超出 {@link GroupMemberCacheConfig#getMaxBytes()} 时淘汰访问频率低的群组.
+ *
+ * <p>当前服务中的群组成员变更由 {@link cool.houge.storage.GroupDao} 同步更新到缓存, 所有服务(如 REST 服务)中的变更由 {@link
+ * GroupMemberChangeListener} 收到数据库通知后删除缓存. 监听未建立或中断期间缓存停用, 群组成员直接从数据库查询.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class GroupMemberCache {
+
+  /** 缓存条目及数组对象头的估算字节数. */
+  private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+  private final GroupQueryDao groupQueryDao;
+  private final AsyncCache<Long, long[]> cache;
+  private final Timer loadTimer;
+  private final Counter bypassCounter;
+  private volatile boolean enabled = true;
+
+  /**
+   * 使用群组查询对象与配置构造对象.
+   *
+   * @param groupQueryDao 群组查询数据访问对象
+   * @param config 缓存配置
+   */
+  @Inject
+  public GroupMemberCache(GroupQueryDao groupQueryDao, GroupMemberCacheConfig config) {
+    this.groupQueryDao = groupQueryDao;
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumWeight(config.getMaxBytes().toBytes())
+            .weigher((Long gid, long[] uids) -> weigh(uids))
+            .expireAfterWrite(config.getExpireAfterWrite())
+            .recordStats()
+            .buildAsync();
+    this.loadTimer = Metrics.timer("tethys.storage.group.members.load");
+    this.bypassCounter =
+        Metrics.counter("tethys.storage.group.members.requests", "result", "bypass");
+    bindMeters();
+  }
+
+  /**
+   * 返回群组成员的用户 ID, 缓存中不存在时从数据库加载.
+   *
+   * <p>返回的数组为升序排列且被缓存共享, 调用方不能修改数组.
+   *
+   * @param gid 群组 ID
+   * @return 群组成员的用户 ID, 群组不存在时返回 {@code Mono.empty()}
+   */
+  public Mono<long[]> get(long gid) {
+    if (!enabled) {
+      bypassCounter.increment();
+      return load(gid);
+    }
+    return Mono.fromFuture(() -> cache.get(gid, (key, executor) -> load(key).toFuture()));
+  }
+
+  /**
+   * 群组增加成员后更新缓存.
+   *
+   * @param gid 群组 ID
+   * @param uid 用户 ID
+   */
+  public void onJoin(long gid, long uid) {
+    update(gid, uid, true);
+  }
+
+  /**
+   * 群组移除成员后更新缓存.
+   *
+   * @param gid 群组 ID
+   * @param uid 用户 ID
+   */
+  public void onRemove(long gid, long uid) {
+    update(gid, uid, false);
+  }
+
+  /**
+   * 删除群组的缓存.
+   *
+   * @param gid 群组 ID
+   */
+  public void invalidate(long gid) {
+    cache.synchronous().invalidate(gid);
+  }
+
+  /**
+   * 启用缓存, 丢弃停用前缓存的所有群组.
+   *
+   * <p>开始接收群组成员变更通知后调用, 之后的变更都会删除缓存.
+   */
+  void enable() {
+    cache.synchronous().invalidateAll();
+    enabled = true;
+  }
+
+  /** 停用缓存, 群组成员变更通知中断时调用. */
+  void disable() {
+    enabled = false;
+    cache.synchronous().invalidateAll();
+  }
+
+  /**
+   * 返回缓存的成员数组的估算字节数.
+   *
+   * @return 字节数
+   */
+  long weightedSize() {
+    return cache.synchronous().policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L);
+  }
+
+  @VisibleForTesting
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  @VisibleForTesting
+  void cleanUp() {
+    cache.synchronous().cleanUp();
+  }
+
+  private Mono<long[]> load(long gid) {
+    var startTime = System.nanoTime();
+    return groupQueryDao
+        .existsById(gid)
+        .flatMap(
+            unused ->
+                groupQueryDao
+                    .queryUidByGid(gid)
+                    .collect(ImmutableLongArray::builder, ImmutableLongArray.Builder::add))
+        .map(
+            builder -> {
+              var uids = builder.build().toArray();
+              Arrays.sort(uids);
+              return uids;
+            })
+        .doFinally(signalType -> loadTimer.record(System.nanoTime() - startTime, NANOSECONDS));
+  }
+
+  private void update(long gid, long uid, boolean join) {
+    cache
+        .asMap()
+        .computeIfPresent(
+            gid,
+            (key, future) -> {
+              // 正在加载的成员可能不包含本次变更, 删除后由下次访问重新加载
+              if (!future.isDone() || future.isCompletedExceptionally()) {
+                return null;
+              }
+              var uids = future.getNow(null);
+              if (uids == null) {
+                return null;
+              }
+              var i = Arrays.binarySearch(uids, uid);
+              if (join == i >= 0) {
+                return future;
+              }
+              var rs = join ? insert(uids, -i - 1, uid) : remove(uids, i);
+              return CompletableFuture.completedFuture(rs);
+            });
+  }
+
+  private void bindMeters() {
+    var syncCache = cache.synchronous();
+    FunctionCounter.builder(
+            "tethys.storage.group.members.requests", syncCache, c -> c.stats().hitCount())
+        .tag("result", "hit")
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder(
+            "tethys.storage.group.members.requests", syncCache, c -> c.stats().missCount())
+        .tag("result", "miss")
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder(
+            "tethys.storage.group.members.evictions",
+            syncCache,
+            c -> c.stats().evictionCount())
+        .register(Metrics.globalRegistry);
+    Gauge.builder("tethys.storage.group.members.groups", syncCache, c -> c.estimatedSize())
+        .register(Metrics.globalRegistry);
+    Gauge.builder("tethys.storage.group.members.bytes", this, GroupMemberCache::weightedSize)
+        .register(Metrics.globalRegistry);
+  }
+
+  private static int weigh(long[] uids) {
+    return ENTRY_OVERHEAD_BYTES + uids.length * Long.BYTES;
+  }
+
+  private static long[] insert(long[] uids, int index, long uid) {
+    var rs = new long[uids.length + 1];
+    System.arraycopy(uids, 0, rs, 0, index);
+    rs[index] = uid;
+    System.arraycopy(uids, index, rs, index + 1, uids.length - index);
+    return rs;
+  }
+
+  private static long[] remove(long[] uids, int index) {
+    var rs = new long[uids.length - 1];
+    System.arraycopy(uids, 0, rs, 0, index);
+    System.arraycopy(uids, index + 1, rs, index, rs.length - index);
+    return rs;
+  }
+}
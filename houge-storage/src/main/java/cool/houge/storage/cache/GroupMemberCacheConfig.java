@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.storage.cache;
+
+import com.typesafe.config.ConfigMemorySize;
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 群组成员缓存配置.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+@Getter
+@Setter
+@ToString
+public class GroupMemberCacheConfig {
+
+  /** 缓存的群组成员占用的最大字节数, 超出时按群组的访问频率淘汰. */
+  private ConfigMemorySize maxBytes = ConfigMemorySize.ofBytes(64L * 1024 * 1024);
+  /** 群组成员写入缓存后的有效时长, 成员变更由数据库通知删除缓存, 过期仅用于回收不再访问的群组. */
+  private Duration expireAfterWrite = Duration.ofMinutes(30);
+  /** 监听群组成员变更的连接中断后重新连接的等待时长, 在此期间缓存停用. */
+  private Duration relistenDelay = Duration.ofSeconds(5);
+}
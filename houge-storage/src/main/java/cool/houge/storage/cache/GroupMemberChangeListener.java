@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.storage.cache;
+
+import io.r2dbc.postgresql.api.Notification;
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Wrapped;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * 群组成员变更监听.
+ *
+ * <p>数据库触发器在 {@code groups_member} 表新增或删除成员时通过 {@code pg_notify} 发送群组 ID, 任意服务(包括 REST
+ * 服务)中的成员变更都会通知到当前服务, 收到通知后删除群组的缓存. 使用独立的数据库连接执行 {@code LISTEN}, 连接建立前及中断期间停用缓存,
+ * 重新监听后清空缓存.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+public class GroupMemberChangeListener {
+
+  private static final Logger log = LogManager.getLogger();
+  /** 群组成员变更通知的频道, 与数据库触发器中的频道一致. */
+  static final String CHANNEL = "groups_member";
+
+  private final ConnectionFactory connectionFactory;
+  private final GroupMemberCache groupMemberCache;
+  private final GroupMemberCacheConfig config;
+  private volatile Disposable listenDisposable;
+  private volatile boolean stopped;
+
+  /**
+   * 构造对象.
+   *
+   * @param connectionFactory 数据库连接工厂
+   * @param groupMemberCache 群组成员缓存
+   * @param config 缓存配置
+   */
+  @Inject
+  public GroupMemberChangeListener(
+      ConnectionFactory connectionFactory,
+      GroupMemberCache groupMemberCache,
+      GroupMemberCacheConfig config) {
+    this.connectionFactory = connectionFactory;
+    this.groupMemberCache = groupMemberCache;
+    this.config = config;
+  }
+
+  /** 开始监听群组成员变更, 监听建立后启用缓存. */
+  public void start() {
+    groupMemberCache.disable();
+    listen();
+  }
+
+  /** 停止监听并停用缓存. */
+  public void stop() {
+    stopped = true;
+    var disposable = this.listenDisposable;
+    if (disposable != null) {
+      disposable.dispose();
+    }
+    groupMemberCache.disable();
+  }
+
+  private void listen() {
+    if (stopped) {
+      return;
+    }
+    this.listenDisposable =
+        Flux.usingWhen(
+                Mono.from(connectionFactory.create()),
+                this::notifications,
+                Connection::close,
+                (connection, t) -> connection.close(),
+                Connection::close)
+            .subscribe(
+                this::onNotification,
+                t -> {
+                  groupMemberCache.disable();
+                  log.warn("群组成员变更监听中断, {} 后重新监听", config.getRelistenDelay(), t);
+                  relisten();
+                },
+                () -> {
+                  groupMemberCache.disable();
+                  log.warn("群组成员变更监听结束, {} 后重新监听", config.getRelistenDelay());
+                  relisten();
+                });
+  }
+
+  private Flux<Notification> notifications(Connection connection) {
+    var pgConnection = unwrap(connection);
+    // 先订阅通知再执行 LISTEN, LISTEN 完成后的变更都会收到通知
+    var listen =
+        Flux.from(pgConnection.createStatement("LISTEN " + CHANNEL).execute())
+            .flatMap(PostgresqlResult::getRowsUpdated)
+            .then(
+                Mono.fromRunnable(
+                    () -> {
+                      groupMemberCache.enable();
+                      log.info("开始监听群组成员变更 channel={}", CHANNEL);
+                    }));
+    return Flux.merge(pgConnection.getNotifications(), listen.cast(Notification.class));
+  }
+
+  private void onNotification(Notification notification) {
+    if (!CHANNEL.equals(notification.getName())) {
+      return;
+    }
+    try {
+      groupMemberCache.invalidate(Long.parseLong(notification.getParameter()));
+    } catch (NumberFormatException e) {
+      log.error("非法的群组成员变更通知 parameter={}", notification.getParameter());
+    }
+  }
+
+  private void relisten() {
+    if (stopped) {
+      return;
+    }
+    Schedulers.parallel()
+        .schedule(this::listen, config.getRelistenDelay().toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static PostgresqlConnection unwrap(Connection connection) {
+    // 连接池返回的连接包装了驱动的连接
+    var c = connection;
+    while (!(c instanceof PostgresqlConnection) && c instanceof Wrapped) {
+      c = ((Wrapped<Connection>) c).unwrap();
+    }
+    if (!(c instanceof PostgresqlConnection)) {
+      throw new IllegalStateException("群组成员变更监听仅支持 PostgreSQL 连接 " + connection);
+    }
+    return (PostgresqlConnection) c;
+  }
+}
@@ -20,6 +20,7 @@ import cool.houge.model.Group;
 import cool.houge.r2dbc.R2dbcClient;
 import cool.houge.storage.GroupDao;
 import cool.houge.storage.SqlStates;
+import cool.houge.storage.cache.GroupMemberCache;
 import io.r2dbc.spi.R2dbcDataIntegrityViolationException;
 import javax.inject.Inject;
 import org.apache.logging.log4j.LogManager;
@@ -54,15 +55,18 @@ public class GroupDaoImpl implements GroupDao {
       "DELETE FROM groups_member WHERE gid=$1 AND uid=$2";
 
   private final R2dbcClient rc;
+  private final GroupMemberCache groupMemberCache;
 
   /**
    * 使用 R2DBC 客户端构造对象.
    *
    * @param rc R2DBC 客户端
+   * @param groupMemberCache 群组成员缓存
    */
   @Inject
-  public GroupDaoImpl(R2dbcClient rc) {
+  public GroupDaoImpl(R2dbcClient rc, GroupMemberCache groupMemberCache) {
     this.rc = rc;
+    this.groupMemberCache = groupMemberCache;
   }
 
   @Override
@@ -102,7 +106,7 @@ public class GroupDaoImpl implements GroupDao {
   public Mono<Void> delete(long gid) {
     var m1 = rc.sql(DELETE_GROUP_SQL).bind(0, gid).rowsUpdated();
     var m2 = rc.sql(DELETE_MEMBERS_SQL).bind(0, gid).rowsUpdated();
-    return m1.zipWith(m2).then();
+    return m1.zipWith(m2).doOnSuccess(unused -> groupMemberCache.invalidate(gid)).then();
   }
 
   @Override
@@ -143,7 +147,7 @@ public class GroupDaoImpl implements GroupDao {
                         .addContextValue("uid", uid);
                   }
                 });
-    return Mono.zip(m1, m2).then();
+    return Mono.zip(m1, m2).doOnSuccess(unused -> groupMemberCache.onJoin(gid, uid)).then();
   }
 
   @Override
@@ -172,7 +176,7 @@ public class GroupDaoImpl implements GroupDao {
                         .addContextValue("uid", uid);
                   }
                 });
-    return Mono.zip(m1, m2).then();
+    return Mono.zip(m1, m2).doOnSuccess(unused -> groupMemberCache.onRemove(gid, uid)).then();
   }
 
   @VisibleForTesting
@@ -20,9 +20,14 @@ import cool.houge.model.Message;
 import cool.houge.r2dbc.Parameter;
 import cool.houge.r2dbc.R2dbcClient;
 import cool.houge.storage.MessageDao;
+import cool.houge.storage.SqlStates;
+import io.r2dbc.spi.R2dbcDataIntegrityViolationException;
+import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
 import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import reactor.core.publisher.Mono;
 
 /**
@@ -32,10 +37,35 @@ import reactor.core.publisher.Mono;
  */
 public class MessageDaoImpl implements MessageDao {
 
+  private static final Logger log = LogManager.getLogger();
+
   private static final String INSERT_SQL =
       "INSERT INTO messages("
           + "id,sender_id,receiver_id,group_id,kind,content,content_type,extra_args,create_time,update_time)"
           + " VALUES($1,$2,$3,$4,$5,$6,$7,$8,now(),now())";
+  private static final String INSERT_BATCH_SQL =
+      "INSERT INTO messages("
+          + "id,sender_id,receiver_id,group_id,kind,content,content_type,extra_args,create_time,update_time)"
+          + " VALUES";
+  private static final String INSERT_BATCH_USER_MESSAGES_SQL =
+      "INSERT INTO user_messages(uid,message_id)"
+          + " SELECT t.uid,t.message_id FROM unnest($1::bigint[],$2::varchar[]) AS t(uid,message_id)"
+          + " WHERE NOT EXISTS (SELECT 1 FROM user_messages u WHERE u.message_id=t.message_id)";
+  // 消息已存在(如 write-behind 重放)时不递增群组的消息序号, 保证 group_seq 连续.
+  // NOT EXISTS 基于语句开始时的快照, 只能排除已提交的消息; 并发保存同一消息时后执行的语句违反主键约束,
+  // 整条语句回滚, 递增的序号随之撤销, 因此不能使用 ON CONFLICT DO NOTHING
+  private static final String INSERT_GROUP_TIMELINE_SQL =
+      "WITH s AS (UPDATE groups SET message_seq=message_seq+1 WHERE id=$4"
+          + " AND NOT EXISTS (SELECT 1 FROM messages WHERE id=$1) RETURNING message_seq)"
+          + " INSERT INTO messages("
+          + "id,sender_id,receiver_id,group_id,kind,content,content_type,extra_args,group_seq,create_time,update_time)"
+          + " SELECT $1,$2,$3,$4,$5,$6,$7,$8,s.message_seq,COALESCE($9::timestamp,now()),now() FROM s";
+  private static final String EXISTS_SQL = "SELECT 1 FROM messages WHERE id=$1";
+  private static final String UPDATE_GROUP_READ_SEQ_SQL =
+      "UPDATE groups_member gm SET read_seq=m.group_seq FROM"
+          + " (SELECT group_id,MAX(group_seq) AS group_seq FROM messages"
+          + " WHERE id = ANY(string_to_array($1,',')) AND group_seq IS NOT NULL GROUP BY group_id) m"
+          + " WHERE gm.gid=m.group_id AND gm.uid=$2 AND gm.read_seq<m.group_seq";
   private static final String UPDATE_UNREAD_STATUS_SQL =
       "UPDATE messages SET unread=$1,update_time=now() WHERE id = ANY(string_to_array($2,',')) AND receiver_id=$3";
 
@@ -74,6 +104,112 @@ public class MessageDaoImpl implements MessageDao {
     return Mono.when(insert0(entity), rc.batchSql(sql.toString()).rowsUpdated());
   }
 
+  @Override
+  public Mono<Void> insertBatch(List<Message> entities, List<List<Long>> uids) {
+    if (entities.isEmpty() || entities.size() != uids.size()) {
+      throw new IllegalArgumentException("[entities]不能为EMPTY且必须与[uids]的数量一致");
+    }
+
+    // 每条消息绑定 9 个参数, 创建时间为空时使用数据库当前时间
+    var sql = new StringBuilder(INSERT_BATCH_SQL.length() + 96 * entities.size());
+    sql.append(INSERT_BATCH_SQL);
+    var params = new Object[9 * entities.size()];
+    var rows = 0;
+    for (int i = 0; i < entities.size(); i++) {
+      var entity = entities.get(i);
+      var p = 9 * i;
+      params[p] = entity.getId();
+      params[p + 1] = Parameter.fromOrNull(entity.getSenderId(), Long.class);
+      params[p + 2] = Parameter.fromOrNull(entity.getReceiverId(), Long.class);
+      params[p + 3] = Parameter.fromOrNull(entity.getGroupId(), Long.class);
+      params[p + 4] = Parameter.fromOrNull(entity.getKind(), Integer.class);
+      params[p + 5] = Parameter.fromOrNull(entity.getContent(), String.class);
+      params[p + 6] = Parameter.fromOrNull(entity.getContentType(), Integer.class);
+      params[p + 7] = Parameter.fromOrNull(entity.getExtraArgs(), String.class);
+      params[p + 8] = Parameter.fromOrNull(entity.getCreateTime(), LocalDateTime.class);
+      if (i > 0) {
+        sql.append(',');
+      }
+      sql.append('(');
+      for (int j = 1; j <= 8; j++) {
+        sql.append('$').append(p + j).append(',');
+      }
+      var createTime = "COALESCE($" + (p + 9) + "::timestamp,now())";
+      sql.append(createTime).append(',').append(createTime).append(')');
+      rows += uids.get(i).size();
+    }
+    sql.append(" ON CONFLICT (id) DO NOTHING");
+
+    var uidArray = new Long[rows];
+    var messageIdArray = new String[rows];
+    var k = 0;
+    for (int i = 0; i < entities.size(); i++) {
+      var messageId = entities.get(i).getId();
+      for (Long uid : uids.get(i)) {
+        uidArray[k] = uid;
+        messageIdArray[k] = messageId;
+        k++;
+      }
+    }
+
+    // 先保存消息再保存用户关联, 用户关联在单条语句中保存, 重复执行时不会产生重复的关联
+    var m1 = rc.sql(sql.toString()).bind(params).rowsUpdated();
+    var m2 =
+        rc.sql(INSERT_BATCH_USER_MESSAGES_SQL)
+            .bind(0, uidArray)
+            .bind(1, messageIdArray)
+            .rowsUpdated();
+    return m1.then(m2).then();
+  }
+
+  @Override
+  public Mono<Void> insertGroupTimeline(Message entity) {
+    if (entity.getGroupId() == null) {
+      throw new IllegalArgumentException("[groupId]不能为NULL");
+    }
+    // 群组行锁保证序号按消息保存的顺序递增, 群组不存在时不保存消息
+    return rc.sql(INSERT_GROUP_TIMELINE_SQL)
+        .bind(
+            new Object[] {
+              entity.getId(),
+              Parameter.fromOrNull(entity.getSenderId(), Long.class),
+              Parameter.fromOrNull(entity.getReceiverId(), Long.class),
+              entity.getGroupId(),
+              Parameter.fromOrNull(entity.getKind(), Integer.class),
+              entity.getContent(),
+              entity.getContentType(),
+              Parameter.fromOrNull(entity.getExtraArgs(), String.class),
+              Parameter.fromOrNull(entity.getCreateTime(), LocalDateTime.class)
+            })
+        .rowsUpdated()
+        .then()
+        .onErrorResume(
+            R2dbcDataIntegrityViolationException.class,
+            ex -> {
+              if (!SqlStates.S23505.equals(ex.getSqlState())) {
+                return Mono.error(ex);
+              }
+              return ignoreIfExists(entity.getId(), ex);
+            });
+  }
+
+  // 并发保存同一消息时违反主键约束, 消息已由其它语句保存则忽略, 否则为其它唯一约束冲突
+  private Mono<Void> ignoreIfExists(String id, R2dbcDataIntegrityViolationException ex) {
+    return rc.sql(EXISTS_SQL)
+        .bind(0, id)
+        .map(row -> Boolean.TRUE)
+        .one()
+        .hasElement()
+        .flatMap(
+            exists -> {
+              if (!exists) {
+                return Mono.error(ex);
+              }
+              log.debug("群组时间线消息已被并发保存 id={} ~ {}", id, ex.getMessage());
+              return Mono.empty();
+            });
+  }
+
   @Override
   public Mono<Void> updateUnreadStatus(long uid, List<String> messageIds, int v) {
     return rc.sql(UPDATE_UNREAD_STATUS_SQL)
@@ -82,6 +218,14 @@ public class MessageDaoImpl implements MessageDao {
         .then();
   }
 
+  @Override
+  public Mono<Void> updateGroupReadSeq(long uid, List<String> messageIds) {
+    return rc.sql(UPDATE_GROUP_READ_SEQ_SQL)
+        .bind(new Object[] {Joiner.on(',').join(messageIds), uid})
+        .rowsUpdated()
+        .then();
+  }
+
   private Mono<Integer> insert0(Message entity) {
     return rc.sql(INSERT_SQL)
         .bind(
@@ -34,10 +34,21 @@ import reactor.core.publisher.Mono;
 public class MessageQueryDaoImpl implements MessageQueryDao {
 
   private static final String QUERY_BY_ID_SQL = "SELECT * FROM messages WHERE id=$1";
+  // 合并与用户逐一关联的消息及用户所在群组的时间线消息
+  // 用户仅能查询加入群组之后的群组时间线消息, 消息序号大于已读位置时为未读
   private static final String QUERY_BY_USER_SQL =
-      "SELECT b.* FROM"
+      "SELECT * FROM ("
+          + "SELECT b.id,b.sender_id,b.receiver_id,b.group_id,b.group_seq,b.kind,b.content,"
+          + "b.content_type,b.extra_args,b.unread,b.create_time,b.update_time FROM"
           + " user_messages a LEFT JOIN messages b ON a.message_id = b.id"
           + " WHERE a.uid=$1 AND b.create_time>=$2"
+          + " UNION ALL"
+          + " SELECT m.id,m.sender_id,m.receiver_id,m.group_id,m.group_seq,m.kind,m.content,"
+          + "m.content_type,m.extra_args,CASE WHEN m.group_seq>gm.read_seq THEN 1 ELSE 0 END,"
+          + "m.create_time,m.update_time FROM"
+          + " groups_member gm JOIN messages m ON m.group_id=gm.gid AND m.group_seq IS NOT NULL"
+          + " WHERE gm.uid=$1 AND m.create_time>=$2 AND m.create_time>=gm.create_time"
+          + ") t ORDER BY create_time,id"
           + " OFFSET $3 LIMIT $4";
 
   private final R2dbcClient rc;
@@ -71,6 +82,7 @@ public class MessageQueryDaoImpl implements MessageQueryDao {
     e.setSenderId(row.get("sender_id", Long.class));
     e.setReceiverId(row.get("receiver_id", Long.class));
     e.setGroupId(row.get("group_id", Long.class));
+    e.setGroupSeq(row.get("group_seq", Long.class));
     e.setKind(row.get("kind", Integer.class));
     e.setContent(row.get("content", String.class));
     e.setContentType(row.get("content_type", Integer.class));
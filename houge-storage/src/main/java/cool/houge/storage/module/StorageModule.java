@@ -19,6 +19,7 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigBeanFactory;
 import cool.houge.ConfigKeys;
 import cool.houge.r2dbc.DefaultR2dbcClient;
 import cool.houge.r2dbc.R2dbcClient;
@@ -27,6 +28,9 @@ import cool.houge.storage.JwtSecretDao;
 import cool.houge.storage.MessageDao;
 import cool.houge.storage.ServerInstanceDao;
 import cool.houge.storage.UserDao;
+import cool.houge.storage.cache.GroupMemberCache;
+import cool.houge.storage.cache.GroupMemberCacheConfig;
+import cool.houge.storage.cache.GroupMemberChangeListener;
 import cool.houge.storage.impl.GroupDaoImpl;
 import cool.houge.storage.impl.JwtSecretDaoImpl;
 import cool.houge.storage.impl.MessageDaoImpl;
@@ -41,6 +45,7 @@ import cool.houge.storage.query.UserQueryDao;
 import cool.houge.system.identifier.ServerInstanceRepository;
 import io.r2dbc.spi.ConnectionFactories;
 import io.r2dbc.spi.ConnectionFactory;
+import javax.inject.Singleton;
 
 /**
  * 消息数据存储模块定义.
@@ -79,6 +84,19 @@ public class StorageModule extends AbstractModule {
     // 群组
     bind(GroupDao.class).to(GroupDaoImpl.class).in(Scopes.SINGLETON);
     bind(GroupQueryDao.class).to(GroupQueryDaoImpl.class).in(Scopes.SINGLETON);
+    bind(GroupMemberCache.class).in(Scopes.SINGLETON);
+    bind(GroupMemberChangeListener.class).in(Scopes.SINGLETON);
+  }
+
+  @Provides
+  @Singleton
+  public GroupMemberCacheConfig groupMemberCacheConfig() {
+    // 未配置时使用默认值
+    if (!config.hasPath("group-member-cache")) {
+      return new GroupMemberCacheConfig();
+    }
+    return ConfigBeanFactory.create(
+        config.getConfig("group-member-cache"), GroupMemberCacheConfig.class);
   }
 
   @Provides
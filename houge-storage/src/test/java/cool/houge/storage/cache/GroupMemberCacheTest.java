@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.storage.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.typesafe.config.ConfigMemorySize;
+import cool.houge.Nil;
+import cool.houge.storage.query.GroupQueryDao;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+/**
+ * {@link GroupMemberCache} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class GroupMemberCacheTest {
+
+  private GroupQueryDao newGroupQueryDao(long gid, Long... uids) {
+    var groupQueryDao = mock(GroupQueryDao.class);
+    when(groupQueryDao.existsById(gid)).thenReturn(Nil.mono());
+    when(groupQueryDao.queryUidByGid(gid)).thenReturn(Flux.just(uids));
+    return groupQueryDao;
+  }
+
+  @Test
+  void get() {
+    var gid = 1L;
+    var groupQueryDao = newGroupQueryDao(gid, 30L, 10L, 20L);
+    var cache = new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig());
+
+    StepVerifier.create(cache.get(gid))
+        .consumeNextWith(uids -> assertThat(uids).containsExactly(10L, 20L, 30L))
+        .expectComplete()
+        .verify();
+    StepVerifier.create(cache.get(gid)).expectNextCount(1).expectComplete().verify();
+    verify(groupQueryDao, times(1)).queryUidByGid(gid);
+  }
+
+  @Test
+  void getNotFound() {
+    var gid = 2L;
+    var groupQueryDao = mock(GroupQueryDao.class);
+    when(groupQueryDao.existsById(gid)).thenReturn(Mono.empty());
+    var cache = new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig());
+
+    StepVerifier.create(cache.get(gid)).expectComplete().verify();
+    StepVerifier.create(cache.get(gid)).expectComplete().verify();
+    // 不存在的群组不缓存
+    verify(groupQueryDao, times(2)).existsById(gid);
+  }
+
+  @Test
+  void onJoin() {
+    var gid = 3L;
+    var cache =
+        new GroupMemberCache(newGroupQueryDao(gid, 10L, 30L), new GroupMemberCacheConfig());
+    cache.get(gid).block();
+
+    cache.onJoin(gid, 20L);
+    cache.onJoin(gid, 20L);
+    cache.onJoin(gid, 40L);
+    StepVerifier.create(cache.get(gid))
+        .consumeNextWith(uids -> assertThat(uids).containsExactly(10L, 20L, 30L, 40L))
+        .expectComplete()
+        .verify();
+  }
+
+  @Test
+  void onRemove() {
+    var gid = 4L;
+    var cache =
+        new GroupMemberCache(newGroupQueryDao(gid, 10L, 20L, 30L), new GroupMemberCacheConfig());
+    cache.get(gid).block();
+
+    cache.onRemove(gid, 10L);
+    cache.onRemove(gid, 10L);
+    cache.onRemove(gid, 30L);
+    StepVerifier.create(cache.get(gid))
+        .consumeNextWith(uids -> assertThat(uids).containsExactly(20L))
+        .expectComplete()
+        .verify();
+  }
+
+  @Test
+  void invalidate() {
+    var gid = 5L;
+    var groupQueryDao = newGroupQueryDao(gid, 10L);
+    var cache = new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig());
+    cache.get(gid).block();
+
+    cache.invalidate(gid);
+    cache.get(gid).block();
+    verify(groupQueryDao, times(2)).queryUidByGid(gid);
+  }
+
+  @Test
+  void disable() {
+    var gid = 6L;
+    var groupQueryDao = newGroupQueryDao(gid, 10L);
+    var cache = new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig());
+    cache.get(gid).block();
+
+    // 停用期间每次都查询数据库
+    cache.disable();
+    cache.get(gid).block();
+    cache.get(gid).block();
+    verify(groupQueryDao, times(3)).queryUidByGid(gid);
+
+    // 启用后重新加载
+    cache.enable();
+    cache.get(gid).block();
+    cache.get(gid).block();
+    verify(groupQueryDao, times(4)).queryUidByGid(gid);
+  }
+
+  @Test
+  void maxBytes() {
+    var groupQueryDao = mock(GroupQueryDao.class);
+    var members = new Long[1000];
+    for (int i = 0; i < members.length; i++) {
+      members[i] = (long) i;
+    }
+    for (long gid = 0; gid < 100; gid++) {
+      when(groupQueryDao.existsById(gid)).thenReturn(Nil.mono());
+      when(groupQueryDao.queryUidByGid(gid)).thenReturn(Flux.just(members));
+    }
+    var config = new GroupMemberCacheConfig();
+    config.setMaxBytes(ConfigMemorySize.ofBytes(64 * 1024));
+    var cache = new GroupMemberCache(groupQueryDao, config);
+
+    for (long gid = 0; gid < 100; gid++) {
+      cache.get(gid).block();
+    }
+    // 淘汰后缓存的成员字节数不超过上限
+    cache.cleanUp();
+    assertThat(cache.weightedSize()).isPositive().isLessThanOrEqualTo(64 * 1024);
+  }
+}
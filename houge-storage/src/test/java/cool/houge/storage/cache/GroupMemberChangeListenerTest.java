@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019-2021 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.houge.storage.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import cool.houge.Nil;
+import cool.houge.storage.query.GroupQueryDao;
+import io.r2dbc.postgresql.api.Notification;
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.postgresql.api.PostgresqlStatement;
+import io.r2dbc.spi.ConnectionFactory;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * {@link GroupMemberChangeListener} 单元测试.
+ *
+ * @author KK (kzou227@qq.com)
+ */
+class GroupMemberChangeListenerTest {
+
+  private static final long GID = 1L;
+
+  private final ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+  private final PostgresqlConnection connection = mock(PostgresqlConnection.class);
+  private final GroupQueryDao groupQueryDao = mock(GroupQueryDao.class);
+  private Sinks.Many<Notification> notifications;
+  private GroupMemberCache cache;
+  private GroupMemberChangeListener listener;
+
+  @BeforeEach
+  void setUp() {
+    var statement = mock(PostgresqlStatement.class);
+    var result = mock(PostgresqlResult.class);
+    when(result.getRowsUpdated()).thenReturn(Mono.just(0));
+    when(statement.execute()).thenReturn(Flux.just(result));
+    when(connection.createStatement("LISTEN " + GroupMemberChangeListener.CHANNEL))
+        .thenReturn(statement);
+    when(connection.close()).thenReturn(Mono.empty());
+    when(connection.getNotifications())
+        .thenAnswer(
+            invocation -> {
+              notifications = Sinks.many().multicast().onBackpressureBuffer();
+              return notifications.asFlux();
+            });
+    doReturn(Mono.fromSupplier(() -> connection)).when(connectionFactory).create();
+
+    when(groupQueryDao.existsById(GID)).thenReturn(Nil.mono());
+    when(groupQueryDao.queryUidByGid(GID)).thenReturn(Flux.just(10L, 20L));
+    var config = new GroupMemberCacheConfig();
+    config.setRelistenDelay(Duration.ofMillis(10));
+    cache = new GroupMemberCache(groupQueryDao, config);
+    listener = new GroupMemberChangeListener(connectionFactory, cache, config);
+  }
+
+  @AfterEach
+  void tearDown() {
+    listener.stop();
+  }
+
+  private static void await(BooleanSupplier condition) {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertThat(System.nanoTime()).as("等待超时").isLessThan(deadline);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private static Notification notification(String name, String parameter) {
+    var notification = mock(Notification.class);
+    when(notification.getName()).thenReturn(name);
+    when(notification.getParameter()).thenReturn(parameter);
+    return notification;
+  }
+
+  private void get(int times) {
+    for (int i = 0; i < times; i++) {
+      assertThat(cache.get(GID).block()).containsExactly(10L, 20L);
+    }
+  }
+
+  @Test
+  void invalidateOnNotification() {
+    listener.start();
+    assertThat(cache.isEnabled()).isTrue();
+    get(2);
+    verify(groupQueryDao, times(1)).queryUidByGid(GID);
+
+    notifications.tryEmitNext(notification(GroupMemberChangeListener.CHANNEL, "1"));
+    get(2);
+    verify(groupQueryDao, times(2)).queryUidByGid(GID);
+
+    // 忽略其它频道及非法的通知
+    notifications.tryEmitNext(notification("other", "1"));
+    notifications.tryEmitNext(notification(GroupMemberChangeListener.CHANNEL, "abc"));
+    get(1);
+    verify(groupQueryDao, times(2)).queryUidByGid(GID);
+  }
+
+  @Test
+  void disableUntilListening() {
+    doReturn(Mono.never()).when(connectionFactory).create();
+    listener.start();
+
+    // 监听建立前不使用缓存
+    assertThat(cache.isEnabled()).isFalse();
+    get(2);
+    verify(groupQueryDao, times(2)).queryUidByGid(GID);
+  }
+
+  @Test
+  void relistenAfterError() {
+    listener.start();
+    get(1);
+
+    notifications.tryEmitError(new IllegalStateException("connection closed"));
+    assertThat(cache.isEnabled()).isFalse();
+    verify(connectionFactory, timeout(5000).times(2)).create();
+    await(cache::isEnabled);
+    // 中断期间的变更没有通知, 重新监听后清空缓存
+    get(2);
+    verify(groupQueryDao, times(2)).queryUidByGid(GID);
+  }
+
+  @Test
+  void stop() {
+    listener.start();
+    get(1);
+
+    listener.stop();
+    verify(connection).close();
+    assertThat(cache.isEnabled()).isFalse();
+    get(1);
+    verify(groupQueryDao, times(2)).queryUidByGid(GID);
+  }
+}
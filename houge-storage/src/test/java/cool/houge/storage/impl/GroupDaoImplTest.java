@@ -20,7 +20,10 @@ import static org.assertj.core.api.SoftAssertions.assertSoftly;
 
 import com.github.javafaker.Faker;
 import cool.houge.storage.AbstractTestDao;
+import cool.houge.storage.cache.GroupMemberCache;
+import cool.houge.storage.cache.GroupMemberCacheConfig;
 import cool.houge.storage.data.TestData;
+import cool.houge.storage.impl.query.GroupQueryDaoImpl;
 import java.util.Map;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -38,7 +41,9 @@ class GroupDaoImplTest extends AbstractTestDao {
   private final Faker faker = new Faker();
 
   private GroupDaoImpl newGroupDao() {
-    return new GroupDaoImpl(r2dbcClient);
+    var groupMemberCache =
+        new GroupMemberCache(new GroupQueryDaoImpl(r2dbcClient), new GroupMemberCacheConfig());
+    return new GroupDaoImpl(r2dbcClient, groupMemberCache);
   }
 
   private void clean(Long id) {
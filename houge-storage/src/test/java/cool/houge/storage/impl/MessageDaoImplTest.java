@@ -22,12 +22,17 @@ import com.google.common.base.Stopwatch;
 import cool.houge.constants.MessageReadStatus;
 import cool.houge.storage.AbstractTestDao;
 import cool.houge.storage.TestUtils;
+import cool.houge.storage.cache.GroupMemberCache;
+import cool.houge.storage.cache.GroupMemberCacheConfig;
 import cool.houge.storage.data.TestData;
+import cool.houge.storage.impl.query.GroupQueryDaoImpl;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
 import reactor.test.StepVerifier;
 import cool.houge.model.Message;
 
@@ -78,6 +83,194 @@ class MessageDaoImplTest extends AbstractTestDao {
     System.out.println(stopwatch);
   }
 
+  @DisplayName("重复保存批量消息")
+  @Test
+  void insertBatchReplay() {
+    var messageDao = newMessageDao();
+    var entity1 = TestData.newMessage();
+    var entity2 = TestData.newMessage();
+    var uids1 = List.of(entity1.getSenderId(), entity1.getReceiverId());
+    var uids2 = List.of(entity2.getSenderId(), entity2.getReceiverId());
+
+    // 模拟进程崩溃后重放预写日志: 第一条消息已保存, 重放时与未保存的消息在同一批次中
+    var p =
+        messageDao
+            .insertBatch(List.of(entity1), List.of(uids1))
+            .then(messageDao.insertBatch(List.of(entity1, entity2), List.of(uids1, uids2)))
+            .then(messageDao.insertBatch(List.of(entity1, entity2), List.of(uids1, uids2)));
+    StepVerifier.create(p).expectComplete().verify();
+
+    var countMessagesSql = "select count(*) as c from messages where id=$1";
+    var countUserMessagesSql = "select count(*) as c from user_messages where message_id=$1";
+    for (Message entity : List.of(entity1, entity2)) {
+      var messages =
+          r2dbcClient.sql(countMessagesSql).bind(0, entity.getId()).fetch().one().block();
+      assertThat((Long) messages.get("c")).isEqualTo(1);
+      var userMessages =
+          r2dbcClient.sql(countUserMessagesSql).bind(0, entity.getId()).fetch().one().block();
+      assertThat((Long) userMessages.get("c")).isEqualTo(2);
+    }
+
+    // 清理数据
+    for (Message entity : List.of(entity1, entity2)) {
+      delete("messages", Map.of("id", entity.getId()));
+      delete("user_messages", Map.of("message_id", entity.getId()));
+    }
+  }
+
+  @Test
+  void insertGroupTimeline() {
+    var messageDao = newMessageDao();
+    var groupQueryDao = new GroupQueryDaoImpl(r2dbcClient);
+    var groupDao =
+        new GroupDaoImpl(
+            r2dbcClient, new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig()));
+    var gid = groupDao.insert(TestData.newGroup()).block();
+    var entity1 = TestData.newMessage();
+    entity1.setGroupId(gid);
+    var entity2 = TestData.newMessage();
+    entity2.setGroupId(gid);
+
+    var p =
+        messageDao
+            .insertGroupTimeline(entity1)
+            .then(messageDao.insertGroupTimeline(entity2))
+            // 重复保存的消息会被忽略
+            .then(messageDao.insertGroupTimeline(entity1));
+    StepVerifier.create(p).expectComplete().verify();
+
+    var findSql = "select group_seq from messages where id=$1";
+    var seq1 = r2dbcClient.sql(findSql).bind(0, entity1.getId()).fetch().one().block();
+    var seq2 = r2dbcClient.sql(findSql).bind(0, entity2.getId()).fetch().one().block();
+    assertThat((Long) seq1.get("group_seq")).isLessThan((Long) seq2.get("group_seq"));
+
+    // 清理数据
+    delete("messages", Map.of("id", entity1.getId()));
+    delete("messages", Map.of("id", entity2.getId()));
+    delete("groups", Map.of("id", gid));
+    delete("groups_member", Map.of("gid", gid));
+  }
+
+  @Test
+  void insertGroupTimelineReplay() {
+    var messageDao = newMessageDao();
+    var groupQueryDao = new GroupQueryDaoImpl(r2dbcClient);
+    var groupDao =
+        new GroupDaoImpl(
+            r2dbcClient, new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig()));
+    var gid = groupDao.insert(TestData.newGroup()).block();
+    var entity1 = TestData.newMessage();
+    entity1.setGroupId(gid);
+    var entity2 = TestData.newMessage();
+    entity2.setGroupId(gid);
+
+    var findGroupSql = "select message_seq from groups where id=$1";
+    StepVerifier.create(messageDao.insertGroupTimeline(entity1)).expectComplete().verify();
+    var before = r2dbcClient.sql(findGroupSql).bind(0, gid).fetch().one().block();
+
+    // 重放已保存的消息不消耗群组的消息序号
+    StepVerifier.create(messageDao.insertGroupTimeline(entity1)).expectComplete().verify();
+    var after = r2dbcClient.sql(findGroupSql).bind(0, gid).fetch().one().block();
+    assertThat(after.get("message_seq")).isEqualTo(before.get("message_seq"));
+
+    StepVerifier.create(messageDao.insertGroupTimeline(entity2)).expectComplete().verify();
+    var findSql = "select group_seq from messages where id=$1";
+    var seq1 = r2dbcClient.sql(findSql).bind(0, entity1.getId()).fetch().one().block();
+    var seq2 = r2dbcClient.sql(findSql).bind(0, entity2.getId()).fetch().one().block();
+    // 序号连续, 没有因重放产生空洞
+    assertThat((Long) seq2.get("group_seq")).isEqualTo((Long) seq1.get("group_seq") + 1);
+
+    // 清理数据
+    delete("messages", Map.of("id", entity1.getId()));
+    delete("messages", Map.of("id", entity2.getId()));
+    delete("groups", Map.of("id", gid));
+    delete("groups_member", Map.of("gid", gid));
+  }
+
+  @Test
+  void insertGroupTimelineConcurrentReplay() {
+    var messageDao = newMessageDao();
+    var groupQueryDao = new GroupQueryDaoImpl(r2dbcClient);
+    var groupDao =
+        new GroupDaoImpl(
+            r2dbcClient, new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig()));
+    var gid = groupDao.insert(TestData.newGroup()).block();
+    var entity1 = TestData.newMessage();
+    entity1.setGroupId(gid);
+    var entity2 = TestData.newMessage();
+    entity2.setGroupId(gid);
+
+    // 并发保存同一消息, 后执行的语句违反主键约束并回滚递增的序号
+    var inserts =
+        Flux.range(0, 4)
+            .flatMap(
+                i -> messageDao.insertGroupTimeline(entity1).subscribeOn(Schedulers.parallel()))
+            .then();
+    StepVerifier.create(inserts).expectComplete().verify();
+    StepVerifier.create(messageDao.insertGroupTimeline(entity2)).expectComplete().verify();
+
+    var findSql = "select group_seq from messages where id=$1";
+    var seq1 = r2dbcClient.sql(findSql).bind(0, entity1.getId()).fetch().one().block();
+    var seq2 = r2dbcClient.sql(findSql).bind(0, entity2.getId()).fetch().one().block();
+    assertThat((Long) seq2.get("group_seq")).isEqualTo((Long) seq1.get("group_seq") + 1);
+    var findGroupSql = "select message_seq from groups where id=$1";
+    var group = r2dbcClient.sql(findGroupSql).bind(0, gid).fetch().one().block();
+    assertThat(group.get("message_seq")).isEqualTo(seq2.get("group_seq"));
+
+    // 清理数据
+    delete("messages", Map.of("id", entity1.getId()));
+    delete("messages", Map.of("id", entity2.getId()));
+    delete("groups", Map.of("id", gid));
+    delete("groups_member", Map.of("gid", gid));
+  }
+
+  @Test
+  void updateGroupReadSeq() {
+    var messageDao = newMessageDao();
+    var groupQueryDao = new GroupQueryDaoImpl(r2dbcClient);
+    var groupDao =
+        new GroupDaoImpl(
+            r2dbcClient, new GroupMemberCache(groupQueryDao, new GroupMemberCacheConfig()));
+    var group = TestData.newGroup();
+    var gid = groupDao.insert(group).block();
+    var entity1 = TestData.newMessage();
+    entity1.setGroupId(gid);
+    var entity2 = TestData.newMessage();
+    entity2.setGroupId(gid);
+
+    var p =
+        messageDao
+            .insertGroupTimeline(entity1)
+            .then(messageDao.insertGroupTimeline(entity2))
+            .then(messageDao.updateGroupReadSeq(group.getCreatorId(), List.of(entity2.getId())))
+            // 已读位置不会向前移动
+            .then(messageDao.updateGroupReadSeq(group.getCreatorId(), List.of(entity1.getId())));
+    StepVerifier.create(p).expectComplete().verify();
+
+    var readSeq =
+        r2dbcClient
+            .sql("select read_seq from groups_member where gid=$1 and uid=$2")
+            .bind(0, gid)
+            .bind(1, group.getCreatorId())
+            .fetch()
+            .one()
+            .block();
+    var groupSeq =
+        r2dbcClient
+            .sql("select group_seq from messages where id=$1")
+            .bind(0, entity2.getId())
+            .fetch()
+            .one()
+            .block();
+    assertThat(readSeq.get("read_seq")).isEqualTo(groupSeq.get("group_seq"));
+
+    // 清理数据
+    delete("messages", Map.of("id", entity1.getId()));
+    delete("messages", Map.of("id", entity2.getId()));
+    delete("groups", Map.of("id", gid));
+    delete("groups_member", Map.of("gid", gid));
+  }
+
   @Test
   void updateUnreadStatus() {
     var messageDao = newMessageDao();
@@ -20,6 +20,8 @@ import static org.assertj.core.api.SoftAssertions.assertSoftly;
 
 import cool.houge.Nil;
 import cool.houge.storage.AbstractTestDao;
+import cool.houge.storage.cache.GroupMemberCache;
+import cool.houge.storage.cache.GroupMemberCacheConfig;
 import cool.houge.storage.data.TestData;
 import java.util.ArrayList;
 import java.util.Map;
@@ -35,7 +37,8 @@ import cool.houge.storage.impl.GroupDaoImpl;
 class GroupQueryDaoImplTest extends AbstractTestDao {
 
   private GroupDaoImpl newGroupDao() {
-    return new GroupDaoImpl(r2dbcClient);
+    var groupMemberCache = new GroupMemberCache(newGroupQueryDao(), new GroupMemberCacheConfig());
+    return new GroupDaoImpl(r2dbcClient, groupMemberCache);
   }
 
   private GroupQueryDaoImpl newGroupQueryDao() {
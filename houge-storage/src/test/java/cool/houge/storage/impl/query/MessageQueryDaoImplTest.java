@@ -20,6 +20,8 @@ import static org.assertj.core.api.SoftAssertions.assertSoftly;
 
 import cool.houge.domain.Paging;
 import cool.houge.storage.AbstractTestDao;
+import cool.houge.storage.cache.GroupMemberCache;
+import cool.houge.storage.cache.GroupMemberCacheConfig;
 import cool.houge.storage.data.TestData;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
@@ -28,6 +30,7 @@ import java.util.Map;
 import org.junit.jupiter.api.Test;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
+import cool.houge.storage.impl.GroupDaoImpl;
 import cool.houge.storage.impl.MessageDaoImpl;
 import cool.houge.model.Message;
 import cool.houge.storage.query.UserMessageQuery;
@@ -129,4 +132,61 @@ class MessageQueryDaoImplTest extends AbstractTestDao {
       delete("user_messages", Map.of("message_id", message.getId()));
     }
   }
+
+  @Test
+  void queryByUserGroupTimeline() {
+    var messageDao = newMessageDao();
+    var messageQueryDao = newMessageQueryDao();
+    var groupDao =
+        new GroupDaoImpl(
+            r2dbcClient,
+            new GroupMemberCache(new GroupQueryDaoImpl(r2dbcClient), new GroupMemberCacheConfig()));
+    var group = TestData.newGroup();
+    var gid = groupDao.insert(group).block();
+    var uid = group.getCreatorId();
+
+    var privateMessage = TestData.newMessage();
+    privateMessage.setReceiverId(uid);
+    var groupMessage1 = TestData.newMessage();
+    groupMessage1.setGroupId(gid);
+    var groupMessage2 = TestData.newMessage();
+    groupMessage2.setGroupId(gid);
+
+    var q =
+        UserMessageQuery.builder().uid(uid).beginTime(LocalDateTime.now().minusHours(1)).build();
+    var p =
+        messageDao
+            .insert(privateMessage, List.of(privateMessage.getSenderId(), uid))
+            .then(messageDao.insertGroupTimeline(groupMessage1))
+            .then(messageDao.insertGroupTimeline(groupMessage2))
+            .then(messageDao.updateGroupReadSeq(uid, List.of(groupMessage1.getId())))
+            .thenMany(Flux.defer(() -> messageQueryDao.queryByUser(q, Paging.of(0, 100))));
+
+    var messages = new ArrayList<Message>();
+    StepVerifier.create(p)
+        .recordWith(() -> messages)
+        .thenConsumeWhile(message -> true)
+        .expectComplete()
+        .verify();
+
+    assertThat(messages)
+        .extracting(Message::getId)
+        .contains(privateMessage.getId(), groupMessage1.getId(), groupMessage2.getId());
+    assertThat(messages)
+        .filteredOn(message -> groupMessage2.getId().equals(message.getId()))
+        .singleElement()
+        .satisfies(message -> assertThat(message.getUnread()).isOne());
+    assertThat(messages)
+        .filteredOn(message -> groupMessage1.getId().equals(message.getId()))
+        .singleElement()
+        .satisfies(message -> assertThat(message.getUnread()).isZero());
+
+    // 清理数据
+    delete("messages", Map.of("id", privateMessage.getId()));
+    delete("user_messages", Map.of("message_id", privateMessage.getId()));
+    delete("messages", Map.of("id", groupMessage1.getId()));
+    delete("messages", Map.of("id", groupMessage2.getId()));
+    delete("groups", Map.of("id", gid));
+    delete("groups_member", Map.of("gid", gid));
+  }
 }